@@ -0,0 +1,351 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet;
+
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.swing.JTable;
+import javax.swing.table.TableModel;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbookPr;
+
+import org.joeffice.spreadsheet.cell.CellUtils;
+import org.joeffice.spreadsheet.sheet.CellStore;
+import org.joeffice.spreadsheet.sheet.SheetTableModel;
+
+import org.netbeans.api.progress.ProgressHandle;
+import org.netbeans.api.progress.ProgressHandleFactory;
+import org.openide.util.NbBundle;
+import org.openide.util.NbBundle.Messages;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Transferable of the copied cells as tab separated text.
+ *
+ * The copied cells are recorded in one step when the cells are copied with a snapshot of the cell store of the sheet,
+ * which shares the primitive arrays of the store until the cells are modified.
+ * The text is only created from this snapshot when the data is requested, so the cells are never read
+ * outside the event dispatch thread and the copy is not affected by the later changes.
+ * The text is streamed with the Reader flavor. For the String flavor, the text of the big copies is created
+ * in the background with a progress.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+@Messages({
+    "# {0} - number of cells",
+    "MSG_CopyingCells=Copying {0} cells"
+})
+public class CellsTransferable implements Transferable {
+
+    /**
+     * The text is created in the background from this number of cells.
+     */
+    public final static int BACKGROUND_MIN_CELLS = 100000;
+
+    public final static DataFlavor READER_FLAVOR = new DataFlavor("text/plain; class=java.io.Reader", "Plain Text");
+
+    private final static String LINE_SEPARATOR = System.getProperty("line.separator");
+    private final static int PROGRESS_ROWS = 1000;
+
+    private final static RequestProcessor COPY_THREAD = new RequestProcessor(CellsTransferable.class);
+
+    private boolean sheetModel;
+    private int[] rows;
+    private int[] columns;
+
+    // The copied cells with the model row and column indexes
+    private CellStore cells;
+    private BitSet dateStyles = new BitSet();
+    private boolean date1904;
+    private FutureTask<String> textCreation;
+
+    /**
+     * Records the cells of the selected ranges of the table.
+     * This constructor should be called in the event dispatch thread.
+     */
+    public CellsTransferable(JTable table) {
+        TableModel model = table.getModel();
+        sheetModel = model instanceof SheetTableModel;
+        BitSet selectedRows = new BitSet();
+        BitSet selectedColumns = new BitSet();
+        for (CellRangeAddress range : CellUtils.getSelectedRanges(table)) {
+            selectedRows.set(range.getFirstRow(), range.getLastRow() + 1);
+            selectedColumns.set(range.getFirstColumn(), range.getLastColumn() + 1);
+        }
+        rows = toModelIndexes(selectedRows, table, true);
+        columns = toModelIndexes(selectedColumns, table, false);
+        if (sheetModel) {
+            SheetTableModel sheetTableModel = (SheetTableModel) model;
+            cells = sheetTableModel.getCellStore().snapshot();
+            Workbook workbook = sheetTableModel.getSheet().getWorkbook();
+            for (short i = 0; i < workbook.getNumCellStyles(); i++) {
+                CellStyle style = workbook.getCellStyleAt(i);
+                if (DateUtil.isADateFormat(style.getDataFormat(), style.getDataFormatString())) {
+                    dateStyles.set(i);
+                }
+            }
+            date1904 = isDate1904(sheetTableModel.getSheet());
+        } else {
+            cells = new CellStore();
+            for (int row : rows) {
+                for (int column : columns) {
+                    Object value = model.getValueAt(row, column);
+                    if (value != null) {
+                        cells.setStringValue(row, column, value.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    private static int[] toModelIndexes(BitSet viewIndexes, JTable table, boolean rows) {
+        int[] modelIndexes = new int[viewIndexes.cardinality()];
+        int index = 0;
+        for (int i = viewIndexes.nextSetBit(0); i >= 0; i = viewIndexes.nextSetBit(i + 1)) {
+            modelIndexes[index] = rows ? table.convertRowIndexToModel(i) : table.convertColumnIndexToModel(i);
+            index++;
+        }
+        return modelIndexes;
+    }
+
+    /**
+     * Gets whether the dates of the workbook start in 1904.
+     * For the other workbooks than xlsx, the date of the first copied date cell is checked as POI doesn't give the
+     * information.
+     */
+    private boolean isDate1904(Sheet sheet) {
+        Workbook workbook = sheet.getWorkbook();
+        if (workbook instanceof XSSFWorkbook) {
+            CTWorkbookPr workbookProperties = ((XSSFWorkbook) workbook).getCTWorkbook().getWorkbookPr();
+            return workbookProperties != null && workbookProperties.getDate1904();
+        }
+        for (int row : rows) {
+            for (int column : columns) {
+                if (cells.getCellType(row, column) == Cell.CELL_TYPE_NUMERIC && dateStyles.get(cells.getStyleIndex(row, column) & 0xFFFF)) {
+                    Row sheetRow = sheet.getRow(row);
+                    Cell cell = sheetRow == null ? null : sheetRow.getCell(column);
+                    return cell != null && DateUtil.isValidExcelDate(cell.getNumericCellValue())
+                            && cell.getDateCellValue().equals(DateUtil.getJavaDate(cell.getNumericCellValue(), true));
+                }
+            }
+        }
+        return false;
+    }
+
+    public int getCellCount() {
+        return rows.length * columns.length;
+    }
+
+    /**
+     * Starts the creation of the text in the background with a progress if there are many cells to copy.
+     */
+    public void prepare() {
+        if (getCellCount() < BACKGROUND_MIN_CELLS) {
+            return;
+        }
+        String progressTitle = NbBundle.getMessage(CellsTransferable.class, "MSG_CopyingCells", getCellCount());
+        final ProgressHandle progress = ProgressHandleFactory.createHandle(progressTitle);
+        progress.start(rows.length);
+        FutureTask<String> creation = new FutureTask<>(new Callable<String>() {
+
+            @Override
+            public String call() {
+                try {
+                    return createText(progress);
+                } finally {
+                    progress.finish();
+                }
+            }
+        });
+        synchronized (this) {
+            textCreation = creation;
+        }
+        COPY_THREAD.post(creation);
+    }
+
+    @Override
+    public DataFlavor[] getTransferDataFlavors() {
+        return new DataFlavor[]{READER_FLAVOR, DataFlavor.stringFlavor};
+    }
+
+    @Override
+    public boolean isDataFlavorSupported(DataFlavor flavor) {
+        return READER_FLAVOR.equals(flavor) || DataFlavor.stringFlavor.equals(flavor);
+    }
+
+    @Override
+    public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException, IOException {
+        if (READER_FLAVOR.equals(flavor)) {
+            return new CellsReader();
+        } else if (DataFlavor.stringFlavor.equals(flavor)) {
+            return getText();
+        }
+        throw new UnsupportedFlavorException(flavor);
+    }
+
+    private String getText() throws IOException {
+        FutureTask<String> creation;
+        synchronized (this) {
+            creation = textCreation;
+        }
+        if (creation == null) {
+            return createText(null);
+        }
+        try {
+            return creation.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private String createText(ProgressHandle progress) {
+        int[] copiedColumns = getCopiedColumns();
+        ValuesFormatter formatter = new ValuesFormatter();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < rows.length; i++) {
+            formatter.appendRow(text, rows[i], copiedColumns);
+            if (progress != null && i % PROGRESS_ROWS == 0) {
+                progress.progress(i);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Gets the model indexes of the copied columns without the empty columns at the left and right of the copied cells.
+     */
+    private int[] getCopiedColumns() {
+        int first = sheetModel ? columns.length : 0;
+        int last = sheetModel ? -1 : columns.length - 1;
+        for (int i = 0; i < rows.length && sheetModel; i++) {
+            for (int j = 0; j < columns.length; j++) {
+                if ((j < first || j > last) && cells.hasCell(rows[i], columns[j])) {
+                    first = Math.min(first, j);
+                    last = Math.max(last, j);
+                }
+            }
+        }
+        if (last == -1) {
+            return new int[0];
+        }
+        int[] copiedColumns = new int[last - first + 1];
+        for (int i = 0; i < copiedColumns.length; i++) {
+            copiedColumns[i] = columns[first + i];
+        }
+        return copiedColumns;
+    }
+
+    /**
+     * Formats the copied cells like CellUtils.getFormattedText, with its own formatters as the text
+     * can be created in several threads.
+     */
+    private class ValuesFormatter {
+
+        private NumberFormat numberFormatter = DecimalFormat.getInstance();
+        private DateFormat dateFormatter = DateFormat.getDateInstance();
+
+        private void appendRow(StringBuilder text, int row, int[] copiedColumns) {
+            for (int i = 0; i < copiedColumns.length; i++) {
+                if (i > 0) {
+                    text.append('\t');
+                }
+                int column = copiedColumns[i];
+                int type = cells.getCellType(row, column);
+                if (type == Cell.CELL_TYPE_STRING) {
+                    text.append(cells.getStringValue(row, column));
+                } else if (type == Cell.CELL_TYPE_NUMERIC) {
+                    double value = cells.getNumericValue(row, column);
+                    if (dateStyles.get(cells.getStyleIndex(row, column) & 0xFFFF) && DateUtil.isValidExcelDate(value)) {
+                        text.append(dateFormatter.format(DateUtil.getJavaDate(value, date1904)));
+                    } else {
+                        text.append(numberFormatter.format(value));
+                    }
+                } else if (type == Cell.CELL_TYPE_BOOLEAN) {
+                    text.append(cells.getBooleanValue(row, column));
+                }
+            }
+            text.append(LINE_SEPARATOR);
+        }
+    }
+
+    /**
+     * Reader creating the text of the rows when they are read.
+     */
+    private class CellsReader extends Reader {
+
+        private final static int MIN_BUFFERED_CHARS = 8192;
+
+        private int[] copiedColumns;
+        private ValuesFormatter formatter = new ValuesFormatter();
+        private int nextRowIndex;
+        private StringBuilder buffer = new StringBuilder();
+        private int bufferPosition;
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (bufferPosition == buffer.length()) {
+                fillBuffer();
+                if (buffer.length() == 0) {
+                    return -1;
+                }
+            }
+            int readCount = Math.min(length, buffer.length() - bufferPosition);
+            buffer.getChars(bufferPosition, bufferPosition + readCount, chars, offset);
+            bufferPosition += readCount;
+            return readCount;
+        }
+
+        private void fillBuffer() {
+            if (copiedColumns == null) {
+                copiedColumns = getCopiedColumns();
+            }
+            buffer.setLength(0);
+            bufferPosition = 0;
+            while (buffer.length() < MIN_BUFFERED_CHARS && nextRowIndex < rows.length) {
+                formatter.appendRow(buffer, rows[nextRowIndex], copiedColumns);
+                nextRowIndex++;
+            }
+        }
+
+        @Override
+        public void close() {
+            nextRowIndex = rows.length;
+            buffer.setLength(0);
+            bufferPosition = 0;
+        }
+    }
+}
@@ -16,10 +16,14 @@
 package org.joeffice.spreadsheet;
 
 import static javax.swing.JLayeredPane.DEFAULT_LAYER;
+import static javax.swing.JLayeredPane.PALETTE_LAYER;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import javax.swing.*;
@@ -31,14 +35,24 @@ import javax.swing.text.DefaultEditorKit;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
 import org.jdesktop.swingx.scrollpaneselector.ScrollPaneSelector;
 import org.joeffice.spreadsheet.actions.ClipboardAction;
 import org.joeffice.spreadsheet.sheet.SheetListener;
 
+import org.joeffice.spreadsheet.cell.CellBordersLayer;
+import org.joeffice.spreadsheet.cell.CellRenderCache;
 import org.joeffice.spreadsheet.cell.CellRenderer;
+import org.joeffice.spreadsheet.csv.CSVWorkbook;
 import org.joeffice.spreadsheet.sheet.TableColumnAdjuster;
+import org.joeffice.spreadsheet.rows.RowHeights;
 import org.joeffice.spreadsheet.rows.RowTableFactory;
+import org.joeffice.spreadsheet.sheet.CellStore;
 import org.joeffice.spreadsheet.sheet.SheetTableModel;
+import org.joeffice.spreadsheet.sheet.SheetUndoManager;
+import org.joeffice.spreadsheet.xlsx.FastViewWorkbook;
+
+import org.openide.awt.UndoRedo;
 
 /**
  * Component that displays one sheet.
@@ -51,11 +65,14 @@ public class SheetComponent extends JPanel {
     public static final int UNIT_OFFSET_LENGTH = 7;
     public static final int CELL_HEIGHT_MARGINS = 2;
 
+    private static final int PREFILL_DELAY = 200;
+
     private SpreadsheetComponent spreadsheetComponent;
 
     private JLayeredPane layers;
     private JTable sheetTable;
     private Sheet sheet;
+    private int loadedRowCount;
 
     public SheetComponent(Sheet sheet, SpreadsheetComponent spreadsheetComponent) {
         this.sheet = sheet;
@@ -70,14 +87,37 @@ public class SheetComponent extends JPanel {
 
         JScrollPane scrolling = RowTableFactory.attachRows(sheetTable, layers);
         scrolling.setColumnHeaderView(sheetTable.getTableHeader());
+        prefillRenderCacheWhenScrolled(scrolling.getViewport());
         ScrollPaneSelector.installScrollPaneSelector(scrolling);
 
         setLayout(new BorderLayout());
         add(scrolling);
     }
 
+    /**
+     * Creates the table model of the sheet.
+     * The sheets of a workbook opened in fast view have their cells in the cell store of the workbook.
+     * The cells of a CSV file are parsed in a cell store that is reused, read-only until the cells are loaded
+     * in the sheet.
+     */
+    public SheetTableModel createTableModel(Sheet sheet) {
+        Workbook workbook = sheet.getWorkbook();
+        if (workbook instanceof FastViewWorkbook) {
+            CellStore cellStore = ((FastViewWorkbook) workbook).getCellStore(sheet);
+            return new SheetTableModel(sheet, cellStore);
+        }
+        if (workbook instanceof CSVWorkbook) {
+            CSVWorkbook csvWorkbook = (CSVWorkbook) workbook;
+            CellStore cellStore = csvWorkbook.takeCellStore(sheet);
+            if (cellStore != null) {
+                return new SheetTableModel(sheet, cellStore, !csvWorkbook.isCellsLoaded());
+            }
+        }
+        return new SheetTableModel(sheet);
+    }
+
     public JTable createTable(Sheet sheet) {
-        SheetTableModel sheetTableModel = new SheetTableModel(sheet);
+        SheetTableModel sheetTableModel = createTableModel(sheet);
         JTable table = new SheetTable(sheetTableModel);
 
         table.setDefaultRenderer(Cell.class, new CellRenderer());
@@ -92,15 +132,9 @@ public class SheetComponent extends JPanel {
             tableColumn.setPreferredWidth(widthUnitsToPixel(widthUnits));
         }
 
-        int rowCount = sheetTableModel.getRowCount();
-        for (int rowIndex = 0; rowIndex < rowCount; rowIndex++) {
-            Row row = sheet.getRow(rowIndex);
-            if (row != null) {
-                int cellHeight = (int) Math.ceil(sheet.getRow(rowIndex).getHeightInPoints());
-                cellHeight += CELL_HEIGHT_MARGINS;
-                table.setRowHeight(rowIndex, cellHeight);
-            }
-        }
+        loadedRowCount = sheetTableModel.getRowCount();
+        table.setRowHeight(getDefaultRowHeight(sheet));
+        setRowHeights(table, 0, loadedRowCount);
 
         table.setAutoscrolls(true);
         table.setFillsViewportHeight(true);
@@ -131,7 +165,7 @@ public class SheetComponent extends JPanel {
 
         //table.setIntercellSpacing(new Dimension(0, 0));
         table.putClientProperty("print.printable", Boolean.TRUE);
-        Rectangle lastDataCellBounds = table.getCellRect(sheet.getLastRowNum(), sheetTableModel.getLastColumnNum(), true);
+        Rectangle lastDataCellBounds = table.getCellRect(sheetTableModel.getLastRowNum(), sheetTableModel.getLastColumnNum(), true);
         table.putClientProperty("print.size", new Dimension(lastDataCellBounds.x + lastDataCellBounds.width, lastDataCellBounds.y + lastDataCellBounds.height));
         new SheetListener(table);
 
@@ -141,8 +175,31 @@ public class SheetComponent extends JPanel {
         return table;
     }
 
+    private static int getDefaultRowHeight(Sheet sheet) {
+        return (int) Math.ceil(sheet.getDefaultRowHeightInPoints()) + CELL_HEIGHT_MARGINS;
+    }
+
+    /**
+     * Sets the heights of the rows directly in the row heights model, with the rows in order
+     * and without an event per row.
+     */
+    private void setRowHeights(JTable table, int fromRow, int toRow) {
+        RowHeights rowHeights = ((SheetTable) table).getRowHeights();
+        for (int rowIndex = fromRow; rowIndex < toRow; rowIndex++) {
+            Row row = sheet.getRow(rowIndex);
+            if (row != null) {
+                int cellHeight = (int) Math.ceil(row.getHeightInPoints());
+                cellHeight += CELL_HEIGHT_MARGINS;
+                rowHeights.setHeight(rowIndex, cellHeight);
+            }
+        }
+        table.revalidate();
+        table.repaint();
+    }
+
     // From http://stackoverflow.com/questions/6663591/jtable-inside-jlayeredpane-inside-jscrollpane-how-do-you-get-it-to-work
     public JLayeredPane createSheetLayers(final JTable table) {
+        final CellBordersLayer bordersLayer = new CellBordersLayer(table);
         JLayeredPane layers = new JLayeredPane() {
             @Override
             public Dimension getPreferredSize() {
@@ -153,16 +210,19 @@ public class SheetComponent extends JPanel {
             public void setSize(int width, int height) {
                 super.setSize(width, height);
                 table.setSize(width, height);
+                bordersLayer.setSize(width, height);
             }
 
             @Override
             public void setSize(Dimension d) {
                 super.setSize(d);
                 table.setSize(d);
+                bordersLayer.setSize(d);
             }
         };
         // NB you must use new Integer() - the int version is a different method
         layers.add(table, new Integer(DEFAULT_LAYER), 0);
+        layers.add(bordersLayer, new Integer(PALETTE_LAYER), 0);
         return layers;
     }
 
@@ -177,13 +237,7 @@ public class SheetComponent extends JPanel {
     }
 
     public void listenToChanges() {
-        sheetTable.getModel().addTableModelListener(new TableModelListener() {
-
-            @Override
-            public void tableChanged(TableModelEvent e) {
-                getSpreadsheetComponent().setModified(true);
-            }
-        });
+        listenToModelChanges((SheetTableModel) sheetTable.getModel());
         sheetTable.addPropertyChangeListener("singleRowHeight", new PropertyChangeListener() {
 
             @Override
@@ -199,6 +253,123 @@ public class SheetComponent extends JPanel {
                 }
             }
         });
+        sheetTable.addPropertyChangeListener("editReadOnly", new PropertyChangeListener() {
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                getSpreadsheetComponent().loadFullWorkbook();
+            }
+        });
+        if (sheet.getWorkbook() instanceof FastViewWorkbook) {
+            ((FastViewWorkbook) sheet.getWorkbook()).addPropertyChangeListener(new PropertyChangeListener() {
+
+                @Override
+                public void propertyChange(PropertyChangeEvent evt) {
+                    if (evt.getPropertyName().equals(FastViewWorkbook.PROP_ROWS_LOADED)
+                            && sheet.getWorkbook().getSheetIndex(sheet) == (Integer) evt.getNewValue()) {
+                        rowsLoaded();
+                    }
+                }
+            });
+        }
+    }
+
+    private void listenToModelChanges(SheetTableModel sheetTableModel) {
+        if (!sheetTableModel.isReadOnly()) {
+            sheetTableModel.addTableModelListener(new TableModelListener() {
+
+                @Override
+                public void tableChanged(TableModelEvent e) {
+                    getSpreadsheetComponent().setModified(true);
+                }
+            });
+            UndoRedo.Manager undoManager = (UndoRedo.Manager) getSpreadsheetComponent().getSpreadsheetAndToolbar().getUndoRedo();
+            sheetTableModel.addUndoableEditListener(undoManager);
+        }
+    }
+
+    /**
+     * Shows the rows added to the cell store in fast view without recreating the columns of the table.
+     */
+    private void rowsLoaded() {
+        if (!(sheetTable.getModel() instanceof SheetTableModel)) {
+            return;
+        }
+        SheetTableModel sheetTableModel = (SheetTableModel) sheetTable.getModel();
+        int rowCount = sheetTableModel.getRowCount();
+        if (rowCount > loadedRowCount) {
+            sheetTableModel.fireTableRowsInserted(loadedRowCount, rowCount - 1);
+            setRowHeights(sheetTable, loadedRowCount, rowCount);
+            loadedRowCount = rowCount;
+        }
+        int columnCount = sheetTableModel.getColumnCount();
+        for (int i = sheetTable.getColumnCount(); i < columnCount; i++) {
+            TableColumn tableColumn = new TableColumn(i);
+            tableColumn.setPreferredWidth(widthUnitsToPixel(sheet.getColumnWidth(i)));
+            sheetTable.addColumn(tableColumn);
+        }
+    }
+
+    /**
+     * Fills the render cache of the sheet with the rows above and below the visible rows
+     * once the scrolling has stopped.
+     * This is done in the event dispatch thread as the POI sheet is not thread safe.
+     */
+    private void prefillRenderCacheWhenScrolled(JViewport viewport) {
+        final Timer prefillTimer = new Timer(PREFILL_DELAY, new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prefillRenderCache();
+            }
+        });
+        prefillTimer.setRepeats(false);
+        viewport.addChangeListener(new ChangeListener() {
+
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                prefillTimer.restart();
+            }
+        });
+    }
+
+    private void prefillRenderCache() {
+        if (!(sheetTable.getModel() instanceof SheetTableModel) || sheetTable.getRowCount() == 0) {
+            return;
+        }
+        Rectangle visibleBounds = sheetTable.getVisibleRect();
+        int firstRow = sheetTable.rowAtPoint(visibleBounds.getLocation());
+        int firstColumn = sheetTable.columnAtPoint(visibleBounds.getLocation());
+        if (firstRow == -1 || firstColumn == -1) {
+            return;
+        }
+        int lastRow = sheetTable.rowAtPoint(new Point(visibleBounds.x, visibleBounds.y + visibleBounds.height - 1));
+        if (lastRow == -1) {
+            lastRow = sheetTable.getRowCount() - 1;
+        }
+        int lastColumn = sheetTable.columnAtPoint(new Point(visibleBounds.x + visibleBounds.width - 1, visibleBounds.y));
+        if (lastColumn == -1) {
+            lastColumn = sheetTable.getColumnCount() - 1;
+        }
+        int visibleRowCount = lastRow - firstRow + 1;
+        prefillRenderCache(Math.max(0, firstRow - visibleRowCount), firstRow - 1, firstColumn, lastColumn);
+        prefillRenderCache(lastRow + 1, Math.min(sheetTable.getRowCount() - 1, lastRow + visibleRowCount), firstColumn, lastColumn);
+    }
+
+    private void prefillRenderCache(int firstRow, int lastRow, int firstColumn, int lastColumn) {
+        SheetTableModel sheetTableModel = (SheetTableModel) sheetTable.getModel();
+        CellStore cellStore = sheetTableModel.getCellStore();
+        CellRenderCache renderCache = sheetTableModel.getRenderCache();
+        for (int row = firstRow; row <= lastRow; row++) {
+            int modelRow = sheetTable.convertRowIndexToModel(row);
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int modelColumn = sheetTable.convertColumnIndexToModel(column);
+                int cellType = cellStore.getCellType(modelRow, modelColumn);
+                if (cellType != CellStore.NO_CELL && cellType != Cell.CELL_TYPE_FORMULA) {
+                    renderCache.getRenderedCell(cellStore, modelRow, modelColumn, sheet.getWorkbook());
+                }
+            }
+        }
     }
 
     public JTable getTable() {
@@ -211,15 +382,19 @@ public class SheetComponent extends JPanel {
 
     public void setSheet(Sheet sheet) {
         this.sheet = sheet;
-        SheetTableModel sheetTableModel = new SheetTableModel(sheet);
+        SheetTableModel oldTableModel = (SheetTableModel) sheetTable.getModel();
+        SheetTableModel sheetTableModel = createTableModel(sheet);
         sheetTable.setModel(sheetTableModel);
-        sheetTableModel.addTableModelListener(new TableModelListener() {
-
-            @Override
-            public void tableChanged(TableModelEvent e) {
-                getSpreadsheetComponent().setModified(true);
-            }
-        });
+        loadedRowCount = sheetTableModel.getRowCount();
+        sheetTable.setRowHeight(getDefaultRowHeight(sheet));
+        setRowHeights(sheetTable, 0, loadedRowCount);
+        listenToModelChanges(sheetTableModel);
+        UndoRedo.Manager undoManager = (UndoRedo.Manager) getSpreadsheetComponent().getSpreadsheetAndToolbar().getUndoRedo();
+        oldTableModel.removeUndoableEditListener(undoManager);
+        if (undoManager instanceof SheetUndoManager) {
+            // The sheet is the same sheet reloaded, the changes done before can still be undone
+            ((SheetUndoManager) undoManager).replaceModel(oldTableModel, sheetTableModel);
+        }
     }
 
     public SpreadsheetComponent getSpreadsheetComponent() {
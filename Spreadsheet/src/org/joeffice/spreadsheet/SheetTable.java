@@ -17,112 +17,413 @@ package org.joeffice.spreadsheet;
 
 import java.awt.Graphics;
 import java.awt.Point;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.List;
 import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.table.TableCellEditor;
 import javax.swing.table.TableModel;
 
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import org.joeffice.spreadsheet.cell.CellBordersLayer;
+import org.joeffice.spreadsheet.rows.RowHeights;
+import org.joeffice.spreadsheet.sheet.SheetTableModel;
+
 /**
  * A JTable with extra features.
  * This class is only to fix bugs or improve existing functionalities.
  *
+ * The selected cells are kept as a list of rectangular ranges, an entire row or column is one range
+ * whatever the number of cells.
+ *
  * @author Anthony Goubard - Japplis
  */
 public class SheetTable extends JTable {
 
-    private Map<Integer, Set<Integer>> selectedCells = new HashMap<>();
+    public final static int MAX_ROW = SpreadsheetVersion.EXCEL2007.getLastRowIndex();
+    public final static int MAX_COLUMN = SpreadsheetVersion.EXCEL2007.getLastColumnIndex();
+
+    private List<CellRangeAddress> selectedRanges = new ArrayList<>();
     private Point firstExtendCell;
-    private Point lastExtendCell;
+
+    // Not initialized here as JTable constructor calls setRowHeight(int)
+    private RowHeights rowHeights;
 
     public SheetTable(TableModel tableModel) {
         super(tableModel);
+        getTableHeader().addMouseListener(new ColumnsSelector());
+    }
+
+    /**
+     * Gets the heights of the rows, also used by the row table.
+     * JTable keeps the heights of all the rows as soon as one row has a different height,
+     * this model only keeps the rows that don't have the default height.
+     */
+    public RowHeights getRowHeights() {
+        return rowHeights;
+    }
+
+    @Override
+    public void setRowHeight(int rowHeight) {
+        super.setRowHeight(rowHeight);
+        if (rowHeights == null) {
+            rowHeights = new RowHeights(rowHeight);
+        } else {
+            rowHeights.reset(rowHeight);
+        }
     }
 
     @Override
     public void setRowHeight(int row, int rowHeight) {
+        if (rowHeight <= 0) {
+            throw new IllegalArgumentException("New row height less than 1");
+        }
         int oldRowHeight = getRowHeight(row);
-        super.setRowHeight(row, rowHeight);
+        rowHeights.setHeight(row, rowHeight);
+        resizeAndRepaint();
         // Fire the row changed
         firePropertyChange("singleRowHeight", oldRowHeight, row);
     }
 
+    @Override
+    public int getRowHeight(int row) {
+        return rowHeights == null ? super.getRowHeight(row) : rowHeights.getHeight(row);
+    }
+
+    @Override
+    public int rowAtPoint(Point point) {
+        if (rowHeights == null) {
+            return super.rowAtPoint(point);
+        }
+        return rowHeights.rowAtPoint(point, getRowCount());
+    }
+
+    @Override
+    public Rectangle getCellRect(int row, int column, boolean includeSpacing) {
+        Rectangle cellBounds = super.getCellRect(row, column, includeSpacing);
+        if (rowHeights == null) {
+            return cellBounds;
+        }
+        return rowHeights.getCellRect(cellBounds, row, getRowCount(), getRowMargin(), includeSpacing);
+    }
+
+    @Override
+    public void tableChanged(TableModelEvent e) {
+        int[][] rowRanges = null;
+        if (e instanceof SheetTableModel.RowsShiftedEvent) {
+            rowRanges = ((SheetTableModel.RowsShiftedEvent) e).getRowRanges();
+        } else if (e != null && e.getFirstRow() >= 0 && e.getLastRow() != Integer.MAX_VALUE
+                && (e.getType() == TableModelEvent.INSERT || e.getType() == TableModelEvent.DELETE)) {
+            rowRanges = new int[][]{{e.getFirstRow(), e.getLastRow() - e.getFirstRow() + 1}};
+        }
+        // Move the row heights with the inserted or deleted rows
+        if (rowHeights != null && rowRanges != null) {
+            for (int i = rowRanges.length - 1; i >= 0; i--) {
+                if (e.getType() == TableModelEvent.INSERT) {
+                    rowHeights.insertRows(rowRanges[i][0], rowRanges[i][1]);
+                } else {
+                    rowHeights.removeRows(rowRanges[i][0], rowRanges[i][1]);
+                }
+            }
+            if (e instanceof SheetTableModel.RowsShiftedEvent && e.getType() == TableModelEvent.INSERT) {
+                setInsertedRowHeights(rowRanges);
+            }
+        }
+        // The selected ranges follow the selection models, which JTable clears without calling clearSelection()
+        if (selectedRanges != null) {
+            if (rowRanges != null) {
+                shiftSelectedRanges(rowRanges, e.getType() == TableModelEvent.INSERT);
+            } else if (e == null || e.getFirstRow() == TableModelEvent.HEADER_ROW
+                    || (e.getType() == TableModelEvent.UPDATE && e.getLastRow() == Integer.MAX_VALUE)) {
+                selectedRanges.clear();
+                firstExtendCell = null;
+            }
+        }
+        super.tableChanged(e);
+    }
+
+    @Override
+    public void setModel(TableModel model) {
+        // Called by the JTable constructor before the fields are initialized
+        if (selectedRanges != null) {
+            selectedRanges.clear();
+            firstExtendCell = null;
+        }
+        super.setModel(model);
+    }
+
+    /**
+     * Moves the selected ranges with the inserted or deleted rows, the ranges of entire columns are unchanged.
+     *
+     * @param rowRanges the sorted inserted or deleted rows as <code>{first row, row count}</code> before the change
+     */
+    private void shiftSelectedRanges(int[][] rowRanges, boolean inserting) {
+        List<CellRangeAddress> shiftedRanges = new ArrayList<>(selectedRanges.size());
+        for (CellRangeAddress range : selectedRanges) {
+            if (range.getFirstRow() == 0 && range.getLastRow() == MAX_ROW) {
+                shiftedRanges.add(range);
+                continue;
+            }
+            int firstRow = inserting ? shiftInserted(range.getFirstRow(), rowRanges) : shiftDeleted(range.getFirstRow(), rowRanges);
+            int lastRow = inserting ? shiftInserted(range.getLastRow(), rowRanges) : shiftDeleted(range.getLastRow() + 1, rowRanges) - 1;
+            lastRow = Math.min(lastRow, MAX_ROW);
+            if (firstRow <= lastRow) {
+                shiftedRanges.add(new CellRangeAddress(firstRow, lastRow, range.getFirstColumn(), range.getLastColumn()));
+            }
+        }
+        selectedRanges = shiftedRanges;
+        firstExtendCell = null;
+    }
+
+    private static int shiftInserted(int row, int[][] rowRanges) {
+        int shiftedRow = row;
+        for (int[] rowRange : rowRanges) {
+            if (rowRange[0] <= row) {
+                shiftedRow += rowRange[1];
+            }
+        }
+        return shiftedRow;
+    }
+
+    /**
+     * Gets the index after the deletion of the row or, if the row is deleted, of the next row not deleted.
+     */
+    private static int shiftDeleted(int row, int[][] rowRanges) {
+        int shiftedRow = row;
+        for (int[] rowRange : rowRanges) {
+            if (rowRange[0] < row) {
+                shiftedRow -= Math.min(rowRange[1], row - rowRange[0]);
+            }
+        }
+        return shiftedRow;
+    }
+
+    /**
+     * Sets the heights of the inserted rows that already exist in the sheet, for example when a deletion is undone.
+     */
+    private void setInsertedRowHeights(int[][] rowRanges) {
+        Sheet sheet = ((SheetTableModel) getModel()).getSheet();
+        int insertedRowCount = 0;
+        for (int[] rowRange : rowRanges) {
+            int firstInsertedRow = rowRange[0] + insertedRowCount;
+            for (int rowIndex = firstInsertedRow; rowIndex < firstInsertedRow + rowRange[1]; rowIndex++) {
+                Row row = sheet.getRow(rowIndex);
+                if (row != null && row.getHeight() != sheet.getDefaultRowHeight()) {
+                    rowHeights.setHeight(rowIndex, (int) Math.ceil(row.getHeightInPoints()) + SheetComponent.CELL_HEIGHT_MARGINS);
+                }
+            }
+            insertedRowCount += rowRange[1];
+        }
+    }
+
+    /**
+     * Fires "editReadOnly" instead of editing when the sheet is only in fast view.
+     */
+    @Override
+    public boolean editCellAt(int row, int column, EventObject e) {
+        if (getModel() instanceof SheetTableModel && ((SheetTableModel) getModel()).isReadOnly()) {
+            TableCellEditor editor = getCellEditor(row, column);
+            if (editor != null && editor.isCellEditable(e)) {
+                firePropertyChange("editReadOnly", false, true);
+            }
+            return false;
+        }
+        return super.editCellAt(row, column, e);
+    }
+
     @Override
     public void changeSelection(int rowIndex, int columnIndex, boolean toggle, boolean extend) {
-        if (toggle && isCellSelected(rowIndex, columnIndex) && !extend && selectedCells.containsKey(rowIndex)) {
-            selectedCells.get(rowIndex).remove(columnIndex);
+        if (toggle && !extend && isCellSelected(rowIndex, columnIndex)) {
+            removeRange(new CellRangeAddress(rowIndex, rowIndex, columnIndex, columnIndex));
+        } else if (extend && firstExtendCell != null) {
+            // The last range goes from the first cell clicked to this cell
+            if (!selectedRanges.isEmpty()) {
+                selectedRanges.remove(selectedRanges.size() - 1);
+            }
+            selectedRanges.add(new CellRangeAddress(Math.min(firstExtendCell.x, rowIndex), Math.max(firstExtendCell.x, rowIndex),
+                    Math.min(firstExtendCell.y, columnIndex), Math.max(firstExtendCell.y, columnIndex)));
         } else {
-            if (!toggle && !extend) {
-                lastExtendCell = null;
-                selectedCells.clear();
-            }
-            addCellToSelection(rowIndex, columnIndex);
-            Point extendCell = new Point(rowIndex, columnIndex);
-            if (!extend) {
-                firstExtendCell = extendCell;
-                lastExtendCell = null;
-            } else if (lastExtendCell == null || !extendCell.equals(lastExtendCell)) {
-                for (int i = Math.min(firstExtendCell.x, rowIndex); i <= Math.max(firstExtendCell.x, rowIndex); i++) {
-                    for (int j = Math.min(firstExtendCell.y, columnIndex); j <= Math.max(firstExtendCell.y, columnIndex); j++) {
-                        addCellToSelection(i, j);
-                    }
-                }
-                lastExtendCell = extendCell;
+            if (!toggle) {
+                selectedRanges.clear();
             }
+            selectedRanges.add(new CellRangeAddress(rowIndex, rowIndex, columnIndex, columnIndex));
+            firstExtendCell = new Point(rowIndex, columnIndex);
         }
         super.changeSelection(rowIndex, columnIndex, toggle, extend);
+        repaint();
     }
 
-    private void addCellToSelection(int row, int column) {
-        Set<Integer> selectedColumns = selectedCells.get(row);
-        if (selectedColumns == null) {
-            selectedColumns = new TreeSet<>();
-            selectedCells.put(row, selectedColumns);
+    /**
+     * Selects entire columns.
+     *
+     * @param extend true to add the columns to the current selection
+     */
+    public void selectColumns(int firstColumn, int lastColumn, boolean extend) {
+        if (!extend) {
+            selectedRanges.clear();
         }
-        selectedColumns.add(column);
+        addRange(new CellRangeAddress(0, MAX_ROW, firstColumn, lastColumn));
+        firstExtendCell = null;
+        if (getRowCount() > 0) {
+            if (extend) {
+                getColumnModel().getSelectionModel().addSelectionInterval(firstColumn, lastColumn);
+            } else {
+                getColumnModel().getSelectionModel().setSelectionInterval(firstColumn, lastColumn);
+            }
+            getSelectionModel().setSelectionInterval(0, getRowCount() - 1);
+        }
+        repaint();
     }
 
     @Override
     public void addRowSelectionInterval(int index0, int index1) {
-        for (int i = index0; i <= index1; i++) {
-            selectedCells.remove(i);
-        }
+        addRange(new CellRangeAddress(Math.min(index0, index1), Math.max(index0, index1), 0, MAX_COLUMN));
+        firstExtendCell = null;
         getColumnModel().getSelectionModel().addSelectionInterval(0, getColumnCount() - 1);
         super.addRowSelectionInterval(index0, index1);
     }
 
     @Override
     public void removeRowSelectionInterval(int index0, int index1) {
-        for (int i = index0; i <= index1; i++) {
-            selectedCells.remove(i);
-        }
+        removeRange(new CellRangeAddress(Math.min(index0, index1), Math.max(index0, index1), 0, MAX_COLUMN));
         super.removeRowSelectionInterval(index0, index1);
     }
 
     @Override
     public void selectAll() {
-        selectedCells.clear();
+        selectedRanges.clear();
+        selectedRanges.add(new CellRangeAddress(0, MAX_ROW, 0, MAX_COLUMN));
+        firstExtendCell = null;
         super.selectAll();
     }
 
     @Override
     public void clearSelection() {
-        if (selectedCells != null) {
-            selectedCells.clear();
+        if (selectedRanges != null) {
+            selectedRanges.clear();
         }
         super.clearSelection();
     }
 
     @Override
     public boolean isCellSelected(int row, int column) {
-        if (!getSelectionModel().isSelectedIndex(row)) {
-            return false;
+        if (selectedRanges.isEmpty()) {
+            return super.isCellSelected(row, column);
         }
-        if (getSelectionModel().isSelectedIndex(row) && selectedCells.get(row) == null) {
-            return true;
+        for (CellRangeAddress range : selectedRanges) {
+            if (range.isInRange(row, column)) {
+                return true;
+            }
         }
-        return selectedCells.get(row).contains(column);
+        return false;
+    }
+
+    /**
+     * Gets the selected ranges, the ranges of entire rows or columns go to the last row or column of the sheet.
+     * When the selection was done directly with the selection models, the ranges are the selected rows
+     * intervals by the selected columns intervals.
+     */
+    public List<CellRangeAddress> getSelectedRanges() {
+        if (!selectedRanges.isEmpty()) {
+            return Collections.unmodifiableList(selectedRanges);
+        }
+        List<CellRangeAddress> modelRanges = new ArrayList<>();
+        List<int[]> rowIntervals = getIntervals(getSelectionModel());
+        List<int[]> columnIntervals = getIntervals(getColumnModel().getSelectionModel());
+        for (int[] rowInterval : rowIntervals) {
+            for (int[] columnInterval : columnIntervals) {
+                modelRanges.add(new CellRangeAddress(rowInterval[0], rowInterval[1], columnInterval[0], columnInterval[1]));
+            }
+        }
+        return modelRanges;
+    }
+
+    private static List<int[]> getIntervals(ListSelectionModel selectionModel) {
+        List<int[]> intervals = new ArrayList<>();
+        if (selectionModel.isSelectionEmpty()) {
+            return intervals;
+        }
+        int intervalStart = -1;
+        int maxIndex = selectionModel.getMaxSelectionIndex();
+        for (int i = selectionModel.getMinSelectionIndex(); i <= maxIndex + 1; i++) {
+            boolean selected = i <= maxIndex && selectionModel.isSelectedIndex(i);
+            if (selected && intervalStart == -1) {
+                intervalStart = i;
+            } else if (!selected && intervalStart != -1) {
+                intervals.add(new int[]{intervalStart, i - 1});
+                intervalStart = -1;
+            }
+        }
+        return intervals;
+    }
+
+    /**
+     * Adds a range, merged with the last range when they form a rectangle (like rows selected one by one).
+     */
+    private void addRange(CellRangeAddress range) {
+        if (!selectedRanges.isEmpty()) {
+            CellRangeAddress lastRange = selectedRanges.get(selectedRanges.size() - 1);
+            if (lastRange.getFirstColumn() == range.getFirstColumn() && lastRange.getLastColumn() == range.getLastColumn()
+                    && range.getFirstRow() <= lastRange.getLastRow() + 1 && range.getLastRow() >= lastRange.getFirstRow() - 1) {
+                lastRange.setFirstRow(Math.min(lastRange.getFirstRow(), range.getFirstRow()));
+                lastRange.setLastRow(Math.max(lastRange.getLastRow(), range.getLastRow()));
+                return;
+            }
+            if (lastRange.getFirstRow() == range.getFirstRow() && lastRange.getLastRow() == range.getLastRow()
+                    && range.getFirstColumn() <= lastRange.getLastColumn() + 1 && range.getLastColumn() >= lastRange.getFirstColumn() - 1) {
+                lastRange.setFirstColumn(Math.min(lastRange.getFirstColumn(), range.getFirstColumn()));
+                lastRange.setLastColumn(Math.max(lastRange.getLastColumn(), range.getLastColumn()));
+                return;
+            }
+        }
+        selectedRanges.add(range);
+    }
+
+    /**
+     * Removes the cells of the range from the selection, the selected ranges overlapping it are split
+     * in up to 4 ranges around it.
+     */
+    private void removeRange(CellRangeAddress removed) {
+        List<CellRangeAddress> remainingRanges = new ArrayList<>(selectedRanges.size() + 3);
+        for (CellRangeAddress range : selectedRanges) {
+            if (!intersects(range, removed)) {
+                remainingRanges.add(range);
+                continue;
+            }
+            int firstRow = range.getFirstRow();
+            int lastRow = range.getLastRow();
+            if (firstRow < removed.getFirstRow()) {
+                remainingRanges.add(new CellRangeAddress(firstRow, removed.getFirstRow() - 1, range.getFirstColumn(), range.getLastColumn()));
+                firstRow = removed.getFirstRow();
+            }
+            if (lastRow > removed.getLastRow()) {
+                remainingRanges.add(new CellRangeAddress(removed.getLastRow() + 1, lastRow, range.getFirstColumn(), range.getLastColumn()));
+                lastRow = removed.getLastRow();
+            }
+            if (range.getFirstColumn() < removed.getFirstColumn()) {
+                remainingRanges.add(new CellRangeAddress(firstRow, lastRow, range.getFirstColumn(), removed.getFirstColumn() - 1));
+            }
+            if (range.getLastColumn() > removed.getLastColumn()) {
+                remainingRanges.add(new CellRangeAddress(firstRow, lastRow, removed.getLastColumn() + 1, range.getLastColumn()));
+            }
+        }
+        selectedRanges = remainingRanges;
+    }
+
+    private static boolean intersects(CellRangeAddress range1, CellRangeAddress range2) {
+        return range1.getFirstRow() <= range2.getLastRow() && range2.getFirstRow() <= range1.getLastRow()
+                && range1.getFirstColumn() <= range2.getLastColumn() && range2.getFirstColumn() <= range1.getLastColumn();
     }
 
     @Override
@@ -131,8 +432,33 @@ public class SheetTable extends JTable {
         boolean showVGrid = getShowVerticalLines();
         setShowGrid(false);
         super.print(g);
+        new CellBordersLayer(this).paintBorders(g);
         setShowHorizontalLines(showHGrid);
         setShowVerticalLines(showVGrid);
     }
 
+    /**
+     * Selects the entire column when its header is clicked, with shift the columns from the last clicked column.
+     */
+    private class ColumnsSelector extends MouseAdapter {
+
+        private int firstColumn = -1;
+
+        @Override
+        public void mouseClicked(MouseEvent me) {
+            int column = columnAtPoint(SwingUtilities.convertPoint(getTableHeader(), me.getPoint(), SheetTable.this));
+            if (column == -1 || !SwingUtilities.isLeftMouseButton(me)) {
+                return;
+            }
+            if (me.isShiftDown() && firstColumn != -1) {
+                if (!selectedRanges.isEmpty()) {
+                    selectedRanges.remove(selectedRanges.size() - 1);
+                }
+                selectColumns(Math.min(firstColumn, column), Math.max(firstColumn, column), true);
+            } else {
+                selectColumns(column, column, me.isControlDown() || me.isMetaDown());
+                firstColumn = column;
+            }
+        }
+    }
 }
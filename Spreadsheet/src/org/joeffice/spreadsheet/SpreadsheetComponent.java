@@ -21,6 +21,7 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -33,8 +34,14 @@ import org.apache.poi.ss.usermodel.Workbook;
 import org.joeffice.desktop.ui.OfficeTopComponent;
 import org.joeffice.spreadsheet.actions.DeleteCellsAction;
 import org.joeffice.spreadsheet.actions.ShowHideGridAction;
+import org.joeffice.spreadsheet.cell.AwtStyleRegistry;
+import org.joeffice.spreadsheet.csv.CSVWorkbook;
+import org.joeffice.spreadsheet.formula.FormulaEngine;
+import org.joeffice.spreadsheet.xlsx.FastViewWorkbook;
 import org.openide.filesystems.FileUtil;
 
+import org.openide.util.Exceptions;
+import org.openide.util.RequestProcessor;
 import org.openide.util.Utilities;
 
 /**
@@ -45,9 +52,9 @@ import org.openide.util.Utilities;
 public class SpreadsheetComponent extends JTabbedPane implements ChangeListener {
 
     private Workbook workbook;
-    private FormulaEvaluator formulaEvaluator;
     private TableStyleable styleable;
     private SpreadsheetTopComponent spreadsheetAndToolbar;
+    private boolean fullWorkbookLoading;
 
     public SpreadsheetComponent(SpreadsheetTopComponent spreadsheetAndToolbar) {
         super(JTabbedPane.BOTTOM, SCROLL_TAB_LAYOUT);
@@ -71,17 +78,93 @@ public class SpreadsheetComponent extends JTabbedPane implements ChangeListener
             addTab(sheetName, sheetPanel);
         }
         setSelectedIndex(workbook.getActiveSheetIndex());
-        formulaEvaluator = workbook.getCreationHelper().createFormulaEvaluator();
+        recalculateFormulasIfNeeded();
+    }
+
+    private void recalculateFormulasIfNeeded() {
+        if (workbook.getForceFormulaRecalculation() && !(workbook instanceof FastViewWorkbook)) {
+            // The cached values of the formulas in the file are not up to date
+            FormulaEngine.getInstance(workbook).recalculateAllInParallel();
+        }
+    }
+
+    /**
+     * Recalculates all the formulas of the workbook, the table model of each sheet fires one event.
+     */
+    public void recalculateWorkbook() {
+        if (workbook instanceof FastViewWorkbook) {
+            return;
+        }
+        FormulaEngine.getInstance(workbook).recalculateAllInParallel();
     }
 
     // Due to bug https://issues.apache.org/bugzilla/show_bug.cgi?id=49940
     public void reload() {
+        Workbook previousWorkbook = workbook;
         this.workbook = spreadsheetAndToolbar.getWorkbook();
+        if (previousWorkbook != workbook) {
+            releaseWorkbook(previousWorkbook);
+        }
         int numberOfSheets = workbook.getNumberOfSheets();
         for (int i = 0; i < numberOfSheets; i++) {
             Sheet sheet = workbook.getSheetAt(i);
             ((SheetComponent) getComponentAt(i)).setSheet(sheet);
         }
+        recalculateFormulasIfNeeded();
+    }
+
+    /**
+     * Releases the resources kept for the workbook, for example when the component is closed.
+     */
+    public void close() {
+        if (workbook != null) {
+            releaseWorkbook(workbook);
+        }
+    }
+
+    private static void releaseWorkbook(Workbook workbook) {
+        AwtStyleRegistry.release(workbook);
+        FormulaEngine.release(workbook);
+    }
+
+    /**
+     * Replaces the read-only fast view workbook with the full workbook, for example because the user wants to edit a cell.
+     * For CSV files, the parsed cells are loaded in the sheets.
+     */
+    public void loadFullWorkbook() {
+        if (workbook instanceof CSVWorkbook && !((CSVWorkbook) workbook).isCellsLoaded()) {
+            ((CSVWorkbook) workbook).loadCells();
+            reload();
+            registerActions();
+            return;
+        }
+        if (!(workbook instanceof FastViewWorkbook) || fullWorkbookLoading) {
+            return;
+        }
+        final FastViewWorkbook fastViewWorkbook = (FastViewWorkbook) workbook;
+        fastViewWorkbook.cancel();
+        fullWorkbookLoading = true;
+        SwingWorker<Workbook, Object> fullWorkbookLoader = new SwingWorker<Workbook, Object>() {
+
+            @Override
+            protected Workbook doInBackground() throws Exception {
+                return JoefficeWorkbookFactory.create(fastViewWorkbook.getFile());
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    spreadsheetAndToolbar.getDataObject().setDocument(get());
+                    reload();
+                    registerActions();
+                } catch (InterruptedException | ExecutionException ex) {
+                    Exceptions.printStackTrace(ex);
+                } finally {
+                    fullWorkbookLoading = false;
+                }
+            }
+        };
+        new RequestProcessor(getClass()).post(fullWorkbookLoader);
     }
 
     public SpreadsheetTopComponent getSpreadsheetAndToolbar() {
@@ -93,7 +176,7 @@ public class SpreadsheetComponent extends JTabbedPane implements ChangeListener
     }
 
     public FormulaEvaluator getFormulaEvaluator() {
-        return formulaEvaluator;
+        return FormulaEngine.getInstance(workbook).getFormulaEvaluator();
     }
 
     private void addPopupToTabs() {
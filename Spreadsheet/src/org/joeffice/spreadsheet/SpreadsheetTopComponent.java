@@ -24,9 +24,12 @@ import org.apache.poi.ss.usermodel.Workbook;
 
 import org.joeffice.desktop.file.OfficeDataObject;
 import org.joeffice.desktop.ui.OfficeTopComponent;
+import org.joeffice.spreadsheet.sheet.SheetUndoManager;
+import org.joeffice.spreadsheet.xlsx.StreamingXlsxReader;
 
 import org.netbeans.api.settings.ConvertAsProperties;
 import org.openide.awt.ActionID;
+import org.openide.awt.UndoRedo;
 import org.openide.windows.TopComponent;
 import org.openide.util.NbBundle.Messages;
 
@@ -54,6 +57,8 @@ import org.openide.util.NbBundle.Messages;
 public final class SpreadsheetTopComponent extends OfficeTopComponent {
 
     private boolean loaded;
+    // Created when first requested as the sheets may be created by the super constructor
+    private SheetUndoManager undoManager;
 
     public SpreadsheetTopComponent() {
     }
@@ -87,6 +92,9 @@ public final class SpreadsheetTopComponent extends OfficeTopComponent {
 
     @Override
     public Object loadDocument(File xslxFile) throws Exception {
+        if (StreamingXlsxReader.isFastViewPreferred(xslxFile)) {
+            return new StreamingXlsxReader().read(xslxFile);
+        }
         Workbook workbook = JoefficeWorkbookFactory.create(xslxFile);
         return workbook;
     }
@@ -98,6 +106,14 @@ public final class SpreadsheetTopComponent extends OfficeTopComponent {
         getSpreadsheetComponent().registerActions();
     }
 
+    @Override
+    public synchronized UndoRedo getUndoRedo() {
+        if (undoManager == null) {
+            undoManager = new SheetUndoManager();
+        }
+        return undoManager;
+    }
+
     public Workbook getWorkbook() {
         return (Workbook) getDataObject().getDocument();
     }
@@ -116,6 +132,12 @@ public final class SpreadsheetTopComponent extends OfficeTopComponent {
         super.componentDeactivated();
     }
 
+    @Override
+    public void componentClosed() {
+        getSpreadsheetComponent().close();
+        super.componentClosed();
+    }
+
     @Override
     public void writeProperties(Properties properties) {
         super.writeProperties(properties);
@@ -15,8 +15,6 @@
  */
 package org.joeffice.spreadsheet;
 
-
-import org.joeffice.spreadsheet.cell.CellUtils;
 import static java.awt.font.TextAttribute.*;
 import static org.joeffice.desktop.actions.ExtraTextAttribute.*;
 
@@ -24,22 +22,30 @@ import java.awt.Color;
 import java.text.AttributedCharacterIterator;
 import java.text.AttributedCharacterIterator.Attribute;
 import java.text.AttributedString;
-import java.util.List;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import javax.swing.JTable;
-import javax.swing.table.AbstractTableModel;
 import javax.swing.text.StyleConstants;
 
+import org.apache.poi.hssf.usermodel.HSSFPalette;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.hssf.util.HSSFColor;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.util.CellUtil;
-import org.apache.poi.xssf.usermodel.XSSFCell;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFColor;
 
 import org.joeffice.desktop.actions.TextTransformer;
 import org.joeffice.desktop.ui.OfficeTopComponent;
 import org.joeffice.desktop.ui.Styleable;
+import org.joeffice.spreadsheet.cell.AwtStyleRegistry;
+import org.joeffice.spreadsheet.cell.CellStylePool;
+import org.joeffice.spreadsheet.cell.CellUtils;
+import org.joeffice.spreadsheet.sheet.CellsEdit;
+import org.joeffice.spreadsheet.sheet.SheetTableModel;
+
+import org.openide.util.NbBundle;
+import org.openide.util.NbBundle.Messages;
 
 /**
  * Class that applies the style to the selected cells.
@@ -48,6 +54,7 @@ import org.joeffice.desktop.ui.Styleable;
  *
  * @author Anthony Goubard - Japplis
  */
+@Messages("UNDO_Style=Style")
 public class TableStyleable implements Styleable {
 
     @Override
@@ -55,72 +62,70 @@ public class TableStyleable implements Styleable {
         SpreadsheetTopComponent currentTopComponent = OfficeTopComponent.getSelectedComponent(SpreadsheetTopComponent.class);
         if (currentTopComponent != null) {
             JTable table = currentTopComponent.getSelectedTable();
+            SheetTableModel tableModel = (SheetTableModel) table.getModel();
+            Workbook workbook = tableModel.getSheet().getWorkbook();
+            String editName = NbBundle.getMessage(TableStyleable.class, "UNDO_Style");
+            CellsEdit edit = tableModel.startCellsEdit(editName, CellUtils.getSelectedRanges(table));
 
-            List<Cell> selectedCells = CellUtils.getSelectedCells(table);
-            for (Cell cell : selectedCells) {
-                AttributedCharacterIterator attributesIterator = attributes.getIterator();
-                for (Attribute attribute : attributesIterator.getAllAttributeKeys()) {
-                    Object value = attributesIterator.getAttribute(attribute);
-                    addAttribute(attribute, value, cell);
-                    ((AbstractTableModel) table.getModel()).fireTableCellUpdated(cell.getRowIndex(), cell.getColumnIndex());
+            AttributedCharacterIterator attributesIterator = attributes.getIterator();
+            Set<Attribute> attributeKeys = attributesIterator.getAllAttributeKeys();
+            // The cells with the same style get the same new style
+            Map<Short, CellStyle> newStyles = new HashMap<>();
+            for (Cell cell : CellUtils.getSelectedCells(table)) {
+                CellStyle oldStyle = cell.getCellStyle();
+                CellStyle newStyle = newStyles.get(oldStyle.getIndex());
+                if (newStyle == null) {
+                    newStyle = oldStyle;
+                    for (Attribute attribute : attributeKeys) {
+                        newStyle = getStyle(attribute, attributesIterator.getAttribute(attribute), newStyle, workbook);
+                    }
+                    newStyles.put(oldStyle.getIndex(), newStyle);
+                }
+                if (newStyle != oldStyle) {
+                    cell.setCellStyle(newStyle);
+                }
+                if (attributeKeys.contains(TEXT_TRANSFORM)) {
+                    String text = CellUtils.getFormattedText(cell);
+                    String transformedText = ((TextTransformer) attributesIterator.getAttribute(TEXT_TRANSFORM)).transformText(text);
+                    cell.setCellValue(transformedText);
                 }
             }
+            tableModel.endCellsEdit(edit);
+            AwtStyleRegistry.getInstance(workbook).invalidate();
         }
     }
 
     /**
-     * Add the attribute as defined in {@link AttributedString} to the {@link MutableAttributeSet} for the JTextPane.
+     * Gets the style with the attribute as defined in {@link AttributedString}, the styles are shared with
+     * the {@link CellStylePool}.
      *
      * @see java.awt.font.TextAttribute
      */
-    protected void addAttribute(AttributedCharacterIterator.Attribute attribute, Object attributeValue, Cell cell) {
-        CellStyle oldStyle = cell.getCellStyle();
-        Workbook workbook = cell.getSheet().getWorkbook();
-        CellStyle style = cell.getSheet().getWorkbook().createCellStyle();
-        style.cloneStyleFrom(oldStyle);
-        Font newFont = copyFont(cell);
+    protected CellStyle getStyle(AttributedCharacterIterator.Attribute attribute, Object attributeValue, CellStyle style, Workbook workbook) {
+        CellStylePool stylePool = CellStylePool.getInstance(workbook);
+        Font font = workbook.getFontAt(style.getFontIndex());
         if (attribute == FAMILY) {
-            newFont.setFontName((String) attributeValue);
-            CellUtil.setFont(cell, workbook, newFont);
+            return getStyle(style, CellStylePool.FONT_NAME, attributeValue, workbook);
         } else if (attribute == FOREGROUND) {
-            Color color = (Color) attributeValue;
-            if (cell instanceof XSSFCell) {
-                ((XSSFCellStyle) style).setFillForegroundColor(new XSSFColor(color));
-            } else {
-                HSSFWorkbook xlsWorkbook = (HSSFWorkbook) workbook;
-                HSSFColor xlsColor = xlsWorkbook.getCustomPalette().findColor((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
-                if (xlsColor == null) {
-                    xlsColor = xlsWorkbook.getCustomPalette().addColor((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
-                }
-                style.setFillForegroundColor(xlsColor.getIndex());
-            }
-            style.setFillPattern(CellStyle.SOLID_FOREGROUND);
+            Map<String, Object> changes = new HashMap<>();
+            changes.put(CellUtil.FILL_FOREGROUND_COLOR, getFillColor((Color) attributeValue, workbook));
+            changes.put(CellUtil.FILL_PATTERN, CellStyle.SOLID_FOREGROUND);
+            return stylePool.getStyle(style, changes);
         } else if (attribute == BACKGROUND) {
-            Color color = (Color) attributeValue;
-            if (cell instanceof XSSFCell) {
-                ((XSSFCellStyle) style).setFillBackgroundColor(new XSSFColor(color));
-            } else {
-                HSSFWorkbook xlsWorkbook = (HSSFWorkbook) workbook;
-                HSSFColor xlsColor = xlsWorkbook.getCustomPalette().findColor((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
-                if (xlsColor == null) {
-                    xlsColor = xlsWorkbook.getCustomPalette().addColor((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
-                }
-                style.setFillBackgroundColor(xlsColor.getIndex());
-            }
+            Object color = getFillColor((Color) attributeValue, workbook);
+            return stylePool.getStyle(style, Collections.singletonMap(CellUtil.FILL_BACKGROUND_COLOR, color));
         } else if (attribute == WEIGHT) {
             short boldValue = Font.BOLDWEIGHT_BOLD;
-            if (newFont.getBoldweight() == Font.BOLDWEIGHT_BOLD) {
+            if (font.getBoldweight() == Font.BOLDWEIGHT_BOLD) {
                 boldValue = Font.BOLDWEIGHT_NORMAL;
             }
-            newFont.setBoldweight(boldValue);
-            CellUtil.setFont(cell, workbook, newFont);
+            return getStyle(style, CellStylePool.BOLDWEIGHT, boldValue, workbook);
         } else if (attribute == UNDERLINE) {
             byte underlineValue = Font.U_SINGLE;
-            if (newFont.getUnderline() == Font.U_SINGLE) {
+            if (font.getUnderline() == Font.U_SINGLE) {
                 underlineValue = Font.U_NONE;
             }
-            newFont.setUnderline(underlineValue);
-            CellUtil.setFont(cell, workbook, newFont);
+            return getStyle(style, CellStylePool.UNDERLINE, underlineValue, workbook);
         } else if (attribute == SUPERSCRIPT) {
             short superscriptValue = Font.SS_NONE;
             if (SUPERSCRIPT_SUB.equals(attributeValue)) {
@@ -128,57 +133,57 @@ public class TableStyleable implements Styleable {
             } else if (SUPERSCRIPT_SUPER.equals(attributeValue)) {
                 superscriptValue = Font.SS_SUPER;
             }
-            newFont.setTypeOffset(superscriptValue);
-            CellUtil.setFont(cell, workbook, newFont);
+            return getStyle(style, CellStylePool.TYPE_OFFSET, superscriptValue, workbook);
         } else if (attribute == STRIKETHROUGH) {
-            boolean strikeThrough = true;
-            if (newFont.getStrikeout()) {
-                strikeThrough = false;
-            }
-            newFont.setStrikeout(strikeThrough);
-            CellUtil.setFont(cell, workbook, newFont);
+            return getStyle(style, CellStylePool.STRIKEOUT, !font.getStrikeout(), workbook);
         } else if (attribute == POSTURE) {
-            boolean italic = true;
-            if (newFont.getItalic()) {
-                italic = false;
-            }
-            newFont.setItalic(italic);
-            CellUtil.setFont(cell, workbook, newFont);
+            return getStyle(style, CellStylePool.ITALIC, !font.getItalic(), workbook);
         } else if (attribute == SIZE) {
-            newFont.setFontHeightInPoints(((Number) attributeValue).shortValue());
-            CellUtil.setFont(cell, workbook, newFont);
+            short fontHeight = (short) (((Number) attributeValue).shortValue() * 20);
+            return getStyle(style, CellStylePool.FONT_HEIGHT, fontHeight, workbook);
         } else if (attribute == JUSTIFICATION) {
-            CellUtil.setAlignment(cell, workbook, CellStyle.ALIGN_JUSTIFY);
+            return stylePool.getStyle(style, Collections.<String, Object>singletonMap(CellUtil.ALIGNMENT, CellStyle.ALIGN_JUSTIFY));
         } else if (attribute == ALIGNMENT) {
+            short alignment;
             if (attributeValue.equals(StyleConstants.ALIGN_LEFT)) {
-                CellUtil.setAlignment(cell, workbook, CellStyle.ALIGN_LEFT);
+                alignment = CellStyle.ALIGN_LEFT;
             } else if (attributeValue.equals(StyleConstants.ALIGN_RIGHT)) {
-                CellUtil.setAlignment(cell, workbook, CellStyle.ALIGN_RIGHT);
+                alignment = CellStyle.ALIGN_RIGHT;
             } else if (attributeValue.equals(StyleConstants.ALIGN_CENTER)) {
-                CellUtil.setAlignment(cell, workbook, CellStyle.ALIGN_CENTER);
+                alignment = CellStyle.ALIGN_CENTER;
+            } else {
+                return style;
             }
+            return stylePool.getStyle(style, Collections.<String, Object>singletonMap(CellUtil.ALIGNMENT, alignment));
         } else if (attribute == INDENTATION) {
-            style.setIndention(((Number) attributeValue).shortValue());
-        } else if (attribute == TEXT_TRANSFORM) {
-            String text = CellUtils.getFormattedText(cell);
-            String transformedText = ((TextTransformer) attributeValue).transformText(text);
-            cell.setCellValue(transformedText);
+            short indention = ((Number) attributeValue).shortValue();
+            return stylePool.getStyle(style, Collections.<String, Object>singletonMap(CellUtil.INDENTION, indention));
         }
+        return style;
     }
 
-    private Font copyFont(Cell cell) {
-        CellStyle style = cell.getCellStyle();
-        Workbook workbook = cell.getSheet().getWorkbook();
-        short fontIndex = style.getFontIndex();
-        Font xlsFont = cell.getSheet().getWorkbook().getFontAt(fontIndex);
-        Font newFont = workbook.createFont();
-        newFont.setFontName(xlsFont.getFontName());
-        newFont.setFontHeight((short) xlsFont.getFontHeight());
-        newFont.setBoldweight(xlsFont.getBoldweight());
-        newFont.setItalic(xlsFont.getItalic());
-        newFont.setUnderline(xlsFont.getUnderline());
-        newFont.setColor(xlsFont.getColor());
-        return newFont;
+    /**
+     * Gets the style with a font property changed.
+     */
+    private CellStyle getStyle(CellStyle style, String fontProperty, Object value, Workbook workbook) {
+        CellStylePool stylePool = CellStylePool.getInstance(workbook);
+        Font font = stylePool.getFont(workbook.getFontAt(style.getFontIndex()), Collections.singletonMap(fontProperty, value));
+        return stylePool.getStyle(style, Collections.<String, Object>singletonMap(CellUtil.FONT, font.getIndex()));
+    }
+
+    /**
+     * Gets the fill color as color for the xlsx workbooks or as index of the palette for the xls workbooks.
+     */
+    private Object getFillColor(Color color, Workbook workbook) {
+        if (!(workbook instanceof HSSFWorkbook)) {
+            return color;
+        }
+        HSSFPalette palette = ((HSSFWorkbook) workbook).getCustomPalette();
+        HSSFColor xlsColor = palette.findColor((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
+        if (xlsColor == null) {
+            xlsColor = palette.addColor((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
+        }
+        return xlsColor.getIndex();
     }
 
     @Override
@@ -15,22 +15,22 @@
  */
 package org.joeffice.spreadsheet;
 
-import org.joeffice.spreadsheet.cell.CellUtils;
 import static javax.swing.TransferHandler.MOVE;
 import java.awt.datatransfer.DataFlavor;
-import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Transferable;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import javax.swing.JComponent;
 import javax.swing.JTable;
 import javax.swing.TransferHandler;
 
-import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.util.ArrayUtil;
 
 import org.joeffice.desktop.ui.OfficeTransferHandler;
+import org.joeffice.spreadsheet.sheet.SheetTableModel;
 
 
 /**
@@ -70,44 +70,59 @@ public class TableTransferHandler extends OfficeTransferHandler {
             }
         }
 
-        int row = firstRow;
-        String[] lines = text.split("\n");
-        for (String line : lines) {
-            int column = firstColumn;
-            String[] values = line.split("\t");
-            for (String value : values) {
-                table.setValueAt(value, row, column);
-                column++;
+        String[][] values = toValues(text);
+        if (table.getModel() instanceof SheetTableModel) {
+            ((SheetTableModel) table.getModel()).setValuesAt(values, firstRow, firstColumn);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                for (int j = 0; j < values[i].length; j++) {
+                    table.setValueAt(values[i][j], firstRow + i, firstColumn + j);
+                }
             }
-            row++;
         }
     }
 
+    /**
+     * Splits the lines of tab separated values, the last empty line is ignored.
+     */
+    protected String[][] toValues(String text) {
+        List<String[]> lines = new ArrayList<>();
+        List<String> lineValues = new ArrayList<>();
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            int nextLineStart = lineEnd == -1 ? text.length() : lineEnd + 1;
+            if (lineEnd == -1) {
+                lineEnd = text.length();
+            }
+            if (lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            int valueStart = lineStart;
+            while (valueStart <= lineEnd) {
+                int valueEnd = text.indexOf('\t', valueStart);
+                if (valueEnd == -1 || valueEnd > lineEnd) {
+                    valueEnd = lineEnd;
+                }
+                lineValues.add(text.substring(valueStart, valueEnd));
+                valueStart = valueEnd + 1;
+            }
+            lines.add(lineValues.toArray(new String[lineValues.size()]));
+            lineValues.clear();
+            lineStart = nextLineStart;
+        }
+        return lines.toArray(new String[lines.size()][]);
+    }
+
+    /**
+     * Creates a transferable of the selected cells, the text is only created when requested.
+     */
     @Override
     protected Transferable createTransferable(JComponent c) {
         JTable table = (JTable) c;
-        String text = getSelectedText(table);
-        return new StringSelection(text);
-    }
-
-    protected String getSelectedText(JTable table) {
-        int[] rows = table.getSelectedRows();
-        int[] columns = CellUtils.getSelectedColumns(table, rows);
-        if (rows.length ==0 || columns.length == 0) {
-            return "";
-        }
-        StringBuilder text = new StringBuilder();
-        for (int row : rows) {
-            for (int column : columns) {
-                Cell cell = (Cell) table.getValueAt(row, column);
-                String cellText = CellUtils.getFormattedText(cell);
-                text.append(cellText);
-                text.append('\t');
-            }
-            text.deleteCharAt(text.length() - 1);
-            text.append(System.getProperty("line.separator"));
-        }
-        return text.toString();
+        CellsTransferable transferable = new CellsTransferable(table);
+        transferable.prepare();
+        return transferable;
     }
 
     @Override
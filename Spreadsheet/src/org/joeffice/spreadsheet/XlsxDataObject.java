@@ -18,6 +18,8 @@ package org.joeffice.spreadsheet;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 
 import org.apache.poi.ss.usermodel.Workbook;
@@ -26,6 +28,8 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.joeffice.desktop.file.OfficeDataObject;
 import org.joeffice.desktop.ui.OfficeTopComponent;
 import org.joeffice.spreadsheet.csv.CSVWorkbook;
+import org.joeffice.spreadsheet.xlsx.FastViewWorkbook;
+import org.joeffice.spreadsheet.xlsx.StreamingXlsxWriter;
 
 import org.openide.awt.ActionID;
 import org.openide.awt.ActionReference;
@@ -117,6 +121,8 @@ import org.openide.util.NbBundle.Messages;
 })
 public class XlsxDataObject extends OfficeDataObject {
 
+    private boolean workbookInvalidated;
+
     public XlsxDataObject(FileObject pf, MultiFileLoader loader) throws DataObjectExistsException, IOException {
         super(pf, loader);
     }
@@ -131,7 +137,8 @@ public class XlsxDataObject extends OfficeDataObject {
         super.save();
 
         // bug in Apache POI https://issues.apache.org/bugzilla/show_bug.cgi?id=49940
-        if (getDocument() instanceof XSSFWorkbook && !(getDocument() instanceof CSVWorkbook)) {
+        // Only needed when the workbook itself was written, not when it was copied or streamed
+        if (workbookInvalidated) {
             try {
                 Workbook workbook = JoefficeWorkbookFactory.create(FileUtil.toFile(getPrimaryFile()));
                 setDocument(workbook);
@@ -144,11 +151,22 @@ public class XlsxDataObject extends OfficeDataObject {
     @Override
     public synchronized void save(File file) throws IOException {
         Workbook workbook = (Workbook) getDocument();
+        workbookInvalidated = false;
+        if (workbook instanceof FastViewWorkbook) {
+            // The fast view is read-only, so the file is unchanged
+            Files.copy(((FastViewWorkbook) workbook).getFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
         try (FileOutputStream xslxOutputStream = new FileOutputStream(file)) {
             if (workbook instanceof CSVWorkbook) {
                 ((CSVWorkbook) workbook).write2(xslxOutputStream);
+            } else if (StreamingXlsxWriter.isStreamingPreferred(workbook)) {
+                // The workbook is only read
+                new StreamingXlsxWriter().write((XSSFWorkbook) workbook, xslxOutputStream);
             } else {
                 workbook.write(xslxOutputStream);
+                // The write disconnects XML objects like the styles, fonts and names still used by the workbook
+                workbookInvalidated = workbook instanceof XSSFWorkbook;
             }
         }
     }
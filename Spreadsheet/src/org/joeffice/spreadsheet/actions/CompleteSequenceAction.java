@@ -16,6 +16,8 @@
 package org.joeffice.spreadsheet.actions;
 
 import java.awt.event.ActionEvent;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -23,11 +25,13 @@ import javax.swing.AbstractAction;
 import javax.swing.JTable;
 
 import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DateUtil;
 import org.apache.poi.ss.usermodel.Sheet;
 
 import org.joeffice.desktop.ui.OfficeTopComponent;
 import org.joeffice.spreadsheet.cell.CellUtils;
 import org.joeffice.spreadsheet.SpreadsheetTopComponent;
+import org.joeffice.spreadsheet.sequence.DateSequence;
 import org.joeffice.spreadsheet.sequence.DateStringSequence;
 import org.joeffice.spreadsheet.sequence.IdentitySequence;
 import org.joeffice.spreadsheet.sequence.NumberSequence;
@@ -42,7 +46,7 @@ import org.openide.awt.ActionRegistration;
 import org.openide.util.NbBundle.Messages;
 
 /**
- * Completes the empty cell based on the content of the previous cells.
+ * Completes the empty cells based on the content of the previous cells.
  *
  * @see org.joeffice.spreadsheet.sequence.Sequence
  * @author Anthony Goubard - Japplis
@@ -59,11 +63,15 @@ import org.openide.util.NbBundle.Messages;
 @Messages("CTL_CompleteSequenceAction=Complete")
 public class CompleteSequenceAction  extends AbstractAction {
 
+    private final static long MAX_LONG_DOUBLE = 1L << 53;
+
     private List<Sequence> sequences = new ArrayList<>();
+    private DateFormat dateFormat = new SimpleDateFormat(DateSequence.DATE_PATTERN);
 
     public CompleteSequenceAction() {
         // TODO get the list from layer.xml
         sequences.add(new NumberSequence());
+        sequences.add(new DateSequence());
         sequences.add(new DateStringSequence());
         sequences.add(new ResourceBundleSequence());
         if (!Locale.getDefault().getLanguage().equals(Locale.US.getLanguage())) {
@@ -88,56 +96,117 @@ public class CompleteSequenceAction  extends AbstractAction {
         }
     }
 
+    /**
+     * Completes the empty cells of the selected rows, or of the selected columns if a cell of the first column is empty.
+     * The pattern of each row or column is detected once from the cells before its first empty cell
+     * and all the completed cells are set with one change of the model.
+     */
     protected void completeCells(SheetTableModel model, int[] selectedRows, int[] selectedColumns) {
         Sheet sheet = model.getSheet();
-        boolean completeRows = true;
         int firstRow = selectedRows[0];
         int firstColumn = selectedColumns[0];
         int lastRow = selectedRows[selectedRows.length - 1];
         int lastColumn = selectedColumns[selectedColumns.length - 1];
-        for (int i = firstRow; i <= lastRow; i++) {
-            for (int j = firstColumn; j <= lastColumn; j++) {
-                Cell cell = CellUtils.getCell(true, sheet, i, j);
-                String text = CellUtils.getFormattedText(cell);
-                if (text.trim().equals("")) {
-                    if (completeRows && j == firstColumn) {
-                        completeRows = false;
-                    }
-                    List<String> previousValues;
-                    if (completeRows) {
-                        previousValues = getPreviousValues(sheet, firstColumn, j, completeRows, i);
-                    } else {
-                        previousValues = getPreviousValues(sheet, firstRow, i, completeRows, j);
-                    }
-                    String nextValue = getNextValue(previousValues);
-                    model.setValueAt(nextValue, i, j);
+        boolean completeRows = true;
+        for (int i = firstRow; i <= lastRow && completeRows; i++) {
+            completeRows = !isEmpty(CellUtils.getCell(false, sheet, i, firstColumn));
+        }
+        int lineCount = completeRows ? lastRow - firstRow + 1 : lastColumn - firstColumn + 1;
+        int lineLength = completeRows ? lastColumn - firstColumn + 1 : lastRow - firstRow + 1;
+        Object[][] values = new Object[lastRow - firstRow + 1][lastColumn - firstColumn + 1];
+        boolean completed = false;
+        for (int line = 0; line < lineCount; line++) {
+            List<String> previousValues = new ArrayList<>();
+            boolean numbers = true;
+            int position = 0;
+            for (; position < lineLength; position++) {
+                Cell cell = completeRows
+                        ? CellUtils.getCell(false, sheet, firstRow + line, firstColumn + position)
+                        : CellUtils.getCell(false, sheet, firstRow + position, firstColumn + line);
+                if (isEmpty(cell)) {
+                    break;
                 }
+                previousValues.add(getValue(cell));
+                numbers &= isNumber(cell);
+            }
+            if (position == lineLength) {
+                continue;
+            }
+            List<String> nextValues = getNextValues(previousValues, lineLength - position);
+            if (nextValues == null) {
+                continue;
             }
+            numbers &= !previousValues.isEmpty();
+            for (int i = 0; i < nextValues.size(); i++, position++) {
+                int row = completeRows ? line : position;
+                int column = completeRows ? position : line;
+                if (isEmpty(CellUtils.getCell(false, sheet, firstRow + row, firstColumn + column))) {
+                    values[row][column] = numbers ? toNumber(nextValues.get(i)) : nextValues.get(i);
+                    completed = true;
+                }
+            }
+        }
+        if (completed) {
+            model.setValuesAt(values, firstRow, firstColumn);
         }
     }
 
-    protected List<String> getPreviousValues(Sheet sheet, int from, int to, boolean completeRows, int columnOrRow) {
-        List<String> previousValues = new ArrayList<>();
-        for (int i = from; i < to; i++) {
-            Cell cell;
-            if (completeRows) {
-                cell = CellUtils.getCell(false, sheet, columnOrRow, i);
-            } else {
-                cell = CellUtils.getCell(false, sheet, i, columnOrRow);
-            }
-            String text = CellUtils.getFormattedText(cell);
-            previousValues.add(text);
+    private static boolean isEmpty(Cell cell) {
+        return cell == null || cell.getCellType() == Cell.CELL_TYPE_BLANK
+                || (cell.getCellType() == Cell.CELL_TYPE_STRING && cell.getStringCellValue().trim().isEmpty());
+    }
+
+    private static int getType(Cell cell) {
+        return cell.getCellType() == Cell.CELL_TYPE_FORMULA ? cell.getCachedFormulaResultType() : cell.getCellType();
+    }
+
+    private static boolean isNumber(Cell cell) {
+        return getType(cell) == Cell.CELL_TYPE_NUMERIC && !DateUtil.isCellDateFormatted(cell);
+    }
+
+    /**
+     * Gets the value of the cell as text, the numbers without grouping separator and the dates as year-month-day.
+     */
+    protected String getValue(Cell cell) {
+        switch (getType(cell)) {
+            case Cell.CELL_TYPE_NUMERIC:
+                if (DateUtil.isCellDateFormatted(cell)) {
+                    return dateFormat.format(cell.getDateCellValue());
+                }
+                double number = cell.getNumericCellValue();
+                if (number == Math.rint(number) && Math.abs(number) < MAX_LONG_DOUBLE) {
+                    return String.valueOf((long) number);
+                }
+                return String.valueOf(number);
+            case Cell.CELL_TYPE_STRING:
+                return cell.getStringCellValue();
+            case Cell.CELL_TYPE_BOOLEAN:
+                return String.valueOf(cell.getBooleanCellValue());
+            default:
+                return "";
+        }
+    }
+
+    private static Object toNumber(String value) {
+        try {
+            return Double.valueOf(value);
+        } catch (NumberFormatException ex) {
+            return value;
         }
-        return previousValues;
     }
 
-    protected String getNextValue(List<String> previousValues) {
+    /**
+     * Gets the next values from the first sequence followed by the previous values.
+     *
+     * @return the next values or null if the previous values are not a known sequence
+     */
+    protected List<String> getNextValues(List<String> previousValues, int count) {
         for (Sequence sequence : sequences) {
-            String nextValue = sequence.getNextValue(previousValues);
-            if (nextValue != null) {
-                return nextValue;
+            List<String> nextValues = sequence.getNextValues(previousValues, count);
+            if (nextValues != null) {
+                return nextValues;
             }
         }
-        return "";
+        return null;
     }
 }
@@ -24,10 +24,12 @@ import org.apache.poi.ss.usermodel.Cell;
 import org.joeffice.desktop.ui.OfficeTopComponent;
 import org.joeffice.spreadsheet.cell.CellUtils;
 import org.joeffice.spreadsheet.SpreadsheetTopComponent;
+import org.joeffice.spreadsheet.sheet.CellsEdit;
 import org.joeffice.spreadsheet.sheet.SheetTableModel;
 
 import org.openide.awt.ActionID;
 import org.openide.awt.ActionRegistration;
+import org.openide.util.NbBundle;
 import org.openide.util.NbBundle.Messages;
 
 /**
@@ -49,11 +51,13 @@ public final class DeleteCellsAction extends AbstractAction {
         if (currentTopComponent != null) {
             JTable currentTable = currentTopComponent.getSelectedTable();
             SheetTableModel tableModel = (SheetTableModel) currentTable.getModel();
+            String editName = NbBundle.getMessage(DeleteCellsAction.class, "CTL_DeleteCellsAction");
+            CellsEdit edit = tableModel.startCellsEdit(editName, CellUtils.getSelectedRanges(currentTable));
             List<Cell> selectedCells = CellUtils.getSelectedCells(currentTable);
             for (Cell cell : selectedCells) {
                 cell.setCellValue("");
-                tableModel.fireTableCellUpdated(cell.getRowIndex(), cell.getColumnIndex());
             }
+            tableModel.endCellsEdit(edit);
         }
     }
 }
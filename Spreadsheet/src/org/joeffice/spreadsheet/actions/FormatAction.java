@@ -16,19 +16,23 @@
 package org.joeffice.spreadsheet.actions;
 
 import java.awt.event.ActionEvent;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import javax.swing.AbstractAction;
 import javax.swing.JComboBox;
 import javax.swing.JTable;
 
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.CellUtil;
 
 import org.joeffice.desktop.ui.OfficeTopComponent;
 import org.joeffice.desktop.ui.OfficeUIUtils;
+import org.joeffice.spreadsheet.cell.CellStylePool;
 import org.joeffice.spreadsheet.cell.CellUtils;
 import org.joeffice.spreadsheet.SpreadsheetTopComponent;
+import org.joeffice.spreadsheet.sheet.CellsEdit;
 import org.joeffice.spreadsheet.sheet.SheetTableModel;
 
 import org.openide.DialogDescriptor;
@@ -57,6 +61,7 @@ public class FormatAction extends AbstractAction {
     }
 
     @Override
+    @NbBundle.Messages("UNDO_Format=Format")
     public void actionPerformed(ActionEvent ae) {
         SpreadsheetTopComponent currentTopComponent = OfficeTopComponent.getSelectedComponent(SpreadsheetTopComponent.class);
         if (currentTopComponent != null) {
@@ -74,13 +79,18 @@ public class FormatAction extends AbstractAction {
             if (pattern == null) {
                 return;
             }
-            Workbook workbook = selectedCells.get(0).getSheet().getWorkbook();
+            Workbook workbook = tableModel.getSheet().getWorkbook();
             DataFormat format = workbook.createDataFormat();
             short formatIndex = format.getFormat(pattern);
+            String editName = NbBundle.getMessage(FormatAction.class, "UNDO_Format");
+            CellsEdit edit = tableModel.startCellsEdit(editName, CellUtils.getSelectedRanges(currentTable));
+            // The styles are shared with other cells, so the cells get a style of the pool with the format
+            CellStylePool stylePool = CellStylePool.getInstance(workbook);
+            Map<String, Object> formatChange = Collections.<String, Object>singletonMap(CellUtil.DATA_FORMAT, formatIndex);
             for (Cell cell : selectedCells) {
-                cell.getCellStyle().setDataFormat(formatIndex);
-                tableModel.fireTableCellUpdated(cell.getRowIndex(), cell.getColumnIndex());
+                cell.setCellStyle(stylePool.getStyle(cell.getCellStyle(), formatChange));
             }
+            tableModel.endCellsEdit(edit);
         }
     }
 
@@ -49,8 +49,8 @@ public final class InsertColumnAction extends AbstractAction {
         SpreadsheetTopComponent currentTopComponent = OfficeTopComponent.getSelectedComponent(SpreadsheetTopComponent.class);
         if (currentTopComponent != null) {
             JTable currentTable = currentTopComponent.getSelectedTable();
-            int selectedColumn = currentTable.getSelectedColumn();
-            ((SheetTableModel) currentTable.getModel()).insertColumn(selectedColumn);
+            int[] selectedColumns = currentTable.getSelectedColumns();
+            ((SheetTableModel) currentTable.getModel()).insertColumns(1, selectedColumns);
         }
     }
 }
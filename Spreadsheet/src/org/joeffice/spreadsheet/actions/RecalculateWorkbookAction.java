@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.actions;
+
+import java.awt.event.ActionEvent;
+import javax.swing.AbstractAction;
+
+import org.joeffice.spreadsheet.SpreadsheetComponent;
+
+import org.openide.awt.ActionID;
+import org.openide.awt.ActionReference;
+import org.openide.awt.ActionReferences;
+import org.openide.awt.ActionRegistration;
+import org.openide.util.NbBundle.Messages;
+
+/**
+ * Recalculates all the formulas of the workbook.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+@ActionID(
+        category = "Edit/Office/Spreadsheet",
+        id = "org.joeffice.spreadsheet.actions.RecalculateWorkbookAction")
+@ActionRegistration(
+        displayName = "#CTL_RecalculateWorkbookAction")
+@ActionReferences(value = {
+    @ActionReference(path = "Office/Spreadsheet/Tabs/Popup"),
+    @ActionReference(path = "Menu/Edit/Gimme More/Spreadsheet", position = 900)})
+@Messages("CTL_RecalculateWorkbookAction=Recalculate workbook")
+public final class RecalculateWorkbookAction extends AbstractAction {
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        SpreadsheetComponent spreadsheet = SpreadsheetComponent.getSelectedInstance();
+        if (spreadsheet != null) {
+            spreadsheet.recalculateWorkbook();
+        }
+    }
+}
@@ -47,8 +47,8 @@ public final class RemoveColumnAction extends AbstractAction {
         SpreadsheetTopComponent currentTopComponent = OfficeTopComponent.getSelectedComponent(SpreadsheetTopComponent.class);
         if (currentTopComponent != null) {
             JTable currentTable = currentTopComponent.getSelectedTable();
-            int selectedColumn = currentTable.getSelectedColumn();
-            ((SheetTableModel) currentTable.getModel()).removeColumn(selectedColumn);
+            int[] selectedColumns = currentTable.getSelectedColumns();
+            ((SheetTableModel) currentTable.getModel()).removeColumns(selectedColumns);
         }
     }
 }
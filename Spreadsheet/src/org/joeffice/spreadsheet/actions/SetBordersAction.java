@@ -16,7 +16,9 @@
 package org.joeffice.spreadsheet.actions;
 
 import java.awt.event.ActionEvent;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.swing.AbstractAction;
 import javax.swing.JComboBox;
 import javax.swing.JTable;
@@ -24,11 +26,12 @@ import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.IndexedColors;
 import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellUtil;
 import org.joeffice.desktop.ui.OfficeTopComponent;
+import org.joeffice.spreadsheet.cell.CellStylePool;
 import org.joeffice.spreadsheet.cell.CellUtils;
 import org.joeffice.spreadsheet.SpreadsheetTopComponent;
+import org.joeffice.spreadsheet.sheet.CellsEdit;
 import org.joeffice.spreadsheet.sheet.SheetTableModel;
 import org.openide.DialogDisplayer;
 import org.openide.NotifyDescriptor;
@@ -96,18 +99,22 @@ public class SetBordersAction extends AbstractAction {
 
     public void setBorder(JTable currentTable, short thickness, short color) {
         SheetTableModel tableModel = (SheetTableModel) currentTable.getModel();
+        String editName = NbBundle.getMessage(SetBordersAction.class, "CTL_SetBordersAction");
+        CellsEdit edit = tableModel.startCellsEdit(editName, CellUtils.getSelectedRanges(currentTable));
+        Map<String, Object> borders = new HashMap<>();
+        borders.put(CellUtil.BORDER_TOP, thickness);
+        borders.put(CellUtil.TOP_BORDER_COLOR, color);
+        borders.put(CellUtil.BORDER_LEFT, thickness);
+        borders.put(CellUtil.LEFT_BORDER_COLOR, color);
+        borders.put(CellUtil.BORDER_BOTTOM, thickness);
+        borders.put(CellUtil.BOTTOM_BORDER_COLOR, color);
+        borders.put(CellUtil.BORDER_RIGHT, thickness);
+        borders.put(CellUtil.RIGHT_BORDER_COLOR, color);
+        CellStylePool stylePool = CellStylePool.getInstance(tableModel.getSheet().getWorkbook());
         List<Cell> selectedCells = CellUtils.getSelectedCells(currentTable, true);
         for (Cell cell : selectedCells) {
-            Workbook workbook = cell.getSheet().getWorkbook();
-            CellUtil.setCellStyleProperty(cell, workbook, CellUtil.BORDER_TOP, thickness);
-            CellUtil.setCellStyleProperty(cell, workbook, CellUtil.TOP_BORDER_COLOR, color);
-            CellUtil.setCellStyleProperty(cell, workbook, CellUtil.BORDER_LEFT, thickness);
-            CellUtil.setCellStyleProperty(cell, workbook, CellUtil.LEFT_BORDER_COLOR, color);
-            CellUtil.setCellStyleProperty(cell, workbook, CellUtil.BORDER_BOTTOM, thickness);
-            CellUtil.setCellStyleProperty(cell, workbook, CellUtil.BOTTOM_BORDER_COLOR, color);
-            CellUtil.setCellStyleProperty(cell, workbook, CellUtil.BORDER_RIGHT, thickness);
-            CellUtil.setCellStyleProperty(cell, workbook, CellUtil.RIGHT_BORDER_COLOR, color);
-            tableModel.fireTableCellUpdated(cell.getRowIndex(), cell.getColumnIndex());
+            cell.setCellStyle(stylePool.getStyle(cell.getCellStyle(), borders));
         }
+        tableModel.endCellsEdit(edit);
     }
 }
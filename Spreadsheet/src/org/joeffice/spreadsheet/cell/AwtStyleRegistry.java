@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.cell;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.poi.hssf.util.HSSFColor;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+
+/**
+ * Registry of the AWT fonts and colors used to render the cells.
+ *
+ * The fonts are created once per font index of the workbook and the colors once per color index or ARGB value,
+ * so that rendering a cell doesn't create any font or color.
+ * The registry also keeps the {@link CellStylePool} of the workbook, so both are released with the workbook.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class AwtStyleRegistry {
+
+    // The registries keep their workbook, so they are removed with release() when the workbook is closed or replaced
+    private final static Map<Workbook, AwtStyleRegistry> REGISTRIES = new HashMap<>();
+
+    private final static Map<Short, Color> INDEXED_COLORS = new ConcurrentHashMap<>();
+    private final static Map<Integer, Color> ARGB_COLORS = new ConcurrentHashMap<>();
+
+    static {
+        Map<Integer, HSSFColor> indexedColors = HSSFColor.getIndexHash();
+        for (Map.Entry<Integer, HSSFColor> indexedColor : indexedColors.entrySet()) {
+            short[] rgb = indexedColor.getValue().getTriplet();
+            INDEXED_COLORS.put(indexedColor.getKey().shortValue(), getColor(rgb[0], rgb[1], rgb[2]));
+        }
+    }
+
+    private Workbook workbook;
+    private Map<Short, java.awt.Font> fonts = new HashMap<>();
+    private CellStylePool stylePool;
+
+    private AwtStyleRegistry(Workbook workbook) {
+        this.workbook = workbook;
+    }
+
+    public static synchronized AwtStyleRegistry getInstance(Workbook workbook) {
+        AwtStyleRegistry registry = REGISTRIES.get(workbook);
+        if (registry == null) {
+            registry = new AwtStyleRegistry(workbook);
+            REGISTRIES.put(workbook, registry);
+        }
+        return registry;
+    }
+
+    /**
+     * Removes the registry and the style pool of the workbook.
+     */
+    public static synchronized void release(Workbook workbook) {
+        REGISTRIES.remove(workbook);
+    }
+
+    /**
+     * Gets the AWT font for the font index of the workbook.
+     */
+    public java.awt.Font getFont(short fontIndex) {
+        java.awt.Font font = fonts.get(fontIndex);
+        if (font == null) {
+            Font xlsFont = workbook.getFontAt(fontIndex);
+            int fontStyle = java.awt.Font.PLAIN;
+            if (xlsFont.getItalic()) {
+                fontStyle |= java.awt.Font.ITALIC;
+            }
+            if (xlsFont.getBoldweight() == Font.BOLDWEIGHT_BOLD) {
+                fontStyle |= java.awt.Font.BOLD;
+            }
+            // no underline in fonts
+            font = java.awt.Font.decode(xlsFont.getFontName()).deriveFont(fontStyle, (float) xlsFont.getFontHeightInPoints());
+            fonts.put(fontIndex, font);
+        }
+        return font;
+    }
+
+    /**
+     * Gets the color of the font for the font index of the workbook or null if it's the default color.
+     */
+    public Color getFontColor(short fontIndex) {
+        return getColor(workbook.getFontAt(fontIndex).getColor());
+    }
+
+    synchronized CellStylePool getCellStylePool() {
+        if (stylePool == null) {
+            stylePool = new CellStylePool(workbook);
+        }
+        return stylePool;
+    }
+
+    /**
+     * Forgets the fonts of the workbook, for example after fonts or styles were added to the workbook.
+     */
+    public void invalidate() {
+        fonts.clear();
+    }
+
+    /**
+     * Gets the color of the default palette or null if there is no color with this index.
+     */
+    public static Color getColor(short colorIndex) {
+        if (colorIndex > 0) {
+            return INDEXED_COLORS.get(colorIndex);
+        }
+        return null;
+    }
+
+    /**
+     * Converts a POI color to an AWT color.
+     */
+    public static Color getColor(org.apache.poi.ss.usermodel.Color poiColor) {
+        if (poiColor instanceof XSSFColor) {
+            byte[] rgb = ((XSSFColor) poiColor).getRgb();
+            if (rgb != null) {
+                return getColor(rgb[0] & 0xFF, rgb[1] & 0xFF, rgb[2] & 0xFF);
+            }
+        } else if (poiColor instanceof HSSFColor && !(poiColor instanceof HSSFColor.AUTOMATIC)) {
+            short[] rgb = ((HSSFColor) poiColor).getTriplet();
+            return getColor(rgb[0], rgb[1], rgb[2]);
+        }
+        return null;
+    }
+
+    private static Color getColor(int red, int green, int blue) {
+        int argb = 0xFF000000 | (red << 16) | (green << 8) | blue;
+        Color color = ARGB_COLORS.get(argb);
+        if (color == null) {
+            color = new Color(argb, true);
+            ARGB_COLORS.put(argb, color);
+        }
+        return color;
+    }
+}
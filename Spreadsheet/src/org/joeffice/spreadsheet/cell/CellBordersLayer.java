@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.cell;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import javax.swing.JComponent;
+import javax.swing.JTable;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Workbook;
+
+import org.joeffice.spreadsheet.sheet.CellStore;
+import org.joeffice.spreadsheet.sheet.SheetTableModel;
+
+/**
+ * Layer painted over the table with the borders of the visible cells.
+ *
+ * The borders are painted in one pass instead of by each cell renderer, so the border shared by 2 cells is
+ * only painted once and over the grid.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class CellBordersLayer extends JComponent {
+
+    private final static Stroke THIN_STROKE = new BasicStroke(0.5F);
+    private final static Stroke MEDIUM_STROKE = new BasicStroke(1.0F);
+    private final static Stroke THICK_STROKE = new BasicStroke(2.0F);
+
+    private JTable table;
+
+    public CellBordersLayer(JTable table) {
+        this.table = table;
+        setOpaque(false);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        paintBorders(g);
+    }
+
+    /**
+     * Paints the borders of the cells in the clip bounds of the graphics, also used when printing the table.
+     */
+    public void paintBorders(Graphics g) {
+        if (!(table.getModel() instanceof SheetTableModel) || table.getRowCount() == 0 || table.getColumnCount() == 0) {
+            return;
+        }
+        Rectangle paintedBounds = g.getClipBounds();
+        if (paintedBounds == null) {
+            paintedBounds = table.getVisibleRect();
+        }
+        int firstRow = table.rowAtPoint(paintedBounds.getLocation());
+        int firstColumn = table.columnAtPoint(paintedBounds.getLocation());
+        if (firstRow == -1 || firstColumn == -1) {
+            return;
+        }
+        int lastRow = table.rowAtPoint(new Point(paintedBounds.x, paintedBounds.y + paintedBounds.height - 1));
+        if (lastRow == -1) {
+            lastRow = table.getRowCount() - 1;
+        }
+        int lastColumn = table.columnAtPoint(new Point(paintedBounds.x + paintedBounds.width - 1, paintedBounds.y));
+        if (lastColumn == -1) {
+            lastColumn = table.getColumnCount() - 1;
+        }
+
+        SheetTableModel sheetModel = (SheetTableModel) table.getModel();
+        Graphics2D g2 = (Graphics2D) g;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                CellRenderCache.RenderedStyle style = getStyle(sheetModel, row, column);
+                if (style != null && style.hasBorder()) {
+                    paintBorders(g2, style, row, column, sheetModel);
+                }
+            }
+        }
+    }
+
+    private void paintBorders(Graphics2D g2, CellRenderCache.RenderedStyle style, int row, int column, SheetTableModel sheetModel) {
+        Rectangle cellBounds = table.getCellRect(row, column, true);
+        int x = cellBounds.x;
+        int y = cellBounds.y;
+        int width = cellBounds.width;
+        int height = cellBounds.height;
+        if (style.getBorderBottom() != CellStyle.BORDER_NONE) {
+            applyBorderStyle(g2, style.getBorderBottom(), style.getBottomBorderColor());
+            g2.drawLine(x, y + height - 1, x + width, y + height - 1);
+        }
+        if (style.getBorderRight() != CellStyle.BORDER_NONE) {
+            applyBorderStyle(g2, style.getBorderRight(), style.getRightBorderColor());
+            g2.drawLine(x + width - 1, y, x + width - 1, y + height);
+        }
+        // The top and left borders are not painted if the cell above or at the left already painted it
+        if (style.getBorderTop() != CellStyle.BORDER_NONE) {
+            CellRenderCache.RenderedStyle aboveStyle = row > 0 ? getStyle(sheetModel, row - 1, column) : null;
+            if (aboveStyle == null || aboveStyle.getBorderBottom() == CellStyle.BORDER_NONE) {
+                applyBorderStyle(g2, style.getBorderTop(), style.getTopBorderColor());
+                g2.drawLine(x, y, x + width, y);
+            }
+        }
+        if (style.getBorderLeft() != CellStyle.BORDER_NONE) {
+            CellRenderCache.RenderedStyle leftStyle = column > 0 ? getStyle(sheetModel, row, column - 1) : null;
+            if (leftStyle == null || leftStyle.getBorderRight() == CellStyle.BORDER_NONE) {
+                applyBorderStyle(g2, style.getBorderLeft(), style.getLeftBorderColor());
+                g2.drawLine(x, y, x, y + height);
+            }
+        }
+    }
+
+    private CellRenderCache.RenderedStyle getStyle(SheetTableModel sheetModel, int row, int column) {
+        CellStore cellStore = sheetModel.getCellStore();
+        int modelRow = table.convertRowIndexToModel(row);
+        int modelColumn = table.convertColumnIndexToModel(column);
+        if (!cellStore.hasCell(modelRow, modelColumn)) {
+            return null;
+        }
+        short styleIndex = cellStore.getStyleIndex(modelRow, modelColumn);
+        Workbook workbook = sheetModel.getSheet().getWorkbook();
+        return sheetModel.getRenderCache().getRenderedStyle(styleIndex, workbook);
+    }
+
+    private void applyBorderStyle(Graphics2D g2, short border, java.awt.Color borderColor) {
+        g2.setColor(borderColor);
+        if (border == CellStyle.BORDER_THIN) {
+            g2.setStroke(THIN_STROKE);
+        } else if (border == CellStyle.BORDER_THICK) {
+            g2.setStroke(THICK_STROKE);
+        } else {
+            g2.setStroke(MEDIUM_STROKE);
+        }
+    }
+}
@@ -40,7 +40,11 @@ public class CellEditor extends DefaultCellEditor implements TableCellEditor {
             JComponent defaultComponent = (JComponent) DEFAULT_EDITOR.
                     getTableCellEditorComponent(table, null, isSelected, row, column);
             Cell cell = (Cell) value;
-            ((JTextField) getComponent()).setText(CellUtils.getFormattedText(cell));
+            if (cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                ((JTextField) getComponent()).setText("=" + cell.getCellFormula());
+            } else {
+                ((JTextField) getComponent()).setText(CellUtils.getFormattedText(cell));
+            }
             CellRenderer.decorateComponent(cell, (JComponent) getComponent(), defaultComponent);
         }
         return getComponent();
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.cell;
+
+import java.awt.Color;
+import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.JComponent;
+import javax.swing.SwingConstants;
+import javax.swing.border.Border;
+import javax.swing.border.EmptyBorder;
+import javax.swing.event.TableModelEvent;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Workbook;
+
+import org.joeffice.spreadsheet.sheet.CellStore;
+
+/**
+ * Cache of what is displayed in the cells of a sheet.
+ *
+ * The formatted text is kept per cell and the font, colors, alignment and border per cell style.
+ * The cells are stamped with the version of the cache, changing the version invalidates all the cells at once.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class CellRenderCache {
+
+    private final static int MAX_CACHED_CELLS = 100000;
+
+    // Invalidating cell by cell more than this number of cells is slower than invalidating everything
+    private final static int MAX_INVALIDATED_CELLS = 1000;
+
+    private final static DataFormatter DATA_FORMATTER = new DataFormatter();
+
+    static {
+        DATA_FORMATTER.setDefaultNumberFormat(NumberFormat.getInstance());
+    }
+
+    private Map<Long, RenderedCell> cells = new LinkedHashMap<Long, RenderedCell>(1024, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RenderedCell> eldest) {
+            return size() > MAX_CACHED_CELLS;
+        }
+    };
+    private Map<Short, RenderedStyle> styles = new HashMap<>();
+    private int version;
+
+    /**
+     * Gets the rendered cell, formatting the cell of the cell store if it's not in the cache.
+     */
+    public RenderedCell getRenderedCell(CellStore cellStore, int rowIndex, int columnIndex, Workbook workbook) {
+        Long key = toKey(rowIndex, columnIndex);
+        RenderedCell renderedCell = cells.get(key);
+        if (renderedCell == null || renderedCell.version != version) {
+            renderedCell = render(cellStore, rowIndex, columnIndex, workbook);
+            cells.put(key, renderedCell);
+        }
+        return renderedCell;
+    }
+
+    public boolean isCached(int rowIndex, int columnIndex) {
+        RenderedCell renderedCell = cells.get(toKey(rowIndex, columnIndex));
+        return renderedCell != null && renderedCell.version == version;
+    }
+
+    private RenderedCell render(CellStore cellStore, int rowIndex, int columnIndex, Workbook workbook) {
+        short styleIndex = cellStore.getStyleIndex(rowIndex, columnIndex);
+        RenderedStyle style = getRenderedStyle(styleIndex, workbook);
+        int cellType = cellStore.getCellType(rowIndex, columnIndex);
+        String text;
+        switch (cellType) {
+            case Cell.CELL_TYPE_NUMERIC:
+                double value = cellStore.getNumericValue(rowIndex, columnIndex);
+                CellStyle cellStyle = workbook.getCellStyleAt(styleIndex);
+                text = DATA_FORMATTER.formatRawCellContents(value, cellStyle.getDataFormat(), cellStyle.getDataFormatString());
+                break;
+            case Cell.CELL_TYPE_STRING:
+                text = cellStore.getStringValue(rowIndex, columnIndex);
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                text = cellStore.getBooleanValue(rowIndex, columnIndex) ? "TRUE" : "FALSE";
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                text = FormulaError.forInt((byte) cellStore.getNumericValue(rowIndex, columnIndex)).getString();
+                break;
+            default:
+                text = "";
+        }
+        return new RenderedCell(text, cellType, style, version);
+    }
+
+    public RenderedStyle getRenderedStyle(short styleIndex, Workbook workbook) {
+        RenderedStyle style = styles.get(styleIndex);
+        if (style == null) {
+            style = new RenderedStyle(workbook.getCellStyleAt(styleIndex), workbook);
+            styles.put(styleIndex, style);
+        }
+        return style;
+    }
+
+    /**
+     * Invalidates the cells of the event.
+     * The styles are always invalidated as they may have been changed for the updated cells.
+     */
+    public void invalidate(TableModelEvent e, int columnCount) {
+        int firstRow = e.getFirstRow();
+        int lastRow = e.getLastRow();
+        if (e.getType() != TableModelEvent.UPDATE || firstRow == TableModelEvent.HEADER_ROW || lastRow == Integer.MAX_VALUE) {
+            invalidateAll();
+            return;
+        }
+        int firstColumn = e.getColumn() == TableModelEvent.ALL_COLUMNS ? 0 : e.getColumn();
+        int lastColumn = e.getColumn() == TableModelEvent.ALL_COLUMNS ? columnCount - 1 : e.getColumn();
+        if ((long) (lastRow - firstRow + 1) * (lastColumn - firstColumn + 1) > MAX_INVALIDATED_CELLS) {
+            invalidateAll();
+            return;
+        }
+        for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++) {
+            for (int columnIndex = firstColumn; columnIndex <= lastColumn; columnIndex++) {
+                cells.remove(toKey(rowIndex, columnIndex));
+            }
+        }
+        styles.clear();
+    }
+
+    /**
+     * Invalidates all the cells, for example when a cell style shared by several cells has changed.
+     */
+    public void invalidateAll() {
+        version++;
+        styles.clear();
+    }
+
+    private static Long toKey(int rowIndex, int columnIndex) {
+        return ((long) rowIndex << 32) | columnIndex;
+    }
+
+    /**
+     * The text of a cell and its style.
+     */
+    public static class RenderedCell {
+
+        private String text;
+        private int cellType;
+        private RenderedStyle style;
+        private int version;
+
+        private RenderedCell(String text, int cellType, RenderedStyle style, int version) {
+            this.text = text;
+            this.cellType = cellType;
+            this.style = style;
+            this.version = version;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public RenderedStyle getStyle() {
+            return style;
+        }
+
+        public int getHorizontalAlignment() {
+            if (style.horizontalAlignment == SwingConstants.CENTER || cellType == Cell.CELL_TYPE_BOOLEAN) {
+                return SwingConstants.CENTER;
+            } else if (style.horizontalAlignment == SwingConstants.RIGHT || cellType == Cell.CELL_TYPE_NUMERIC) {
+                return SwingConstants.RIGHT;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The AWT font, colors, alignment and borders of a cell style.
+     * null or -1 values mean that the default of the table should be used.
+     */
+    public static class RenderedStyle {
+
+        // The borders are painted by the CellBordersLayer, this only keeps a space between the text and the grid
+        private final static Border TEXT_MARGIN = new EmptyBorder(0, 1, 0, 1);
+
+        private Color background;
+        private Color foreground;
+        private java.awt.Font font;
+        private int horizontalAlignment = -1;
+        private int verticalAlignment = -1;
+        private short borderTop;
+        private short borderBottom;
+        private short borderLeft;
+        private short borderRight;
+        private Color topBorderColor;
+        private Color bottomBorderColor;
+        private Color leftBorderColor;
+        private Color rightBorderColor;
+
+        public RenderedStyle(CellStyle style, Workbook workbook) {
+            // Background neither the index or the color works for XSSF cells
+            background = CellUtils.poiToAwtColor(style.getFillBackgroundColorColor());
+
+            // Font and forground
+            short fontIndex = style.getFontIndex();
+            if (fontIndex > 0) {
+                AwtStyleRegistry registry = AwtStyleRegistry.getInstance(workbook);
+                font = registry.getFont(fontIndex);
+                foreground = registry.getFontColor(fontIndex);
+            }
+
+            short alignment = style.getAlignment();
+            if (alignment == CellStyle.ALIGN_CENTER) {
+                horizontalAlignment = SwingConstants.CENTER;
+            } else if (alignment == CellStyle.ALIGN_RIGHT) {
+                horizontalAlignment = SwingConstants.RIGHT;
+            }
+            short verticalStyleAlignment = style.getAlignment(); // Either LibreOffice 4 or POI has problem with vertical alignment
+            if (verticalStyleAlignment == CellStyle.VERTICAL_TOP) {
+                verticalAlignment = SwingConstants.TOP;
+            } else if (verticalStyleAlignment == CellStyle.VERTICAL_CENTER) {
+                verticalAlignment = SwingConstants.CENTER;
+            } else if (verticalStyleAlignment == CellStyle.VERTICAL_BOTTOM) {
+                verticalAlignment = SwingConstants.BOTTOM;
+            }
+
+            borderTop = style.getBorderTop();
+            borderBottom = style.getBorderBottom();
+            borderLeft = style.getBorderLeft();
+            borderRight = style.getBorderRight();
+            topBorderColor = getBorderColor(style.getTopBorderColor());
+            bottomBorderColor = getBorderColor(style.getBottomBorderColor());
+            leftBorderColor = getBorderColor(style.getLeftBorderColor());
+            rightBorderColor = getBorderColor(style.getRightBorderColor());
+        }
+
+        private static Color getBorderColor(short colorIndex) {
+            Color borderColor = CellUtils.shortToColor(colorIndex);
+            return borderColor != null ? borderColor : Color.BLACK;
+        }
+
+        public int getVerticalAlignment() {
+            return verticalAlignment;
+        }
+
+        public boolean hasBorder() {
+            return borderTop != CellStyle.BORDER_NONE || borderBottom != CellStyle.BORDER_NONE
+                    || borderLeft != CellStyle.BORDER_NONE || borderRight != CellStyle.BORDER_NONE;
+        }
+
+        public short getBorderTop() {
+            return borderTop;
+        }
+
+        public short getBorderBottom() {
+            return borderBottom;
+        }
+
+        public short getBorderLeft() {
+            return borderLeft;
+        }
+
+        public short getBorderRight() {
+            return borderRight;
+        }
+
+        public Color getTopBorderColor() {
+            return topBorderColor;
+        }
+
+        public Color getBottomBorderColor() {
+            return bottomBorderColor;
+        }
+
+        public Color getLeftBorderColor() {
+            return leftBorderColor;
+        }
+
+        public Color getRightBorderColor() {
+            return rightBorderColor;
+        }
+
+        /**
+         * Applies the colors and font to the component.
+         */
+        public void decorate(JComponent renderingComponent, Color defaultForeground, Color defaultBackground, java.awt.Font defaultFont) {
+            renderingComponent.setBackground(background != null ? background : defaultBackground);
+            renderingComponent.setForeground(foreground != null ? foreground : defaultForeground);
+            renderingComponent.setFont(font != null ? font : defaultFont);
+            renderingComponent.setBorder(TEXT_MARGIN);
+        }
+    }
+}
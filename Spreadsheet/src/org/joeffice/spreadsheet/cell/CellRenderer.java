@@ -15,7 +15,6 @@
  */
 package org.joeffice.spreadsheet.cell;
 
-import java.awt.Color;
 import java.awt.Component;
 import java.text.NumberFormat;
 import javax.swing.JComponent;
@@ -25,16 +24,19 @@ import javax.swing.SwingConstants;
 import javax.swing.UIManager;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.TableCellRenderer;
+import javax.swing.table.TableModel;
 
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.Font;
-import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.xmlbeans.impl.values.XmlValueDisconnectedException;
 import org.joeffice.desktop.ui.OfficeTopComponent;
 
 import org.joeffice.spreadsheet.SpreadsheetTopComponent;
+import org.joeffice.spreadsheet.sheet.CellStore;
+import org.joeffice.spreadsheet.sheet.SheetTableModel;
 
 /**
  * The POI cell renderer.
@@ -47,7 +49,6 @@ public class CellRenderer extends DefaultTableCellRenderer {
     private final static DataFormatter DATA_FORMATTER = new DataFormatter();
 
     private final static TableCellRenderer DEFAULT_RENDERER = new CellRenderer();
-    private FormulaEvaluator formulaEvaluator;
 
     public CellRenderer() {
         DATA_FORMATTER.setDefaultNumberFormat(NumberFormat.getInstance());
@@ -56,8 +57,26 @@ public class CellRenderer extends DefaultTableCellRenderer {
     @Override
     public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
         //System.out.println("row " + row + "; column " + column + "; isSelected " + isSelected);
-        super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+        super.getTableCellRendererComponent(table, null, isSelected, hasFocus, row, column);
         if (!isSelected) setBackground(UIManager.getColor("Table.background"));
+        setToolTipText(null);
+        TableModel tableModel = table.getModel();
+        if (tableModel instanceof SheetTableModel) {
+            SheetTableModel sheetModel = (SheetTableModel) tableModel;
+            CellStore cellStore = sheetModel.getCellStore();
+            int modelRow = table.convertRowIndexToModel(row);
+            int modelColumn = table.convertColumnIndexToModel(column);
+            int cellType = cellStore.getCellType(modelRow, modelColumn);
+            if (cellType != CellStore.NO_CELL && cellType != Cell.CELL_TYPE_FORMULA) {
+                Workbook workbook = sheetModel.getSheet().getWorkbook();
+                CellRenderCache.RenderedCell renderedCell = sheetModel.getRenderCache().getRenderedCell(cellStore, modelRow, modelColumn, workbook);
+                decorateLabel(renderedCell);
+                if (value != null && cellStore.hasComment(modelRow, modelColumn)) {
+                    setToolTipText(((Cell) value).getCellComment().getString().getString());
+                }
+                return this;
+            }
+        }
         if (value != null) {
             JLabel defaultComponent = (JLabel) DEFAULT_RENDERER.getTableCellRendererComponent(table, null, isSelected, hasFocus, row, column);
             Cell cell = (Cell) value;
@@ -75,20 +94,57 @@ public class CellRenderer extends DefaultTableCellRenderer {
         // Text
         // String text = getFormattedText(cell);
         // XXX small bug with decimal not using the correct comma's
-        if (cell.getCellType() == Cell.CELL_TYPE_FORMULA && formulaEvaluator == null) {
-            formulaEvaluator = cell.getRow().getSheet().getWorkbook().getCreationHelper().createFormulaEvaluator();
+        int cellType = cell.getCellType();
+        String text;
+        if (cellType == Cell.CELL_TYPE_FORMULA) {
+            // The formulas are evaluated by the FormulaEngine when their precedents change, not when painted
+            cellType = cell.getCachedFormulaResultType();
+            text = getCachedFormulaText(cell);
+        } else {
+            text = DATA_FORMATTER.formatCellValue(cell);
         }
-        String text = DATA_FORMATTER.formatCellValue(cell, formulaEvaluator);
         setText(text);
 
         decorateComponent(cell, this, defaultRenderer);
+        decorateAlignment(cell.getCellStyle(), cellType, defaultRenderer);
+    }
 
-        // Alignment
-        CellStyle style = cell.getCellStyle();
+    private static String getCachedFormulaText(Cell cell) {
+        switch (cell.getCachedFormulaResultType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                CellStyle style = cell.getCellStyle();
+                return DATA_FORMATTER.formatRawCellContents(cell.getNumericCellValue(), style.getDataFormat(), style.getDataFormatString());
+            case Cell.CELL_TYPE_STRING:
+                return cell.getRichStringCellValue().getString();
+            case Cell.CELL_TYPE_BOOLEAN:
+                return cell.getBooleanCellValue() ? "TRUE" : "FALSE";
+            case Cell.CELL_TYPE_ERROR:
+                return FormulaError.forInt(cell.getErrorCellValue()).getString();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Decorates the label with a cell of the render cache.
+     * The default colors and font are the ones set on this label by DefaultTableCellRenderer.
+     */
+    private void decorateLabel(CellRenderCache.RenderedCell renderedCell) {
+        setText(renderedCell.getText());
+
+        CellRenderCache.RenderedStyle style = renderedCell.getStyle();
+        style.decorate(this, getForeground(), getBackground(), getFont());
+        int horizontalAlignment = renderedCell.getHorizontalAlignment();
+        setHorizontalAlignment(horizontalAlignment != -1 ? horizontalAlignment : SwingConstants.LEADING);
+        int verticalAlignment = style.getVerticalAlignment();
+        setVerticalAlignment(verticalAlignment != -1 ? verticalAlignment : SwingConstants.CENTER);
+    }
+
+    private void decorateAlignment(CellStyle style, int cellType, JLabel defaultRenderer) {
         short alignment = style.getAlignment();
-        if (alignment == CellStyle.ALIGN_CENTER || cell.getCellType() == Cell.CELL_TYPE_BOOLEAN) {
+        if (alignment == CellStyle.ALIGN_CENTER || cellType == Cell.CELL_TYPE_BOOLEAN) {
             setHorizontalAlignment(SwingConstants.CENTER);
-        } else if (alignment == CellStyle.ALIGN_RIGHT || cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+        } else if (alignment == CellStyle.ALIGN_RIGHT || cellType == Cell.CELL_TYPE_NUMERIC) {
             setHorizontalAlignment(SwingConstants.RIGHT);
         } else {
             setHorizontalAlignment(defaultRenderer.getHorizontalAlignment());
@@ -106,54 +162,18 @@ public class CellRenderer extends DefaultTableCellRenderer {
     }
 
     public static void decorateComponent(Cell cell, JComponent renderingComponent, JComponent defaultRenderer) {
-        CellStyle style = cell.getCellStyle();
-
-        // Background neither the index or the color works for XSSF cells
-        Color backgroundColor = CellUtils.poiToAwtColor(style.getFillBackgroundColorColor());
-        if (backgroundColor != null) {
-            renderingComponent.setBackground(backgroundColor);
-        } else {
-            renderingComponent.setBackground(defaultRenderer.getBackground());
-        }
-
-        // Font and forground
-        short fontIndex = style.getFontIndex();
-        if (fontIndex > 0) {
-            Font xlsFont = cell.getSheet().getWorkbook().getFontAt(fontIndex);
-            java.awt.Font font = java.awt.Font.decode(xlsFont.getFontName());
-            font = font.deriveFont((float) xlsFont.getFontHeightInPoints());
-            font = font.deriveFont(java.awt.Font.PLAIN);
-            if (xlsFont.getItalic()) {
-                font = font.deriveFont(java.awt.Font.ITALIC);
-            }
-            if (xlsFont.getBoldweight() == Font.BOLDWEIGHT_BOLD) {
-                font = font.deriveFont(java.awt.Font.BOLD);
-            }
-            if (xlsFont.getUnderline() > Font.U_NONE) {
-                // no underline in fonts
-            }
-            short fontColorIndex = xlsFont.getColor();
-            Color fontColor = CellUtils.shortToColor(fontColorIndex);
-            if (fontColor != null) {
-                renderingComponent.setForeground(fontColor);
-            } else {
-                renderingComponent.setForeground(defaultRenderer.getForeground());
-            }
-            renderingComponent.setFont(font);
-        } else {
-            renderingComponent.setForeground(defaultRenderer.getForeground());
-            renderingComponent.setFont(defaultRenderer.getFont());
-        }
-
-        // Borders
-        // At the moment done in renderer but should be done with a JLayer to paint over the grid
-        renderingComponent.setBorder(new CellBorder(cell));
+        decorateComponent(cell.getCellStyle(), cell.getSheet().getWorkbook(), renderingComponent, defaultRenderer);
 
         if (cell.getCellComment() != null) {
             renderingComponent.setToolTipText(cell.getCellComment().getString().getString());
         }
     }
 
+    public static void decorateComponent(CellStyle style, Workbook workbook, JComponent renderingComponent, JComponent defaultRenderer) {
+        CellRenderCache.RenderedStyle renderedStyle = new CellRenderCache.RenderedStyle(style, workbook);
+        renderedStyle.decorate(renderingComponent, defaultRenderer.getForeground(), defaultRenderer.getBackground(), defaultRenderer.getFont());
+    }
+
     // Due to https://issues.apache.org/bugzilla/show_bug.cgi?id=49940
     private void reloadTableModel() {
         SpreadsheetTopComponent currentTopComponent = OfficeTopComponent.getSelectedComponent(SpreadsheetTopComponent.class);
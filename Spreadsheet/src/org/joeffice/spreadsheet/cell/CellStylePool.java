@@ -0,0 +1,342 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.cell;
+
+import static org.apache.poi.ss.util.CellUtil.*;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+
+/**
+ * Pool of the cell styles and fonts of a workbook, so that changing the style of many cells reuses the same styles.
+ *
+ * A style is asked as a base style with changed properties, using the property names of
+ * {@link org.apache.poi.ss.util.CellUtil}. The result is remembered for the base style and the changes.
+ * As the properties don't include everything a style has (like the theme colors or the diagonal borders),
+ * a style is only reused if it comes from the same style not created by the pool and has the same properties,
+ * so a new style is only created for a new combination.
+ * The fonts are pooled the same way with the font property names of this class.
+ *
+ * The values are Short, Boolean, String for the font name or, for the fill colors of the xlsx workbooks, {@link Color}.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class CellStylePool {
+
+    public final static String FONT_NAME = "fontName";
+    public final static String FONT_HEIGHT = "fontHeight";
+    public final static String BOLDWEIGHT = "boldweight";
+    public final static String ITALIC = "italic";
+    public final static String UNDERLINE = "underline";
+    public final static String STRIKEOUT = "strikeout";
+    public final static String TYPE_OFFSET = "typeOffset";
+    public final static String FONT_COLOR = "fontColor";
+
+    private Workbook workbook;
+
+    // The style index for a base style index and changes
+    private Map<ChangeKey, Short> changedStyles = new HashMap<>();
+
+    // The index of the style created by the pool for the index of the style it comes from and its properties
+    private Map<ChangeKey, Short> createdStyles = new HashMap<>();
+
+    // The index of the style not created by the pool that each created style comes from
+    private Map<Short, Short> styleOrigins = new HashMap<>();
+
+    // The same for the fonts
+    private Map<ChangeKey, Short> changedFonts = new HashMap<>();
+    private Map<ChangeKey, Short> createdFonts = new HashMap<>();
+    private Map<Short, Short> fontOrigins = new HashMap<>();
+
+    CellStylePool(Workbook workbook) {
+        this.workbook = workbook;
+    }
+
+    /**
+     * Gets the pool of the workbook, kept by the {@link AwtStyleRegistry} of the workbook until it's released.
+     */
+    public static CellStylePool getInstance(Workbook workbook) {
+        return AwtStyleRegistry.getInstance(workbook).getCellStylePool();
+    }
+
+    /**
+     * Gets a style like the base style with the changed properties, the style is created if the pool has none.
+     */
+    public CellStyle getStyle(CellStyle baseStyle, Map<String, Object> changes) {
+        ChangeKey changeKey = new ChangeKey(baseStyle.getIndex(), changes);
+        Short styleIndex = changedStyles.get(changeKey);
+        if (styleIndex != null) {
+            return workbook.getCellStyleAt(styleIndex);
+        }
+        Map<String, Object> baseProperties = getProperties(baseStyle);
+        Map<String, Object> properties = getChangedProperties(baseProperties, changes);
+        short originIndex = getOrigin(styleOrigins, baseStyle.getIndex());
+        CellStyle style = baseProperties.equals(properties) ? baseStyle : findStyle(originIndex, properties);
+        if (style == null) {
+            style = workbook.createCellStyle();
+            style.cloneStyleFrom(baseStyle);
+            setProperties(style, changes);
+            styleOrigins.put(style.getIndex(), originIndex);
+            createdStyles.put(new ChangeKey(originIndex, properties), style.getIndex());
+        }
+        changedStyles.put(new ChangeKey(baseStyle.getIndex(), new HashMap<>(changes)), style.getIndex());
+        return style;
+    }
+
+    private static Map<String, Object> getChangedProperties(Map<String, Object> baseProperties, Map<String, Object> changes) {
+        Map<String, Object> properties = new HashMap<>(baseProperties);
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            Object value = change.getValue();
+            properties.put(change.getKey(), value instanceof Number ? (Object) ((Number) value).shortValue() : value);
+        }
+        return properties;
+    }
+
+    private static short getOrigin(Map<Short, Short> origins, short index) {
+        Short originIndex = origins.get(index);
+        return originIndex != null ? originIndex : index;
+    }
+
+    /**
+     * Finds the style with the properties coming from the same style, this style included.
+     */
+    private CellStyle findStyle(short originIndex, Map<String, Object> properties) {
+        CellStyle originStyle = workbook.getCellStyleAt(originIndex);
+        if (getProperties(originStyle).equals(properties)) {
+            return originStyle;
+        }
+        ChangeKey styleKey = new ChangeKey(originIndex, properties);
+        Short styleIndex = createdStyles.get(styleKey);
+        if (styleIndex == null) {
+            return null;
+        }
+        CellStyle style = workbook.getCellStyleAt(styleIndex);
+        if (!getProperties(style).equals(properties)) {
+            // The style has been modified since it was created
+            createdStyles.remove(styleKey);
+            return null;
+        }
+        return style;
+    }
+
+    private static Map<String, Object> getProperties(CellStyle style) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(ALIGNMENT, style.getAlignment());
+        properties.put(BORDER_BOTTOM, style.getBorderBottom());
+        properties.put(BORDER_LEFT, style.getBorderLeft());
+        properties.put(BORDER_RIGHT, style.getBorderRight());
+        properties.put(BORDER_TOP, style.getBorderTop());
+        properties.put(BOTTOM_BORDER_COLOR, style.getBottomBorderColor());
+        properties.put(DATA_FORMAT, style.getDataFormat());
+        properties.put(FILL_PATTERN, style.getFillPattern());
+        properties.put(FONT, style.getFontIndex());
+        properties.put(HIDDEN, style.getHidden());
+        properties.put(INDENTION, style.getIndention());
+        properties.put(LEFT_BORDER_COLOR, style.getLeftBorderColor());
+        properties.put(LOCKED, style.getLocked());
+        properties.put(RIGHT_BORDER_COLOR, style.getRightBorderColor());
+        properties.put(ROTATION, style.getRotation());
+        properties.put(TOP_BORDER_COLOR, style.getTopBorderColor());
+        properties.put(VERTICAL_ALIGNMENT, style.getVerticalAlignment());
+        properties.put(WRAP_TEXT, style.getWrapText());
+        if (style instanceof XSSFCellStyle) {
+            properties.put(FILL_BACKGROUND_COLOR, getFillColor(((XSSFCellStyle) style).getFillBackgroundXSSFColor(), style.getFillBackgroundColor()));
+            properties.put(FILL_FOREGROUND_COLOR, getFillColor(((XSSFCellStyle) style).getFillForegroundXSSFColor(), style.getFillForegroundColor()));
+        } else {
+            properties.put(FILL_BACKGROUND_COLOR, style.getFillBackgroundColor());
+            properties.put(FILL_FOREGROUND_COLOR, style.getFillForegroundColor());
+        }
+        return properties;
+    }
+
+    private static Object getFillColor(XSSFColor color, short colorIndex) {
+        Color rgbColor = color == null || color.getRgb() == null ? null : AwtStyleRegistry.getColor(color);
+        return rgbColor != null ? rgbColor : (Object) colorIndex;
+    }
+
+    private void setProperties(CellStyle style, Map<String, Object> properties) {
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            String name = property.getKey();
+            Object value = property.getValue();
+            if (value instanceof Boolean) {
+                boolean booleanValue = (Boolean) value;
+                switch (name) {
+                    case HIDDEN: style.setHidden(booleanValue); break;
+                    case LOCKED: style.setLocked(booleanValue); break;
+                    case WRAP_TEXT: style.setWrapText(booleanValue); break;
+                }
+            } else if (value instanceof Color) {
+                XSSFColor color = new XSSFColor((Color) value);
+                if (name.equals(FILL_BACKGROUND_COLOR)) {
+                    ((XSSFCellStyle) style).setFillBackgroundColor(color);
+                } else if (name.equals(FILL_FOREGROUND_COLOR)) {
+                    ((XSSFCellStyle) style).setFillForegroundColor(color);
+                }
+            } else {
+                short shortValue = ((Number) value).shortValue();
+                switch (name) {
+                    case ALIGNMENT: style.setAlignment(shortValue); break;
+                    case BORDER_BOTTOM: style.setBorderBottom(shortValue); break;
+                    case BORDER_LEFT: style.setBorderLeft(shortValue); break;
+                    case BORDER_RIGHT: style.setBorderRight(shortValue); break;
+                    case BORDER_TOP: style.setBorderTop(shortValue); break;
+                    case BOTTOM_BORDER_COLOR: style.setBottomBorderColor(shortValue); break;
+                    case DATA_FORMAT: style.setDataFormat(shortValue); break;
+                    case FILL_BACKGROUND_COLOR: style.setFillBackgroundColor(shortValue); break;
+                    case FILL_FOREGROUND_COLOR: style.setFillForegroundColor(shortValue); break;
+                    case FILL_PATTERN: style.setFillPattern(shortValue); break;
+                    case FONT: style.setFont(workbook.getFontAt(shortValue)); break;
+                    case INDENTION: style.setIndention(shortValue); break;
+                    case LEFT_BORDER_COLOR: style.setLeftBorderColor(shortValue); break;
+                    case RIGHT_BORDER_COLOR: style.setRightBorderColor(shortValue); break;
+                    case ROTATION: style.setRotation(shortValue); break;
+                    case TOP_BORDER_COLOR: style.setTopBorderColor(shortValue); break;
+                    case VERTICAL_ALIGNMENT: style.setVerticalAlignment(shortValue); break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a font like the base font with the changed properties, the font is created if the pool has none.
+     */
+    public Font getFont(Font baseFont, Map<String, Object> changes) {
+        ChangeKey changeKey = new ChangeKey(baseFont.getIndex(), changes);
+        Short fontIndex = changedFonts.get(changeKey);
+        if (fontIndex != null) {
+            return workbook.getFontAt(fontIndex);
+        }
+        Map<String, Object> baseProperties = getFontProperties(baseFont);
+        Map<String, Object> properties = getChangedProperties(baseProperties, changes);
+        short originIndex = getOrigin(fontOrigins, baseFont.getIndex());
+        Font font = baseProperties.equals(properties) ? baseFont : findFont(originIndex, properties);
+        if (font == null) {
+            font = workbook.createFont();
+            copyFont(baseFont, font);
+            setFontProperties(font, changes);
+            fontOrigins.put(font.getIndex(), originIndex);
+            createdFonts.put(new ChangeKey(originIndex, properties), font.getIndex());
+        }
+        changedFonts.put(new ChangeKey(baseFont.getIndex(), new HashMap<>(changes)), font.getIndex());
+        return font;
+    }
+
+    /**
+     * Finds the font with the properties coming from the same font, this font included.
+     */
+    private Font findFont(short originIndex, Map<String, Object> properties) {
+        Font originFont = workbook.getFontAt(originIndex);
+        if (getFontProperties(originFont).equals(properties)) {
+            return originFont;
+        }
+        ChangeKey fontKey = new ChangeKey(originIndex, properties);
+        Short fontIndex = createdFonts.get(fontKey);
+        if (fontIndex == null) {
+            return null;
+        }
+        Font font = workbook.getFontAt(fontIndex);
+        if (!getFontProperties(font).equals(properties)) {
+            // The font has been modified since it was created
+            createdFonts.remove(fontKey);
+            return null;
+        }
+        return font;
+    }
+
+    private static Map<String, Object> getFontProperties(Font font) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(FONT_NAME, font.getFontName());
+        properties.put(FONT_HEIGHT, font.getFontHeight());
+        properties.put(BOLDWEIGHT, font.getBoldweight());
+        properties.put(ITALIC, font.getItalic());
+        properties.put(UNDERLINE, (short) font.getUnderline());
+        properties.put(STRIKEOUT, font.getStrikeout());
+        properties.put(TYPE_OFFSET, font.getTypeOffset());
+        properties.put(FONT_COLOR, font.getColor());
+        return properties;
+    }
+
+    /**
+     * Copies all the attributes of the font, including the ones without property like the theme color of the xlsx fonts.
+     */
+    private static void copyFont(Font font, Font copy) {
+        if (font instanceof XSSFFont && copy instanceof XSSFFont) {
+            ((XSSFFont) copy).getCTFont().set(((XSSFFont) font).getCTFont());
+        } else {
+            copy.setFontName(font.getFontName());
+            copy.setFontHeight(font.getFontHeight());
+            copy.setBoldweight(font.getBoldweight());
+            copy.setItalic(font.getItalic());
+            copy.setUnderline(font.getUnderline());
+            copy.setStrikeout(font.getStrikeout());
+            copy.setTypeOffset(font.getTypeOffset());
+            copy.setColor(font.getColor());
+            copy.setCharSet(font.getCharSet());
+        }
+    }
+
+    private static void setFontProperties(Font font, Map<String, Object> properties) {
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            Object value = property.getValue();
+            switch (property.getKey()) {
+                case FONT_NAME: font.setFontName((String) value); break;
+                case FONT_HEIGHT: font.setFontHeight(((Number) value).shortValue()); break;
+                case BOLDWEIGHT: font.setBoldweight(((Number) value).shortValue()); break;
+                case ITALIC: font.setItalic((Boolean) value); break;
+                case UNDERLINE: font.setUnderline(((Number) value).byteValue()); break;
+                case STRIKEOUT: font.setStrikeout((Boolean) value); break;
+                case TYPE_OFFSET: font.setTypeOffset(((Number) value).shortValue()); break;
+                case FONT_COLOR: font.setColor(((Number) value).shortValue()); break;
+            }
+        }
+    }
+
+    /**
+     * The changes or the properties of a style or font.
+     */
+    private static class ChangeKey {
+
+        private short baseIndex;
+        private Map<String, Object> changes;
+
+        private ChangeKey(short baseIndex, Map<String, Object> changes) {
+            this.baseIndex = baseIndex;
+            this.changes = changes;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ChangeKey)) {
+                return false;
+            }
+            ChangeKey otherKey = (ChangeKey) other;
+            return baseIndex == otherKey.baseIndex && changes.equals(otherKey.changes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * baseIndex + changes.hashCode();
+        }
+    }
+}
@@ -19,19 +19,26 @@ import java.awt.Color;
 import java.text.AttributedCharacterIterator;
 import java.text.DateFormat;
 import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import javax.swing.JTable;
 import javax.swing.table.AbstractTableModel;
-import org.apache.poi.hssf.util.HSSFColor;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellUtil;
 import org.joeffice.desktop.ui.OfficeTopComponent;
+import org.joeffice.spreadsheet.SheetTable;
 import org.joeffice.spreadsheet.SpreadsheetTopComponent;
+import org.joeffice.spreadsheet.sheet.CellStore;
 import org.joeffice.spreadsheet.sheet.SheetTableModel;
 
 /**
@@ -43,6 +50,8 @@ public class CellUtils {
 
     private final static NumberFormat NUMBER_FORMATTER = DecimalFormat.getInstance();
     private final static DateFormat DATE_FORMATTER = DateFormat.getDateInstance();
+    private final static Map<String, Object> DATE_FORMAT_CHANGE =
+            Collections.<String, Object>singletonMap(CellUtil.DATA_FORMAT, ValueParser.DATE_FORMAT);
     private final static DateFormat TIME_FORMATTER = DateFormat.getTimeInstance();
     private final static NumberFormat CURRENCY_FORMATTER = DecimalFormat.getCurrencyInstance();
 
@@ -50,31 +59,14 @@ public class CellUtils {
      * Converts a POI color to an AWT color.
      */
     public static Color shortToColor(short xlsColorIndex) {
-        if (xlsColorIndex > 0) {
-            HSSFColor xlsColor = HSSFColor.getIndexHash().get(new Integer(xlsColorIndex));
-            if (xlsColor != null) {
-                short[] rgb = xlsColor.getTriplet();
-                return new Color(rgb[0], rgb[1], rgb[2]);
-                //return Color.decode(xlsColor.getHexString());
-            }
-        }
-        return null;
+        return AwtStyleRegistry.getColor(xlsColorIndex);
     }
 
     /**
      * Converts a POI color to an AWT color.
      */
     public static Color poiToAwtColor(org.apache.poi.ss.usermodel.Color poiColor) {
-        if (poiColor instanceof XSSFColor) {
-            byte[] rgb = ((XSSFColor) poiColor).getARgb();
-            if (rgb != null) {
-                return new Color(rgb[0], rgb[1], rgb[2]);
-            }
-        } else if (poiColor instanceof HSSFColor && !(poiColor instanceof HSSFColor.AUTOMATIC)) {
-            short[] rgb = ((HSSFColor) poiColor).getTriplet();
-            return new Color(rgb[0], rgb[1], rgb[2]);
-        }
-        return null;
+        return AwtStyleRegistry.getColor(poiColor);
     }
 
     /**
@@ -176,38 +168,63 @@ public class CellUtils {
         }
     }
 
+    /**
+     * Gets the selected columns in the given rows without the empty columns at the left and right.
+     */
     public static int[] getSelectedColumns(JTable table, int[] rows) {
-        int firstWithValue = Integer.MAX_VALUE;
-        int lastWithValue = 0;
         Set<Integer> selectedColumns = new TreeSet<>();
-        for (int row : rows) {
-            for (int i = 0; i < table.getColumnCount(); i++) {
-                if (table.isCellSelected(row, i)) {
-                    selectedColumns.add(i);
-                    String cellText = getFormattedText((Cell) table.getValueAt(row, i));
-                    if (!cellText.equals("") && i < firstWithValue) {
-                        firstWithValue = i;
-                    }
-                    if (!cellText.equals("") && i > lastWithValue) {
-                        lastWithValue = i;
+        List<CellRangeAddress> ranges = getSelectedRanges(table);
+        for (CellRangeAddress range : ranges) {
+            for (int row : rows) {
+                if (row >= range.getFirstRow() && row <= range.getLastRow()) {
+                    for (int column = range.getFirstColumn(); column <= range.getLastColumn(); column++) {
+                        selectedColumns.add(column);
                     }
+                    break;
                 }
             }
         }
-        Set<Integer> outOfBoundColumns = new TreeSet<>();
-        for (int column : selectedColumns) {
-            if (column < firstWithValue || column > lastWithValue) {
-                outOfBoundColumns.add(column);
+        CellStore cellStore = ((SheetTableModel) table.getModel()).getCellStore();
+        int firstWithValue = Integer.MAX_VALUE;
+        int lastWithValue = -1;
+        for (int row : rows) {
+            for (int column : selectedColumns) {
+                if ((column < firstWithValue || column > lastWithValue) && cellStore.hasCell(row, column)) {
+                    firstWithValue = Math.min(firstWithValue, column);
+                    lastWithValue = Math.max(lastWithValue, column);
+                }
             }
         }
-        selectedColumns.removeAll(outOfBoundColumns);
         int[] selected = new int[selectedColumns.size()];
         int index = 0;
         for (int selectedColumn : selectedColumns) {
-            selected[index] = selectedColumn;
-            index++;
+            if (selectedColumn >= firstWithValue && selectedColumn <= lastWithValue) {
+                selected[index] = selectedColumn;
+                index++;
+            }
         }
-        return selected;
+        return Arrays.copyOf(selected, index);
+    }
+
+    /**
+     * Gets the selected ranges of the table limited to the rows and columns of the table.
+     */
+    public static List<CellRangeAddress> getSelectedRanges(JTable table) {
+        List<CellRangeAddress> tableRanges = new ArrayList<>();
+        int lastRow = table.getRowCount() - 1;
+        int lastColumn = table.getColumnCount() - 1;
+        if (table instanceof SheetTable) {
+            for (CellRangeAddress range : ((SheetTable) table).getSelectedRanges()) {
+                if (range.getFirstRow() <= lastRow && range.getFirstColumn() <= lastColumn) {
+                    tableRanges.add(new CellRangeAddress(range.getFirstRow(), Math.min(range.getLastRow(), lastRow),
+                            range.getFirstColumn(), Math.min(range.getLastColumn(), lastColumn)));
+                }
+            }
+        } else if (table.getSelectedRow() >= 0 && table.getSelectedColumn() >= 0) {
+            tableRanges.add(new CellRangeAddress(table.getSelectedRow(), table.getSelectionModel().getMaxSelectionIndex(),
+                    table.getSelectedColumn(), table.getColumnModel().getSelectionModel().getMaxSelectionIndex()));
+        }
+        return tableRanges;
     }
 
     public static List<Cell> getSelectedCells() {
@@ -224,26 +241,27 @@ public class CellUtils {
         return getSelectedCells(table, false);
     }
 
+    /**
+     * Gets the selected cells, only the existing cells are visited unless they should be created.
+     */
     public static List<Cell> getSelectedCells(JTable table, boolean createIfAbsent) {
         List<Cell> cells = new ArrayList<>();
         Sheet sheet = ((SheetTableModel) table.getModel()).getSheet();
-        int rowIndexStart = table.getSelectedRow();
-        if (rowIndexStart < 0) {
-            return cells;
-        }
-        int rowIndexEnd = table.getSelectionModel().getMaxSelectionIndex();
-        int[] selectedColumns = CellUtils.getSelectedColumns(table, table.getSelectedRows());
-        if (selectedColumns.length == 0 || selectedColumns[0] < 0) {
-            return cells;
-        }
-        int colIndexStart = selectedColumns[0];
-        int colIndexEnd = selectedColumns[selectedColumns.length - 1];
-
-        // Go through all the selected cells and all the attributes
-        for (int i = rowIndexStart; i <= rowIndexEnd; i++) {
-            for (int j = colIndexStart; j <= colIndexEnd; j++) {
-                if (table.isCellSelected(i, j)) {
-                    Cell cell = getCell(createIfAbsent, sheet, i, j);
+        List<CellRangeAddress> ranges = getSelectedRanges(table);
+        for (int i = 0; i < ranges.size(); i++) {
+            CellRangeAddress range = ranges.get(i);
+            int lastRow = createIfAbsent ? range.getLastRow() : Math.min(range.getLastRow(), sheet.getLastRowNum());
+            for (int rowIndex = range.getFirstRow(); rowIndex <= lastRow; rowIndex++) {
+                Row row = sheet.getRow(rowIndex);
+                if (row == null && !createIfAbsent) {
+                    continue;
+                }
+                int lastColumn = createIfAbsent ? range.getLastColumn() : Math.min(range.getLastColumn(), row.getLastCellNum() - 1);
+                for (int columnIndex = range.getFirstColumn(); columnIndex <= lastColumn; columnIndex++) {
+                    if (isInRanges(ranges, i, rowIndex, columnIndex)) {
+                        continue;
+                    }
+                    Cell cell = createIfAbsent ? getCell(true, sheet, rowIndex, columnIndex) : row.getCell(columnIndex);
                     if (cell != null) {
                         cells.add(cell);
                     }
@@ -252,4 +270,429 @@ public class CellUtils {
         }
         return cells;
     }
+
+    /**
+     * Whether the cell is in one of the first ranges of the list.
+     */
+    private static boolean isInRanges(List<CellRangeAddress> ranges, int rangeCount, int rowIndex, int columnIndex) {
+        for (int i = 0; i < rangeCount; i++) {
+            if (ranges.get(i).isInRange(rowIndex, columnIndex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the value of the cell from the text entered or pasted.
+     * The text is set as a number, a boolean or a date (with a date format) if it's one, otherwise as a text.
+     */
+    public static void setCellValue(Cell cell, String text, ValueParser valueParser) {
+        int type = valueParser.parse(text);
+        if (type == Cell.CELL_TYPE_NUMERIC) {
+            cell.setCellValue(valueParser.getNumber());
+            if (valueParser.isDate() && !DateUtil.isCellDateFormatted(cell)) {
+                cell.setCellStyle(getDateStyle(cell.getSheet().getWorkbook(), cell.getCellStyle()));
+            }
+        } else if (type == Cell.CELL_TYPE_BOOLEAN) {
+            cell.setCellValue(valueParser.getBoolean());
+        } else {
+            cell.setCellValue(text);
+        }
+    }
+
+    /**
+     * Gets a style like the given style but with the default date format, the style is created if not found.
+     */
+    public static CellStyle getDateStyle(Workbook workbook, CellStyle style) {
+        return CellStylePool.getInstance(workbook).getStyle(style, DATE_FORMAT_CHANGE);
+    }
+
+    /**
+     * Parser of the texts entered or imported in cells.
+     *
+     * The text is classified as number, boolean, date or text in one pass and the numbers are parsed
+     * without creating objects or throwing exceptions. The decimal and grouping separators of the locale are used,
+     * the dot is also accepted as decimal separator when it's not the grouping separator.
+     * A parser is not thread safe, use one parser per thread.
+     */
+    public static class ValueParser {
+
+        /**
+         * The built-in date format (m/d/yy) used for the dates entered.
+         */
+        public final static short DATE_FORMAT = 0xe;
+
+        private final static double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+        private final static long MAX_EXACT_MANTISSA = 1L << 53;
+        private final static long MAX_MANTISSA = (Long.MAX_VALUE - 9) / 10;
+
+        // Days between 1970-01-01 and the Excel day 0 (1899-12-30)
+        private final static int EXCEL_EPOCH_DAYS = 25569;
+        private final static int DAY_ORDER = 0;
+        private final static int MONTH_ORDER = 1;
+        private final static int YEAR_ORDER = 2;
+
+        private char decimalSeparator;
+        private char groupingSeparator;
+        private boolean spaceGrouping;
+        private boolean dotDecimalSeparator;
+        private int[] dateFieldsOrder;
+
+        private double number;
+        private boolean booleanValue;
+        private boolean date;
+        private int[] dateFields = new int[3];
+
+        public ValueParser() {
+            this(Locale.getDefault());
+        }
+
+        public ValueParser(Locale locale) {
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+            decimalSeparator = symbols.getDecimalSeparator();
+            groupingSeparator = symbols.getGroupingSeparator();
+            spaceGrouping = Character.isSpaceChar(groupingSeparator);
+            dotDecimalSeparator = decimalSeparator != '.' && groupingSeparator != '.';
+            dateFieldsOrder = getDateFieldsOrder(locale);
+        }
+
+        /**
+         * Gets the order of the day, month and year fields from the short date pattern of the locale.
+         */
+        private static int[] getDateFieldsOrder(Locale locale) {
+            DateFormat shortDateFormat = DateFormat.getDateInstance(DateFormat.SHORT, locale);
+            if (shortDateFormat instanceof SimpleDateFormat) {
+                String pattern = ((SimpleDateFormat) shortDateFormat).toPattern();
+                int dayIndex = pattern.indexOf('d');
+                int monthIndex = pattern.indexOf('M');
+                int yearIndex = pattern.indexOf('y');
+                if (dayIndex >= 0 && monthIndex >= 0 && yearIndex >= 0) {
+                    int[] fieldsOrder = new int[3];
+                    fieldsOrder[(dayIndex > monthIndex ? 1 : 0) + (dayIndex > yearIndex ? 1 : 0)] = DAY_ORDER;
+                    fieldsOrder[(monthIndex > dayIndex ? 1 : 0) + (monthIndex > yearIndex ? 1 : 0)] = MONTH_ORDER;
+                    fieldsOrder[(yearIndex > dayIndex ? 1 : 0) + (yearIndex > monthIndex ? 1 : 0)] = YEAR_ORDER;
+                    return fieldsOrder;
+                }
+            }
+            return new int[]{MONTH_ORDER, DAY_ORDER, YEAR_ORDER};
+        }
+
+        /**
+         * Parses the text.
+         *
+         * @return Cell.CELL_TYPE_NUMERIC for numbers and dates, Cell.CELL_TYPE_BOOLEAN or Cell.CELL_TYPE_STRING
+         */
+        public int parse(CharSequence text) {
+            date = false;
+            int start = 0;
+            int end = text.length();
+            while (start < end && text.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && text.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            if (start == end) {
+                return Cell.CELL_TYPE_STRING;
+            }
+            char firstChar = text.charAt(start);
+            if (firstChar >= '0' && firstChar <= '9') {
+                if (parseNumber(text, start, end)) {
+                    return Cell.CELL_TYPE_NUMERIC;
+                }
+                if (parseDate(text, start, end)) {
+                    date = true;
+                    return Cell.CELL_TYPE_NUMERIC;
+                }
+            } else if (firstChar == '-' || firstChar == '+' || firstChar == '.' || firstChar == decimalSeparator) {
+                if (parseNumber(text, start, end)) {
+                    return Cell.CELL_TYPE_NUMERIC;
+                }
+            } else if (firstChar == 't' || firstChar == 'T') {
+                if (equalsIgnoreCase(text, start, end, "true")) {
+                    booleanValue = true;
+                    return Cell.CELL_TYPE_BOOLEAN;
+                }
+            } else if (firstChar == 'f' || firstChar == 'F') {
+                if (equalsIgnoreCase(text, start, end, "false")) {
+                    booleanValue = false;
+                    return Cell.CELL_TYPE_BOOLEAN;
+                }
+            }
+            return Cell.CELL_TYPE_STRING;
+        }
+
+        /**
+         * Gets the number parsed, for the dates it's the Excel date value.
+         */
+        public double getNumber() {
+            return number;
+        }
+
+        public boolean getBoolean() {
+            return booleanValue;
+        }
+
+        /**
+         * Whether the number parsed is a date.
+         */
+        public boolean isDate() {
+            return date;
+        }
+
+        private static boolean equalsIgnoreCase(CharSequence text, int start, int end, String lowerCaseText) {
+            if (end - start != lowerCaseText.length()) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (Character.toLowerCase(text.charAt(i)) != lowerCaseText.charAt(i - start)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Parses [sign] digits [grouping separators every 3 digits] [decimal separator digits] [exponent] [%].
+         */
+        private boolean parseNumber(CharSequence text, int start, int end) {
+            int i = start;
+            boolean negative = false;
+            char c = text.charAt(i);
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int exponent = 0;
+            boolean hasDigits = false;
+            boolean truncated = false;
+            int integerDigits = 0;
+            int groupDigits = -1;
+            for (; i < end; i++) {
+                c = text.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    if (mantissa < MAX_MANTISSA) {
+                        mantissa = mantissa * 10 + (c - '0');
+                    } else {
+                        exponent++;
+                        truncated = true;
+                    }
+                    hasDigits = true;
+                    integerDigits++;
+                    if (groupDigits >= 0) {
+                        groupDigits++;
+                    }
+                } else if (c == groupingSeparator || (spaceGrouping && c == ' ')) {
+                    if (groupDigits == -1 ? integerDigits == 0 || integerDigits > 3 : groupDigits != 3) {
+                        return false;
+                    }
+                    groupDigits = 0;
+                } else {
+                    break;
+                }
+            }
+            if (groupDigits != -1 && groupDigits != 3) {
+                return false;
+            }
+            if (i < end && (c == decimalSeparator || (dotDecimalSeparator && c == '.'))) {
+                for (i++; i < end; i++) {
+                    c = text.charAt(i);
+                    if (c < '0' || c > '9') {
+                        break;
+                    }
+                    if (mantissa < MAX_MANTISSA) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        exponent--;
+                    } else {
+                        truncated = true;
+                    }
+                    hasDigits = true;
+                }
+            }
+            if (!hasDigits) {
+                return false;
+            }
+            if (i < end && (c == 'e' || c == 'E')) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+                    negativeExponent = text.charAt(i) == '-';
+                    i++;
+                }
+                int exponentStart = i;
+                int writtenExponent = 0;
+                for (; i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++) {
+                    writtenExponent = Math.min(writtenExponent * 10 + (text.charAt(i) - '0'), 100000);
+                }
+                if (i == exponentStart) {
+                    return false;
+                }
+                exponent += negativeExponent ? -writtenExponent : writtenExponent;
+            }
+            boolean percent = i < end && text.charAt(i) == '%';
+            if (percent) {
+                i++;
+                exponent -= 2;
+            }
+            if (i != end) {
+                return false;
+            }
+            if (!truncated && mantissa < MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+                number = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            } else {
+                number = parseValidNumber(text, start, end, percent);
+                // The numbers out of the double range like 1e400 are kept as text
+                if (Double.isInfinite(number)) {
+                    return false;
+                }
+            }
+            if (negative && number != 0) {
+                number = -number;
+            }
+            return true;
+        }
+
+        /**
+         * Parses a valid number that cannot be computed exactly from a long mantissa.
+         * The result is infinite if the number is too big for a double.
+         */
+        private double parseValidNumber(CharSequence text, int start, int end, boolean percent) {
+            StringBuilder javaNumber = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if ((c >= '0' && c <= '9') || c == 'e' || c == 'E' || (c == '-' && i > start)) {
+                    javaNumber.append(c);
+                } else if (c == decimalSeparator || (dotDecimalSeparator && c == '.')) {
+                    javaNumber.append('.');
+                }
+            }
+            double value = Double.parseDouble(javaNumber.toString());
+            return percent ? value / 100 : value;
+        }
+
+        /**
+         * Parses a date of 3 numeric fields with the same separator in the order of the locale, optionally followed
+         * by a time (hh:mm or hh:mm:ss).
+         * A date starting with a 4 digits year is parsed as year, month, day.
+         */
+        private boolean parseDate(CharSequence text, int start, int end) {
+            int i = start;
+            char separator = 0;
+            int firstFieldDigits = 0;
+            for (int field = 0; field < 3; field++) {
+                int fieldStart = i;
+                int value = 0;
+                for (; i < end && i - fieldStart < 4 && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++) {
+                    value = value * 10 + (text.charAt(i) - '0');
+                }
+                if (i == fieldStart) {
+                    return false;
+                }
+                if (field == 0) {
+                    firstFieldDigits = i - fieldStart;
+                }
+                dateFields[field] = value;
+                if (field < 2) {
+                    if (i == end) {
+                        return false;
+                    }
+                    char c = text.charAt(i);
+                    if (field == 0 && (c == '/' || c == '-' || c == '.')) {
+                        separator = c;
+                    } else if (c != separator) {
+                        return false;
+                    }
+                    i++;
+                }
+            }
+            int year;
+            int month;
+            int day;
+            if (firstFieldDigits == 4) {
+                year = dateFields[0];
+                month = dateFields[1];
+                day = dateFields[2];
+            } else {
+                year = dateFields[indexOf(dateFieldsOrder, YEAR_ORDER)];
+                month = dateFields[indexOf(dateFieldsOrder, MONTH_ORDER)];
+                day = dateFields[indexOf(dateFieldsOrder, DAY_ORDER)];
+                if (year < 100) {
+                    year += year < 30 ? 2000 : 1900;
+                }
+            }
+            if (year < 1900 || year > 9999 || month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month)) {
+                return false;
+            }
+            double secondsInDay = 0;
+            if (i < end) {
+                if (text.charAt(i) != ' ' && text.charAt(i) != 'T') {
+                    return false;
+                }
+                int timeStart = ++i;
+                int[] time = dateFields;
+                int fieldCount = 0;
+                while (fieldCount < 3) {
+                    int fieldStart = i;
+                    int value = 0;
+                    for (; i < end && i - fieldStart < 2 && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++) {
+                        value = value * 10 + (text.charAt(i) - '0');
+                    }
+                    if (i == fieldStart) {
+                        return false;
+                    }
+                    time[fieldCount++] = value;
+                    if (i == end || text.charAt(i) != ':') {
+                        break;
+                    }
+                    i++;
+                }
+                if (i != end || fieldCount < 2 || i == timeStart || time[0] > 23 || time[1] > 59
+                        || (fieldCount == 3 && time[2] > 59)) {
+                    return false;
+                }
+                secondsInDay = time[0] * 3600 + time[1] * 60 + (fieldCount == 3 ? time[2] : 0);
+            }
+            int excelDay = getDaysSinceEpoch(year, month, day) + EXCEL_EPOCH_DAYS;
+            if (excelDay < 61) {
+                // Excel considers that 1900 is a leap year
+                excelDay--;
+            }
+            number = excelDay + secondsInDay / 86400;
+            return true;
+        }
+
+        private static int indexOf(int[] values, int value) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == value) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int getDaysInMonth(int year, int month) {
+            if (month == 2) {
+                boolean leapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leapYear ? 29 : 28;
+            }
+            return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+        }
+
+        /**
+         * Gets the number of days since 1970-01-01 of a date of the Gregorian calendar.
+         */
+        private static int getDaysSinceEpoch(int year, int month, int day) {
+            int marchYear = month <= 2 ? year - 1 : year;
+            int era = marchYear / 400;
+            int yearOfEra = marchYear - era * 400;
+            int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+            int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+    }
 }
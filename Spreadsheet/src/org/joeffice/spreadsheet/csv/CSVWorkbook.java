@@ -17,23 +17,75 @@ package org.joeffice.spreadsheet.csv;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.joeffice.spreadsheet.sheet.CellStore;
 
 /**
  * Workbook that handle csv files.
  *
+ * The parsed cells are first only in the cell stores and shown read-only, the POI cells of the sheets are only
+ * created when the cells are loaded, for example when the user wants to edit a cell or when the file is saved.
+ *
  * @author Anthony Goubard - Japplis
  */
 public class CSVWorkbook extends XSSFWorkbook {
 
     private SmartCsvReader reader;
+    private Map<Sheet, CellStore> cellStores = new HashMap<>();
+    private boolean cellsLoaded;
 
     public CSVWorkbook(SmartCsvReader reader) {
         this.reader = reader;
     }
 
+    /**
+     * Creates a sheet which cells are already parsed in the cell store.
+     */
+    public Sheet createSheet(String sheetName, CellStore cellStore) {
+        Sheet sheet = createSheet(sheetName);
+        cellStores.put(sheet, cellStore);
+        return sheet;
+    }
+
+    /**
+     * Gets whether the cells of the cell stores are also in the sheets.
+     */
+    public synchronized boolean isCellsLoaded() {
+        return cellsLoaded;
+    }
+
+    /**
+     * Creates the POI cells of the sheets from the cell stores if not already done.
+     */
+    public synchronized void loadCells() {
+        if (!cellsLoaded) {
+            for (Map.Entry<Sheet, CellStore> sheetCells : cellStores.entrySet()) {
+                sheetCells.getValue().flush(sheetCells.getKey());
+            }
+            cellsLoaded = true;
+        }
+    }
+
+    /**
+     * Gets the cell store filled when the file was parsed or null for the other sheets.
+     * Before the cells are loaded, the store is the only place where the cells are and can be shared by the table
+     * models of the sheet in read-only.
+     * Once the cells are loaded, the store is given to the first table model created for the sheet,
+     * the next ones load their own store.
+     */
+    public synchronized CellStore takeCellStore(Sheet sheet) {
+        if (!cellsLoaded) {
+            return cellStores.get(sheet);
+        }
+        return cellStores.remove(sheet);
+    }
+
     // The write method is final in XSSFWorkbook so I've change the name
     public void write2(OutputStream output) throws IOException {
+        loadCells();
         reader.write(output, this);
     }
 }
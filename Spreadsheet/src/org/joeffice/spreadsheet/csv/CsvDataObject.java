@@ -16,12 +16,17 @@
 package org.joeffice.spreadsheet.csv;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
+import org.joeffice.desktop.file.OfficeDataObject;
+import org.joeffice.desktop.ui.OfficeTopComponent;
 import org.joeffice.spreadsheet.XlsxDataObject;
 import org.openide.awt.ActionID;
 import org.openide.awt.ActionReference;
 import org.openide.awt.ActionReferences;
 import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
 import org.openide.filesystems.MIMEResolver;
 import org.openide.loaders.DataObject;
 import org.openide.loaders.DataObjectExistsException;
@@ -109,4 +114,26 @@ public class CsvDataObject extends XlsxDataObject {
     public CsvDataObject(FileObject pf, MultiFileLoader loader) throws DataObjectExistsException, IOException {
         super(pf, loader);
     }
+
+    /**
+     * Opens the large CSV files in a read-only view.
+     */
+    @Override
+    public OfficeTopComponent open(OfficeDataObject dataObject) {
+        File csvFile = FileUtil.toFile(getPrimaryFile());
+        if (csvFile != null && MappedCsvFile.isViewPreferred(csvFile)) {
+            return new CsvViewTopComponent(dataObject);
+        }
+        return super.open(dataObject);
+    }
+
+    @Override
+    public synchronized void save(File file) throws IOException {
+        if (getDocument() instanceof MappedCsvFile) {
+            // The file can't be modified in the view
+            Files.copy(((MappedCsvFile) getDocument()).getFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            super.save(file);
+        }
+    }
 }
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.csv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.joeffice.spreadsheet.cell.CellUtils;
+import org.joeffice.spreadsheet.sheet.CellStore;
+
+/**
+ * CSV parser reading the values of the file in a {@link CellStore}.
+ *
+ * The file is memory mapped and split in chunks ending at the end of a record, a new line in a quoted value
+ * doesn't end a record. The chunks are parsed in parallel and added to the cell store in the order of the file.
+ * The files with a charset where the separators could be part of a multi-bytes character (like UTF-16)
+ * and the files parsed with only one processor are parsed sequentially with a reader.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class CsvParser {
+
+    private final static int MIN_CHUNK_SIZE = 1024 * 1024;
+    private final static int MAX_CHUNK_SIZE = 32 * 1024 * 1024;
+
+    // The file is mapped by windows when looking for the chunk ends
+    private final static int SCAN_WINDOW_SIZE = 256 * 1024 * 1024;
+    private final static int SCAN_BLOCK_SIZE = 1024 * 1024;
+
+    private final static ForkJoinPool PARSER_POOL = new ForkJoinPool();
+
+    private char separator;
+    private char quote;
+    private char commentCharacter;
+    private Charset charset;
+    private int byteOrderMarkLength;
+    private Locale numbersLocale;
+
+    /**
+     * Creates a parser.
+     *
+     * @param quote the quote character or 0 if the values are not quoted
+     * @param commentCharacter the first character of the comment lines or 0 if there is no comment lines
+     * @param byteOrderMarkLength the number of bytes of the byte order mark at the beginning of the file
+     */
+    public CsvParser(char separator, char quote, char commentCharacter, Charset charset, int byteOrderMarkLength) {
+        this.separator = separator;
+        this.quote = quote;
+        this.commentCharacter = commentCharacter;
+        this.charset = charset;
+        this.byteOrderMarkLength = byteOrderMarkLength;
+        numbersLocale = getNumbersLocale(separator);
+    }
+
+    /**
+     * Gets the locale of the numbers in the file, the decimal separator can't be a comma when the values are
+     * separated by commas.
+     */
+    static Locale getNumbersLocale(char separator) {
+        return separator == ',' ? Locale.US : Locale.getDefault();
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public CellStore parse(File csvFile) throws IOException {
+        if (!isAsciiCompatible(charset) || PARSER_POOL.getParallelism() == 1) {
+            return parseSequentially(csvFile);
+        }
+        try (FileChannel csvChannel = FileChannel.open(csvFile.toPath(), StandardOpenOption.READ)) {
+            long[] chunkEnds = getChunkEnds(csvChannel);
+            List<Future<RecordsParser>> parsedChunks = new ArrayList<>(chunkEnds.length);
+            long chunkStart = byteOrderMarkLength;
+            for (long chunkEnd : chunkEnds) {
+                parsedChunks.add(PARSER_POOL.submit(new ChunkParsing(csvChannel, chunkStart, chunkEnd)));
+                chunkStart = chunkEnd;
+            }
+            CellStore cellStore = new CellStore();
+            int firstRow = 0;
+            try {
+                for (int i = 0; i < parsedChunks.size(); i++) {
+                    RecordsParser chunkParser = parsedChunks.get(i).get();
+                    parsedChunks.set(i, null);
+                    cellStore.addRows(chunkParser.cellStore, firstRow);
+                    firstRow += chunkParser.rowIndex;
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                for (Future<RecordsParser> parsedChunk : parsedChunks) {
+                    if (parsedChunk != null) {
+                        parsedChunk.cancel(true);
+                    }
+                }
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex);
+            }
+            return cellStore;
+        }
+    }
+
+    private CellStore parseSequentially(File csvFile) throws IOException {
+        try (InputStream csvInput = Files.newInputStream(csvFile.toPath())) {
+            long skippedCount = 0;
+            while (skippedCount < byteOrderMarkLength) {
+                skippedCount += csvInput.skip(byteOrderMarkLength - skippedCount);
+            }
+            Reader csvReader = new BufferedReader(new InputStreamReader(csvInput, charset));
+            RecordsParser parser = new RecordsParser(new CellStore());
+            CharBuffer buffer = CharBuffer.allocate(64 * 1024);
+            while (csvReader.read(buffer) != -1) {
+                buffer.flip();
+                parser.parse(buffer);
+                buffer.clear();
+            }
+            parser.end();
+            return parser.cellStore;
+        }
+    }
+
+    /**
+     * Gets the end (exclusive) of the chunks of the file.
+     * The file is read once to know whether each new line is in a quoted value or not.
+     */
+    private long[] getChunkEnds(FileChannel csvChannel) throws IOException {
+        long fileSize = csvChannel.size();
+        int parallelism = PARSER_POOL.getParallelism();
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, fileSize / (parallelism * 4)));
+        long[] chunkEnds = new long[16];
+        int chunkCount = 0;
+        long nextChunkEnd = byteOrderMarkLength + chunkSize;
+        RecordEndsScanner scanner = createRecordEndsScanner();
+        byte[] block = new byte[SCAN_BLOCK_SIZE];
+        for (long windowStart = 0; windowStart < fileSize && nextChunkEnd < fileSize; windowStart += SCAN_WINDOW_SIZE) {
+            long windowSize = Math.min(SCAN_WINDOW_SIZE, fileSize - windowStart);
+            MappedByteBuffer window = csvChannel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+            window.position((int) Math.max(0, byteOrderMarkLength - windowStart));
+            while (window.hasRemaining() && nextChunkEnd < fileSize) {
+                long blockStart = windowStart + window.position();
+                int blockLength = Math.min(block.length, window.remaining());
+                window.get(block, 0, blockLength);
+                int position = 0;
+                while (position < blockLength && nextChunkEnd < fileSize) {
+                    // Only the records ending after the expected chunk end are needed
+                    int recordEnd = scanner.nextRecordEnd(block, position, blockLength);
+                    if (recordEnd == -1) {
+                        break;
+                    }
+                    position = recordEnd;
+                    if (blockStart + recordEnd >= nextChunkEnd) {
+                        if (chunkCount == chunkEnds.length) {
+                            chunkEnds = Arrays.copyOf(chunkEnds, chunkCount * 2);
+                        }
+                        chunkEnds[chunkCount++] = blockStart + recordEnd;
+                        nextChunkEnd = blockStart + recordEnd + chunkSize;
+                    }
+                }
+            }
+        }
+        if (chunkCount == 0 || chunkEnds[chunkCount - 1] < fileSize) {
+            if (chunkCount == chunkEnds.length) {
+                chunkEnds = Arrays.copyOf(chunkEnds, chunkCount + 1);
+            }
+            chunkEnds[chunkCount++] = fileSize;
+        }
+        return Arrays.copyOf(chunkEnds, chunkCount);
+    }
+
+    /**
+     * Whether the separators, quotes and new lines are always one byte that can't be part of another character.
+     */
+    static boolean isAsciiCompatible(Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.ISO_8859_1)
+                || charset.equals(StandardCharsets.US_ASCII)) {
+            return true;
+        }
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1) {
+            return false;
+        }
+        String asciiText = "\t\n\r \"#',;";
+        return Arrays.equals(asciiText.getBytes(StandardCharsets.US_ASCII), asciiText.getBytes(charset));
+    }
+
+    /**
+     * Creates a scanner of the record ends of the file, the files with a charset not ASCII compatible can't be scanned.
+     */
+    RecordEndsScanner createRecordEndsScanner() {
+        return new RecordEndsScanner();
+    }
+
+    /**
+     * Parses the values of one record.
+     *
+     * @return the values of the record, null for the empty values
+     */
+    List<String> parseRecord(CharBuffer record) {
+        final List<String> values = new ArrayList<>();
+        RecordsParser recordParser = new RecordsParser(null) {
+
+            @Override
+            void valueParsed(int rowIndex, int columnIndex, String text) {
+                while (values.size() < columnIndex) {
+                    values.add(null);
+                }
+                values.add(text);
+            }
+        };
+        recordParser.parse(record);
+        recordParser.end();
+        return values;
+    }
+
+    /**
+     * Finds the end of the records in the bytes of the file with the same quoting rules as the parser.
+     * The maximum number of values of the scanned records is also counted.
+     */
+    class RecordEndsScanner {
+
+        private boolean fieldStart = true;
+        private boolean lineStart = true;
+        private boolean inQuotes;
+        private boolean quoteInQuotes;
+        private boolean inComment;
+        private int fieldCount;
+        private int maxFieldCount;
+
+        /**
+         * Gets the position after the next end of record or -1 if there isn't any before the end.
+         */
+        int nextRecordEnd(byte[] bytes, int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = (char) (bytes[i] & 0xFF);
+                if (inComment) {
+                    if (c == '\n') {
+                        inComment = false;
+                        fieldStart = true;
+                        lineStart = true;
+                    }
+                    continue;
+                }
+                if (inQuotes) {
+                    if (quoteInQuotes) {
+                        quoteInQuotes = false;
+                        if (c == quote) {
+                            continue;
+                        }
+                        inQuotes = false;
+                    } else {
+                        if (c == quote) {
+                            quoteInQuotes = true;
+                        }
+                        continue;
+                    }
+                }
+                if (c == '\n') {
+                    recordEnded();
+                    fieldStart = true;
+                    lineStart = true;
+                    return i + 1;
+                } else if (lineStart && c == commentCharacter && commentCharacter != 0) {
+                    inComment = true;
+                } else if (c == separator) {
+                    fieldStart = true;
+                    fieldCount++;
+                } else if (fieldStart && c == quote && quote != 0) {
+                    inQuotes = true;
+                    fieldStart = false;
+                } else if (c != '\r') {
+                    fieldStart = false;
+                }
+                lineStart = false;
+            }
+            return -1;
+        }
+
+        private void recordEnded() {
+            if (!lineStart) {
+                maxFieldCount = Math.max(maxFieldCount, fieldCount + 1);
+            }
+            fieldCount = 0;
+        }
+
+        /**
+         * Gets the maximum number of values of the records scanned so far, including the last record without new line.
+         */
+        int getMaxFieldCount() {
+            return lineStart || inComment ? maxFieldCount : Math.max(maxFieldCount, fieldCount + 1);
+        }
+    }
+
+    /**
+     * Parses the records of a part of the file in a cell store starting at row 0.
+     */
+    private class ChunkParsing implements Callable<RecordsParser> {
+
+        private FileChannel csvChannel;
+        private long start;
+        private long end;
+
+        private ChunkParsing(FileChannel csvChannel, long start, long end) {
+            this.csvChannel = csvChannel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public RecordsParser call() throws IOException {
+            MappedByteBuffer chunkBytes = csvChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            CharBuffer chunkChars = charset.decode(chunkBytes);
+            RecordsParser parser = new RecordsParser(new CellStore());
+            parser.parse(chunkChars);
+            parser.end();
+            return parser;
+        }
+    }
+
+    /**
+     * Parser of the characters of the records, the characters can be given in several parts.
+     *
+     * A quote starts a quoted value only at the beginning of a value, in a quoted value 2 quotes are a quote.
+     * Empty values don't create cells, empty lines create empty rows and comment lines are ignored.
+     */
+    private class RecordsParser {
+
+        private CellStore cellStore;
+        private CellUtils.ValueParser valueParser = new CellUtils.ValueParser(numbersLocale);
+        private StringBuilder value = new StringBuilder();
+        private int rowIndex;
+        private int columnIndex;
+        private boolean lineStart = true;
+        private boolean inQuotes;
+        private boolean quoteInQuotes;
+        private boolean quoted;
+        private boolean inComment;
+
+        private RecordsParser(CellStore cellStore) {
+            this.cellStore = cellStore;
+        }
+
+        /**
+         * Sets the numbers and booleans in the cell store, the dates are kept as text as CSV files have no date format.
+         */
+        void valueParsed(int rowIndex, int columnIndex, String text) {
+            int type = valueParser.parse(text);
+            if (type == Cell.CELL_TYPE_NUMERIC && !valueParser.isDate()) {
+                cellStore.setNumericValue(rowIndex, columnIndex, valueParser.getNumber());
+            } else if (type == Cell.CELL_TYPE_BOOLEAN) {
+                cellStore.setBooleanValue(rowIndex, columnIndex, valueParser.getBoolean());
+            } else {
+                cellStore.setStringValue(rowIndex, columnIndex, text);
+            }
+        }
+
+        private void parse(CharBuffer chars) {
+            int end = chars.limit();
+            for (int i = chars.position(); i < end; i++) {
+                char c = chars.get(i);
+                if (inComment) {
+                    if (c == '\n') {
+                        inComment = false;
+                        lineStart = true;
+                    }
+                    continue;
+                }
+                if (inQuotes) {
+                    if (quoteInQuotes) {
+                        quoteInQuotes = false;
+                        if (c == quote) {
+                            value.append(c);
+                            continue;
+                        }
+                        inQuotes = false;
+                    } else {
+                        if (c == quote) {
+                            quoteInQuotes = true;
+                        } else {
+                            value.append(c);
+                        }
+                        continue;
+                    }
+                }
+                if (c == '\n') {
+                    endValue();
+                    endRecord();
+                    continue;
+                } else if (lineStart && c == commentCharacter && commentCharacter != 0) {
+                    inComment = true;
+                } else if (c == separator) {
+                    endValue();
+                } else if (c == quote && quote != 0 && value.length() == 0 && !quoted) {
+                    inQuotes = true;
+                    quoted = true;
+                } else if (c != '\r') {
+                    value.append(c);
+                }
+                lineStart = false;
+            }
+            chars.position(end);
+        }
+
+        /**
+         * Parses the last record if it doesn't end with a new line.
+         */
+        private void end() {
+            if (!lineStart && !inComment) {
+                endValue();
+                endRecord();
+            }
+        }
+
+        private void endValue() {
+            if (value.length() > 0) {
+                valueParsed(rowIndex, columnIndex, value.toString());
+                value.setLength(0);
+            }
+            columnIndex++;
+            quoted = false;
+        }
+
+        private void endRecord() {
+            rowIndex++;
+            columnIndex = 0;
+            lineStart = true;
+        }
+    }
+}
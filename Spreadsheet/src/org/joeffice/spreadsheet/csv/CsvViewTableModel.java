@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.csv;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Read-only table model of the lines of a memory mapped CSV file.
+ *
+ * Only the displayed lines are parsed, the last parsed lines are kept in a small cache.
+ * The columns are added once when the whole file is indexed.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class CsvViewTableModel extends AbstractTableModel {
+
+    private final static int ROW_CACHE_SIZE = 512;
+    private final static int MIN_COLUMN_COUNT = 26;
+
+    private MappedCsvFile csvFile;
+    private int rowCount;
+    private int columnCount;
+
+    private Map<Integer, List<String>> parsedRows = new LinkedHashMap<Integer, List<String>>(ROW_CACHE_SIZE, 0.75F, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<String>> eldest) {
+            return size() > ROW_CACHE_SIZE;
+        }
+    };
+
+    public CsvViewTableModel(MappedCsvFile csvFile) {
+        this.csvFile = csvFile;
+        rowCount = csvFile.getLineCount();
+        columnCount = Math.max(MIN_COLUMN_COUNT, csvFile.getColumnCount());
+        if (rowCount > 0) {
+            columnCount = Math.max(columnCount, getRowValues(0).size());
+        }
+        csvFile.addPropertyChangeListener(new PropertyChangeListener() {
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (evt.getPropertyName().equals(MappedCsvFile.PROP_LINES_INDEXED)) {
+                    linesIndexed((Integer) evt.getNewValue());
+                }
+            }
+        });
+    }
+
+    private void linesIndexed(int lineCount) {
+        if (lineCount > rowCount) {
+            int firstNewRow = rowCount;
+            rowCount = lineCount;
+            fireTableRowsInserted(firstNewRow, lineCount - 1);
+        }
+        if (csvFile.isIndexed() && csvFile.getColumnCount() > columnCount) {
+            columnCount = csvFile.getColumnCount();
+            fireTableStructureChanged();
+        }
+    }
+
+    public MappedCsvFile getCsvFile() {
+        return csvFile;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        List<String> values = getRowValues(rowIndex);
+        return columnIndex < values.size() ? values.get(columnIndex) : null;
+    }
+
+    private List<String> getRowValues(int rowIndex) {
+        List<String> values = parsedRows.get(rowIndex);
+        if (values == null) {
+            values = csvFile.getValues(rowIndex);
+            parsedRows.put(rowIndex, values);
+        }
+        return values;
+    }
+}
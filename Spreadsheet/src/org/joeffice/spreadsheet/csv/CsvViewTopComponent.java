@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.csv;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import javax.swing.*;
+
+import org.joeffice.desktop.file.OfficeDataObject;
+import org.joeffice.desktop.ui.OfficeTopComponent;
+import org.joeffice.spreadsheet.rows.RowTableFactory;
+
+import org.netbeans.api.settings.ConvertAsProperties;
+import org.openide.util.Exceptions;
+import org.openide.util.NbBundle;
+import org.openide.util.NbBundle.Messages;
+import org.openide.util.RequestProcessor;
+import org.openide.windows.TopComponent;
+
+/**
+ * Top component showing a large CSV file in a read-only table where only the visible lines are parsed.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+@ConvertAsProperties(
+        dtd = "-//org.joeffice.spreadsheet.csv//CsvView//EN",
+        autostore = false)
+@TopComponent.Description(
+        preferredID = "CsvViewTopComponent",
+        iconBase = "org/joeffice/spreadsheet/spreadsheet-16.png",
+        persistenceType = TopComponent.PERSISTENCE_ONLY_OPENED)
+@TopComponent.Registration(mode = "editor", openAtStartup = false)
+@Messages({
+    "CTL_Find=Find: ",
+    "# {0} - searched text",
+    "MSG_TextNotFound=\"{0}\" not found"
+})
+public final class CsvViewTopComponent extends OfficeTopComponent {
+
+    private final static RequestProcessor SEARCH_THREAD = new RequestProcessor(CsvViewTopComponent.class);
+
+    private JTable table;
+
+    public CsvViewTopComponent() {
+    }
+
+    public CsvViewTopComponent(OfficeDataObject dataObject) {
+        init(dataObject);
+    }
+
+    @Override
+    public String getShortName() {
+        return "CsvView";
+    }
+
+    @Override
+    protected JComponent createMainComponent() {
+        table = new JTable();
+        table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        table.setCellSelectionEnabled(true);
+        table.setFillsViewportHeight(true);
+        return RowTableFactory.attachRows(table, table);
+    }
+
+    @Override
+    protected JToolBar createToolbar() {
+        JToolBar toolbar = super.createToolbar();
+        toolbar.add(new JLabel(NbBundle.getMessage(CsvViewTopComponent.class, "CTL_Find")));
+        final JTextField searchField = new JTextField(20);
+        searchField.setMaximumSize(searchField.getPreferredSize());
+        searchField.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                find(searchField.getText());
+            }
+        });
+        toolbar.add(searchField);
+        return toolbar;
+    }
+
+    @Override
+    protected Object loadDocument(File csvFile) throws Exception {
+        return new SmartCsvReader().view(csvFile);
+    }
+
+    @Override
+    protected void documentLoaded() {
+        table.setModel(new CsvViewTableModel(getCsvFile()));
+    }
+
+    private MappedCsvFile getCsvFile() {
+        return (MappedCsvFile) getDataObject().getDocument();
+    }
+
+    /**
+     * Searches the text in the background from the line after the selected line and selects the line found.
+     */
+    private void find(final String text) {
+        final MappedCsvFile csvFile = getCsvFile();
+        if (csvFile == null || text.isEmpty()) {
+            return;
+        }
+        final int fromLineIndex = table.getSelectedRow() + 1;
+        SwingWorker<Integer, Object> search = new SwingWorker<Integer, Object>() {
+
+            @Override
+            protected Integer doInBackground() throws Exception {
+                return csvFile.findLine(text, fromLineIndex);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    int lineIndex = get();
+                    if (lineIndex == -1 || lineIndex >= table.getRowCount()) {
+                        String notFound = NbBundle.getMessage(CsvViewTopComponent.class, "MSG_TextNotFound", text);
+                        JOptionPane.showMessageDialog(CsvViewTopComponent.this, notFound);
+                    } else {
+                        table.setRowSelectionInterval(lineIndex, lineIndex);
+                        table.setColumnSelectionInterval(0, table.getColumnCount() - 1);
+                        table.scrollRectToVisible(table.getCellRect(lineIndex, 0, true));
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    Exceptions.printStackTrace(ex);
+                }
+            }
+        };
+        SEARCH_THREAD.post(search);
+    }
+
+    @Override
+    public void componentClosed() {
+        MappedCsvFile csvFile = getCsvFile();
+        if (csvFile != null) {
+            csvFile.close();
+        }
+        super.componentClosed();
+    }
+
+    @Override
+    public void writeProperties(Properties properties) {
+        super.writeProperties(properties);
+    }
+
+    @Override
+    public void readProperties(Properties properties) {
+        super.readProperties(properties);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.csv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+import org.openide.util.RequestProcessor;
+
+/**
+ * CSV writer streaming the cells of a sheet to the output.
+ *
+ * The values are formatted according to their type in a buffer of characters. When the buffer is full,
+ * it's encoded and written, in the background if background writing is enabled.
+ * At most 2 buffers are waiting to be written, so the memory used doesn't depend on the size of the sheet.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class CsvWriter {
+
+    private final static int BUFFER_SIZE = 1024 * 1024;
+    private final static int MAX_WAITING_BUFFERS = 2;
+    private final static long MAX_LONG_DOUBLE = 1L << 53;
+
+    private final static RequestProcessor WRITER_THREAD = new RequestProcessor(CsvWriter.class);
+
+    private char separator;
+    private char quote;
+    private char commentCharacter;
+    private String lineSeparator;
+    private Charset charset;
+    private char decimalSeparator;
+    private boolean backgroundWriting = Runtime.getRuntime().availableProcessors() > 1;
+
+    private DateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
+    private DateFormat dateTimeFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * Creates a writer.
+     *
+     * @param quote the quote character used for the values that need to be quoted
+     * @param commentCharacter the first character of the comment lines or 0 if there is no comment lines
+     */
+    public CsvWriter(char separator, char quote, char commentCharacter, String lineSeparator, Charset charset) {
+        this.separator = separator;
+        this.quote = quote;
+        this.commentCharacter = commentCharacter;
+        this.lineSeparator = lineSeparator;
+        this.charset = charset;
+        decimalSeparator = DecimalFormatSymbols.getInstance(CsvParser.getNumbersLocale(separator)).getDecimalSeparator();
+    }
+
+    public boolean isBackgroundWriting() {
+        return backgroundWriting;
+    }
+
+    /**
+     * Sets whether the encoding and writing of the characters is done in another thread.
+     */
+    public void setBackgroundWriting(boolean backgroundWriting) {
+        this.backgroundWriting = backgroundWriting;
+    }
+
+    /**
+     * Writes all the rows of the sheet, the output is flushed but not closed.
+     */
+    public void write(OutputStream output, Sheet sheet) throws IOException {
+        Writer writer = new OutputStreamWriter(output, charset);
+        if (backgroundWriting) {
+            writeInBackground(writer, sheet);
+        } else {
+            StringBuilder buffer = new StringBuilder(BUFFER_SIZE + BUFFER_SIZE / 8);
+            for (int i = 0; i <= sheet.getLastRowNum(); i++) {
+                appendRow(buffer, sheet.getRow(i));
+                if (buffer.length() >= BUFFER_SIZE) {
+                    writer.append(buffer);
+                    buffer.setLength(0);
+                }
+            }
+            writer.append(buffer);
+        }
+        writer.flush();
+    }
+
+    private void writeInBackground(Writer writer, Sheet sheet) throws IOException {
+        BlockingQueue<StringBuilder> buffers = new ArrayBlockingQueue<>(MAX_WAITING_BUFFERS);
+        FutureTask<Object> writing = new FutureTask<>(new BuffersWriter(writer, buffers));
+        WRITER_THREAD.execute(writing);
+        StringBuilder buffer = new StringBuilder(BUFFER_SIZE + BUFFER_SIZE / 8);
+        try {
+            for (int i = 0; i <= sheet.getLastRowNum(); i++) {
+                appendRow(buffer, sheet.getRow(i));
+                if (buffer.length() >= BUFFER_SIZE) {
+                    queueBuffer(buffers, buffer, writing);
+                    buffer = new StringBuilder(BUFFER_SIZE + BUFFER_SIZE / 8);
+                }
+            }
+            if (buffer.length() > 0) {
+                queueBuffer(buffers, buffer, writing);
+            }
+            // An empty buffer ends the writing
+            queueBuffer(buffers, new StringBuilder(), writing);
+            writing.get();
+        } catch (InterruptedException | RuntimeException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            // Stops the writer thread waiting for the end marker if the sheet couldn't be read
+            if (!writing.isDone()) {
+                writing.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Waits for a place in the queue unless the writing has stopped because of an error.
+     */
+    private void queueBuffer(BlockingQueue<StringBuilder> buffers, StringBuilder buffer, FutureTask<Object> writing)
+            throws InterruptedException, ExecutionException {
+        while (!buffers.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+            if (writing.isDone()) {
+                writing.get();
+            }
+        }
+    }
+
+    private void appendRow(StringBuilder buffer, Row row) {
+        if (row != null) {
+            for (int i = 0; i < row.getLastCellNum(); i++) {
+                if (i > 0) {
+                    buffer.append(separator);
+                }
+                Cell cell = row.getCell(i);
+                if (cell != null) {
+                    appendCell(buffer, cell);
+                }
+            }
+        }
+        buffer.append(lineSeparator);
+    }
+
+    private void appendCell(StringBuilder buffer, Cell cell) {
+        int type = cell.getCellType();
+        if (type == Cell.CELL_TYPE_FORMULA) {
+            type = cell.getCachedFormulaResultType();
+        }
+        switch (type) {
+            case Cell.CELL_TYPE_NUMERIC:
+                if (DateUtil.isCellDateFormatted(cell)) {
+                    double dateValue = cell.getNumericCellValue();
+                    DateFormat formatter = dateValue == Math.floor(dateValue) ? dateFormatter : dateTimeFormatter;
+                    buffer.append(formatter.format(cell.getDateCellValue()));
+                } else {
+                    appendNumber(buffer, cell.getNumericCellValue());
+                }
+                break;
+            case Cell.CELL_TYPE_STRING:
+                appendText(buffer, cell.getStringCellValue());
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                buffer.append(cell.getBooleanCellValue() ? "TRUE" : "FALSE");
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                buffer.append(FormulaError.forInt(cell.getErrorCellValue()).getString());
+                break;
+        }
+    }
+
+    /**
+     * Appends the number without decimals for the integers and with the decimal separator of the file.
+     */
+    private void appendNumber(StringBuilder buffer, double number) {
+        if (number == Math.rint(number) && Math.abs(number) < MAX_LONG_DOUBLE) {
+            buffer.append((long) number);
+        } else {
+            int numberStart = buffer.length();
+            buffer.append(number);
+            if (decimalSeparator != '.') {
+                int dotIndex = buffer.indexOf(".", numberStart);
+                if (dotIndex >= 0) {
+                    buffer.setCharAt(dotIndex, decimalSeparator);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the text, quoted if it contains the separator, a quote, a new line, spaces at the start or end
+     * or if it starts with the comment character.
+     */
+    private void appendText(StringBuilder buffer, String text) {
+        int length = text.length();
+        boolean quoted = length > 0 && (text.charAt(0) == ' ' || text.charAt(length - 1) == ' '
+                || (text.charAt(0) == commentCharacter && commentCharacter != 0));
+        for (int i = 0; i < length && !quoted; i++) {
+            char c = text.charAt(i);
+            quoted = c == separator || c == quote || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            buffer.append(text);
+            return;
+        }
+        buffer.append(quote);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == quote) {
+                buffer.append(quote);
+            }
+            buffer.append(c);
+        }
+        buffer.append(quote);
+    }
+
+    /**
+     * Encodes and writes the buffers queued until an empty buffer is received.
+     */
+    private static class BuffersWriter implements Callable<Object> {
+
+        private Writer writer;
+        private BlockingQueue<StringBuilder> buffers;
+
+        private BuffersWriter(Writer writer, BlockingQueue<StringBuilder> buffers) {
+            this.writer = writer;
+            this.buffers = buffers;
+        }
+
+        @Override
+        public Object call() throws IOException, InterruptedException {
+            StringBuilder buffer = buffers.take();
+            while (buffer.length() > 0) {
+                writer.append(buffer);
+                buffer = buffers.take();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.csv;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.SwingUtilities;
+
+import org.openide.util.Exceptions;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Read-only CSV file memory mapped where the lines are only parsed when needed.
+ *
+ * The end of each line (record) is kept in a <code>long[]</code> built in the background,
+ * the lines indexed so far can already be read.
+ * A line is a record of the CSV file, a new line in a quoted value doesn't start a new line.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class MappedCsvFile {
+
+    public final static String PROP_LINES_INDEXED = "linesIndexed";
+
+    /**
+     * The CSV files bigger than this size are opened in the read-only view.
+     */
+    public final static long VIEW_MIN_FILE_SIZE = 100 * 1024 * 1024;
+
+    // The file is mapped in windows as a mapped buffer is limited to 2 GB
+    private final static int WINDOW_SHIFT = 30;
+    private final static long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+    private final static int INDEX_BLOCK_SIZE = 1024 * 1024;
+    private final static long PUBLISH_DELAY = 200;
+
+    private final static RequestProcessor INDEXER_THREAD = new RequestProcessor(MappedCsvFile.class);
+
+    private File file;
+    private CsvParser parser;
+    private int byteOrderMarkLength;
+    private FileChannel csvChannel;
+    private long fileSize;
+    private MappedByteBuffer[] windows;
+
+    // The end (exclusive) of each line, the array is replaced when it grows
+    private volatile long[] lineEnds = new long[1024];
+    private volatile int lineCount;
+    // The maximum number of values of the lines indexed so far
+    private volatile int columnCount;
+    private volatile boolean indexed;
+    private volatile boolean closed;
+
+    private PropertyChangeSupport changeSupport = new PropertyChangeSupport(this);
+
+    MappedCsvFile(File file, CsvParser parser, int byteOrderMarkLength) throws IOException {
+        if (!CsvParser.isAsciiCompatible(parser.getCharset())) {
+            throw new IOException("The charset " + parser.getCharset() + " is not supported in the read-only view");
+        }
+        this.file = file;
+        this.parser = parser;
+        this.byteOrderMarkLength = byteOrderMarkLength;
+        csvChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        fileSize = csvChannel.size();
+        int windowCount = (int) ((fileSize + WINDOW_SIZE - 1) >> WINDOW_SHIFT);
+        windows = new MappedByteBuffer[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            long windowStart = (long) i << WINDOW_SHIFT;
+            windows[i] = csvChannel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, fileSize - windowStart));
+        }
+        INDEXER_THREAD.post(new LinesIndexer());
+    }
+
+    /**
+     * Whether the file should be opened in the read-only view, the files starting with a UTF-16 byte order mark are not.
+     */
+    public static boolean isViewPreferred(File file) {
+        if (file.length() < VIEW_MIN_FILE_SIZE) {
+            return false;
+        }
+        try (InputStream csvInput = new FileInputStream(file)) {
+            int firstByte = csvInput.read();
+            int secondByte = csvInput.read();
+            return !((firstByte == 0xFE && secondByte == 0xFF) || (firstByte == 0xFF && secondByte == 0xFE));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the number of lines indexed so far.
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Gets the maximum number of values of the lines indexed so far.
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Gets the values of the line, null for the empty values.
+     */
+    public List<String> getValues(int lineIndex) {
+        return parser.parseRecord(parser.getCharset().decode(ByteBuffer.wrap(getLineBytes(lineIndex))));
+    }
+
+    private byte[] getLineBytes(int lineIndex) {
+        long[] ends = lineEnds;
+        long lineStart = lineIndex == 0 ? byteOrderMarkLength : ends[lineIndex - 1];
+        long lineEnd = ends[lineIndex];
+        return getBytes(lineStart, (int) Math.min(Integer.MAX_VALUE - 8, lineEnd - lineStart));
+    }
+
+    private byte[] getBytes(long start, int length) {
+        byte[] bytes = new byte[length];
+        int copiedCount = 0;
+        while (copiedCount < length) {
+            long position = start + copiedCount;
+            ByteBuffer window = windows[(int) (position >> WINDOW_SHIFT)].duplicate();
+            window.position((int) (position & (WINDOW_SIZE - 1)));
+            int count = Math.min(length - copiedCount, window.remaining());
+            window.get(bytes, copiedCount, count);
+            copiedCount += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Finds the first line containing the text, starting at the given line.
+     * Only the lines already indexed are searched.
+     *
+     * @return the index of the line or -1 if not found
+     */
+    public int findLine(String text, int fromLineIndex) {
+        byte[] searchedBytes = text.getBytes(parser.getCharset());
+        int searchedLineCount = lineCount;
+        if (searchedBytes.length == 0 || fromLineIndex >= searchedLineCount) {
+            return -1;
+        }
+        long[] ends = lineEnds;
+        long searchStart = fromLineIndex == 0 ? byteOrderMarkLength : ends[fromLineIndex - 1];
+        long searchEnd = ends[searchedLineCount - 1];
+        byte[] block = new byte[INDEX_BLOCK_SIZE + searchedBytes.length];
+        for (long blockStart = searchStart; blockStart < searchEnd && !closed; blockStart += INDEX_BLOCK_SIZE) {
+            int blockLength = (int) Math.min(block.length, searchEnd - blockStart);
+            byte[] blockBytes = getBytes(blockStart, blockLength);
+            int matchIndex = indexOf(blockBytes, searchedBytes);
+            if (matchIndex >= 0) {
+                int lineIndex = Arrays.binarySearch(ends, 0, searchedLineCount, blockStart + matchIndex);
+                return lineIndex >= 0 ? lineIndex + 1 : -lineIndex - 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] searchedBytes) {
+        byte firstByte = searchedBytes[0];
+        int lastStart = bytes.length - searchedBytes.length;
+        for (int i = 0; i <= lastStart; i++) {
+            if (bytes[i] != firstByte) {
+                continue;
+            }
+            int j = 1;
+            while (j < searchedBytes.length && bytes[i + j] == searchedBytes[j]) {
+                j++;
+            }
+            if (j == searchedBytes.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Stops the indexing and closes the file.
+     */
+    public void close() {
+        closed = true;
+        try {
+            csvChannel.close();
+        } catch (IOException ex) {
+            Exceptions.printStackTrace(ex);
+        }
+    }
+
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        changeSupport.addPropertyChangeListener(listener);
+    }
+
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        changeSupport.removePropertyChangeListener(listener);
+    }
+
+    /**
+     * Finds the end of the lines of the file and publishes them regularly in the event dispatch thread.
+     */
+    private class LinesIndexer implements Runnable {
+
+        private CsvParser.RecordEndsScanner scanner = parser.createRecordEndsScanner();
+        private long[] ends = lineEnds;
+        private int endCount;
+        private long lastPublishTime;
+
+        @Override
+        public void run() {
+            for (long blockStart = byteOrderMarkLength; blockStart < fileSize && !closed; blockStart += INDEX_BLOCK_SIZE) {
+                int blockLength = (int) Math.min(INDEX_BLOCK_SIZE, fileSize - blockStart);
+                byte[] block = getBytes(blockStart, blockLength);
+                int position = 0;
+                while (position < blockLength) {
+                    int lineEnd = scanner.nextRecordEnd(block, position, blockLength);
+                    if (lineEnd == -1) {
+                        break;
+                    }
+                    addLineEnd(blockStart + lineEnd);
+                    position = lineEnd;
+                }
+                if (System.currentTimeMillis() - lastPublishTime > PUBLISH_DELAY) {
+                    publish(false);
+                }
+            }
+            if (!closed && (endCount == 0 ? fileSize > byteOrderMarkLength : ends[endCount - 1] < fileSize)) {
+                // Last line without new line
+                addLineEnd(fileSize);
+            }
+            publish(true);
+        }
+
+        private void addLineEnd(long lineEnd) {
+            if (endCount == ends.length) {
+                ends = Arrays.copyOf(ends, endCount * 2);
+            }
+            ends[endCount++] = lineEnd;
+        }
+
+        private void publish(final boolean lastPublish) {
+            lastPublishTime = System.currentTimeMillis();
+            lineEnds = ends;
+            lineCount = endCount;
+            columnCount = scanner.getMaxFieldCount();
+            indexed = lastPublish;
+            final int publishedLineCount = endCount;
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    changeSupport.firePropertyChange(PROP_LINES_INDEXED, null, publishedLineCount);
+                }
+            });
+        }
+    }
+}
@@ -16,22 +16,20 @@
 package org.joeffice.spreadsheet.csv;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
-import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.h2.tools.Csv;
-import org.h2.tools.SimpleResultSet;
-import org.openide.util.Exceptions;
+import org.joeffice.spreadsheet.sheet.CellStore;
 
 /**
  * Smart CSV reader is a CSV reader that is able to detect:
@@ -39,12 +37,25 @@ import org.openide.util.Exceptions;
  * <li>The field separator</li>
  * <li>The escape character (quote)</li>
  * </ul>
+ * Only the first megabytes of the file are used for the detection.
  *
  * @author Anthony Goubard - Japplis
  */
 public class SmartCsvReader {
 
+    // Only the beginning of the file is read to detect the format
+    private final static int SAMPLE_SIZE = 4 * 1024 * 1024;
+    private final static int MAX_DETECTION_LINES = 1000;
+
+    private final static byte[][] BYTE_ORDER_MARKS = {
+        {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF},
+        {(byte) 0xFE, (byte) 0xFF},
+        {(byte) 0xFF, (byte) 0xFE}};
+    private final static Charset[] BYTE_ORDER_MARK_CHARSETS = {
+        StandardCharsets.UTF_8, StandardCharsets.UTF_16BE, StandardCharsets.UTF_16LE};
+
     private Charset charset;
+    private byte[] byteOrderMark = new byte[0];
     private Csv csvMetadata;
     private String[] headers;
 
@@ -53,8 +64,14 @@ public class SmartCsvReader {
         csvMetadata.setLineCommentCharacter('#');
     }
 
-    protected void detect(File csvFile) {
-        List<String> lines = detectCharset(csvFile.toPath());
+    protected void detect(File csvFile) throws IOException {
+        byte[] sample = readSample(csvFile);
+        boolean wholeFile = csvFile.length() <= sample.length;
+        String sampleText = detectCharset(sample, wholeFile);
+        List<String> lines = getLines(sampleText, wholeFile);
+        if (lines.isEmpty()) {
+            lines.add("");
+        }
         String header = lines.get(0);
         int index = 1;
         while ((header.isEmpty() || header.charAt(0) == csvMetadata.getLineCommentCharacter()) && index < lines.size()) {
@@ -66,26 +83,92 @@ public class SmartCsvReader {
         detectEscapeCharacter(lines);
     }
 
-    private List<String> detectCharset(Path csvPath) {
-        List<String> lines = read(csvPath, StandardCharsets.UTF_8);
-        if (lines == null) {
-            lines = read(csvPath, Charset.defaultCharset());
+    /**
+     * Reads the beginning of the file, only this sample is used to detect the format of the file.
+     */
+    private byte[] readSample(File csvFile) throws IOException {
+        byte[] sample = new byte[(int) Math.min(csvFile.length(), SAMPLE_SIZE)];
+        try (InputStream csvInput = new FileInputStream(csvFile)) {
+            int length = 0;
+            int readCount = 0;
+            while (length < sample.length && readCount != -1) {
+                readCount = csvInput.read(sample, length, sample.length - length);
+                if (readCount > 0) {
+                    length += readCount;
+                }
+            }
+            return length == sample.length ? sample : Arrays.copyOf(sample, length);
         }
-        if (lines == null) {
-            lines = read(csvPath, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Detects the charset with the byte order mark or else with the first charset able to decode the sample.
+     *
+     * @return the decoded sample without the byte order mark
+     */
+    private String detectCharset(byte[] sample, boolean wholeFile) {
+        byteOrderMark = new byte[0];
+        for (int i = 0; i < BYTE_ORDER_MARKS.length; i++) {
+            byte[] bom = BYTE_ORDER_MARKS[i];
+            if (sample.length >= bom.length && Arrays.equals(bom, Arrays.copyOf(sample, bom.length))) {
+                byteOrderMark = bom;
+                charset = BYTE_ORDER_MARK_CHARSETS[i];
+                return new String(sample, bom.length, sample.length - bom.length, charset);
+            }
         }
-        return lines;
+        for (Charset probedCharset : new Charset[] {StandardCharsets.UTF_8, Charset.defaultCharset()}) {
+            String text = decode(sample, probedCharset, wholeFile);
+            if (text != null) {
+                charset = probedCharset;
+                return text;
+            }
+        }
+        // All the bytes are valid in ISO-8859-1
+        charset = StandardCharsets.ISO_8859_1;
+        return new String(sample, charset);
     }
 
-    private List<String> read(Path path, Charset charset) {
-        try {
-            List<String> lines = Files.readAllLines(path, charset);
-            this.charset = charset;
-            return lines;
-        } catch (IOException iex) {
-            // Wrong charset probably
+    /**
+     * Decodes the bytes or returns null if they are not valid for the charset.
+     * If the bytes are only the beginning of the file, the last character may be incomplete.
+     */
+    private String decode(byte[] bytes, Charset probedCharset, boolean wholeFile) {
+        CharsetDecoder decoder = probedCharset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        ByteBuffer input = ByteBuffer.wrap(bytes);
+        CharBuffer output = CharBuffer.allocate((int) (bytes.length * (double) decoder.maxCharsPerByte()) + 1);
+        CoderResult result = decoder.decode(input, output, wholeFile);
+        if (result.isError()) {
             return null;
         }
+        if (wholeFile) {
+            result = decoder.flush(output);
+            if (result.isError()) {
+                return null;
+            }
+        }
+        output.flip();
+        return output.toString();
+    }
+
+    /**
+     * Gets the first lines of the sample, without the last line if it may be incomplete.
+     */
+    private List<String> getLines(String sampleText, boolean wholeFile) {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader sampleReader = new BufferedReader(new StringReader(sampleText))) {
+            String line;
+            while ((line = sampleReader.readLine()) != null && lines.size() < MAX_DETECTION_LINES) {
+                lines.add(line);
+            }
+            if (line == null && !wholeFile && lines.size() > 1) {
+                lines.remove(lines.size() - 1);
+            }
+        } catch (IOException ex) {
+            // Not possible with a string reader
+        }
+        return lines;
     }
 
     private void detectDelimiter(String header) {
@@ -126,12 +209,12 @@ public class SmartCsvReader {
     private void detectEscapeCharacter(List<String> lines) {
         int quoteCount = 0;
         int doubleQuoteCount = 0;
-        char escapeCharacter = csvMetadata.getEscapeCharacter();
-        for (String line : lines) {
-            String[] values = getValues(line, false);
+        char escapeCharacter = 0;
+        for (int i = 0; i < lines.size() && escapeCharacter == 0; i++) {
+            String[] values = getValues(lines.get(i), false);
             for (String value : values) {
-                if (value.startsWith("'") && value.endsWith("'")) quoteCount++;
-                if (value.startsWith("\"") && value.endsWith("\"")) doubleQuoteCount++;
+                if (value.length() > 1 && value.startsWith("'") && value.endsWith("'")) quoteCount++;
+                if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) doubleQuoteCount++;
                 if (quoteCount > 20 && doubleQuoteCount < quoteCount / 10) {
                     escapeCharacter = '\'';
                     break;
@@ -141,11 +224,11 @@ public class SmartCsvReader {
                     break;
                 }
             }
-            if (escapeCharacter == 0 && quoteCount > doubleQuoteCount) {
-                escapeCharacter = '\'';
-            } else if (escapeCharacter == 0) {
-                escapeCharacter = '\"';
-            }
+        }
+        if (escapeCharacter == 0 && quoteCount > doubleQuoteCount) {
+            escapeCharacter = '\'';
+        } else if (escapeCharacter == 0) {
+            escapeCharacter = '\"';
         }
         csvMetadata.setEscapeCharacter(escapeCharacter);
         csvMetadata.setFieldDelimiter(escapeCharacter);
@@ -154,58 +237,39 @@ public class SmartCsvReader {
     public Workbook read(File csvFile) throws IOException {
         detect(csvFile);
 
-        Workbook csvWorkbook = new CSVWorkbook(this);
-        Sheet csvSheet = csvWorkbook.createSheet(csvFile.getName());
-
-        Reader csvReader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile), getCharset()));
-        ResultSet rs = csvMetadata.read(csvReader, getHeaders());
-        try {
-            ResultSetMetaData meta = rs.getMetaData();
-            int rowIndex = 0; // First row contains the headers
-            while (rs.next()) {
-                Row dataRow = csvSheet.createRow(rowIndex);
-                for (int i = 0; i < meta.getColumnCount(); i++) {
-                    Cell dataCell = dataRow.createCell(i);
-                    String cellValue = rs.getString(i + 1);
-                    try {
-                        double cellNumericValue = Double.parseDouble(cellValue);
-                        dataCell.setCellValue(cellNumericValue);
-                    } catch (NumberFormatException ex) {
-                        dataCell.setCellValue(cellValue);
-                    }
-                }
-                rowIndex++;
-            }
-            rs.close();
-        } catch (SQLException ex) {
-            Exceptions.printStackTrace(ex);
-        }
+        CellStore cellStore = createParser().parse(csvFile);
+
+        CSVWorkbook csvWorkbook = new CSVWorkbook(this);
+        // The POI cells are only created when the cells are edited, see CSVWorkbook.loadCells()
+        Sheet csvSheet = csvWorkbook.createSheet(csvFile.getName(), cellStore);
         csvSheet.setDefaultColumnWidth(-1);
         return csvWorkbook;
     }
 
+    /**
+     * Opens the file in a read-only view where only the displayed lines are parsed.
+     */
+    public MappedCsvFile view(File csvFile) throws IOException {
+        detect(csvFile);
+        return new MappedCsvFile(csvFile, createParser(), byteOrderMark.length);
+    }
+
+    /**
+     * Creates a parser for the format detected.
+     */
+    CsvParser createParser() {
+        return new CsvParser(csvMetadata.getFieldSeparatorRead(), csvMetadata.getFieldDelimiter(),
+                csvMetadata.getLineCommentCharacter(), getCharset(), byteOrderMark.length);
+    }
+
+    /**
+     * Writes the first sheet of the workbook in the format of the file read.
+     */
     public void write(OutputStream output, Workbook workbook) throws IOException {
-        SimpleResultSet rs = new SimpleResultSet();
-        // TODO use the first row
-        for (String header : headers) {
-            rs.addColumn(header, Types.VARCHAR, 2000, 0);
-        }
-        Sheet firstSheet = workbook.getSheetAt(0);
-        for (int i = 1; i <= firstSheet.getLastRowNum(); i++) {
-            Row row = firstSheet.getRow(i);
-            String[] rowValues = new String[headers.length];
-            for (int j = 0; j < headers.length; j++) {
-                Cell cell = row.getCell(j);
-                rowValues[j] = cell == null ? "" : cell.getStringCellValue();
-            }
-            rs.addRow(rowValues);
-        }
-        Writer writer = new BufferedWriter(new OutputStreamWriter(output, charset));
-        try {
-            csvMetadata.write(writer, rs);
-        } catch (SQLException ex) {
-            throw new IOException(ex);
-        }
+        output.write(byteOrderMark);
+        CsvWriter csvWriter = new CsvWriter(csvMetadata.getFieldSeparatorWrite().charAt(0), csvMetadata.getFieldDelimiter(),
+                csvMetadata.getLineCommentCharacter(), csvMetadata.getLineSeparator(), charset);
+        csvWriter.write(output, workbook.getSheetAt(0));
     }
 
     public Charset getCharset() {
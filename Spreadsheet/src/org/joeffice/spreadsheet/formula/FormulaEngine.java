@@ -0,0 +1,740 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.formula;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.poi.hssf.usermodel.HSSFEvaluationWorkbook;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.formula.EvaluationCell;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.ExternSheetReferenceToken;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.WorkbookEvaluator;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.ptg.*;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Recalculation of the formulas of a workbook.
+ *
+ * The formulas are parsed once in a graph of the cells and areas they depend on.
+ * When cells are changed, only the formulas depending directly or indirectly on them are evaluated,
+ * in an order where the precedents of a formula are evaluated before the formula.
+ * The result is kept by POI as the cached value of the formula cell, so the renderer doesn't evaluate anything.
+ * The recalculated cells are sent to the listeners of {@link #PROP_FORMULAS_RECALCULATED}, for example the table
+ * models of all the sheets of the workbook.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class FormulaEngine {
+
+    public final static String PROP_FORMULAS_RECALCULATED = "formulasRecalculated";
+
+    // The engines keep their workbook, so they are removed with release() when the workbook is closed or replaced
+    private final static Map<Workbook, FormulaEngine> ENGINES = new HashMap<>();
+
+    // The cells are identified by a long with 16 bits for the sheet, 32 bits for the row and 16 bits for the column
+    private final static long ROW_MASK = 0xFFFFFFFFL << 16;
+
+    // Below this number of formulas, the parallel recalculation is done in the current thread
+    private final static int MIN_PARALLEL_FORMULAS = 1000;
+
+    private final static ForkJoinPool RECALCULATION_POOL = new ForkJoinPool();
+
+    // The names defined with other names are followed up to this depth
+    private final static int MAX_NAME_DEPTH = 16;
+
+    // The functions giving a different result without any change of their arguments
+    private final static Set<String> VOLATILE_FUNCTIONS = new HashSet<>(Arrays.asList(
+            "RAND", "RANDBETWEEN", "NOW", "TODAY", "OFFSET", "INDIRECT", "INFO", "CELL"));
+
+    // The functions reading cells that are not in their arguments
+    private final static Set<String> UNKNOWN_PRECEDENTS_FUNCTIONS = new HashSet<>(Arrays.asList("OFFSET", "INDIRECT"));
+
+    private Workbook workbook;
+    private FormulaEvaluator formulaEvaluator;
+    private FormulaParsingWorkbook parsingWorkbook;
+    private EvaluationWorkbook evaluationWorkbook;
+
+    private boolean graphBuilt;
+    private Map<Long, Precedents> formulas = new HashMap<>();
+    private Map<Long, Set<Long>> cellDependents = new HashMap<>();
+    // The areas used by the formulas per sheet and column
+    private Map<Long, List<Area>> areaDependents = new HashMap<>();
+    private Set<Long> volatileFormulas = new HashSet<>();
+
+    private Set<Long> changedCells = new LinkedHashSet<>();
+    private boolean allChanged;
+
+    private LookupIndexes lookupIndexes = new LookupIndexes();
+    private PropertyChangeSupport changeSupport = new PropertyChangeSupport(this);
+
+    static {
+        IndexedLookupFunctions.install();
+    }
+
+    private FormulaEngine(Workbook workbook) {
+        this.workbook = workbook;
+        formulaEvaluator = workbook.getCreationHelper().createFormulaEvaluator();
+        if (workbook instanceof HSSFWorkbook) {
+            HSSFEvaluationWorkbook hssfWorkbook = HSSFEvaluationWorkbook.create((HSSFWorkbook) workbook);
+            parsingWorkbook = hssfWorkbook;
+            evaluationWorkbook = hssfWorkbook;
+        } else if (workbook instanceof XSSFWorkbook) {
+            XSSFEvaluationWorkbook xssfWorkbook = XSSFEvaluationWorkbook.create((XSSFWorkbook) workbook);
+            parsingWorkbook = xssfWorkbook;
+            evaluationWorkbook = xssfWorkbook;
+        }
+    }
+
+    public static synchronized FormulaEngine getInstance(Workbook workbook) {
+        FormulaEngine engine = ENGINES.get(workbook);
+        if (engine == null) {
+            engine = new FormulaEngine(workbook);
+            ENGINES.put(workbook, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Removes the engine of the workbook with its dependencies and cached results.
+     */
+    public static synchronized void release(Workbook workbook) {
+        ENGINES.remove(workbook);
+    }
+
+    public FormulaEvaluator getFormulaEvaluator() {
+        return formulaEvaluator;
+    }
+
+    /**
+     * Forgets the dependencies, for example after rows or columns were inserted or deleted.
+     * The graph is built again and all the formulas are evaluated at the next recalculation.
+     */
+    public void invalidate() {
+        forgetDependencies();
+        allChanged = true;
+    }
+
+    /**
+     * Forgets the dependencies after rows or columns were inserted or deleted, the graph is built again
+     * at the next recalculation.
+     * The moved formulas keep their result, only the given cells and the formulas depending on them are evaluated,
+     * for example the formulas with references changed by the shift.
+     */
+    public void cellsShifted(Collection<Cell> cells) {
+        forgetDependencies();
+        for (Cell cell : cells) {
+            changedCells.add(toKey(workbook.getSheetIndex(cell.getSheet()), cell.getRowIndex(), cell.getColumnIndex()));
+        }
+    }
+
+    private void forgetDependencies() {
+        graphBuilt = false;
+        formulas.clear();
+        cellDependents.clear();
+        areaDependents.clear();
+        volatileFormulas.clear();
+        changedCells.clear();
+        lookupIndexes.invalidateAll();
+        // The results cached by POI are for the cells at their position before the change
+        formulaEvaluator.clearAllCachedResultValues();
+    }
+
+    /**
+     * Marks the cells of the area as changed.
+     * The formulas using these cells are only evaluated when {@link #recalculate()} is called.
+     */
+    public void cellsChanged(Sheet sheet, int firstRow, int lastRow, int firstColumn, int lastColumn) {
+        if (!graphBuilt) {
+            buildGraph();
+        }
+        int sheetIndex = workbook.getSheetIndex(sheet);
+        for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++) {
+            Row row = sheet.getRow(rowIndex);
+            for (int columnIndex = firstColumn; columnIndex <= lastColumn; columnIndex++) {
+                Cell cell = row == null ? null : row.getCell(columnIndex);
+                cellChanged(sheetIndex, rowIndex, columnIndex, cell);
+            }
+        }
+    }
+
+    private void cellChanged(int sheetIndex, int rowIndex, int columnIndex, Cell cell) {
+        long key = toKey(sheetIndex, rowIndex, columnIndex);
+        boolean wasFormula = formulas.containsKey(key);
+        if (wasFormula) {
+            removeFormula(key);
+        }
+        if (cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+            addFormula(key, cell);
+            formulaEvaluator.notifySetFormula(cell);
+        } else if (cell != null) {
+            formulaEvaluator.notifyUpdateCell(cell);
+        } else if (wasFormula || hasDependents(key)) {
+            // The cell is gone so POI can't be notified for this cell only
+            formulaEvaluator.clearAllCachedResultValues();
+        }
+        changedCells.add(key);
+    }
+
+    /**
+     * Evaluates the formulas depending on the changed cells and the volatile formulas.
+     *
+     * @return the recalculated formula cells
+     */
+    public List<Cell> recalculate() {
+        return formulasRecalculated(recalculateChangedCells());
+    }
+
+    private List<Cell> recalculateChangedCells() {
+        if (!graphBuilt) {
+            buildGraph();
+        }
+        if (allChanged) {
+            return recalculateAllCells();
+        }
+        if (changedCells.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<Long> seeds = new LinkedHashSet<>(changedCells);
+        seeds.addAll(volatileFormulas);
+        changedCells.clear();
+        List<Long> evaluationOrder = getEvaluationOrder(seeds);
+        for (Long key : evaluationOrder) {
+            // The changed cells and the recalculated formulas may be in indexed ranges
+            lookupIndexes.invalidate(workbook.getSheetName(getSheetIndex(key)), getRowIndex(key), getColumnIndex(key));
+            // POI doesn't know the cells read by the indexes, so its cached value may be outdated
+            if (formulas.containsKey(key)) {
+                Cell cell = getCell(key);
+                if (cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                    formulaEvaluator.notifySetFormula(cell);
+                }
+            }
+        }
+        return evaluate(evaluationOrder);
+    }
+
+    /**
+     * Evaluates all the formulas of the workbook, for example when the cached values of the file can't be trusted.
+     *
+     * @return the recalculated formula cells
+     */
+    public List<Cell> recalculateAll() {
+        return formulasRecalculated(recalculateAllCells());
+    }
+
+    private List<Cell> recalculateAllCells() {
+        if (!graphBuilt) {
+            buildGraph();
+        }
+        allChanged = false;
+        changedCells.clear();
+        lookupIndexes.invalidateAll();
+        formulaEvaluator.clearAllCachedResultValues();
+        return evaluate(getEvaluationOrder(formulas.keySet()));
+    }
+
+    /**
+     * Evaluates all the formulas of the workbook using the processors of the machine.
+     *
+     * The formulas are split in levels where the formulas of a level only use the formulas of the previous levels.
+     * The formulas of a level are evaluated by tasks of a fork-join pool, each with its own evaluator reading
+     * the workbook with a {@link GuardedEvaluationWorkbook}. The results of a level are written in the cells
+     * in the current thread before the next level is evaluated.
+     * The formulas are evaluated in the current thread if some formulas use cells that are not known before
+     * the evaluation, like INDIRECT, or if there are circular references.
+     *
+     * @return the recalculated formula cells
+     */
+    public List<Cell> recalculateAllInParallel() {
+        if (!graphBuilt) {
+            buildGraph();
+        }
+        List<List<Long>> levels = null;
+        if (evaluationWorkbook != null && formulas.size() >= MIN_PARALLEL_FORMULAS && RECALCULATION_POOL.getParallelism() > 1) {
+            levels = getFormulaLevels();
+        }
+        if (levels == null) {
+            return recalculateAll();
+        }
+        allChanged = false;
+        changedCells.clear();
+        lookupIndexes.invalidateAll();
+        formulaEvaluator.clearAllCachedResultValues();
+
+        Object readLock = new Object();
+        List<Cell> evaluatedCells = new ArrayList<>(formulas.size());
+        for (List<Long> level : levels) {
+            CellValue[] results = new CellValue[level.size()];
+            LevelEvaluation evaluation = new LevelEvaluation(level, results, 0, level.size(), readLock);
+            if (level.size() < MIN_PARALLEL_FORMULAS) {
+                evaluation.invoke();
+            } else {
+                RECALCULATION_POOL.invoke(evaluation);
+            }
+            for (int i = 0; i < results.length; i++) {
+                Cell cell = getCell(level.get(i));
+                setCachedValue(cell, results[i]);
+                evaluatedCells.add(cell);
+            }
+        }
+        // The main evaluator would otherwise not use the new values
+        formulaEvaluator.clearAllCachedResultValues();
+        return formulasRecalculated(evaluatedCells);
+    }
+
+    private List<Cell> formulasRecalculated(List<Cell> recalculatedCells) {
+        if (!recalculatedCells.isEmpty()) {
+            changeSupport.firePropertyChange(PROP_FORMULAS_RECALCULATED, null, recalculatedCells);
+        }
+        return recalculatedCells;
+    }
+
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        changeSupport.addPropertyChangeListener(listener);
+    }
+
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        changeSupport.removePropertyChangeListener(listener);
+    }
+
+    /**
+     * Gets the keys of the formula cells by level, a formula of a level only uses the formulas of the previous levels.
+     *
+     * @return the levels or null if a formula uses unknown cells or if there are circular references
+     */
+    private List<List<Long>> getFormulaLevels() {
+        List<Long> evaluationOrder = getEvaluationOrder(formulas.keySet());
+        Map<Long, Integer> orderIndexes = new HashMap<>(evaluationOrder.size() * 2);
+        for (int i = 0; i < evaluationOrder.size(); i++) {
+            orderIndexes.put(evaluationOrder.get(i), i);
+        }
+        int[] formulaLevels = new int[evaluationOrder.size()];
+        List<List<Long>> levels = new ArrayList<>();
+        for (int i = 0; i < evaluationOrder.size(); i++) {
+            Long key = evaluationOrder.get(i);
+            if (formulas.get(key).precedentsUnknown) {
+                return null;
+            }
+            for (Long dependent : getDependents(key)) {
+                int dependentIndex = orderIndexes.get(dependent);
+                if (dependentIndex <= i) {
+                    return null;
+                }
+                formulaLevels[dependentIndex] = Math.max(formulaLevels[dependentIndex], formulaLevels[i] + 1);
+            }
+            Cell cell = getCell(key);
+            if (cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                while (levels.size() <= formulaLevels[i]) {
+                    levels.add(new ArrayList<Long>());
+                }
+                levels.get(formulaLevels[i]).add(key);
+            }
+        }
+        return levels;
+    }
+
+    private void buildGraph() {
+        for (int sheetIndex = 0; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
+            for (Row row : workbook.getSheetAt(sheetIndex)) {
+                for (Cell cell : row) {
+                    if (cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                        addFormula(toKey(sheetIndex, cell.getRowIndex(), cell.getColumnIndex()), cell);
+                    }
+                }
+            }
+        }
+        graphBuilt = true;
+    }
+
+    private void addFormula(long key, Cell cell) {
+        Precedents precedents = parsePrecedents(key, cell);
+        formulas.put(key, precedents);
+        if (precedents.isVolatile) {
+            volatileFormulas.add(key);
+        }
+        for (long precedentCell : precedents.cells) {
+            Set<Long> dependents = cellDependents.get(precedentCell);
+            if (dependents == null) {
+                dependents = new HashSet<>(4);
+                cellDependents.put(precedentCell, dependents);
+            }
+            dependents.add(key);
+        }
+        for (Area area : precedents.areas) {
+            for (int columnIndex = area.firstColumn; columnIndex <= area.lastColumn; columnIndex++) {
+                long columnKey = toKey(area.sheetIndex, 0, columnIndex);
+                List<Area> columnAreas = areaDependents.get(columnKey);
+                if (columnAreas == null) {
+                    columnAreas = new ArrayList<>(4);
+                    areaDependents.put(columnKey, columnAreas);
+                }
+                columnAreas.add(area);
+            }
+        }
+    }
+
+    private void removeFormula(long key) {
+        Precedents precedents = formulas.remove(key);
+        volatileFormulas.remove(key);
+        for (long precedentCell : precedents.cells) {
+            Set<Long> dependents = cellDependents.get(precedentCell);
+            if (dependents != null) {
+                dependents.remove(key);
+                if (dependents.isEmpty()) {
+                    cellDependents.remove(precedentCell);
+                }
+            }
+        }
+        for (Area area : precedents.areas) {
+            for (int columnIndex = area.firstColumn; columnIndex <= area.lastColumn; columnIndex++) {
+                List<Area> columnAreas = areaDependents.get(toKey(area.sheetIndex, 0, columnIndex));
+                if (columnAreas != null) {
+                    columnAreas.remove(area);
+                }
+            }
+        }
+    }
+
+    private Precedents parsePrecedents(long key, Cell cell) {
+        Precedents precedents = new Precedents();
+        if (parsingWorkbook == null) {
+            precedents.isVolatile = true;
+            precedents.precedentsUnknown = true;
+            return precedents;
+        }
+        int sheetIndex = getSheetIndex(key);
+        Ptg[] tokens;
+        try {
+            tokens = FormulaParser.parse(cell.getCellFormula(), parsingWorkbook, FormulaType.CELL, sheetIndex);
+        } catch (RuntimeException ex) {
+            precedents.isVolatile = true;
+            precedents.precedentsUnknown = true;
+            return precedents;
+        }
+        List<Long> cells = new ArrayList<>();
+        addPrecedents(precedents, cells, key, sheetIndex, tokens, 0);
+        precedents.cells = new long[cells.size()];
+        for (int i = 0; i < precedents.cells.length; i++) {
+            precedents.cells[i] = cells.get(i);
+        }
+        return precedents;
+    }
+
+    /**
+     * Adds the cells and areas used by the tokens, following the definition of the names.
+     */
+    private void addPrecedents(Precedents precedents, List<Long> cells, long key, int sheetIndex, Ptg[] tokens, int nameDepth) {
+        for (Ptg token : tokens) {
+            int tokenSheetIndex = sheetIndex;
+            if (token instanceof ExternSheetReferenceToken) {
+                tokenSheetIndex = evaluationWorkbook.convertFromExternSheetIndex(((ExternSheetReferenceToken) token).getExternSheetIndex());
+            }
+            if (token instanceof RefPtgBase) {
+                RefPtgBase reference = (RefPtgBase) token;
+                cells.add(toKey(tokenSheetIndex, reference.getRow(), reference.getColumn()));
+            } else if (token instanceof AreaPtgBase) {
+                AreaPtgBase area = (AreaPtgBase) token;
+                precedents.areas.add(new Area(key, tokenSheetIndex, area.getFirstRow(), area.getLastRow(), area.getFirstColumn(), area.getLastColumn()));
+            } else if (token instanceof AbstractFunctionPtg) {
+                String functionName = ((AbstractFunctionPtg) token).getName();
+                if (VOLATILE_FUNCTIONS.contains(functionName)) {
+                    precedents.isVolatile = true;
+                }
+                if (UNKNOWN_PRECEDENTS_FUNCTIONS.contains(functionName)) {
+                    precedents.precedentsUnknown = true;
+                }
+            } else if (token instanceof NamePtg) {
+                EvaluationName name = evaluationWorkbook.getName((NamePtg) token);
+                if (name == null || !name.hasFormula() || nameDepth >= MAX_NAME_DEPTH) {
+                    precedents.isVolatile = true;
+                    precedents.precedentsUnknown = true;
+                } else if (!name.isFunctionName()) {
+                    addPrecedents(precedents, cells, key, sheetIndex, name.getNameDefinition(), nameDepth + 1);
+                }
+            } else if (token instanceof NameXPtg) {
+                // The cells of the names of external workbooks are not known
+                precedents.isVolatile = true;
+                precedents.precedentsUnknown = true;
+            }
+        }
+    }
+
+    private boolean hasDependents(long key) {
+        return !getDependents(key).isEmpty();
+    }
+
+    private List<Long> getDependents(long key) {
+        List<Long> dependents = new ArrayList<>();
+        Set<Long> dependentCells = cellDependents.get(key);
+        if (dependentCells != null) {
+            dependents.addAll(dependentCells);
+        }
+        List<Area> columnAreas = areaDependents.get(key & ~ROW_MASK);
+        if (columnAreas != null) {
+            int rowIndex = getRowIndex(key);
+            for (Area area : columnAreas) {
+                if (rowIndex >= area.firstRow && rowIndex <= area.lastRow) {
+                    dependents.add(area.formulaKey);
+                }
+            }
+        }
+        return dependents;
+    }
+
+    /**
+     * Gets the given cells and the formulas depending on them in an order where a cell is after its precedents.
+     * This is the reverse post order of a depth first search, done without recursion for long chains of formulas.
+     */
+    List<Long> getEvaluationOrder(Collection<Long> seeds) {
+        Set<Long> visited = new HashSet<>();
+        List<Long> postOrder = new ArrayList<>();
+        Deque<Long> cells = new ArrayDeque<>();
+        Deque<Iterator<Long>> dependents = new ArrayDeque<>();
+        for (Long seed : seeds) {
+            if (!visited.add(seed)) {
+                continue;
+            }
+            cells.push(seed);
+            dependents.push(getDependents(seed).iterator());
+            while (!cells.isEmpty()) {
+                Iterator<Long> cellDependents = dependents.peek();
+                if (cellDependents.hasNext()) {
+                    Long dependent = cellDependents.next();
+                    if (visited.add(dependent)) {
+                        cells.push(dependent);
+                        dependents.push(getDependents(dependent).iterator());
+                    }
+                } else {
+                    postOrder.add(cells.pop());
+                    dependents.pop();
+                }
+            }
+        }
+        Collections.reverse(postOrder);
+        return postOrder;
+    }
+
+    private List<Cell> evaluate(List<Long> evaluationOrder) {
+        List<Cell> evaluatedCells = new ArrayList<>();
+        LookupIndexes.setCurrent(lookupIndexes);
+        try {
+            for (Long key : evaluationOrder) {
+                if (!formulas.containsKey(key)) {
+                    continue;
+                }
+                Cell cell = getCell(key);
+                if (cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                    evaluate(cell);
+                    evaluatedCells.add(cell);
+                }
+            }
+        } finally {
+            LookupIndexes.setCurrent(null);
+        }
+        return evaluatedCells;
+    }
+
+    /**
+     * Evaluates the formula and keeps the result as cached value of the cell.
+     */
+    void evaluate(Cell cell) {
+        setCachedValue(cell, evaluate(cell, formulaEvaluator));
+    }
+
+    private static CellValue evaluate(Cell cell, FormulaEvaluator evaluator) {
+        try {
+            return evaluator.evaluate(cell);
+        } catch (RuntimeException ex) {
+            // Not supported function or wrong formula
+            return CellValue.getError(FormulaError.NA.getCode());
+        }
+    }
+
+    /**
+     * Gets the result of the formula kept in the cell, null if the type of the result is unknown.
+     */
+    public static CellValue getCachedValue(Cell cell) {
+        switch (cell.getCachedFormulaResultType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                return new CellValue(cell.getNumericCellValue());
+            case Cell.CELL_TYPE_STRING:
+                return new CellValue(cell.getRichStringCellValue().getString());
+            case Cell.CELL_TYPE_BOOLEAN:
+                return CellValue.valueOf(cell.getBooleanCellValue());
+            case Cell.CELL_TYPE_ERROR:
+                return CellValue.getError(cell.getErrorCellValue());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Sets the result of the formula as cached value, the formula of the cell is kept.
+     */
+    public static void setCachedValue(Cell cell, CellValue value) {
+        switch (value.getCellType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                cell.setCellValue(value.getNumberValue());
+                break;
+            case Cell.CELL_TYPE_STRING:
+                cell.setCellValue(cell.getSheet().getWorkbook().getCreationHelper().createRichTextString(value.getStringValue()));
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                cell.setCellValue(value.getBooleanValue());
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                cell.setCellErrorValue(value.getErrorValue());
+                break;
+        }
+    }
+
+    private Cell getCell(long key) {
+        Sheet sheet = workbook.getSheetAt(getSheetIndex(key));
+        Row row = sheet.getRow(getRowIndex(key));
+        return row == null ? null : row.getCell(getColumnIndex(key));
+    }
+
+    static long toKey(int sheetIndex, int rowIndex, int columnIndex) {
+        return ((long) sheetIndex << 48) | ((long) rowIndex << 16) | columnIndex;
+    }
+
+    static int getSheetIndex(long key) {
+        return (int) (key >>> 48);
+    }
+
+    static int getRowIndex(long key) {
+        return (int) ((key & ROW_MASK) >>> 16);
+    }
+
+    static int getColumnIndex(long key) {
+        return (int) (key & 0xFFFF);
+    }
+
+    /**
+     * Evaluation of formulas of the same level, split in tasks of at most {@link #MIN_PARALLEL_FORMULAS} formulas.
+     * The cells are only read, the results are kept in the results array.
+     */
+    private class LevelEvaluation extends RecursiveAction {
+
+        private List<Long> formulaKeys;
+        private CellValue[] results;
+        private int first;
+        private int last;
+        private Object readLock;
+
+        private LevelEvaluation(List<Long> formulaKeys, CellValue[] results, int first, int last, Object readLock) {
+            this.formulaKeys = formulaKeys;
+            this.results = results;
+            this.first = first;
+            this.last = last;
+            this.readLock = readLock;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > MIN_PARALLEL_FORMULAS) {
+                int middle = (first + last) >>> 1;
+                invokeAll(new LevelEvaluation(formulaKeys, results, first, middle, readLock),
+                        new LevelEvaluation(formulaKeys, results, middle, last, readLock));
+                return;
+            }
+            GuardedEvaluationWorkbook taskWorkbook = new GuardedEvaluationWorkbook(evaluationWorkbook, readLock);
+            WorkbookEvaluator taskEvaluator = new WorkbookEvaluator(taskWorkbook, null, null);
+            LookupIndexes.setCurrent(lookupIndexes);
+            try {
+                for (int i = first; i < last; i++) {
+                    results[i] = evaluate(formulaKeys.get(i), taskWorkbook, taskEvaluator);
+                }
+            } finally {
+                LookupIndexes.setCurrent(null);
+            }
+        }
+
+        private CellValue evaluate(long key, GuardedEvaluationWorkbook taskWorkbook, WorkbookEvaluator taskEvaluator) {
+            try {
+                EvaluationCell cell = taskWorkbook.getEvaluatedCell(getSheetIndex(key), getRowIndex(key), getColumnIndex(key));
+                ValueEval value = taskEvaluator.evaluate(cell);
+                if (value instanceof NumberEval) {
+                    return new CellValue(((NumberEval) value).getNumberValue());
+                } else if (value instanceof StringEval) {
+                    return new CellValue(((StringEval) value).getStringValue());
+                } else if (value instanceof BoolEval) {
+                    return CellValue.valueOf(((BoolEval) value).getBooleanValue());
+                } else if (value instanceof ErrorEval) {
+                    return CellValue.getError(((ErrorEval) value).getErrorCode());
+                }
+                throw new IllegalStateException("Unexpected result " + value);
+            } catch (RuntimeException ex) {
+                // Not supported function or wrong formula
+                return CellValue.getError(FormulaError.NA.getCode());
+            }
+        }
+    }
+
+    /**
+     * The cells and areas used by a formula.
+     */
+    private static class Precedents {
+
+        private long[] cells = new long[0];
+        private List<Area> areas = new ArrayList<>(2);
+        private boolean isVolatile;
+        private boolean precedentsUnknown;
+    }
+
+    /**
+     * An area used by a formula.
+     */
+    private static class Area {
+
+        private int sheetIndex;
+        private int firstRow;
+        private int lastRow;
+        private int firstColumn;
+        private int lastColumn;
+        private long formulaKey;
+
+        private Area(long formulaKey, int sheetIndex, int firstRow, int lastRow, int firstColumn, int lastColumn) {
+            this.formulaKey = formulaKey;
+            this.sheetIndex = sheetIndex;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.firstColumn = firstColumn;
+            this.lastColumn = lastColumn;
+        }
+    }
+}
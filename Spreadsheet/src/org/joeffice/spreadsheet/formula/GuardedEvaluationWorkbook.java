@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.formula;
+
+import org.apache.poi.ss.formula.EvaluationCell;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.udf.UDFFinder;
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * Evaluation workbook of a task of the parallel recalculation, reading the cells with the evaluation workbook
+ * of the engine.
+ *
+ * The POI workbooks are not thread safe, so the reads of the engine evaluation workbook are done holding a lock
+ * shared by all the tasks of the recalculation. Only the evaluation of the formulas is done in parallel.
+ * The formulas are recalculated by levels, so the formula cells other than the evaluated cell are read as
+ * their cached result, set when the previous levels were evaluated.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+class GuardedEvaluationWorkbook implements EvaluationWorkbook {
+
+    private EvaluationWorkbook workbook;
+    private Object lock;
+
+    // The formula cell being evaluated
+    private int evaluatedSheetIndex = -1;
+    private int evaluatedRow;
+    private int evaluatedColumn;
+
+    GuardedEvaluationWorkbook(EvaluationWorkbook workbook, Object lock) {
+        this.workbook = workbook;
+        this.lock = lock;
+    }
+
+    /**
+     * Gets the formula cell to evaluate, the other formula cells are read with their cached result.
+     */
+    EvaluationCell getEvaluatedCell(int sheetIndex, int rowIndex, int columnIndex) {
+        evaluatedSheetIndex = sheetIndex;
+        evaluatedRow = rowIndex;
+        evaluatedColumn = columnIndex;
+        return getSheet(sheetIndex).getCell(rowIndex, columnIndex);
+    }
+
+    @Override
+    public String getSheetName(int sheetIndex) {
+        synchronized (lock) {
+            return workbook.getSheetName(sheetIndex);
+        }
+    }
+
+    @Override
+    public int getSheetIndex(EvaluationSheet sheet) {
+        return ((GuardedSheet) sheet).sheetIndex;
+    }
+
+    @Override
+    public int getSheetIndex(String sheetName) {
+        synchronized (lock) {
+            return workbook.getSheetIndex(sheetName);
+        }
+    }
+
+    @Override
+    public EvaluationSheet getSheet(int sheetIndex) {
+        synchronized (lock) {
+            return new GuardedSheet(sheetIndex, workbook.getSheet(sheetIndex));
+        }
+    }
+
+    @Override
+    public ExternalSheet getExternalSheet(int externSheetIndex) {
+        synchronized (lock) {
+            return workbook.getExternalSheet(externSheetIndex);
+        }
+    }
+
+    @Override
+    public int convertFromExternSheetIndex(int externSheetIndex) {
+        synchronized (lock) {
+            return workbook.convertFromExternSheetIndex(externSheetIndex);
+        }
+    }
+
+    @Override
+    public ExternalName getExternalName(int externSheetIndex, int externNameIndex) {
+        synchronized (lock) {
+            return workbook.getExternalName(externSheetIndex, externNameIndex);
+        }
+    }
+
+    @Override
+    public EvaluationName getName(NamePtg namePtg) {
+        synchronized (lock) {
+            return workbook.getName(namePtg);
+        }
+    }
+
+    @Override
+    public EvaluationName getName(String name, int sheetIndex) {
+        synchronized (lock) {
+            return workbook.getName(name, sheetIndex);
+        }
+    }
+
+    @Override
+    public String resolveNameXText(NameXPtg ptg) {
+        synchronized (lock) {
+            return workbook.resolveNameXText(ptg);
+        }
+    }
+
+    @Override
+    public Ptg[] getFormulaTokens(EvaluationCell cell) {
+        synchronized (lock) {
+            return workbook.getFormulaTokens(((GuardedCell) cell).cell);
+        }
+    }
+
+    @Override
+    public UDFFinder getUDFFinder() {
+        synchronized (lock) {
+            return workbook.getUDFFinder();
+        }
+    }
+
+    /**
+     * A sheet of the engine evaluation workbook.
+     */
+    private class GuardedSheet implements EvaluationSheet {
+
+        private int sheetIndex;
+        private EvaluationSheet sheet;
+
+        private GuardedSheet(int sheetIndex, EvaluationSheet sheet) {
+            this.sheetIndex = sheetIndex;
+            this.sheet = sheet;
+        }
+
+        @Override
+        public EvaluationCell getCell(int rowIndex, int columnIndex) {
+            EvaluationCell cell;
+            synchronized (lock) {
+                cell = sheet.getCell(rowIndex, columnIndex);
+            }
+            if (cell == null) {
+                return null;
+            }
+            boolean evaluated = sheetIndex == evaluatedSheetIndex && rowIndex == evaluatedRow && columnIndex == evaluatedColumn;
+            return new GuardedCell(this, cell, evaluated);
+        }
+    }
+
+    /**
+     * A cell of the engine evaluation workbook.
+     */
+    private class GuardedCell implements EvaluationCell {
+
+        private GuardedSheet sheet;
+        private EvaluationCell cell;
+        private boolean evaluated;
+
+        private GuardedCell(GuardedSheet sheet, EvaluationCell cell, boolean evaluated) {
+            this.sheet = sheet;
+            this.cell = cell;
+            this.evaluated = evaluated;
+        }
+
+        @Override
+        public Object getIdentityKey() {
+            synchronized (lock) {
+                return cell.getIdentityKey();
+            }
+        }
+
+        @Override
+        public EvaluationSheet getSheet() {
+            return sheet;
+        }
+
+        @Override
+        public int getRowIndex() {
+            synchronized (lock) {
+                return cell.getRowIndex();
+            }
+        }
+
+        @Override
+        public int getColumnIndex() {
+            synchronized (lock) {
+                return cell.getColumnIndex();
+            }
+        }
+
+        @Override
+        public int getCellType() {
+            synchronized (lock) {
+                int cellType = cell.getCellType();
+                if (cellType == Cell.CELL_TYPE_FORMULA && !evaluated) {
+                    return cell.getCachedFormulaResultType();
+                }
+                return cellType;
+            }
+        }
+
+        @Override
+        public double getNumericCellValue() {
+            synchronized (lock) {
+                return cell.getNumericCellValue();
+            }
+        }
+
+        @Override
+        public String getStringCellValue() {
+            synchronized (lock) {
+                return cell.getStringCellValue();
+            }
+        }
+
+        @Override
+        public boolean getBooleanCellValue() {
+            synchronized (lock) {
+                return cell.getBooleanCellValue();
+            }
+        }
+
+        @Override
+        public int getErrorCellValue() {
+            synchronized (lock) {
+                return cell.getErrorCellValue();
+            }
+        }
+
+        @Override
+        public int getCachedFormulaResultType() {
+            synchronized (lock) {
+                return cell.getCachedFormulaResultType();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.formula;
+
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.poi.ss.formula.eval.AreaEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.EvaluationException;
+import org.apache.poi.ss.formula.eval.FunctionEval;
+import org.apache.poi.ss.formula.eval.MissingArgEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.OperandResolver;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.functions.Function;
+
+/**
+ * VLOOKUP, HLOOKUP, MATCH, COUNTIF and SUMIF searching the range with an index instead of going through all the cells.
+ *
+ * POI doesn't allow to replace its functions, so the functions are replaced in its function table.
+ * Only the exact match lookups and the equality criteria use the indexes,
+ * in all the other cases and when not evaluated by the {@link FormulaEngine} the POI function is called.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+class IndexedLookupFunctions {
+
+    // Indexes of the functions in POI function table
+    private final static int MATCH = 64;
+    private final static int HLOOKUP = 101;
+    private final static int VLOOKUP = 102;
+    private final static int SUMIF = 345;
+    private final static int COUNTIF = 346;
+
+    private static boolean installed;
+
+    /**
+     * Replaces the POI lookup functions with the indexed ones.
+     */
+    static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        try {
+            Field functionsField = FunctionEval.class.getDeclaredField("functions");
+            functionsField.setAccessible(true);
+            Function[] functions = (Function[]) functionsField.get(null);
+            for (int functionIndex : new int[] {MATCH, HLOOKUP, VLOOKUP, SUMIF, COUNTIF}) {
+                functions[functionIndex] = new IndexedFunction(functionIndex, functions[functionIndex]);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException | SecurityException ex) {
+            Logger.getLogger(IndexedLookupFunctions.class.getName()).log(Level.INFO, "Lookup functions not indexed", ex);
+        }
+    }
+
+    /**
+     * A lookup function using the indexes of the current thread if possible.
+     */
+    private static class IndexedFunction implements Function {
+
+        private int functionIndex;
+        private Function poiFunction;
+
+        private IndexedFunction(int functionIndex, Function poiFunction) {
+            this.functionIndex = functionIndex;
+            this.poiFunction = poiFunction;
+        }
+
+        @Override
+        public ValueEval evaluate(ValueEval[] args, int srcRowIndex, int srcColumnIndex) {
+            LookupIndexes lookupIndexes = LookupIndexes.getCurrent();
+            if (lookupIndexes != null) {
+                try {
+                    ValueEval result = evaluate(lookupIndexes, args, srcRowIndex, srcColumnIndex);
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (EvaluationException ex) {
+                    // Let POI return the error
+                }
+            }
+            return poiFunction.evaluate(args, srcRowIndex, srcColumnIndex);
+        }
+
+        /**
+         * Evaluates the function with an index or returns null if it's not possible.
+         */
+        private ValueEval evaluate(LookupIndexes lookupIndexes, ValueEval[] args, int srcRowIndex, int srcColumnIndex) throws EvaluationException {
+            if (args.length < 2) {
+                return null;
+            }
+            switch (functionIndex) {
+                case VLOOKUP:
+                    return lookup(lookupIndexes, args, srcRowIndex, srcColumnIndex, true);
+                case HLOOKUP:
+                    return lookup(lookupIndexes, args, srcRowIndex, srcColumnIndex, false);
+                case MATCH:
+                    return match(lookupIndexes, args, srcRowIndex, srcColumnIndex);
+                case COUNTIF:
+                case SUMIF:
+                    return countOrSum(lookupIndexes, args, srcRowIndex, srcColumnIndex);
+                default:
+                    return null;
+            }
+        }
+
+        private ValueEval lookup(LookupIndexes lookupIndexes, ValueEval[] args, int srcRowIndex, int srcColumnIndex, boolean vertical) throws EvaluationException {
+            if (args.length < 3 || args.length > 4 || !(args[1] instanceof AreaEval)) {
+                return null;
+            }
+            if (args.length == 3 || getBoolean(args[3], srcRowIndex, srcColumnIndex)) {
+                return null; // Sorted range, POI already uses a binary search
+            }
+            AreaEval table = (AreaEval) args[1];
+            AreaEval searchedRange = vertical ? table.offset(0, table.getHeight() - 1, 0, 0) : table.offset(0, 0, 0, table.getWidth() - 1);
+            int resultIndex = OperandResolver.coerceValueToInt(OperandResolver.getSingleValue(args[2], srcRowIndex, srcColumnIndex)) - 1;
+            int resultCount = vertical ? table.getWidth() : table.getHeight();
+            if (resultIndex < 0 || resultIndex >= resultCount) {
+                return null;
+            }
+            int position = find(lookupIndexes, searchedRange, args[0], srcRowIndex, srcColumnIndex);
+            if (position == -2) {
+                return null;
+            } else if (position == -1) {
+                return ErrorEval.NA;
+            }
+            return vertical ? table.getRelativeValue(position, resultIndex) : table.getRelativeValue(resultIndex, position);
+        }
+
+        private ValueEval match(LookupIndexes lookupIndexes, ValueEval[] args, int srcRowIndex, int srcColumnIndex) throws EvaluationException {
+            if (args.length != 3 || !(args[1] instanceof AreaEval)) {
+                return null; // The default match type is for sorted ranges
+            }
+            int matchType = OperandResolver.coerceValueToInt(OperandResolver.getSingleValue(args[2], srcRowIndex, srcColumnIndex));
+            AreaEval searchedRange = (AreaEval) args[1];
+            if (matchType != 0 || (searchedRange.getWidth() != 1 && searchedRange.getHeight() != 1)) {
+                return null;
+            }
+            int position = find(lookupIndexes, searchedRange, args[0], srcRowIndex, srcColumnIndex);
+            if (position == -2) {
+                return null;
+            } else if (position == -1) {
+                return ErrorEval.NA;
+            }
+            return new NumberEval(position + 1);
+        }
+
+        /**
+         * Finds the first position of the value in the range.
+         *
+         * @return the position, -1 if not found or -2 if the index can't be used
+         */
+        private int find(LookupIndexes lookupIndexes, AreaEval searchedRange, ValueEval searchedValue, int srcRowIndex, int srcColumnIndex) throws EvaluationException {
+            if (searchedRange.getWidth() * searchedRange.getHeight() < LookupIndexes.MIN_INDEXED_CELLS) {
+                return -2;
+            }
+            Object key = LookupIndexes.getLookupKey(OperandResolver.getSingleValue(searchedValue, srcRowIndex, srcColumnIndex));
+            if (key == null) {
+                return -2;
+            }
+            LookupIndexes.RangeIndex index = lookupIndexes.getIndex(searchedRange, false);
+            if (index == null) {
+                return -2;
+            }
+            int[] positions = index.getPositions(key);
+            return positions.length == 0 ? -1 : positions[0];
+        }
+
+        private ValueEval countOrSum(LookupIndexes lookupIndexes, ValueEval[] args, int srcRowIndex, int srcColumnIndex) throws EvaluationException {
+            if (!(args[0] instanceof AreaEval) || args.length > (functionIndex == SUMIF ? 3 : 2)) {
+                return null;
+            }
+            AreaEval range = (AreaEval) args[0];
+            AreaEval sumRange = range;
+            if (args.length == 3) {
+                if (!(args[2] instanceof AreaEval)) {
+                    return null;
+                }
+                sumRange = (AreaEval) args[2];
+                if (sumRange.getWidth() != range.getWidth() || sumRange.getHeight() != range.getHeight()) {
+                    return null;
+                }
+            }
+            if (range.getWidth() * range.getHeight() < LookupIndexes.MIN_INDEXED_CELLS) {
+                return null;
+            }
+            Object key = LookupIndexes.getCriteriaKey(OperandResolver.getSingleValue(args[1], srcRowIndex, srcColumnIndex));
+            if (key == null) {
+                return null;
+            }
+            LookupIndexes.RangeIndex index = lookupIndexes.getIndex(range, true);
+            if (index == null) {
+                return null;
+            }
+            int[] positions = index.getPositions(key);
+            if (functionIndex == COUNTIF) {
+                return new NumberEval(positions.length);
+            }
+            double sum = 0;
+            int width = index.getWidth();
+            for (int position : positions) {
+                ValueEval value = sumRange.getRelativeValue(position / width, position % width);
+                if (value instanceof NumberEval) {
+                    sum += ((NumberEval) value).getNumberValue();
+                }
+            }
+            return new NumberEval(sum);
+        }
+
+        /**
+         * Gets the range lookup argument, a blank argument is false like in Excel.
+         */
+        private static boolean getBoolean(ValueEval arg, int srcRowIndex, int srcColumnIndex) throws EvaluationException {
+            if (arg == MissingArgEval.instance) {
+                return false;
+            }
+            Boolean value = OperandResolver.coerceValueToBoolean(OperandResolver.getSingleValue(arg, srcRowIndex, srcColumnIndex), false);
+            return value != null && value;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.formula;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.poi.ss.formula.eval.AreaEval;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.OperandResolver;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+
+/**
+ * Indexes of the values of the ranges used by the lookup functions of a workbook.
+ *
+ * An index is built the first time a range is searched and kept until a cell of the range changes.
+ * The indexes are only used for the formulas evaluated by the {@link FormulaEngine} of the workbook,
+ * the engine sets the indexes of its workbook as current for the thread during the evaluation.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+class LookupIndexes {
+
+    // Smaller ranges are searched as fast by POI
+    final static int MIN_INDEXED_CELLS = 100;
+
+    private final static ThreadLocal<LookupIndexes> CURRENT = new ThreadLocal<>();
+
+    private Map<String, RangeIndex> indexes = new ConcurrentHashMap<>();
+
+    static LookupIndexes getCurrent() {
+        return CURRENT.get();
+    }
+
+    static void setCurrent(LookupIndexes lookupIndexes) {
+        if (lookupIndexes == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(lookupIndexes);
+        }
+    }
+
+    /**
+     * Gets the index of the range or null if the sheet of the range is not known.
+     * The sheet of the range is identified by its name as the indexes are for the sheets of one workbook.
+     *
+     * @param criteria true to index the values as the criteria of COUNTIF and SUMIF, false as lookup values
+     */
+    RangeIndex getIndex(AreaEval range, boolean criteria) {
+        String sheetName = getSheetName(range);
+        if (sheetName == null) {
+            return null;
+        }
+        String key = sheetName + '!' + range.getFirstRow() + ':' + range.getFirstColumn() + ':' + range.getLastRow() + ':' + range.getLastColumn() + ':' + criteria;
+        RangeIndex index = indexes.get(key);
+        if (index == null) {
+            index = new RangeIndex(sheetName, range, criteria);
+            indexes.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Gets the name of the sheet of the range.
+     * POI doesn't give access to the sheet of the range, only its description contains the sheet name.
+     */
+    private static String getSheetName(AreaEval range) {
+        String description = range.toString();
+        int sheetStart = description.indexOf('[');
+        int sheetEnd = description.lastIndexOf('!');
+        if (sheetStart == -1 || sheetEnd <= sheetStart) {
+            return null;
+        }
+        return description.substring(sheetStart + 1, sheetEnd);
+    }
+
+    /**
+     * Removes the indexes of the ranges containing the cell.
+     */
+    void invalidate(String sheetName, int rowIndex, int columnIndex) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        Iterator<RangeIndex> itIndexes = indexes.values().iterator();
+        while (itIndexes.hasNext()) {
+            if (itIndexes.next().contains(sheetName, rowIndex, columnIndex)) {
+                itIndexes.remove();
+            }
+        }
+    }
+
+    void invalidateAll() {
+        indexes.clear();
+    }
+
+    /**
+     * Gets the key of a value to look up, null if the value can't be searched with an index.
+     */
+    static Object getLookupKey(ValueEval value) {
+        if (value instanceof NumberEval) {
+            return ((NumberEval) value).getNumberValue();
+        } else if (value instanceof StringEval) {
+            String text = ((StringEval) value).getStringValue();
+            if (hasWildcard(text)) {
+                return null;
+            }
+            return text.toLowerCase(Locale.ROOT);
+        } else if (value instanceof BoolEval) {
+            return ((BoolEval) value).getBooleanValue();
+        }
+        return null;
+    }
+
+    /**
+     * Gets the key of a COUNTIF or SUMIF criteria, null if it's not a simple equality criteria.
+     */
+    static Object getCriteriaKey(ValueEval criteria) {
+        if (criteria instanceof NumberEval) {
+            return ((NumberEval) criteria).getNumberValue();
+        } else if (criteria instanceof StringEval) {
+            String text = ((StringEval) criteria).getStringValue();
+            if (text.isEmpty() || "=<>#".indexOf(text.charAt(0)) != -1 || hasWildcard(text)
+                    || OperandResolver.parseDouble(text) != null
+                    || text.equalsIgnoreCase("TRUE") || text.equalsIgnoreCase("FALSE")) {
+                return null;
+            }
+            return text.toLowerCase(Locale.ROOT);
+        }
+        return null;
+    }
+
+    private static boolean hasWildcard(String text) {
+        return text.indexOf('*') != -1 || text.indexOf('?') != -1 || text.indexOf('~') != -1;
+    }
+
+    /**
+     * The positions of the values of a range, the position of a cell is row * width + column.
+     */
+    static class RangeIndex {
+
+        private final static int[] NO_POSITIONS = new int[0];
+
+        private String sheetName;
+        private int firstRow;
+        private int lastRow;
+        private int firstColumn;
+        private int lastColumn;
+        private int width;
+        private Map<Object, int[]> positions = new HashMap<>();
+
+        private RangeIndex(String sheetName, AreaEval range, boolean criteria) {
+            this.sheetName = sheetName;
+            firstRow = range.getFirstRow();
+            lastRow = range.getLastRow();
+            firstColumn = range.getFirstColumn();
+            lastColumn = range.getLastColumn();
+            width = range.getWidth();
+            int height = range.getHeight();
+            Map<Object, Integer> counts = new HashMap<>();
+            for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+                for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                    ValueEval value = range.getRelativeValue(rowIndex, columnIndex);
+                    addPosition(getValueKey(value), rowIndex * width + columnIndex, counts);
+                    if (criteria && value instanceof StringEval) {
+                        // COUNTIF(A1:A10, 5) also counts the text "5"
+                        Double number = OperandResolver.parseDouble(((StringEval) value).getStringValue());
+                        addPosition(number, rowIndex * width + columnIndex, counts);
+                    }
+                }
+            }
+            for (Map.Entry<Object, Integer> count : counts.entrySet()) {
+                int[] valuePositions = positions.get(count.getKey());
+                if (valuePositions.length != count.getValue()) {
+                    positions.put(count.getKey(), Arrays.copyOf(valuePositions, count.getValue()));
+                }
+            }
+        }
+
+        private static Object getValueKey(ValueEval value) {
+            if (value instanceof StringEval) {
+                return ((StringEval) value).getStringValue().toLowerCase(Locale.ROOT);
+            }
+            return getLookupKey(value);
+        }
+
+        private void addPosition(Object key, int position, Map<Object, Integer> counts) {
+            if (key == null) {
+                return;
+            }
+            int[] valuePositions = positions.get(key);
+            Integer count = counts.get(key);
+            if (valuePositions == null) {
+                valuePositions = new int[1];
+                count = 0;
+            } else if (count == valuePositions.length) {
+                valuePositions = Arrays.copyOf(valuePositions, count * 2);
+            }
+            valuePositions[count] = position;
+            positions.put(key, valuePositions);
+            counts.put(key, count + 1);
+        }
+
+        /**
+         * Gets the positions of the value in the range, in row then column order.
+         */
+        int[] getPositions(Object key) {
+            int[] valuePositions = positions.get(key);
+            return valuePositions == null ? NO_POSITIONS : valuePositions;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        boolean contains(String sheetName, int rowIndex, int columnIndex) {
+            return this.sheetName.equals(sheetName) && rowIndex >= firstRow && rowIndex <= lastRow && columnIndex >= firstColumn && columnIndex <= lastColumn;
+        }
+    }
+}
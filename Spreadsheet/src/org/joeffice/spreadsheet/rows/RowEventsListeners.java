@@ -28,7 +28,8 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableModel;
 
 import org.openide.util.Utilities;
 
@@ -55,9 +56,13 @@ public class RowEventsListeners implements PropertyChangeListener, ListSelection
         if (property.equals("singleRowHeight")) {
             int rowChanged = (Integer) evt.getNewValue();
             int newHeight = rowTable.getDataTable().getRowHeight(rowChanged);
-            if (newHeight != rowTable.getRowHeight(rowChanged)) {
-                rowTable.setRowHeight(rowChanged, newHeight);
-            }
+            rowTable.rowHeightChanged(rowChanged, newHeight);
+        }
+        if (property.equals("model")) {
+            ((TableModel) evt.getOldValue()).removeTableModelListener(this);
+            ((TableModel) evt.getNewValue()).addTableModelListener(this);
+            ((AbstractTableModel) rowTable.getModel()).fireTableDataChanged();
+            rowTable.updateWidth();
         }
     }
 
@@ -108,16 +113,21 @@ public class RowEventsListeners implements PropertyChangeListener, ListSelection
 
     @Override
     public void tableChanged(TableModelEvent tme) {
-        int row = tme.getFirstRow();
+        AbstractTableModel rowModel = (AbstractTableModel) rowTable.getModel();
+        int firstRow = tme.getFirstRow();
+        int lastRow = tme.getLastRow();
         if (tme.getType() == TableModelEvent.INSERT) {
-            Object[] data = new Object[] {row + 1};
-            ((DefaultTableModel) rowTable.getModel()).insertRow(row + 1, data);
+            rowModel.fireTableRowsInserted(firstRow, lastRow);
+            rowTable.updateWidth();
         }
         if (tme.getType() == TableModelEvent.DELETE) {
-            ((DefaultTableModel) rowTable.getModel()).removeRow(row);
+            rowModel.fireTableRowsDeleted(firstRow, lastRow);
+            rowTable.updateWidth();
         }
-        if (tme.getType() == TableModelEvent.UPDATE) {
-            ((DefaultTableModel) rowTable.getModel()).fireTableStructureChanged();
+        // The row numbers don't change when cells are updated
+        if (tme.getType() == TableModelEvent.UPDATE && (firstRow == TableModelEvent.HEADER_ROW || lastRow == Integer.MAX_VALUE)) {
+            rowModel.fireTableDataChanged();
+            rowTable.updateWidth();
         }
     }
 }
@@ -23,21 +23,30 @@ import javax.swing.table.TableCellRenderer;
 
 /**
  * The renderer for the row headers.
+ * The button is configured once as it's only used to paint the row numbers.
  *
  * @author Anthony Goubard - Japplis
  */
 public class RowHeadersRenderer extends JToggleButton implements TableCellRenderer {
 
     public RowHeadersRenderer() {
+        setBorderPainted(false);
+        setBorder(null);
+        setMargin(new Insets(0, 0, 0, 0));
+        setContentAreaFilled(false);
     }
 
     @Override
     public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
-        setBorderPainted(false);
+        setText(value != null ? value.toString() : String.valueOf(row + 1));
+        return this;
+    }
+
+    @Override
+    public void updateUI() {
+        super.updateUI();
+        // The look and feel installs a border and margin
         setBorder(null);
         setMargin(new Insets(0, 0, 0, 0));
-        setContentAreaFilled(false);
-        setText("" + value);
-        return this;
     }
 }
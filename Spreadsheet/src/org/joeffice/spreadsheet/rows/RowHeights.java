@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.rows;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Sparse model of the row heights shared by the data table and the row table.
+ *
+ * Only the rows that don't have the default height are kept, sorted by row index, with a Fenwick tree of
+ * their difference with the default height.
+ * Getting the position of a row or the row at a position is a binary search on these rows.
+ * Changing the height of a row or setting the heights in the order of the rows (as done when loading a sheet)
+ * updates the tree in O(log n), adding or removing a specific height before the last one rebuilds it in one pass.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class RowHeights {
+
+    private int defaultHeight;
+
+    private int count;
+    private int[] rows = new int[16];
+    private int[] heights = new int[16];
+
+    // Fenwick tree of the (height - default height), differenceTree[i] is the sum for the rows at the indexes
+    // i - (i & -i) to i - 1
+    private long[] differenceTree = new long[17];
+
+    public RowHeights(int defaultHeight) {
+        this.defaultHeight = defaultHeight;
+    }
+
+    public int getDefaultHeight() {
+        return defaultHeight;
+    }
+
+    /**
+     * Sets the default height and removes all the specific row heights.
+     */
+    public void reset(int defaultHeight) {
+        this.defaultHeight = defaultHeight;
+        count = 0;
+    }
+
+    public int getHeight(int row) {
+        int index = Arrays.binarySearch(rows, 0, count, row);
+        return index >= 0 ? heights[index] : defaultHeight;
+    }
+
+    public void setHeight(int row, int height) {
+        int index = Arrays.binarySearch(rows, 0, count, row);
+        if (index >= 0) {
+            if (height == defaultHeight) {
+                remove(index, 1);
+            } else {
+                addDifference(index, height - heights[index]);
+                heights[index] = height;
+            }
+        } else if (height != defaultHeight) {
+            insert(-index - 1, row, height);
+        }
+    }
+
+    /**
+     * Gets the y position of the top of the row.
+     */
+    public int getPosition(int row) {
+        int index = lowerBound(row);
+        return (int) ((long) row * defaultHeight + getDifferenceSum(index));
+    }
+
+    /**
+     * Gets the row at the y position.
+     */
+    public int getRow(int y) {
+        int low = 0;
+        int high = count - 1;
+        int index = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getPositionAt(middle) <= y) {
+                index = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (index == -1) {
+            return y / defaultHeight;
+        }
+        long rowBottom = getPositionAt(index) + heights[index];
+        if (y < rowBottom) {
+            return rows[index];
+        }
+        return (int) (rows[index] + 1 + (y - rowBottom) / defaultHeight);
+    }
+
+    /**
+     * Moves the heights of the rows at or after the first row down.
+     */
+    public void insertRows(int firstRow, int rowCount) {
+        int index = lowerBound(firstRow);
+        for (int i = index; i < count; i++) {
+            rows[i] += rowCount;
+        }
+    }
+
+    /**
+     * Removes the heights of the rows and moves the heights of the rows after them up.
+     */
+    public void removeRows(int firstRow, int rowCount) {
+        int index = lowerBound(firstRow);
+        int removedCount = lowerBound(firstRow + rowCount) - index;
+        remove(index, removedCount);
+        for (int i = index; i < count; i++) {
+            rows[i] -= rowCount;
+        }
+    }
+
+    /**
+     * Replaces the y and height of the cell bounds calculated by JTable with the ones of this model.
+     */
+    public Rectangle getCellRect(Rectangle cellBounds, int row, int rowCount, int rowMargin, boolean includeSpacing) {
+        if (row >= 0 && row < rowCount) {
+            cellBounds.y = getPosition(row);
+            cellBounds.height = getHeight(row);
+            if (!includeSpacing) {
+                cellBounds.y += rowMargin / 2;
+                cellBounds.height -= rowMargin;
+            }
+        } else if (row >= rowCount && rowCount > 0) {
+            cellBounds.y = getPosition(rowCount);
+        }
+        return cellBounds;
+    }
+
+    /**
+     * Gets the row at the point as JTable.rowAtPoint does.
+     */
+    public int rowAtPoint(Point point, int rowCount) {
+        if (point.y < 0) {
+            return -1;
+        }
+        int row = getRow(point.y);
+        return row < rowCount ? row : -1;
+    }
+
+    private long getPositionAt(int index) {
+        return (long) rows[index] * defaultHeight + getDifferenceSum(index);
+    }
+
+    /**
+     * Index of the first row with a specific height that is at or after the given row.
+     */
+    private int lowerBound(int row) {
+        int index = Arrays.binarySearch(rows, 0, count, row);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Sum of the (height - default height) of the rows before rows[index].
+     */
+    private long getDifferenceSum(int index) {
+        long sum = 0;
+        for (int i = index; i > 0; i -= i & -i) {
+            sum += differenceTree[i];
+        }
+        return sum;
+    }
+
+    private void addDifference(int index, int difference) {
+        for (int i = index + 1; i <= count; i += i & -i) {
+            differenceTree[i] += difference;
+        }
+    }
+
+    private void rebuildTree() {
+        for (int i = 1; i <= count; i++) {
+            differenceTree[i] = heights[i - 1] - defaultHeight;
+        }
+        for (int i = 1; i <= count; i++) {
+            int parent = i + (i & -i);
+            if (parent <= count) {
+                differenceTree[parent] += differenceTree[i];
+            }
+        }
+    }
+
+    private void insert(int index, int row, int height) {
+        if (count == rows.length) {
+            rows = Arrays.copyOf(rows, count * 2);
+            heights = Arrays.copyOf(heights, count * 2);
+            differenceTree = Arrays.copyOf(differenceTree, count * 2 + 1);
+        }
+        System.arraycopy(rows, index, rows, index + 1, count - index);
+        System.arraycopy(heights, index, heights, index + 1, count - index);
+        rows[index] = row;
+        heights[index] = height;
+        count++;
+        if (index == count - 1) {
+            // The new node covers the rows from count - (count & -count) to the added row
+            differenceTree[count] = height - defaultHeight + getDifferenceSum(index) - getDifferenceSum(count - (count & -count));
+        } else {
+            rebuildTree();
+        }
+    }
+
+    private void remove(int index, int removedCount) {
+        if (removedCount <= 0) {
+            return;
+        }
+        System.arraycopy(rows, index + removedCount, rows, index, count - index - removedCount);
+        System.arraycopy(heights, index + removedCount, heights, index, count - index - removedCount);
+        count -= removedCount;
+        // The nodes of the rows before the removed ones don't change
+        if (index < count) {
+            rebuildTree();
+        }
+    }
+}
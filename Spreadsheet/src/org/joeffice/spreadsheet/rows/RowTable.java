@@ -16,36 +16,46 @@
 package org.joeffice.spreadsheet.rows;
 
 import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
 import javax.swing.LookAndFeel;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.JTableHeader;
+import javax.swing.table.TableColumn;
 import javax.swing.table.TableModel;
 
+import org.joeffice.spreadsheet.SheetTable;
+
 /**
  * Table used to displays the row numbers next to the data table.
  *
+ * The model doesn't store anything per row, the row numbers are computed when the visible rows are painted.
+ *
  * @author Anthony Goubard - Japplis
  */
 public class RowTable extends JTable {
 
+    private final static int MIN_WIDTH = 40;
+    private final static int LABEL_MARGINS = 8;
+
     private JTable dataTable;
+    private RowHeights rowHeights;
 
     public RowTable(JTable dataTable) {
         this.dataTable = dataTable;
+        rowHeights = createRowHeights();
         TableModel rowModel = createRowTableModel();
         setModel(rowModel);
         LookAndFeel.installColorsAndFont(this, "TableHeader.background", "TableHeader.foreground", "TableHeader.font");
 
+        setAutoCreateColumnsFromModel(false);
         getColumnModel().getColumn(0).setHeaderValue("");
-        getColumnModel().getColumn(0).setPreferredWidth(40);
-        Dimension d = getPreferredScrollableViewportSize();
-        d.width = getPreferredSize().width;
-        setPreferredScrollableViewportSize(d);
+        updateWidth();
         setRowHeight(dataTable.getRowHeight());
         RowHeadersRenderer rowRenderer = new RowHeadersRenderer();
-        setDefaultRenderer(String.class, rowRenderer); // This doesn't work!
+        setDefaultRenderer(String.class, rowRenderer);
         getColumnModel().getColumn(0).setCellRenderer(rowRenderer);
         setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
 
@@ -53,30 +63,37 @@ public class RowTable extends JTable {
         corner.setReorderingAllowed(false);
         corner.setResizingAllowed(false);
 
-        // Add listener for setRowHeight from the data table
-        int rowCount = dataTable.getRowCount();
-        for (int rowIndex = 0; rowIndex < rowCount; rowIndex++) {
-            int currentRowHeight = dataTable.getRowHeight(rowIndex);
-            if (currentRowHeight != getRowHeight(rowIndex)) {
-                setRowHeight(rowIndex, currentRowHeight);
-            }
-        }
-
         // Listeners
         RowEventsListeners rowListeners = new RowEventsListeners(this);
         dataTable.addPropertyChangeListener("rowHeight", rowListeners);
         dataTable.addPropertyChangeListener("singleRowHeight", rowListeners);
+        dataTable.addPropertyChangeListener("model", rowListeners);
         new TableRowResizer(this);
         getSelectionModel().addListSelectionListener(rowListeners);
         dataTable.getModel().addTableModelListener(rowListeners);
         addMouseListener(rowListeners);
     }
 
+    /**
+     * The row heights are shared with the data table when it's a sheet table, otherwise they are copied.
+     */
+    private RowHeights createRowHeights() {
+        if (dataTable instanceof SheetTable) {
+            return ((SheetTable) dataTable).getRowHeights();
+        }
+        RowHeights dataRowHeights = new RowHeights(dataTable.getRowHeight());
+        int rowCount = dataTable.getRowCount();
+        for (int rowIndex = 0; rowIndex < rowCount; rowIndex++) {
+            dataRowHeights.setHeight(rowIndex, dataTable.getRowHeight(rowIndex));
+        }
+        return dataRowHeights;
+    }
+
     private TableModel createRowTableModel() {
-        DefaultTableModel rowTableModel = new DefaultTableModel(dataTable.getRowCount(), 1) {
+        AbstractTableModel rowTableModel = new AbstractTableModel() {
             @Override
             public Object getValueAt(int rowIndex, int columnIndex) {
-                return "" + (rowIndex + 1);
+                return String.valueOf(rowIndex + 1);
             }
 
             @Override
@@ -84,25 +101,84 @@ public class RowTable extends JTable {
                 return "";
             }
 
+            @Override
+            public Class<?> getColumnClass(int columnIndex) {
+                return String.class;
+            }
+
             @Override
             public int getRowCount() {
                 return dataTable.getRowCount();
             }
 
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
+            public int getColumnCount() {
+                return 1;
             }
         };
         return rowTableModel;
     }
 
+    /**
+     * Adapts the width of the row table to the number of digits of the last row.
+     */
+    void updateWidth() {
+        String lastRowLabel = String.valueOf(Math.max(getRowCount(), 1));
+        int width = Math.max(MIN_WIDTH, getFontMetrics(getFont()).stringWidth(lastRowLabel) + LABEL_MARGINS);
+        TableColumn rowColumn = getColumnModel().getColumn(0);
+        if (rowColumn.getPreferredWidth() != width) {
+            rowColumn.setPreferredWidth(width);
+            Dimension d = getPreferredScrollableViewportSize();
+            d.width = width;
+            setPreferredScrollableViewportSize(d);
+            revalidate();
+        }
+    }
+
+    @Override
+    public void setRowHeight(int rowHeight) {
+        super.setRowHeight(rowHeight);
+        if (rowHeights != null && rowHeights.getDefaultHeight() != rowHeight) {
+            rowHeights.reset(rowHeight);
+        }
+    }
+
     @Override
     public void setRowHeight(int row, int rowHeight) {
-        super.setRowHeight(row, rowHeight);
+        rowHeightChanged(row, rowHeight);
         dataTable.setRowHeight(row, rowHeight);
     }
 
+    /**
+     * Called when the height of a row of the data table has changed.
+     */
+    void rowHeightChanged(int row, int rowHeight) {
+        rowHeights.setHeight(row, rowHeight);
+        resizeAndRepaint();
+    }
+
+    @Override
+    public int getRowHeight(int row) {
+        return rowHeights == null ? super.getRowHeight(row) : rowHeights.getHeight(row);
+    }
+
+    @Override
+    public int rowAtPoint(Point point) {
+        if (rowHeights == null) {
+            return super.rowAtPoint(point);
+        }
+        return rowHeights.rowAtPoint(point, getRowCount());
+    }
+
+    @Override
+    public Rectangle getCellRect(int row, int column, boolean includeSpacing) {
+        Rectangle cellBounds = super.getCellRect(row, column, includeSpacing);
+        if (rowHeights == null) {
+            return cellBounds;
+        }
+        return rowHeights.getCellRect(cellBounds, row, getRowCount(), getRowMargin(), includeSpacing);
+    }
+
     public JTable getDataTable() {
         return dataTable;
     }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.sequence;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Sequence of dates written as year-month-day (eg. 2013-01-31 2013-03-31 2013-05-31 ...)
+ *
+ * The dates are separated by the same number of days or, when they're on the same day of the month,
+ * by the same number of months.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class DateSequence implements Sequence {
+
+    public final static String DATE_PATTERN = "yyyy-MM-dd";
+
+    private final static long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private DateFormat dateFormat;
+    private Calendar calendar;
+
+    public DateSequence() {
+        // No daylight saving time so that the days have the same length
+        TimeZone timeZone = TimeZone.getTimeZone("UTC");
+        dateFormat = new SimpleDateFormat(DATE_PATTERN);
+        dateFormat.setTimeZone(timeZone);
+        dateFormat.setLenient(false);
+        calendar = Calendar.getInstance(timeZone);
+        dateFormat.setCalendar(calendar);
+    }
+
+    @Override
+    public List<String> getNextValues(List<String> previousValues, int count) {
+        if (previousValues.isEmpty()) {
+            return null;
+        }
+        long[] days = new long[previousValues.size()];
+        int[] months = new int[previousValues.size()];
+        boolean sameDayOfMonth = true;
+        int dayOfMonth = 0;
+        try {
+            for (int i = 0; i < days.length; i++) {
+                String value = previousValues.get(i);
+                if (value.length() != DATE_PATTERN.length()) {
+                    return null;
+                }
+                Date date = dateFormat.parse(value);
+                days[i] = date.getTime() / DAY_MILLIS;
+                calendar.setTime(date);
+                months[i] = calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+                if (i == 0) {
+                    dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
+                } else {
+                    sameDayOfMonth &= calendar.get(Calendar.DAY_OF_MONTH) == dayOfMonth;
+                }
+            }
+        } catch (ParseException ex) {
+            return null;
+        }
+        int lastIndex = days.length - 1;
+        long dayIncrementation = days.length < 2 ? 1 : days[1] - days[0];
+        boolean sameDayIncrementation = true;
+        for (int i = 2; i < days.length && sameDayIncrementation; i++) {
+            sameDayIncrementation = days[i] - days[i - 1] == dayIncrementation;
+        }
+        int monthIncrementation = days.length < 2 ? 0 : months[1] - months[0];
+        boolean sameMonthIncrementation = sameDayOfMonth && monthIncrementation != 0;
+        for (int i = 2; i < days.length && sameMonthIncrementation; i++) {
+            sameMonthIncrementation = months[i] - months[i - 1] == monthIncrementation;
+        }
+        List<String> nextValues = new ArrayList<>(count);
+        if (sameMonthIncrementation) {
+            // From the first date as the day of the month may be missing in the last month (eg. 31)
+            Date firstDate = new Date(days[0] * DAY_MILLIS);
+            for (int i = 1; i <= count; i++) {
+                calendar.setTime(firstDate);
+                calendar.add(Calendar.MONTH, (lastIndex + i) * monthIncrementation);
+                nextValues.add(dateFormat.format(calendar.getTime()));
+            }
+        } else if (sameDayIncrementation) {
+            for (int i = 1; i <= count; i++) {
+                nextValues.add(dateFormat.format(new Date((days[lastIndex] + i * dayIncrementation) * DAY_MILLIS)));
+            }
+        } else {
+            return null;
+        }
+        return nextValues;
+    }
+}
@@ -58,14 +58,19 @@ public class DateStringSequence implements Sequence {
     }
 
     @Override
-    public String getNextValue(List<String> previousValues) {
+    public List<String> getNextValues(List<String> previousValues, int count) {
+        if (previousValues.isEmpty()) {
+            return null;
+        }
         String lastValue = previousValues.get(previousValues.size() - 1);
         for (List<String> dateSequence : dateSequences) {
             int lastValueIndex = dateSequence.indexOf(lastValue);
-            if (lastValueIndex == dateSequence.size() - 1) {
-                return dateSequence.get(0);
-            } else if (lastValueIndex >= 0) {
-                return dateSequence.get(lastValueIndex + 1);
+            if (lastValueIndex >= 0) {
+                List<String> nextValues = new ArrayList<>(count);
+                for (int i = 1; i <= count; i++) {
+                    nextValues.add(dateSequence.get((lastValueIndex + i) % dateSequence.size()));
+                }
+                return nextValues;
             }
         }
         return null;
@@ -15,6 +15,7 @@
  */
 package org.joeffice.spreadsheet.sequence;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -25,7 +26,7 @@ import java.util.List;
 public class IdentitySequence implements Sequence {
 
     @Override
-    public String getNextValue(List<String> previousValues) {
+    public List<String> getNextValues(List<String> previousValues, int count) {
         String lastValue = null;
         for (String value : previousValues) {
             if (lastValue == null) {
@@ -34,6 +35,9 @@ public class IdentitySequence implements Sequence {
                 return null;
             }
         }
-        return lastValue;
+        if (lastValue == null) {
+            return null;
+        }
+        return Collections.nCopies(count, lastValue);
     }
 }
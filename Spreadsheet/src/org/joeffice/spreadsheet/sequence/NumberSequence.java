@@ -15,45 +15,70 @@
  */
 package org.joeffice.spreadsheet.sequence;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Completes the sequence based on the same incrementation.
+ * Completes the sequence based on the same incrementation or on the same multiplication.
  *
  * @author Anthony Goubard - Japplis
  */
 public class NumberSequence implements Sequence {
 
+    // The numbers are compared and written without the rounding errors of the doubles
+    private final static double PRECISION = 1e-9;
+    private final static MathContext SIGNIFICANT_DIGITS = new MathContext(15);
+
     @Override
-    public String getNextValue(List<String> previousValues) {
-        double incrementation = 1.0;
-        boolean firstValue = true;
-        boolean secondValue = true;
-        double previousValue = 0.0;
-        for (String value : previousValues) {
+    public List<String> getNextValues(List<String> previousValues, int count) {
+        double[] numbers = new double[previousValues.size()];
+        for (int i = 0; i < numbers.length; i++) {
             try {
-                double numberValue = Double.parseDouble(value);
-                if (firstValue) {
-                    previousValue = numberValue;
-                    firstValue = false;
-                } else {
-                    double lastIncrementation = numberValue - previousValue;
-                    if (secondValue) {
-                        incrementation = lastIncrementation;
-                        secondValue = false;
-                    } else if (incrementation != lastIncrementation) {
-                        return null;
-                    }
-                    previousValue = numberValue;
-                }
+                numbers[i] = Double.parseDouble(previousValues.get(i));
             } catch (NumberFormatException ex) {
                 return null;
             }
         }
-        double nextValue = previousValue + incrementation;
-        String valueAsString = String.valueOf(nextValue);
-        if (valueAsString.endsWith(".0")) {
-            valueAsString  = valueAsString.substring(0, valueAsString.length() - 2);
+        double lastValue = numbers.length == 0 ? 0.0 : numbers[numbers.length - 1];
+        List<String> nextValues = new ArrayList<>(count);
+        double incrementation = numbers.length < 2 ? 1.0 : numbers[1] - numbers[0];
+        boolean sameIncrementation = true;
+        for (int i = 2; i < numbers.length && sameIncrementation; i++) {
+            sameIncrementation = equals(numbers[i] - numbers[i - 1], incrementation);
+        }
+        if (sameIncrementation) {
+            for (int i = 1; i <= count; i++) {
+                nextValues.add(toText(lastValue + i * incrementation));
+            }
+            return nextValues;
+        }
+        double multiplication = numbers[0] == 0 ? 0 : numbers[1] / numbers[0];
+        boolean sameMultiplication = multiplication != 0;
+        for (int i = 2; i < numbers.length && sameMultiplication; i++) {
+            sameMultiplication = numbers[i - 1] != 0 && equals(numbers[i] / numbers[i - 1], multiplication);
+        }
+        if (sameMultiplication) {
+            for (int i = 1; i <= count; i++) {
+                nextValues.add(toText(lastValue * Math.pow(multiplication, i)));
+            }
+            return nextValues;
+        }
+        return null;
+    }
+
+    private static boolean equals(double number1, double number2) {
+        return Math.abs(number1 - number2) <= PRECISION * Math.max(Math.abs(number1), Math.abs(number2));
+    }
+
+    private static String toText(double number) {
+        if (Double.isInfinite(number) || Double.isNaN(number)) {
+            return String.valueOf(number);
+        }
+        String valueAsString = new BigDecimal(number).round(SIGNIFICANT_DIGITS).stripTrailingZeros().toPlainString();
+        if (valueAsString.equals("-0")) {
+            valueAsString = "0";
         }
         return valueAsString;
     }
@@ -50,14 +50,19 @@ public class ResourceBundleSequence implements Sequence {
     }
 
     @Override
-    public String getNextValue(List<String> previousValues) {
+    public List<String> getNextValues(List<String> previousValues, int count) {
+        if (previousValues.isEmpty()) {
+            return null;
+        }
         String lastValue = previousValues.get(previousValues.size() - 1);
         for (List<String> textSequence : textSequences) {
             int lastValueIndex = textSequence.indexOf(lastValue);
-            if (lastValueIndex == textSequence.size() - 1) {
-                return textSequence.get(0);
-            } else if (lastValueIndex >= 0) {
-                return textSequence.get(lastValueIndex + 1);
+            if (lastValueIndex >= 0) {
+                List<String> nextValues = new ArrayList<>(count);
+                for (int i = 1; i <= count; i++) {
+                    nextValues.add(textSequence.get((lastValueIndex + i) % textSequence.size()));
+                }
+                return nextValues;
             }
         }
         return null;
@@ -18,11 +18,18 @@ package org.joeffice.spreadsheet.sequence;
 import java.util.List;
 
 /**
- * Interface with method to get the next value of a sequence.
+ * Interface with method to get the next values of a sequence.
  *
  * @author Anthony Goubard - Japplis
  */
 public interface Sequence {
 
-    String getNextValue(List<String> previousValues);
+    /**
+     * Gets the values following the previous values.
+     * The pattern of the sequence is detected once from the previous values and then used for all the values.
+     *
+     * @param count the number of values to create
+     * @return the next values or null if the previous values don't follow this sequence
+     */
+    List<String> getNextValues(List<String> previousValues, int count);
 }
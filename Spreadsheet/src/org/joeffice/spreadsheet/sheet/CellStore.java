@@ -0,0 +1,691 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.sheet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.*;
+
+/**
+ * Column oriented storage of the cell values of a sheet.
+ *
+ * Each column is split in chunks of {@link #CHUNK_SIZE} rows where the values are kept in primitive arrays:
+ * the numbers in a <code>double[]</code>, the texts as ids of an interned strings pool and the style as the index
+ * of the cell style in the workbook.
+ * The chunks are only allocated when a cell is set in the range of rows of the chunk.
+ * The strings no longer used by any cell are removed from the pool when they outnumber the cells with a string.
+ *
+ * The store can be loaded from a POI sheet and flushed back to it.
+ *
+ * The bounds of the sheet are maintained incrementally: the last column of each row is kept and the number of rows
+ * ending at each column is counted, so that {@link #getLastColumnNum()} doesn't need to go through the rows.
+ *
+ * A read-only {@link #snapshot()} of the store can be read in another thread: the chunks and the pages of strings
+ * are shared and copied by the store before being modified.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class CellStore {
+
+    /**
+     * Returned by {@link #getCellType(int, int)} when there is no cell.
+     */
+    public static final int NO_CELL = -1;
+
+    public static final int CHUNK_SHIFT = 10;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // The types are stored as Cell.CELL_TYPE_XXX + 1 so that 0 means no cell
+    private static final byte TYPE_MASK = 0x0F;
+    private static final byte COMMENT_FLAG = 0x10;
+
+    private Column[] columns = new Column[0];
+    private boolean snapshot;
+
+    // The interned strings by id, in pages of CHUNK_SIZE strings only appended so they can be shared with the snapshots
+    private String[][] stringPages = new String[0][];
+    private int stringCount;
+    private Map<String, Integer> stringIds = new HashMap<>();
+    // The number of cells with a string id, to know when the pool has too many unused strings
+    private int stringCellCount;
+
+    // Bounds
+    private short[] rowLastCellNums = new short[0]; // last column index + 1 of each row, 0 for empty rows
+    private int[] lastColumnCounts = new int[0]; // number of rows ending at each column index
+    private int lastRowNum = -1;
+    private int lastColumnNum = -1;
+
+    public CellStore() {
+    }
+
+    public CellStore(Sheet sheet) {
+        load(sheet);
+    }
+
+    /**
+     * Loads all the cells of the sheet in this store.
+     */
+    public void load(Sheet sheet) {
+        clear();
+        for (Row row : sheet) {
+            loadRow(row);
+        }
+    }
+
+    /**
+     * (Re)loads the cells of the row in the store.
+     */
+    public void loadRow(Row row) {
+        removeRow(row.getRowNum());
+        for (Cell cell : row) {
+            loadCell(cell);
+        }
+    }
+
+    /**
+     * (Re)loads the given cell in the store.
+     */
+    public void loadCell(Cell cell) {
+        int rowIndex = cell.getRowIndex();
+        int columnIndex = cell.getColumnIndex();
+        int type = cell.getCellType();
+        switch (type) {
+            case Cell.CELL_TYPE_NUMERIC:
+                set(rowIndex, columnIndex, type, cell.getNumericCellValue(), -1);
+                break;
+            case Cell.CELL_TYPE_STRING:
+                set(rowIndex, columnIndex, type, 0, intern(cell.getStringCellValue()));
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                set(rowIndex, columnIndex, type, cell.getBooleanCellValue() ? 1 : 0, -1);
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                set(rowIndex, columnIndex, type, cell.getErrorCellValue(), -1);
+                break;
+            case Cell.CELL_TYPE_FORMULA:
+                set(rowIndex, columnIndex, type, 0, intern(cell.getCellFormula()));
+                break;
+            default:
+                set(rowIndex, columnIndex, Cell.CELL_TYPE_BLANK, 0, -1);
+        }
+        Column column = columns[columnIndex];
+        column.setStyleIndex(rowIndex, cell.getCellStyle() == null ? 0 : cell.getCellStyle().getIndex());
+        column.setComment(rowIndex, cell.getCellComment() != null);
+    }
+
+    /**
+     * Writes all the cells of this store in the sheet.
+     * Cells present in the sheet but not in the store are left untouched.
+     */
+    public void flush(Sheet sheet) {
+        Workbook workbook = sheet.getWorkbook();
+        for (int columnIndex = 0; columnIndex < columns.length; columnIndex++) {
+            Column column = columns[columnIndex];
+            if (column == null) {
+                continue;
+            }
+            for (int rowIndex = 0; rowIndex <= lastRowNum; rowIndex++) {
+                int type = getCellType(rowIndex, columnIndex);
+                if (type == NO_CELL) {
+                    rowIndex |= column.isChunkEmpty(rowIndex) ? CHUNK_MASK : 0;
+                    continue;
+                }
+                Row row = sheet.getRow(rowIndex);
+                if (row == null) {
+                    row = sheet.createRow(rowIndex);
+                }
+                Cell cell = row.getCell(columnIndex);
+                if (cell == null) {
+                    cell = row.createCell(columnIndex);
+                }
+                flushCell(cell, workbook);
+            }
+        }
+    }
+
+    private void flushCell(Cell cell, Workbook workbook) {
+        int rowIndex = cell.getRowIndex();
+        int columnIndex = cell.getColumnIndex();
+        switch (getCellType(rowIndex, columnIndex)) {
+            case Cell.CELL_TYPE_NUMERIC:
+                cell.setCellValue(getNumericValue(rowIndex, columnIndex));
+                break;
+            case Cell.CELL_TYPE_STRING:
+                cell.setCellValue(getStringValue(rowIndex, columnIndex));
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                cell.setCellValue(getBooleanValue(rowIndex, columnIndex));
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                cell.setCellErrorValue((byte) getNumericValue(rowIndex, columnIndex));
+                break;
+            case Cell.CELL_TYPE_FORMULA:
+                cell.setCellFormula(getStringValue(rowIndex, columnIndex));
+                break;
+            default:
+                cell.setCellType(Cell.CELL_TYPE_BLANK);
+        }
+        short styleIndex = getStyleIndex(rowIndex, columnIndex);
+        if (styleIndex > 0 && styleIndex < workbook.getNumCellStyles()) {
+            cell.setCellStyle(workbook.getCellStyleAt(styleIndex));
+        }
+    }
+
+    /**
+     * Adds the cells of the given store in this store, the row 0 of the given store being the first row.
+     * Used to merge the stores filled in parallel with consecutive rows.
+     */
+    public void addRows(CellStore rows, int firstRow) {
+        for (int columnIndex = 0; columnIndex < rows.columns.length; columnIndex++) {
+            Column column = rows.columns[columnIndex];
+            if (column == null) {
+                continue;
+            }
+            for (int chunkIndex = 0; chunkIndex < column.chunks.length; chunkIndex++) {
+                Chunk chunk = column.chunks[chunkIndex];
+                if (chunk == null) {
+                    continue;
+                }
+                for (int index = 0; index < CHUNK_SIZE; index++) {
+                    int type = chunk.types[index] & TYPE_MASK;
+                    if (type == 0) {
+                        continue;
+                    }
+                    int rowIndex = firstRow + (chunkIndex << CHUNK_SHIFT) + index;
+                    double number = chunk.numbers == null ? 0 : chunk.numbers[index];
+                    int stringId = chunk.stringIds == null || chunk.stringIds[index] < 0 ? -1 : intern(rows.getString(chunk.stringIds[index]));
+                    set(rowIndex, columnIndex, type - 1, number, stringId);
+                    if (chunk.styles[index] != 0 || (chunk.types[index] & COMMENT_FLAG) != 0) {
+                        columns[columnIndex].setStyleIndex(rowIndex, chunk.styles[index]);
+                        columns[columnIndex].setComment(rowIndex, (chunk.types[index] & COMMENT_FLAG) != 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a read-only copy of the cells of this store, for example to read them outside the event dispatch thread.
+     * The chunks are shared with this store until this store changes them, so the snapshot is quick to create
+     * and doesn't duplicate the values.
+     */
+    public CellStore snapshot() {
+        CellStore copy = new CellStore();
+        copy.snapshot = true;
+        copy.columns = new Column[columns.length];
+        for (int columnIndex = 0; columnIndex < columns.length; columnIndex++) {
+            if (columns[columnIndex] != null) {
+                copy.columns[columnIndex] = columns[columnIndex].share();
+            }
+        }
+        copy.stringPages = stringPages.clone();
+        copy.stringCount = stringCount;
+        copy.stringCellCount = stringCellCount;
+        copy.rowLastCellNums = rowLastCellNums.clone();
+        copy.lastColumnCounts = lastColumnCounts.clone();
+        copy.lastRowNum = lastRowNum;
+        copy.lastColumnNum = lastColumnNum;
+        return copy;
+    }
+
+    public void clear() {
+        checkWritable();
+        columns = new Column[0];
+        stringPages = new String[0][];
+        stringCount = 0;
+        stringIds.clear();
+        stringCellCount = 0;
+        rowLastCellNums = new short[0];
+        lastColumnCounts = new int[0];
+        lastRowNum = -1;
+        lastColumnNum = -1;
+    }
+
+    /**
+     * Gets the type of the cell as defined in {@link Cell} or {@link #NO_CELL} if the cell doesn't exist.
+     */
+    public int getCellType(int rowIndex, int columnIndex) {
+        Column column = getColumn(columnIndex);
+        if (column == null) {
+            return NO_CELL;
+        }
+        return column.getType(rowIndex) - 1;
+    }
+
+    public boolean hasCell(int rowIndex, int columnIndex) {
+        return getCellType(rowIndex, columnIndex) != NO_CELL;
+    }
+
+    /**
+     * Gets the number for numeric cells, the error code for error cells and 1 or 0 for boolean cells.
+     */
+    public double getNumericValue(int rowIndex, int columnIndex) {
+        Column column = getColumn(columnIndex);
+        return column == null ? 0 : column.getNumber(rowIndex);
+    }
+
+    public boolean getBooleanValue(int rowIndex, int columnIndex) {
+        return getNumericValue(rowIndex, columnIndex) != 0;
+    }
+
+    /**
+     * Gets the text for string cells and the formula for formula cells, null otherwise.
+     */
+    public String getStringValue(int rowIndex, int columnIndex) {
+        Column column = getColumn(columnIndex);
+        int stringId = column == null ? -1 : column.getStringId(rowIndex);
+        return stringId < 0 ? null : getString(stringId);
+    }
+
+    public short getStyleIndex(int rowIndex, int columnIndex) {
+        Column column = getColumn(columnIndex);
+        return column == null ? 0 : column.getStyleIndex(rowIndex);
+    }
+
+    public boolean hasComment(int rowIndex, int columnIndex) {
+        Column column = getColumn(columnIndex);
+        return column != null && column.hasComment(rowIndex);
+    }
+
+    public void setNumericValue(int rowIndex, int columnIndex, double value) {
+        set(rowIndex, columnIndex, Cell.CELL_TYPE_NUMERIC, value, -1);
+    }
+
+    public void setStringValue(int rowIndex, int columnIndex, String value) {
+        set(rowIndex, columnIndex, Cell.CELL_TYPE_STRING, 0, intern(value));
+    }
+
+    public void setBooleanValue(int rowIndex, int columnIndex, boolean value) {
+        set(rowIndex, columnIndex, Cell.CELL_TYPE_BOOLEAN, value ? 1 : 0, -1);
+    }
+
+    public void setErrorValue(int rowIndex, int columnIndex, byte errorCode) {
+        set(rowIndex, columnIndex, Cell.CELL_TYPE_ERROR, errorCode, -1);
+    }
+
+    public void setFormula(int rowIndex, int columnIndex, String formula) {
+        set(rowIndex, columnIndex, Cell.CELL_TYPE_FORMULA, 0, intern(formula));
+    }
+
+    public void setBlank(int rowIndex, int columnIndex) {
+        set(rowIndex, columnIndex, Cell.CELL_TYPE_BLANK, 0, -1);
+    }
+
+    public void setStyleIndex(int rowIndex, int columnIndex, short styleIndex) {
+        checkWritable();
+        if (hasCell(rowIndex, columnIndex)) {
+            columns[columnIndex].setStyleIndex(rowIndex, styleIndex);
+        }
+    }
+
+    public void removeCell(int rowIndex, int columnIndex) {
+        checkWritable();
+        Column column = getColumn(columnIndex);
+        if (column == null) {
+            return;
+        }
+        int oldStringId = column.getStringId(rowIndex);
+        if (column.remove(rowIndex)) {
+            stringCellCount -= oldStringId >= 0 ? 1 : 0;
+            cellRemoved(rowIndex, columnIndex);
+        }
+    }
+
+    public void removeRow(int rowIndex) {
+        int lastCellNum = getLastCellNum(rowIndex);
+        for (int columnIndex = lastCellNum - 1; columnIndex >= 0; columnIndex--) {
+            removeCell(rowIndex, columnIndex);
+        }
+    }
+
+    /**
+     * Gets the index of the last row containing cells or -1 if there is no cells.
+     */
+    public int getLastRowNum() {
+        return lastRowNum;
+    }
+
+    /**
+     * Gets the index of the last column containing cells or -1 if there is no cells.
+     */
+    public int getLastColumnNum() {
+        return lastColumnNum;
+    }
+
+    /**
+     * Gets the index of the last column of the row plus one, 0 if the row has no cells.
+     */
+    public int getLastCellNum(int rowIndex) {
+        if (rowIndex < 0 || rowIndex >= rowLastCellNums.length) {
+            return 0;
+        }
+        return rowLastCellNums[rowIndex];
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    private void set(int rowIndex, int columnIndex, int type, double number, int stringId) {
+        checkWritable();
+        if (columnIndex >= columns.length) {
+            columns = Arrays.copyOf(columns, Math.max(columnIndex + 1, columns.length * 3 / 2));
+        }
+        Column column = columns[columnIndex];
+        if (column == null) {
+            column = new Column();
+            columns[columnIndex] = column;
+        }
+        int oldStringId = column.getStringId(rowIndex);
+        boolean newCell = column.set(rowIndex, (byte) (type + 1), number, stringId);
+        stringCellCount += (stringId >= 0 ? 1 : 0) - (oldStringId >= 0 ? 1 : 0);
+        if (newCell) {
+            cellAdded(rowIndex, columnIndex);
+        }
+    }
+
+    private void cellAdded(int rowIndex, int columnIndex) {
+        int lastCellNum = getLastCellNum(rowIndex);
+        if (columnIndex < lastCellNum) {
+            return;
+        }
+        if (rowIndex >= rowLastCellNums.length) {
+            rowLastCellNums = Arrays.copyOf(rowLastCellNums, Math.max(rowIndex + 1, rowLastCellNums.length * 3 / 2));
+        }
+        rowLastCellNums[rowIndex] = (short) (columnIndex + 1);
+        if (lastCellNum > 0) {
+            lastColumnCounts[lastCellNum - 1]--;
+        }
+        if (columnIndex >= lastColumnCounts.length) {
+            lastColumnCounts = Arrays.copyOf(lastColumnCounts, Math.max(columnIndex + 1, lastColumnCounts.length * 3 / 2));
+        }
+        lastColumnCounts[columnIndex]++;
+        lastColumnNum = Math.max(lastColumnNum, columnIndex);
+        lastRowNum = Math.max(lastRowNum, rowIndex);
+    }
+
+    private void cellRemoved(int rowIndex, int columnIndex) {
+        int lastCellNum = getLastCellNum(rowIndex);
+        if (columnIndex != lastCellNum - 1) {
+            return;
+        }
+        int newLastCellNum = columnIndex;
+        while (newLastCellNum > 0 && getCellType(rowIndex, newLastCellNum - 1) == NO_CELL) {
+            newLastCellNum--;
+        }
+        rowLastCellNums[rowIndex] = (short) newLastCellNum;
+        lastColumnCounts[columnIndex]--;
+        if (newLastCellNum > 0) {
+            lastColumnCounts[newLastCellNum - 1]++;
+        }
+        while (lastColumnNum >= 0 && lastColumnCounts[lastColumnNum] == 0) {
+            lastColumnNum--;
+        }
+        while (lastRowNum >= 0 && getLastCellNum(lastRowNum) == 0) {
+            lastRowNum--;
+        }
+    }
+
+    private Column getColumn(int columnIndex) {
+        if (columnIndex < 0 || columnIndex >= columns.length) {
+            return null;
+        }
+        return columns[columnIndex];
+    }
+
+    private void checkWritable() {
+        if (snapshot) {
+            throw new UnsupportedOperationException("A snapshot of the cells can't be modified");
+        }
+    }
+
+    private String getString(int stringId) {
+        return stringPages[stringId >> CHUNK_SHIFT][stringId & CHUNK_MASK];
+    }
+
+    private int intern(String text) {
+        if (text == null) {
+            return -1;
+        }
+        Integer id = stringIds.get(text);
+        if (id == null) {
+            if (stringCount >= 2 * stringCellCount + CHUNK_SIZE) {
+                removeUnusedStrings();
+            }
+            id = stringCount;
+            int pageIndex = id >> CHUNK_SHIFT;
+            if (pageIndex >= stringPages.length) {
+                stringPages = Arrays.copyOf(stringPages, Math.max(pageIndex + 1, stringPages.length * 3 / 2));
+            }
+            if (stringPages[pageIndex] == null) {
+                stringPages[pageIndex] = new String[CHUNK_SIZE];
+            }
+            // The snapshots never read the strings after their string count, so the shared page can be filled
+            stringPages[pageIndex][id & CHUNK_MASK] = text;
+            stringCount++;
+            stringIds.put(text, id);
+        }
+        return id;
+    }
+
+    /**
+     * Interns again the strings used by the cells in new pages, so the unused strings can be garbage collected.
+     * The snapshots keep the previous pages and chunks.
+     */
+    private void removeUnusedStrings() {
+        String[][] previousPages = stringPages;
+        stringPages = new String[0][];
+        stringCount = 0;
+        stringIds.clear();
+        for (Column column : columns) {
+            if (column == null) {
+                continue;
+            }
+            for (int chunkIndex = 0; chunkIndex < column.chunks.length; chunkIndex++) {
+                Chunk chunk = column.chunks[chunkIndex];
+                if (chunk == null || chunk.stringIds == null) {
+                    continue;
+                }
+                if (chunk.shared) {
+                    chunk = chunk.copy();
+                    column.chunks[chunkIndex] = chunk;
+                }
+                for (int index = 0; index < CHUNK_SIZE; index++) {
+                    int stringId = chunk.stringIds[index];
+                    if (stringId >= 0) {
+                        chunk.stringIds[index] = intern(previousPages[stringId >> CHUNK_SHIFT][stringId & CHUNK_MASK]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The cells of one column.
+     */
+    private static class Column {
+
+        private Chunk[] chunks = new Chunk[0];
+
+        private Chunk getChunk(int rowIndex, boolean createIfAbsent) {
+            int chunkIndex = rowIndex >> CHUNK_SHIFT;
+            if (chunkIndex >= chunks.length) {
+                if (!createIfAbsent) {
+                    return null;
+                }
+                chunks = Arrays.copyOf(chunks, Math.max(chunkIndex + 1, chunks.length * 3 / 2));
+            }
+            Chunk chunk = chunks[chunkIndex];
+            if (chunk == null && createIfAbsent) {
+                chunk = new Chunk();
+                chunks[chunkIndex] = chunk;
+            }
+            return chunk;
+        }
+
+        /**
+         * Gets the chunk to modify, copying it first if it's shared with a snapshot.
+         */
+        private Chunk getWritableChunk(int rowIndex) {
+            Chunk chunk = getChunk(rowIndex, true);
+            if (chunk.shared) {
+                chunk = chunk.copy();
+                chunks[rowIndex >> CHUNK_SHIFT] = chunk;
+            }
+            return chunk;
+        }
+
+        /**
+         * Creates a column with the same chunks, marked as shared so that they are copied before being modified.
+         */
+        private Column share() {
+            Column copy = new Column();
+            for (Chunk chunk : chunks) {
+                if (chunk != null) {
+                    chunk.shared = true;
+                }
+            }
+            copy.chunks = chunks.clone();
+            return copy;
+        }
+
+        private boolean isChunkEmpty(int rowIndex) {
+            Chunk chunk = getChunk(rowIndex, false);
+            return chunk == null || chunk.cellCount == 0;
+        }
+
+        private byte getType(int rowIndex) {
+            Chunk chunk = getChunk(rowIndex, false);
+            return chunk == null ? 0 : (byte) (chunk.types[rowIndex & CHUNK_MASK] & TYPE_MASK);
+        }
+
+        private double getNumber(int rowIndex) {
+            Chunk chunk = getChunk(rowIndex, false);
+            return chunk == null || chunk.numbers == null ? 0 : chunk.numbers[rowIndex & CHUNK_MASK];
+        }
+
+        private int getStringId(int rowIndex) {
+            Chunk chunk = getChunk(rowIndex, false);
+            return chunk == null || chunk.stringIds == null ? -1 : chunk.stringIds[rowIndex & CHUNK_MASK];
+        }
+
+        private short getStyleIndex(int rowIndex) {
+            Chunk chunk = getChunk(rowIndex, false);
+            return chunk == null ? 0 : chunk.styles[rowIndex & CHUNK_MASK];
+        }
+
+        private boolean hasComment(int rowIndex) {
+            Chunk chunk = getChunk(rowIndex, false);
+            return chunk != null && (chunk.types[rowIndex & CHUNK_MASK] & COMMENT_FLAG) != 0;
+        }
+
+        /**
+         * Sets the value of the cell and returns whether the cell is a new cell.
+         */
+        private boolean set(int rowIndex, byte type, double number, int stringId) {
+            Chunk chunk = getWritableChunk(rowIndex);
+            int index = rowIndex & CHUNK_MASK;
+            boolean newCell = (chunk.types[index] & TYPE_MASK) == 0;
+            if (newCell) {
+                chunk.cellCount++;
+            }
+            chunk.types[index] = (byte) ((chunk.types[index] & COMMENT_FLAG) | type);
+            if (number != 0 || chunk.numbers != null) {
+                if (chunk.numbers == null) {
+                    chunk.numbers = new double[CHUNK_SIZE];
+                }
+                chunk.numbers[index] = number;
+            }
+            if (stringId >= 0 || chunk.stringIds != null) {
+                if (chunk.stringIds == null) {
+                    chunk.stringIds = new int[CHUNK_SIZE];
+                    Arrays.fill(chunk.stringIds, -1);
+                }
+                chunk.stringIds[index] = stringId;
+            }
+            return newCell;
+        }
+
+        private void setStyleIndex(int rowIndex, short styleIndex) {
+            getWritableChunk(rowIndex).styles[rowIndex & CHUNK_MASK] = styleIndex;
+        }
+
+        private void setComment(int rowIndex, boolean comment) {
+            Chunk chunk = getWritableChunk(rowIndex);
+            int index = rowIndex & CHUNK_MASK;
+            if (comment) {
+                chunk.types[index] |= COMMENT_FLAG;
+            } else {
+                chunk.types[index] &= ~COMMENT_FLAG;
+            }
+        }
+
+        /**
+         * Removes the cell and returns whether there was a cell.
+         */
+        private boolean remove(int rowIndex) {
+            int chunkIndex = rowIndex >> CHUNK_SHIFT;
+            Chunk chunk = getChunk(rowIndex, false);
+            if (chunk == null) {
+                return false;
+            }
+            int index = rowIndex & CHUNK_MASK;
+            if ((chunk.types[index] & TYPE_MASK) != 0) {
+                chunk = getWritableChunk(rowIndex);
+                chunk.types[index] = 0;
+                chunk.styles[index] = 0;
+                if (chunk.stringIds != null) {
+                    chunk.stringIds[index] = -1;
+                }
+                chunk.cellCount--;
+                if (chunk.cellCount == 0) {
+                    chunks[chunkIndex] = null;
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The cells of {@link #CHUNK_SIZE} rows of a column.
+     * The numbers and string ids arrays are only created when needed.
+     */
+    private static class Chunk {
+
+        private int cellCount;
+        private byte[] types = new byte[CHUNK_SIZE];
+        private short[] styles = new short[CHUNK_SIZE];
+        private double[] numbers;
+        private int[] stringIds;
+
+        // Whether the chunk is also used by a snapshot of the store
+        private boolean shared;
+
+        private Chunk copy() {
+            Chunk copy = new Chunk();
+            copy.cellCount = cellCount;
+            copy.types = types.clone();
+            copy.styles = styles.clone();
+            copy.numbers = numbers == null ? null : numbers.clone();
+            copy.stringIds = stringIds == null ? null : stringIds.clone();
+            return copy;
+        }
+    }
+}
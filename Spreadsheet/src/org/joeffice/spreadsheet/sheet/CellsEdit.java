@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.sheet;
+
+import java.util.List;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * A change of the values or the styles of the cells of ranges.
+ *
+ * Only the cells before the change are kept in the undo history. The cells after the change are recorded
+ * when the change is undone and released when it's redone.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class CellsEdit extends SheetEdit {
+
+    private CellsSnapshot oldCells;
+    private CellsSnapshot newCells;
+
+    /**
+     * Records the cells of the ranges before they are changed.
+     */
+    CellsEdit(SheetTableModel model, String presentationName, List<CellRangeAddress> ranges) {
+        super(model, presentationName);
+        oldCells = new CellsSnapshot(model.getSheet(), ranges);
+    }
+
+    public List<CellRangeAddress> getRanges() {
+        return oldCells.getRanges();
+    }
+
+    @Override
+    public void undo() throws CannotUndoException {
+        super.undo();
+        newCells = new CellsSnapshot(getModel().getSheet(), getRanges());
+        oldCells.restore(getModel().getSheet());
+        getModel().fireTableCellsUpdated(getRanges());
+    }
+
+    @Override
+    public void redo() throws CannotRedoException {
+        super.redo();
+        newCells.restore(getModel().getSheet());
+        newCells = null;
+        getModel().fireTableCellsUpdated(getRanges());
+    }
+
+    @Override
+    public long getMemorySize() {
+        return oldCells.getMemorySize() + (newCells == null ? 0 : newCells.getMemorySize());
+    }
+}
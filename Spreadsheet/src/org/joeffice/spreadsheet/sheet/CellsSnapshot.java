@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.sheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.ss.formula.FormulaParseException;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * The values and style indexes of the cells of ranges of a sheet, kept in arrays of primitives.
+ *
+ * Only the existing cells are kept, so a snapshot of whole rows or columns only uses the memory of their cells.
+ * The booleans and the error codes are kept as numbers and the formulas as text. The text formatting
+ * of the rich texts, the cached results of the formulas, the comments and the hyperlinks are not kept.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+class CellsSnapshot {
+
+    // Memory of the row, column, type, number, text reference and style index of a cell
+    private final static int CELL_MEMORY_SIZE = 4 + 4 + 1 + 8 + 8 + 2;
+    private final static int TEXT_MEMORY_SIZE = 40;
+
+    private List<CellRangeAddress> ranges;
+
+    // The cells of each range, ordered by row then by column
+    private int[] rangeStarts;
+    private int cellCount;
+    private int[] rows = new int[16];
+    private int[] columns = new int[16];
+    private byte[] types = new byte[16];
+    private double[] numbers = new double[16];
+    private String[] texts = new String[16];
+    private short[] styles = new short[16];
+    private long memorySize;
+
+    CellsSnapshot(Sheet sheet, List<CellRangeAddress> ranges) {
+        this.ranges = ranges;
+        rangeStarts = new int[ranges.size() + 1];
+        for (int i = 0; i < ranges.size(); i++) {
+            rangeStarts[i] = cellCount;
+            CellRangeAddress range = ranges.get(i);
+            int lastRow = Math.min(range.getLastRow(), sheet.getLastRowNum());
+            for (int rowIndex = range.getFirstRow(); rowIndex <= lastRow; rowIndex++) {
+                Row row = sheet.getRow(rowIndex);
+                if (row != null) {
+                    int lastColumn = Math.min(range.getLastColumn(), row.getLastCellNum() - 1);
+                    for (int column = Math.max(range.getFirstColumn(), row.getFirstCellNum()); column <= lastColumn; column++) {
+                        Cell cell = row.getCell(column);
+                        if (cell != null) {
+                            addCell(cell);
+                        }
+                    }
+                }
+            }
+        }
+        rangeStarts[ranges.size()] = cellCount;
+        rows = Arrays.copyOf(rows, cellCount);
+        columns = Arrays.copyOf(columns, cellCount);
+        types = Arrays.copyOf(types, cellCount);
+        numbers = Arrays.copyOf(numbers, cellCount);
+        texts = Arrays.copyOf(texts, cellCount);
+        styles = Arrays.copyOf(styles, cellCount);
+        memorySize += (long) cellCount * CELL_MEMORY_SIZE;
+    }
+
+    private void addCell(Cell cell) {
+        if (cellCount == rows.length) {
+            int capacity = cellCount * 2;
+            rows = Arrays.copyOf(rows, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+            types = Arrays.copyOf(types, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+            styles = Arrays.copyOf(styles, capacity);
+        }
+        int type = cell.getCellType();
+        rows[cellCount] = cell.getRowIndex();
+        columns[cellCount] = cell.getColumnIndex();
+        types[cellCount] = (byte) type;
+        styles[cellCount] = cell.getCellStyle().getIndex();
+        switch (type) {
+            case Cell.CELL_TYPE_NUMERIC:
+                numbers[cellCount] = cell.getNumericCellValue();
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                numbers[cellCount] = cell.getBooleanCellValue() ? 1 : 0;
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                numbers[cellCount] = cell.getErrorCellValue();
+                break;
+            case Cell.CELL_TYPE_STRING:
+                texts[cellCount] = cell.getStringCellValue();
+                break;
+            case Cell.CELL_TYPE_FORMULA:
+                texts[cellCount] = cell.getCellFormula();
+                break;
+        }
+        if (texts[cellCount] != null) {
+            memorySize += TEXT_MEMORY_SIZE + 2 * texts[cellCount].length();
+        }
+        cellCount++;
+    }
+
+    /**
+     * Sets back the cells of the ranges as they were, the cells created since the snapshot are removed
+     * and so are the rows left empty with the default height.
+     */
+    void restore(Sheet sheet) {
+        for (int i = 0; i < ranges.size(); i++) {
+            removeNewCells(sheet, ranges.get(i), rangeStarts[i], rangeStarts[i + 1]);
+        }
+        Workbook workbook = sheet.getWorkbook();
+        for (int i = 0; i < cellCount; i++) {
+            Row row = sheet.getRow(rows[i]);
+            if (row == null) {
+                row = sheet.createRow(rows[i]);
+            }
+            Cell cell = row.getCell(columns[i]);
+            if (cell == null) {
+                cell = row.createCell(columns[i]);
+            }
+            setCell(cell, i, workbook);
+        }
+    }
+
+    /**
+     * Removes the cells of the range that are not in the snapshot, the cells of the range in the snapshot being
+     * ordered like the cells of the sheet.
+     */
+    private void removeNewCells(Sheet sheet, CellRangeAddress range, int firstIndex, int endIndex) {
+        int index = firstIndex;
+        int lastRow = Math.min(range.getLastRow(), sheet.getLastRowNum());
+        for (int rowIndex = range.getFirstRow(); rowIndex <= lastRow; rowIndex++) {
+            Row row = sheet.getRow(rowIndex);
+            if (row == null) {
+                continue;
+            }
+            int lastColumn = Math.min(range.getLastColumn(), row.getLastCellNum() - 1);
+            for (int column = Math.max(range.getFirstColumn(), row.getFirstCellNum()); column <= lastColumn; column++) {
+                Cell cell = row.getCell(column);
+                if (cell == null) {
+                    continue;
+                }
+                while (index < endIndex && (rows[index] < rowIndex || (rows[index] == rowIndex && columns[index] < column))) {
+                    index++;
+                }
+                if (index == endIndex || rows[index] != rowIndex || columns[index] != column) {
+                    row.removeCell(cell);
+                }
+            }
+            if (row.getPhysicalNumberOfCells() == 0 && row.getHeight() == sheet.getDefaultRowHeight() && !row.getZeroHeight()) {
+                sheet.removeRow(row);
+            }
+        }
+    }
+
+    private void setCell(Cell cell, int index, Workbook workbook) {
+        byte type = types[index];
+        if (cell.getCellType() == Cell.CELL_TYPE_FORMULA && type != Cell.CELL_TYPE_FORMULA) {
+            // Otherwise the value would be set as the cached result of the formula
+            cell.setCellType(Cell.CELL_TYPE_BLANK);
+        }
+        switch (type) {
+            case Cell.CELL_TYPE_NUMERIC:
+                cell.setCellValue(numbers[index]);
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                cell.setCellValue(numbers[index] != 0);
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                cell.setCellErrorValue((byte) numbers[index]);
+                break;
+            case Cell.CELL_TYPE_STRING:
+                cell.setCellValue(texts[index]);
+                break;
+            case Cell.CELL_TYPE_FORMULA:
+                try {
+                    cell.setCellFormula(texts[index]);
+                } catch (FormulaParseException ex) {
+                    cell.setCellValue("=" + texts[index]);
+                }
+                break;
+            default:
+                cell.setCellType(Cell.CELL_TYPE_BLANK);
+        }
+        cell.setCellStyle(workbook.getCellStyleAt(styles[index]));
+    }
+
+    /**
+     * Gets the cells of the sheet at the place of the cells of the snapshot, for example once it's restored.
+     */
+    List<Cell> getCells(Sheet sheet) {
+        List<Cell> cells = new ArrayList<>(cellCount);
+        for (int i = 0; i < cellCount; i++) {
+            Row row = sheet.getRow(rows[i]);
+            Cell cell = row == null ? null : row.getCell(columns[i]);
+            if (cell != null) {
+                cells.add(cell);
+            }
+        }
+        return cells;
+    }
+
+    List<CellRangeAddress> getRanges() {
+        return ranges;
+    }
+
+    long getMemorySize() {
+        return memorySize;
+    }
+}
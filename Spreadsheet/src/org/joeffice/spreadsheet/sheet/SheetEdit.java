@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.sheet;
+
+import javax.swing.undo.AbstractUndoableEdit;
+
+/**
+ * A change of a sheet that can be undone, keeping only what is needed to undo and redo the change.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public abstract class SheetEdit extends AbstractUndoableEdit {
+
+    private SheetTableModel model;
+    private String presentationName;
+
+    protected SheetEdit(SheetTableModel model, String presentationName) {
+        this.model = model;
+        this.presentationName = presentationName;
+    }
+
+    public SheetTableModel getModel() {
+        return model;
+    }
+
+    /**
+     * Sets the model of the same sheet reloaded, the edit is then done in the reloaded sheet.
+     */
+    void setModel(SheetTableModel model) {
+        this.model = model;
+    }
+
+    @Override
+    public String getPresentationName() {
+        return presentationName;
+    }
+
+    /**
+     * Estimates the memory used by this edit, used to limit the memory used by the undo history.
+     */
+    public abstract long getMemorySize();
+}
@@ -0,0 +1,804 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.sheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFCell;
+import org.apache.poi.hssf.usermodel.HSSFComment;
+import org.apache.poi.hssf.usermodel.HSSFEvaluationWorkbook;
+import org.apache.poi.hssf.usermodel.HSSFPatriarch;
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFShape;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.ExternSheetReferenceToken;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaRenderingWorkbook;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.*;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import org.joeffice.spreadsheet.formula.FormulaEngine;
+
+/**
+ * Inserts and deletes several ranges of rows or columns of a sheet at once.
+ *
+ * The formulas of the workbook and the named ranges referencing the shifted rows or columns are rewritten once,
+ * the references to deleted cells become #REF! and the ranges shrink or grow like in Excel.
+ * The merged regions follow the moved cells.
+ *
+ * The rows are moved with POI, each row being moved only once. The formulas referencing the sheet are replaced
+ * by a constant while the rows are moved so that POI doesn't shift them a second time.
+ * POI doesn't shift columns, so the cells of each row are moved in one pass over the sheet with the comments
+ * and the column widths. The hyperlinks of the xls files are not moved with the columns as POI can only find them
+ * one cell at a time.
+ *
+ * The ranges are given as <code>{first index, count}</code> in the indexes before the change.
+ *
+ * The formulas changed by the shift are kept with their original text, so that a shift can be undone
+ * with the opposite shift followed by {@link #restoreOriginalFormulas()}.
+ * The moved formulas keep their cached result, only the formulas with changed references need to be recalculated.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class SheetShifter {
+
+    // Formula without references set while POI moves the rows, the moved formulas get back their cached result after the move
+    private final static String MOVED_FORMULA = "0";
+    private final static int FORMULA_MEMORY_SIZE = 80;
+
+    private Sheet sheet;
+    private int sheetIndex;
+    private int maxRow;
+    private int maxColumn;
+
+    private FormulaParsingWorkbook parsingWorkbook;
+    private EvaluationWorkbook evaluationWorkbook;
+    private FormulaRenderingWorkbook renderingWorkbook;
+
+    // The current shift: the sorted first rows or columns of the ranges and the number of rows or columns of each range
+    private boolean shiftingRows;
+    private int[] firstIndexes;
+    private int[] counts;
+    private boolean inserting;
+    private int maxIndex;
+
+    // The formulas and named ranges changed by the last shift, at their position before the shift
+    private List<ShiftedFormula> originalFormulas = new ArrayList<>();
+
+    // The formulas changed by the last shift, at their position after the shift
+    private List<ShiftedFormula> changedFormulas = new ArrayList<>();
+
+    public SheetShifter(Sheet sheet) {
+        setSheet(sheet);
+    }
+
+    /**
+     * Sets the sheet shifted, for example the same sheet after the workbook was reloaded.
+     * The formulas kept to undo the last shift are then set back in this sheet.
+     */
+    public void setSheet(Sheet sheet) {
+        this.sheet = sheet;
+        Workbook workbook = sheet.getWorkbook();
+        sheetIndex = workbook.getSheetIndex(sheet);
+        SpreadsheetVersion version = workbook instanceof HSSFWorkbook ? SpreadsheetVersion.EXCEL97 : SpreadsheetVersion.EXCEL2007;
+        maxRow = version.getLastRowIndex();
+        maxColumn = version.getLastColumnIndex();
+        if (workbook instanceof HSSFWorkbook) {
+            HSSFEvaluationWorkbook hssfWorkbook = HSSFEvaluationWorkbook.create((HSSFWorkbook) workbook);
+            parsingWorkbook = hssfWorkbook;
+            evaluationWorkbook = hssfWorkbook;
+            renderingWorkbook = hssfWorkbook;
+        } else if (workbook instanceof XSSFWorkbook) {
+            XSSFEvaluationWorkbook xssfWorkbook = XSSFEvaluationWorkbook.create((XSSFWorkbook) workbook);
+            parsingWorkbook = xssfWorkbook;
+            evaluationWorkbook = xssfWorkbook;
+            renderingWorkbook = xssfWorkbook;
+        }
+    }
+
+    /**
+     * Gets the indexes sorted and without duplicates.
+     */
+    public static int[] toSortedIndexes(int... indexes) {
+        int[] sortedIndexes = indexes.clone();
+        Arrays.sort(sortedIndexes);
+        int count = 0;
+        for (int i = 0; i < sortedIndexes.length; i++) {
+            if (i == 0 || sortedIndexes[i] != sortedIndexes[i - 1]) {
+                sortedIndexes[count] = sortedIndexes[i];
+                count++;
+            }
+        }
+        return Arrays.copyOf(sortedIndexes, count);
+    }
+
+    /**
+     * Converts indexes to the ranges of consecutive indexes.
+     */
+    public static int[][] toRanges(int... indexes) {
+        List<int[]> ranges = new ArrayList<>();
+        int[] range = null;
+        for (int index : toSortedIndexes(indexes)) {
+            if (range != null && index == range[0] + range[1]) {
+                range[1]++;
+            } else {
+                range = new int[]{index, 1};
+                ranges.add(range);
+            }
+        }
+        return ranges.toArray(new int[ranges.size()][]);
+    }
+
+    /**
+     * Gets the ranges inserting the same number of rows or columns at each of the given sorted indexes.
+     */
+    private static int[][] toRanges(int[] firstIndexes, int count) {
+        int[][] ranges = new int[firstIndexes.length][];
+        for (int i = 0; i < firstIndexes.length; i++) {
+            ranges[i] = new int[]{firstIndexes[i], count};
+        }
+        return ranges;
+    }
+
+    /**
+     * Inserts the same number of empty rows at each of the given sorted rows.
+     */
+    public void insertRows(int[] firstRows, int rowCount) {
+        insertRows(toRanges(firstRows, rowCount));
+    }
+
+    /**
+     * Inserts empty rows, each range being the row where the rows are inserted and the number of rows to insert.
+     * Starting from the bottom, each block of rows between two insertion points is shifted once.
+     */
+    public void insertRows(int[][] rowRanges) {
+        setShift(true, rowRanges, true);
+        List<ShiftedFormula> formulas = replaceFormulas();
+        List<CellRangeAddress> mergedRegions = removeMergedRegions();
+        int lastRowNum = sheet.getLastRowNum();
+        // The rows moved after the last row of the sheet are lost
+        while (lastRowNum >= 0 && shiftIndex(lastRowNum) < 0) {
+            removeRows(lastRowNum, lastRowNum);
+            lastRowNum--;
+        }
+        int insertedRowCount = 0;
+        for (int[] rowRange : rowRanges) {
+            insertedRowCount += rowRange[1];
+        }
+        for (int i = rowRanges.length - 1; i >= 0; i--) {
+            int startRow = rowRanges[i][0];
+            int endRow = i == rowRanges.length - 1 ? lastRowNum : Math.min(rowRanges[i + 1][0] - 1, lastRowNum);
+            if (startRow <= endRow) {
+                sheet.shiftRows(startRow, endRow, insertedRowCount, true, false);
+                removeEmptyRows(startRow + insertedRowCount, endRow + insertedRowCount);
+            }
+            insertedRowCount -= rowRanges[i][1];
+        }
+        // The rows left at the inserted rows only have the height of the moved rows
+        for (int[] rowRange : rowRanges) {
+            int firstInsertedRow = rowRange[0] + insertedRowCount;
+            removeRows(firstInsertedRow, firstInsertedRow + rowRange[1] - 1);
+            insertedRowCount += rowRange[1];
+        }
+        addMergedRegions(mergedRegions);
+        restoreFormulas(formulas);
+    }
+
+    /**
+     * Deletes the ranges of rows.
+     * Starting from the top, each block of rows between two deleted ranges is shifted once.
+     */
+    public void removeRows(int[][] rowRanges) {
+        setShift(true, rowRanges, false);
+        List<ShiftedFormula> formulas = replaceFormulas();
+        List<CellRangeAddress> mergedRegions = removeMergedRegions();
+        int lastRowNum = sheet.getLastRowNum();
+        int removedRowCount = 0;
+        for (int i = 0; i < rowRanges.length; i++) {
+            int firstRow = rowRanges[i][0];
+            int lastRow = firstRow + rowRanges[i][1] - 1;
+            removeRows(firstRow, Math.min(lastRow, lastRowNum));
+            removedRowCount += rowRanges[i][1];
+            int endRow = i == rowRanges.length - 1 ? lastRowNum : Math.min(rowRanges[i + 1][0] - 1, lastRowNum);
+            if (lastRow < endRow) {
+                sheet.shiftRows(lastRow + 1, endRow, -removedRowCount, true, false);
+                removeEmptyRows(lastRow + 1 - removedRowCount, endRow - removedRowCount);
+                // The moved rows are left empty with their height
+                removeRows(Math.max(lastRow + 1, endRow - removedRowCount + 1), endRow);
+            }
+        }
+        addMergedRegions(mergedRegions);
+        restoreFormulas(formulas);
+    }
+
+    private void removeRows(int firstRow, int lastRow) {
+        for (int rowIndex = Math.max(0, firstRow); rowIndex <= lastRow; rowIndex++) {
+            Row row = sheet.getRow(rowIndex);
+            if (row != null) {
+                sheet.removeRow(row);
+            }
+        }
+    }
+
+    /**
+     * Removes the rows created by POI at the place of the missing rows moved.
+     */
+    private void removeEmptyRows(int firstRow, int lastRow) {
+        for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++) {
+            Row row = sheet.getRow(rowIndex);
+            if (row != null && row.getPhysicalNumberOfCells() == 0 && row.getHeight() == sheet.getDefaultRowHeight()) {
+                sheet.removeRow(row);
+            }
+        }
+    }
+
+    /**
+     * Inserts the same number of empty columns at each of the given sorted columns.
+     */
+    public void insertColumns(int[] firstColumns, int columnCount) {
+        insertColumns(toRanges(firstColumns, columnCount));
+    }
+
+    /**
+     * Inserts empty columns, each range being the column where the columns are inserted and the number of columns to insert.
+     */
+    public void insertColumns(int[][] columnRanges) {
+        setShift(false, columnRanges, true);
+        shiftColumns();
+    }
+
+    /**
+     * Deletes the ranges of columns.
+     */
+    public void removeColumns(int[][] columnRanges) {
+        setShift(false, columnRanges, false);
+        shiftColumns();
+    }
+
+    private void setShift(boolean shiftingRows, int[][] ranges, boolean inserting) {
+        this.shiftingRows = shiftingRows;
+        firstIndexes = new int[ranges.length];
+        counts = new int[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            firstIndexes[i] = ranges[i][0];
+            counts[i] = ranges[i][1];
+        }
+        this.inserting = inserting;
+        maxIndex = shiftingRows ? maxRow : maxColumn;
+        originalFormulas.clear();
+        changedFormulas.clear();
+    }
+
+    private void shiftColumns() {
+        if (firstIndexes.length == 0) {
+            return;
+        }
+        int lastColumnNum = -1;
+        for (Row row : sheet) {
+            lastColumnNum = Math.max(lastColumnNum, row.getLastCellNum() - 1);
+            shiftCells(row);
+        }
+        shiftOtherFormulas();
+        addMergedRegions(removeMergedRegions());
+        shiftComments();
+        shiftColumnWidths(lastColumnNum);
+    }
+
+    /**
+     * Moves the cells of the row, from the right for the insertions and from the left for the deletions
+     * so that no cell is moved where another cell still is.
+     */
+    private void shiftCells(Row row) {
+        List<Cell> cells = new ArrayList<>(row.getPhysicalNumberOfCells());
+        for (Cell cell : row) {
+            cells.add(cell);
+        }
+        int cellCount = cells.size();
+        for (int i = 0; i < cellCount; i++) {
+            Cell cell = cells.get(inserting ? cellCount - 1 - i : i);
+            if (cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                String formula = cell.getCellFormula();
+                Ptg[] tokens = parseFormula(formula, sheetIndex, FormulaType.CELL);
+                if (tokens != null && shiftReferences(tokens, sheetIndex)) {
+                    addOriginalFormula(sheetIndex, cell, formula);
+                    cell.setCellFormula(FormulaRenderer.toFormulaString(renderingWorkbook, tokens));
+                    addChangedFormula(sheetIndex, cell.getRowIndex(), shiftIndex(cell.getColumnIndex()));
+                }
+            }
+            int columnIndex = cell.getColumnIndex();
+            int newColumnIndex = shiftIndex(columnIndex);
+            if (newColumnIndex < 0) {
+                row.removeCell(cell);
+            } else if (newColumnIndex != columnIndex) {
+                moveCell(row, cell, newColumnIndex);
+            }
+        }
+    }
+
+    private void moveCell(Row row, Cell cell, int newColumnIndex) {
+        if (row instanceof HSSFRow) {
+            // The comments are moved with the drawing of the sheet
+            ((HSSFRow) row).moveCell((HSSFCell) cell, (short) newColumnIndex);
+            return;
+        }
+        Cell newCell = row.createCell(newColumnIndex, cell.getCellType());
+        newCell.setCellStyle(cell.getCellStyle());
+        switch (cell.getCellType()) {
+            case Cell.CELL_TYPE_BOOLEAN:
+                newCell.setCellValue(cell.getBooleanCellValue());
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                newCell.setCellErrorValue(cell.getErrorCellValue());
+                break;
+            case Cell.CELL_TYPE_FORMULA:
+                newCell.setCellFormula(cell.getCellFormula());
+                CellValue cachedValue = FormulaEngine.getCachedValue(cell);
+                if (cachedValue != null) {
+                    FormulaEngine.setCachedValue(newCell, cachedValue);
+                }
+                break;
+            case Cell.CELL_TYPE_NUMERIC:
+                newCell.setCellValue(cell.getNumericCellValue());
+                break;
+            case Cell.CELL_TYPE_STRING:
+                newCell.setCellValue(cell.getRichStringCellValue());
+                break;
+        }
+        Comment comment = cell.getCellComment();
+        if (comment != null) {
+            comment.setColumn(newColumnIndex);
+        }
+        Hyperlink hyperlink = cell.getHyperlink();
+        if (hyperlink != null) {
+            hyperlink.setFirstColumn(newColumnIndex);
+            hyperlink.setLastColumn(newColumnIndex);
+        }
+        row.removeCell(cell);
+    }
+
+    /**
+     * Shifts the references to this sheet in the formulas of the other sheets and in the named ranges.
+     */
+    private void shiftOtherFormulas() {
+        Workbook workbook = sheet.getWorkbook();
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            if (i == sheetIndex) {
+                continue;
+            }
+            for (Row row : workbook.getSheetAt(i)) {
+                for (Cell cell : row) {
+                    if (mayReferenceSheet(cell)) {
+                        String formula = cell.getCellFormula();
+                        Ptg[] tokens = parseFormula(formula, i, FormulaType.CELL);
+                        if (tokens != null && shiftReferences(tokens, i)) {
+                            addOriginalFormula(i, cell, formula);
+                            cell.setCellFormula(FormulaRenderer.toFormulaString(renderingWorkbook, tokens));
+                            addChangedFormula(i, cell.getRowIndex(), cell.getColumnIndex());
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < workbook.getNumberOfNames(); i++) {
+            Name name = workbook.getNameAt(i);
+            Ptg[] tokens = parseName(name);
+            if (tokens != null && shiftReferences(tokens, getSheetIndex(name))) {
+                addOriginalFormula(i, name);
+                name.setRefersToFormula(FormulaRenderer.toFormulaString(renderingWorkbook, tokens));
+            }
+        }
+    }
+
+    /**
+     * Replaces the formulas referencing this sheet with a constant before moving the rows.
+     *
+     * @return the shifted formulas at their position after the move
+     */
+    private List<ShiftedFormula> replaceFormulas() {
+        List<ShiftedFormula> formulas = new ArrayList<>();
+        Workbook workbook = sheet.getWorkbook();
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            for (Row row : workbook.getSheetAt(i)) {
+                for (Cell cell : row) {
+                    if (i == sheetIndex ? cell.getCellType() == Cell.CELL_TYPE_FORMULA : mayReferenceSheet(cell)) {
+                        String formula = cell.getCellFormula();
+                        Ptg[] tokens = parseFormula(formula, i, FormulaType.CELL);
+                        if (tokens != null && referencesSheet(tokens, i)) {
+                            ShiftedFormula shiftedFormula = new ShiftedFormula();
+                            shiftedFormula.sheetIndex = i;
+                            shiftedFormula.rowIndex = i == sheetIndex ? shiftIndex(row.getRowNum()) : row.getRowNum();
+                            shiftedFormula.columnIndex = cell.getColumnIndex();
+                            if (shiftReferences(tokens, i)) {
+                                shiftedFormula.formula = FormulaRenderer.toFormulaString(renderingWorkbook, tokens);
+                                addOriginalFormula(i, cell, formula);
+                                changedFormulas.add(shiftedFormula);
+                            } else {
+                                shiftedFormula.formula = formula;
+                                shiftedFormula.cachedValue = FormulaEngine.getCachedValue(cell);
+                            }
+                            formulas.add(shiftedFormula);
+                            cell.setCellFormula(MOVED_FORMULA);
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < workbook.getNumberOfNames(); i++) {
+            Name name = workbook.getNameAt(i);
+            Ptg[] tokens = parseName(name);
+            if (tokens != null && referencesSheet(tokens, getSheetIndex(name))) {
+                ShiftedFormula shiftedFormula = new ShiftedFormula();
+                shiftedFormula.nameIndex = i;
+                if (shiftReferences(tokens, getSheetIndex(name))) {
+                    shiftedFormula.formula = FormulaRenderer.toFormulaString(renderingWorkbook, tokens);
+                    addOriginalFormula(i, name);
+                } else {
+                    shiftedFormula.formula = name.getRefersToFormula();
+                }
+                formulas.add(shiftedFormula);
+                name.setRefersToFormula(MOVED_FORMULA);
+            }
+        }
+        return formulas;
+    }
+
+    /**
+     * Sets the formulas, the formulas with unchanged references get back their cached result.
+     *
+     * @return the cells of the formulas without cached result
+     */
+    private List<Cell> restoreFormulas(List<ShiftedFormula> formulas) {
+        List<Cell> formulaCells = new ArrayList<>();
+        for (ShiftedFormula shiftedFormula : formulas) {
+            if (shiftedFormula.nameIndex >= 0) {
+                sheet.getWorkbook().getNameAt(shiftedFormula.nameIndex).setRefersToFormula(shiftedFormula.formula);
+            } else {
+                Cell cell = getCell(shiftedFormula);
+                if (cell != null) {
+                    cell.setCellFormula(shiftedFormula.formula);
+                    if (shiftedFormula.cachedValue != null) {
+                        FormulaEngine.setCachedValue(cell, shiftedFormula.cachedValue);
+                    } else {
+                        formulaCells.add(cell);
+                    }
+                }
+            }
+        }
+        return formulaCells;
+    }
+
+    private Cell getCell(ShiftedFormula shiftedFormula) {
+        if (shiftedFormula.rowIndex < 0) {
+            return null;
+        }
+        Row row = sheet.getWorkbook().getSheetAt(shiftedFormula.sheetIndex).getRow(shiftedFormula.rowIndex);
+        return row == null ? null : row.getCell(shiftedFormula.columnIndex);
+    }
+
+    private void addChangedFormula(int formulaSheetIndex, int rowIndex, int columnIndex) {
+        ShiftedFormula changedFormula = new ShiftedFormula();
+        changedFormula.sheetIndex = formulaSheetIndex;
+        changedFormula.rowIndex = rowIndex;
+        changedFormula.columnIndex = columnIndex;
+        changedFormulas.add(changedFormula);
+    }
+
+    private void addOriginalFormula(int formulaSheetIndex, Cell cell, String formula) {
+        ShiftedFormula originalFormula = new ShiftedFormula();
+        originalFormula.sheetIndex = formulaSheetIndex;
+        originalFormula.rowIndex = cell.getRowIndex();
+        originalFormula.columnIndex = cell.getColumnIndex();
+        originalFormula.formula = formula;
+        originalFormulas.add(originalFormula);
+    }
+
+    private void addOriginalFormula(int nameIndex, Name name) {
+        ShiftedFormula originalFormula = new ShiftedFormula();
+        originalFormula.nameIndex = nameIndex;
+        originalFormula.formula = name.getRefersToFormula();
+        originalFormulas.add(originalFormula);
+    }
+
+    /**
+     * Sets back the formulas and named ranges changed by the last shift as they were before the shift.
+     * This is done after the opposite shift, as the references to the deleted cells can't be shifted back.
+     *
+     * @return the cells of the formulas set back, to recalculate
+     */
+    public List<Cell> restoreOriginalFormulas() {
+        return restoreFormulas(originalFormulas);
+    }
+
+    /**
+     * Gets the cells of the formulas with references changed by the last shift, to recalculate.
+     */
+    public List<Cell> getChangedFormulaCells() {
+        List<Cell> formulaCells = new ArrayList<>(changedFormulas.size());
+        for (ShiftedFormula changedFormula : changedFormulas) {
+            Cell cell = getCell(changedFormula);
+            if (cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                formulaCells.add(cell);
+            }
+        }
+        return formulaCells;
+    }
+
+    /**
+     * Estimates the memory used to keep the formulas as they were before the last shift.
+     */
+    public long getOriginalFormulasMemorySize() {
+        long memorySize = 0;
+        for (ShiftedFormula originalFormula : originalFormulas) {
+            memorySize += FORMULA_MEMORY_SIZE + 2 * originalFormula.formula.length();
+        }
+        return memorySize;
+    }
+
+    private boolean mayReferenceSheet(Cell cell) {
+        if (cell.getCellType() != Cell.CELL_TYPE_FORMULA) {
+            return false;
+        }
+        String formula = cell.getCellFormula();
+        String sheetName = sheet.getSheetName();
+        for (int i = 0; i <= formula.length() - sheetName.length(); i++) {
+            if (formula.regionMatches(true, i, sheetName, 0, sheetName.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Ptg[] parseFormula(String formula, int formulaSheetIndex, int formulaType) {
+        if (parsingWorkbook == null) {
+            return null;
+        }
+        try {
+            return FormulaParser.parse(formula, parsingWorkbook, formulaType, formulaSheetIndex);
+        } catch (RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private Ptg[] parseName(Name name) {
+        if (name.isFunctionName() || name.getRefersToFormula() == null) {
+            return null;
+        }
+        return parseFormula(name.getRefersToFormula(), getSheetIndex(name), FormulaType.NAMEDRANGE);
+    }
+
+    private int getSheetIndex(Name name) {
+        return name.getSheetIndex() == -1 ? sheetIndex : name.getSheetIndex();
+    }
+
+    private int getSheetIndex(Ptg token, int formulaSheetIndex) {
+        if (token instanceof ExternSheetReferenceToken) {
+            return evaluationWorkbook.convertFromExternSheetIndex(((ExternSheetReferenceToken) token).getExternSheetIndex());
+        }
+        return formulaSheetIndex;
+    }
+
+    private boolean referencesSheet(Ptg[] tokens, int formulaSheetIndex) {
+        for (Ptg token : tokens) {
+            if ((token instanceof RefPtgBase || token instanceof AreaPtgBase) && getSheetIndex(token, formulaSheetIndex) == sheetIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shifts the references to this sheet, the references to deleted cells are replaced by #REF!.
+     *
+     * @return whether a reference has changed
+     */
+    private boolean shiftReferences(Ptg[] tokens, int formulaSheetIndex) {
+        boolean shifted = false;
+        for (int i = 0; i < tokens.length; i++) {
+            Ptg token = tokens[i];
+            if (getSheetIndex(token, formulaSheetIndex) != sheetIndex) {
+                continue;
+            }
+            if (token instanceof RefPtgBase) {
+                RefPtgBase reference = (RefPtgBase) token;
+                int index = shiftingRows ? reference.getRow() : reference.getColumn();
+                int newIndex = shiftIndex(index);
+                if (newIndex != index) {
+                    if (newIndex < 0) {
+                        tokens[i] = token instanceof Ref3DPtg ? new DeletedRef3DPtg(((Ref3DPtg) token).getExternSheetIndex()) : new RefErrorPtg();
+                    } else if (shiftingRows) {
+                        reference.setRow(newIndex);
+                    } else {
+                        reference.setColumn(newIndex);
+                    }
+                    shifted = true;
+                }
+            } else if (token instanceof AreaPtgBase) {
+                AreaPtgBase area = (AreaPtgBase) token;
+                int firstIndex = shiftingRows ? area.getFirstRow() : area.getFirstColumn();
+                int lastIndex = shiftingRows ? area.getLastRow() : area.getLastColumn();
+                if (firstIndex == 0 && lastIndex == maxIndex) {
+                    // Whole columns or rows
+                    continue;
+                }
+                int newFirstIndex = shiftFirstIndex(firstIndex);
+                int newLastIndex = Math.min(shiftLastIndex(lastIndex), maxIndex);
+                if (newFirstIndex != firstIndex || newLastIndex != lastIndex) {
+                    if (newFirstIndex > newLastIndex) {
+                        tokens[i] = token instanceof Area3DPtg ? new DeletedArea3DPtg(((Area3DPtg) token).getExternSheetIndex()) : new AreaErrPtg();
+                    } else if (shiftingRows) {
+                        area.setFirstRow(newFirstIndex);
+                        area.setLastRow(newLastIndex);
+                    } else {
+                        area.setFirstColumn(newFirstIndex);
+                        area.setLastColumn(newLastIndex);
+                    }
+                    shifted = true;
+                }
+            }
+        }
+        return shifted;
+    }
+
+    /**
+     * Removes the merged regions changed by the shift.
+     *
+     * @return the shifted merged regions to add after the move of the cells
+     */
+    private List<CellRangeAddress> removeMergedRegions() {
+        List<CellRangeAddress> shiftedRegions = new ArrayList<>();
+        for (int i = sheet.getNumMergedRegions() - 1; i >= 0; i--) {
+            CellRangeAddress region = sheet.getMergedRegion(i);
+            int firstIndex = shiftingRows ? region.getFirstRow() : region.getFirstColumn();
+            int lastIndex = shiftingRows ? region.getLastRow() : region.getLastColumn();
+            int newFirstIndex = shiftFirstIndex(firstIndex);
+            int newLastIndex = shiftLastIndex(lastIndex);
+            if (newFirstIndex != firstIndex || newLastIndex != lastIndex) {
+                sheet.removeMergedRegion(i);
+                if (newFirstIndex <= newLastIndex && newLastIndex <= maxIndex) {
+                    CellRangeAddress shiftedRegion = shiftingRows
+                            ? new CellRangeAddress(newFirstIndex, newLastIndex, region.getFirstColumn(), region.getLastColumn())
+                            : new CellRangeAddress(region.getFirstRow(), region.getLastRow(), newFirstIndex, newLastIndex);
+                    if (shiftedRegion.getNumberOfCells() > 1) {
+                        shiftedRegions.add(shiftedRegion);
+                    }
+                }
+            }
+        }
+        return shiftedRegions;
+    }
+
+    private void addMergedRegions(List<CellRangeAddress> mergedRegions) {
+        for (CellRangeAddress region : mergedRegions) {
+            sheet.addMergedRegion(region);
+        }
+    }
+
+    /**
+     * Moves the comments of the xls sheets, the comments of the xlsx sheets are moved with their cell.
+     */
+    private void shiftComments() {
+        if (!(sheet instanceof HSSFSheet)) {
+            return;
+        }
+        HSSFPatriarch patriarch = ((HSSFSheet) sheet).getDrawingPatriarch();
+        if (patriarch == null) {
+            return;
+        }
+        for (HSSFShape shape : new ArrayList<>(patriarch.getChildren())) {
+            if (shape instanceof HSSFComment) {
+                HSSFComment comment = (HSSFComment) shape;
+                int column = shiftIndex(comment.getColumn());
+                if (column < 0) {
+                    patriarch.removeShape(comment);
+                } else if (column != comment.getColumn()) {
+                    comment.setColumn(column);
+                }
+            }
+        }
+    }
+
+    private void shiftColumnWidths(int lastColumnNum) {
+        int firstShiftedColumn = firstIndexes[0];
+        if (lastColumnNum < firstShiftedColumn) {
+            return;
+        }
+        // The columns at the end that are left by the deleted columns get the default width
+        int lastShiftedColumn = inserting ? Math.min(maxColumn, shiftLastIndex(lastColumnNum)) : lastColumnNum;
+        int[] widths = new int[lastShiftedColumn - firstShiftedColumn + 1];
+        boolean[] hidden = new boolean[widths.length];
+        Arrays.fill(widths, sheet.getDefaultColumnWidth() * 256);
+        for (int column = firstShiftedColumn; column <= lastColumnNum; column++) {
+            int newColumn = shiftIndex(column);
+            if (newColumn >= 0 && newColumn <= lastShiftedColumn) {
+                widths[newColumn - firstShiftedColumn] = sheet.getColumnWidth(column);
+                hidden[newColumn - firstShiftedColumn] = sheet.isColumnHidden(column);
+            }
+        }
+        for (int i = 0; i < widths.length; i++) {
+            sheet.setColumnWidth(firstShiftedColumn + i, widths[i]);
+            sheet.setColumnHidden(firstShiftedColumn + i, hidden[i]);
+        }
+    }
+
+    /**
+     * Gets the number of inserted or deleted rows or columns before the index (or at the index for the inclusive version).
+     */
+    private int shiftedCount(int index, boolean inclusive) {
+        int count = 0;
+        for (int i = 0; i < firstIndexes.length && (firstIndexes[i] < index || (inclusive && firstIndexes[i] == index)); i++) {
+            count += inserting ? counts[i] : Math.min(counts[i], index - firstIndexes[i] + (inclusive ? 1 : 0));
+        }
+        return count;
+    }
+
+    /**
+     * Gets the new index of the row or column, -1 if it's deleted or moved after the last row or column.
+     */
+    private int shiftIndex(int index) {
+        if (inserting) {
+            int newIndex = index + shiftedCount(index, true);
+            return newIndex <= maxIndex ? newIndex : -1;
+        }
+        int removedBefore = shiftedCount(index, false);
+        boolean removed = shiftedCount(index, true) > removedBefore;
+        return removed ? -1 : index - removedBefore;
+    }
+
+    /**
+     * Gets the new first index of a range, the deleted rows or columns at the start of the range are excluded.
+     */
+    private int shiftFirstIndex(int index) {
+        if (inserting) {
+            return index + shiftedCount(index, true);
+        }
+        return index - shiftedCount(index, false);
+    }
+
+    /**
+     * Gets the new last index of a range, the deleted rows or columns at the end of the range are excluded.
+     */
+    private int shiftLastIndex(int index) {
+        if (inserting) {
+            return index + shiftedCount(index, true);
+        }
+        return index - shiftedCount(index, true);
+    }
+
+    /**
+     * A formula or a named range with its references shifted.
+     */
+    private static class ShiftedFormula {
+
+        private int sheetIndex;
+        private int rowIndex;
+        private int columnIndex;
+        // The index of the named range in the workbook, -1 for the formula of a cell
+        private int nameIndex = -1;
+        private String formula;
+        private CellValue cachedValue;
+    }
+}
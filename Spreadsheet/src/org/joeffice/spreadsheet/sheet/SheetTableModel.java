@@ -15,22 +15,96 @@
  */
 package org.joeffice.spreadsheet.sheet;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.UndoableEditListener;
 import javax.swing.table.AbstractTableModel;
+import javax.swing.undo.UndoableEditSupport;
 
+import org.apache.poi.ss.formula.FormulaParseException;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.joeffice.spreadsheet.cell.CellRenderCache;
 import org.joeffice.spreadsheet.cell.CellUtils;
+import org.joeffice.spreadsheet.formula.FormulaEngine;
+
+import org.openide.util.NbBundle;
+import org.openide.util.NbBundle.Messages;
+import org.openide.util.WeakListeners;
 
 /**
  * The POI sheet table model.
  *
+ * The changes done with the model are sent as undoable edits to the undoable edit listeners.
+ *
  * @author Anthony Goubard - Japplis
  */
+@Messages({
+    "UNDO_Typing=Typing",
+    "UNDO_SetValues=Set Values",
+    "UNDO_InsertRows=Insert Rows",
+    "UNDO_RemoveRows=Remove Rows",
+    "UNDO_InsertColumns=Insert Columns",
+    "UNDO_RemoveColumns=Remove Columns"
+})
 public class SheetTableModel extends AbstractTableModel {
 
     private Sheet sheet;
+    private CellStore cellStore;
+    private CellUtils.ValueParser valueParser = new CellUtils.ValueParser();
+    private CellRenderCache renderCache = new CellRenderCache();
+    private boolean readOnly;
+    private boolean recalculating;
+    // The formulas are already told about the rows or columns inserted or deleted
+    private boolean shifting;
+    private UndoableEditSupport undoSupport = new UndoableEditSupport(this);
+    // Kept by the model as the formula engine only has a weak reference to it
+    private PropertyChangeListener recalculationListener;
 
     public SheetTableModel(Sheet sheet) {
         this.sheet = sheet;
+        cellStore = new CellStore(sheet);
+        listenToRecalculations();
+    }
+
+    /**
+     * Creates a read-only model where the cells are only in the given cell store and not in the sheet.
+     */
+    public SheetTableModel(Sheet sheet, CellStore cellStore) {
+        this(sheet, cellStore, true);
+    }
+
+    /**
+     * Creates a model with cells already loaded in the cell store.
+     * If the model is not read-only, the cell store must contain the cells of the sheet.
+     */
+    public SheetTableModel(Sheet sheet, CellStore cellStore, boolean readOnly) {
+        this.sheet = sheet;
+        this.cellStore = cellStore;
+        this.readOnly = readOnly;
+        if (!readOnly) {
+            listenToRecalculations();
+        }
+    }
+
+    /**
+     * Refreshes the rows with formulas recalculated because of a change in this sheet or in another sheet.
+     */
+    private void listenToRecalculations() {
+        recalculationListener = new PropertyChangeListener() {
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (FormulaEngine.PROP_FORMULAS_RECALCULATED.equals(evt.getPropertyName())) {
+                    formulasRecalculated((List<Cell>) evt.getNewValue());
+                }
+            }
+        };
+        FormulaEngine formulaEngine = FormulaEngine.getInstance(sheet.getWorkbook());
+        formulaEngine.addPropertyChangeListener(WeakListeners.propertyChange(recalculationListener, formulaEngine));
     }
 
     @Override
@@ -42,23 +116,20 @@ public class SheetTableModel extends AbstractTableModel {
             return lastRowNum + 30;
         }
     }
+
     public int getLastRowNum() {
+        if (readOnly) {
+            return Math.max(0, cellStore.getLastRowNum());
+        }
         return sheet.getLastRowNum();
     }
 
+    /**
+     * Gets the index of the last column with cells.
+     * The bounds are maintained incrementally by the cell store so this doesn't go through the rows of the sheet.
+     */
     public int getLastColumnNum() {
-        int lastRowNum = sheet.getLastRowNum();
-        int lastColumn = 0;
-        for (int i = 0; i < lastRowNum; i++) {
-            Row row = sheet.getRow(i);
-            if (row != null) {
-                int lastCell = row.getLastCellNum() - 1;
-                if (lastColumn < lastCell) {
-                    lastColumn = lastCell;
-                }
-            }
-        }
-        return lastColumn;
+        return Math.max(0, cellStore.getLastColumnNum());
     }
 
     @Override
@@ -71,8 +142,26 @@ public class SheetTableModel extends AbstractTableModel {
         }
     }
 
+    /**
+     * All the columns contain cells, also the columns created after a structure change.
+     */
+    @Override
+    public Class<?> getColumnClass(int columnIndex) {
+        return Cell.class;
+    }
+
+    /**
+     * Gets the POI cell, or null if there is no cell or the model is read-only.
+     *
+     * The values, styles and bounds displayed are read from the cell store, not from this cell.
+     * The POI cell is still returned as the editors, the actions, the comments and the formula cells work with it,
+     * the store only has the values needed to paint the sheet.
+     */
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
+        if (!cellStore.hasCell(rowIndex, columnIndex)) {
+            return null;
+        }
         Row row = sheet.getRow(rowIndex);
         if (row != null) {
             Cell cell = row.getCell(columnIndex);
@@ -84,78 +173,171 @@ public class SheetTableModel extends AbstractTableModel {
 
     @Override
     public boolean isCellEditable(int rowIndex, int columnIndex) {
-        return true;
+        return !readOnly;
     }
 
     @Override
     public void setValueAt(Object newValue, int rowIndex, int columnIndex) {
+        if (readOnly) {
+            return;
+        }
+        CellRangeAddress changedCell = new CellRangeAddress(rowIndex, rowIndex, columnIndex, columnIndex);
+        CellsEdit edit = startCellsEdit(NbBundle.getMessage(SheetTableModel.class, "UNDO_Typing"), Collections.singletonList(changedCell));
         Cell cell = CellUtils.getCell(true, sheet, rowIndex, columnIndex);
+        setCellValue(cell, newValue);
+        endCellsEdit(edit);
+    }
 
+    private void setCellValue(Cell cell, Object newValue) {
         if (newValue instanceof Boolean) {
             cell.setCellValue((Boolean) newValue);
-        } else {
+        } else if (newValue instanceof Number) {
+            cell.setCellValue(((Number) newValue).doubleValue());
+        } else if (((String) newValue).length() > 1 && ((String) newValue).startsWith("=")) {
             try {
-                double numericValue = Double.parseDouble((String) newValue);
-                cell.setCellValue(numericValue);
-            } catch (NumberFormatException ex) {
+                cell.setCellFormula(((String) newValue).substring(1));
+            } catch (FormulaParseException ex) {
                 cell.setCellValue((String) newValue);
             }
+        } else {
+            CellUtils.setCellValue(cell, (String) newValue, valueParser);
         }
-        fireTableCellUpdated(rowIndex, columnIndex);
     }
 
     /**
-     * Inserts a number of rows in the table.
+     * Sets the values of a block of cells and fires one event for the block.
+     * A null value leaves the cell unchanged (for the shorter rows) and an empty text removes the cell.
      *
-     * @param numberOfRows the number of rows to insert
-     * @param rowBefore the index of the row before the row inserted, -1 to insert rows at the top of the sheet.
+     * @param values the rows of values (String, Boolean or Number) to set starting at the given cell
      */
-    public void insertRows(int numberOfRows, int... rowsBefore) {
-        if (numberOfRows <= 0) {
+    public void setValuesAt(Object[][] values, int firstRow, int firstColumn) {
+        if (readOnly || values.length == 0) {
             return;
         }
-        for (int i = rowsBefore.length - 1; i >= 0; i--) {
-            int rowBefore = rowsBefore[i];
-            if (rowBefore < sheet.getLastRowNum()) {
-                sheet.shiftRows(rowBefore + 1, sheet.getLastRowNum(), numberOfRows);
-                fireTableRowsInserted(rowBefore + 1, rowBefore + 1 + numberOfRows);
+        int lastColumn = firstColumn;
+        for (Object[] rowValues : values) {
+            lastColumn = Math.max(lastColumn, firstColumn + rowValues.length - 1);
+        }
+        CellRangeAddress changedCells = new CellRangeAddress(firstRow, firstRow + values.length - 1, firstColumn, lastColumn);
+        CellsEdit edit = startCellsEdit(NbBundle.getMessage(SheetTableModel.class, "UNDO_SetValues"), Collections.singletonList(changedCells));
+        for (int i = 0; i < values.length; i++) {
+            Object[] rowValues = values[i];
+            int rowIndex = firstRow + i;
+            Row row = sheet.getRow(rowIndex);
+            for (int j = 0; j < rowValues.length; j++) {
+                Object value = rowValues[j];
+                if (value == null) {
+                    continue;
+                }
+                int columnIndex = firstColumn + j;
+                if ("".equals(value)) {
+                    Cell cell = row == null ? null : row.getCell(columnIndex);
+                    if (cell != null) {
+                        row.removeCell(cell);
+                    }
+                } else {
+                    if (row == null) {
+                        row = sheet.createRow(rowIndex);
+                    }
+                    Cell cell = row.getCell(columnIndex);
+                    if (cell == null) {
+                        cell = row.createCell(columnIndex);
+                    }
+                    setCellValue(cell, value);
+                }
             }
         }
+        endCellsEdit(edit);
     }
 
-    public void removeRows(int... rows) {
-        for (int i = rows.length - 1; i >= 0; i--) { // Remove from last to first to keep the row indexes correct
-            int rowIndex = rows[i];
-            Row row = sheet.getRow(rowIndex);
-            if (row != null) {
-                // sheet.removeRow(row); // This only clear the row
-                sheet.shiftRows(rowIndex + 1, sheet.getLastRowNum(), -1);
-            } else if (rowIndex <= sheet.getLastRowNum()) {
-                sheet.shiftRows(rowIndex + 1, sheet.getLastRowNum(), -1);
-            }
-            fireTableRowsDeleted(rowIndex, rowIndex);
+    public void addUndoableEditListener(UndoableEditListener listener) {
+        undoSupport.addUndoableEditListener(listener);
+    }
+
+    public void removeUndoableEditListener(UndoableEditListener listener) {
+        undoSupport.removeUndoableEditListener(listener);
+    }
+
+    /**
+     * Records the cells of the ranges before they are changed directly in the sheet, for example to change their style.
+     * The change is ended with {@link #endCellsEdit(CellsEdit)}.
+     */
+    public CellsEdit startCellsEdit(String presentationName, List<CellRangeAddress> ranges) {
+        return new CellsEdit(this, presentationName, ranges);
+    }
+
+    /**
+     * Sends the undoable edit of the changed cells and notifies that the cells of the ranges have been updated.
+     */
+    public void endCellsEdit(CellsEdit edit) {
+        undoSupport.postEdit(edit);
+        fireTableCellsUpdated(edit.getRanges());
+    }
+
+    /**
+     * Notifies that the cells of the ranges have been updated, with one event for the block containing all the ranges
+     * so that the formulas are only recalculated once.
+     */
+    public void fireTableCellsUpdated(List<CellRangeAddress> ranges) {
+        if (ranges.isEmpty()) {
+            return;
+        }
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        int firstColumn = Integer.MAX_VALUE;
+        int lastColumn = -1;
+        for (CellRangeAddress range : ranges) {
+            firstRow = Math.min(firstRow, range.getFirstRow());
+            lastRow = Math.max(lastRow, range.getLastRow());
+            firstColumn = Math.min(firstColumn, range.getFirstColumn());
+            lastColumn = Math.max(lastColumn, range.getLastColumn());
         }
+        fireTableCellsUpdated(firstRow, lastRow, firstColumn, lastColumn);
     }
 
-    public void removeColumns(int... columns) {
-        for (int rowIndex = 0; rowIndex < sheet.getLastRowNum(); rowIndex++) {
-            Row row = sheet.getRow(rowIndex);
-            if (row != null) {
-                short lastColumn = row.getLastCellNum();
-                for (int i = columns.length; i >= 0; i--) {
-                    int columnIndex = columns[i];
-                    if (columnIndex <= lastColumn) {
-                        Cell cell = row.getCell(columnIndex);
-                        // I'm afraid that this only clear the cell and doesn't shift
-                        // Also shiting columns is not supported in POI, so nothing happens for empty cells
-                        if (cell != null) {
-                            row.removeCell(cell);
-                        }
-                    }
-                }
-            }
+    /**
+     * Notifies that the cells of a block have been updated.
+     * The listeners receive an update of the rows, only the cells of the block are reloaded and recalculated.
+     */
+    public void fireTableCellsUpdated(int firstRow, int lastRow, int firstColumn, int lastColumn) {
+        if (firstColumn == lastColumn) {
+            fireTableChanged(new TableModelEvent(this, firstRow, lastRow, firstColumn));
+        } else {
+            fireTableChanged(new CellsUpdatedEvent(this, firstRow, lastRow, firstColumn, lastColumn));
+        }
+    }
+
+    /**
+     * Inserts a number of rows in the table after each of the given rows.
+     * The rows are shifted in one pass and one event is fired for all the inserted rows.
+     *
+     * @param numberOfRows the number of rows to insert
+     * @param rowsBefore the indexes of the rows before the rows inserted, -1 to insert rows at the top of the sheet.
+     */
+    public void insertRows(int numberOfRows, int... rowsBefore) {
+        if (readOnly || numberOfRows <= 0 || rowsBefore.length == 0) {
+            return;
+        }
+        int[] firstRows = SheetShifter.toSortedIndexes(rowsBefore);
+        for (int i = 0; i < firstRows.length; i++) {
+            firstRows[i]++;
         }
-        fireTableStructureChanged();
+        int[][] insertedRanges = new int[firstRows.length][];
+        for (int i = 0; i < firstRows.length; i++) {
+            insertedRanges[i] = new int[]{firstRows[i], numberOfRows};
+        }
+        shift(new ShiftEdit(this, NbBundle.getMessage(SheetTableModel.class, "UNDO_InsertRows"), true, insertedRanges, true));
+    }
+
+    /**
+     * Removes the rows, the rows below are shifted up and one event is fired for all the deleted rows.
+     */
+    public void removeRows(int... rows) {
+        if (readOnly || rows.length == 0) {
+            return;
+        }
+        int[][] rowRanges = SheetShifter.toRanges(rows);
+        shift(new ShiftEdit(this, NbBundle.getMessage(SheetTableModel.class, "UNDO_RemoveRows"), true, rowRanges, false));
     }
 
     public void deleteCell(int rowIndex, int columnIndex) {
@@ -169,26 +351,215 @@ public class SheetTableModel extends AbstractTableModel {
     }
 
     public void insertColumn(int columnIndex) {
-        for (int i = sheet.getFirstRowNum(); i < sheet.getLastRowNum(); i++) {
-            Row row = sheet.getRow(i);
-            if (row != null) {
-                for (int j = row.getLastCellNum(); j > columnIndex; j--) {
-                    CellUtils.copyCellToColumn(row, row.getCell(j), j + 1);
-                }
-                row.createCell(columnIndex);
-            }
+        insertColumns(1, columnIndex);
+    }
+
+    /**
+     * Inserts a number of empty columns at each of the given columns, the cells are shifted to the right.
+     */
+    public void insertColumns(int numberOfColumns, int... columns) {
+        if (readOnly || numberOfColumns <= 0 || columns.length == 0) {
+            return;
+        }
+        int[] firstColumns = SheetShifter.toSortedIndexes(columns);
+        int[][] insertedRanges = new int[firstColumns.length][];
+        for (int i = 0; i < firstColumns.length; i++) {
+            insertedRanges[i] = new int[]{firstColumns[i], numberOfColumns};
         }
-        fireTableStructureChanged();
+        shift(new ShiftEdit(this, NbBundle.getMessage(SheetTableModel.class, "UNDO_InsertColumns"), false, insertedRanges, true));
     }
 
     public void removeColumn(int columnIndex) {
-        for (int rowIndex = sheet.getFirstRowNum(); rowIndex < sheet.getLastRowNum(); rowIndex++) {
-            deleteCell(rowIndex, columnIndex);
+        removeColumns(columnIndex);
+    }
+
+    /**
+     * Removes the columns, the cells at the right are shifted to the left.
+     */
+    public void removeColumns(int... columns) {
+        if (readOnly || columns.length == 0) {
+            return;
+        }
+        int[][] columnRanges = SheetShifter.toRanges(columns);
+        shift(new ShiftEdit(this, NbBundle.getMessage(SheetTableModel.class, "UNDO_RemoveColumns"), false, columnRanges, false));
+    }
+
+    private void shift(ShiftEdit edit) {
+        edit.shift();
+        undoSupport.postEdit(edit);
+    }
+
+    /**
+     * Notifies that rows or columns have been inserted or deleted, with one event for all the ranges.
+     *
+     * @param changedCells the cells changed other than by the move, only these cells and the formulas depending on
+     * them are recalculated
+     */
+    void fireTableShifted(boolean shiftingRows, int[][] ranges, boolean inserting, List<Cell> changedCells) {
+        FormulaEngine.getInstance(sheet.getWorkbook()).cellsShifted(changedCells);
+        shifting = true;
+        try {
+            if (shiftingRows) {
+                fireTableChanged(new RowsShiftedEvent(this, ranges, inserting ? TableModelEvent.INSERT : TableModelEvent.DELETE));
+            } else {
+                fireTableStructureChanged();
+            }
+        } finally {
+            shifting = false;
+        }
+    }
+
+    /**
+     * Keeps the cell store and the formulas in sync with the sheet.
+     * All the changes done to the POI sheet are followed by an event, so the changed cells are reloaded here
+     * and the formulas depending on them are recalculated.
+     * In read-only mode the cell store is the data so nothing is reloaded.
+     */
+    @Override
+    public void fireTableChanged(TableModelEvent e) {
+        renderCache.invalidate(e, getColumnCount());
+        if (readOnly) {
+            super.fireTableChanged(e);
+            return;
+        }
+        int firstRow = e.getFirstRow();
+        int lastRow = e.getLastRow();
+        FormulaEngine formulaEngine = FormulaEngine.getInstance(sheet.getWorkbook());
+        if (firstRow == TableModelEvent.HEADER_ROW || lastRow == Integer.MAX_VALUE) {
+            cellStore.load(sheet);
+            if (!shifting) {
+                formulaEngine.invalidate();
+            }
+        } else if (e.getType() != TableModelEvent.UPDATE) {
+            // Inserted or deleted rows shift all the rows below
+            int lastStoredRow = Math.max(cellStore.getLastRowNum(), sheet.getLastRowNum());
+            reloadCells(firstRow, lastStoredRow, TableModelEvent.ALL_COLUMNS);
+            if (!shifting) {
+                formulaEngine.invalidate();
+            }
+        } else if (e instanceof CellsUpdatedEvent) {
+            CellsUpdatedEvent cellsEvent = (CellsUpdatedEvent) e;
+            for (int column = cellsEvent.firstColumn; column <= cellsEvent.lastColumn; column++) {
+                reloadCells(firstRow, lastRow, column);
+            }
+            if (!recalculating) {
+                formulaEngine.cellsChanged(sheet, firstRow, lastRow, cellsEvent.firstColumn, cellsEvent.lastColumn);
+            }
+        } else {
+            reloadCells(firstRow, lastRow, e.getColumn());
+            if (!recalculating) {
+                int firstColumn = e.getColumn() == TableModelEvent.ALL_COLUMNS ? 0 : e.getColumn();
+                int lastColumn = e.getColumn() == TableModelEvent.ALL_COLUMNS ? getColumnCount() - 1 : e.getColumn();
+                formulaEngine.cellsChanged(sheet, firstRow, lastRow, firstColumn, lastColumn);
+            }
+        }
+        super.fireTableChanged(e);
+        if (!recalculating) {
+            // The table models of the sheets with recalculated formulas are notified by the engine
+            formulaEngine.recalculate();
+        }
+    }
+
+    /**
+     * Fires one event for the rows of this sheet with recalculated formulas.
+     * The formulas are not recalculated again for this event.
+     */
+    public void formulasRecalculated(List<Cell> recalculatedCells) {
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        for (Cell cell : recalculatedCells) {
+            if (cell.getSheet() == sheet) {
+                firstRow = Math.min(firstRow, cell.getRowIndex());
+                lastRow = Math.max(lastRow, cell.getRowIndex());
+            }
+        }
+        if (lastRow >= 0) {
+            recalculating = true;
+            try {
+                fireTableRowsUpdated(firstRow, lastRow);
+            } finally {
+                recalculating = false;
+            }
+        }
+    }
+
+    private void reloadCells(int firstRow, int lastRow, int column) {
+        for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++) {
+            Row row = sheet.getRow(rowIndex);
+            if (column == TableModelEvent.ALL_COLUMNS) {
+                if (row != null) {
+                    cellStore.loadRow(row);
+                } else {
+                    cellStore.removeRow(rowIndex);
+                }
+            } else {
+                Cell cell = row == null ? null : row.getCell(column);
+                if (cell == null) {
+                    cellStore.removeCell(rowIndex, column);
+                } else {
+                    cellStore.loadCell(cell);
+                }
+            }
         }
-        fireTableStructureChanged();
     }
 
     public Sheet getSheet() {
         return sheet;
     }
+
+    public CellStore getCellStore() {
+        return cellStore;
+    }
+
+    public CellRenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Update event of all the columns of the rows for the listeners, with the columns of the block really updated.
+     */
+    private static class CellsUpdatedEvent extends TableModelEvent {
+
+        private int firstColumn;
+        private int lastColumn;
+
+        private CellsUpdatedEvent(SheetTableModel source, int firstRow, int lastRow, int firstColumn, int lastColumn) {
+            super(source, firstRow, lastRow);
+            this.firstColumn = firstColumn;
+            this.lastColumn = lastColumn;
+        }
+    }
+
+    /**
+     * Insertion or deletion of several ranges of rows.
+     * For the listeners, the rows from the first range are inserted or deleted.
+     */
+    public static class RowsShiftedEvent extends TableModelEvent {
+
+        private int[][] rowRanges;
+
+        private RowsShiftedEvent(SheetTableModel source, int[][] rowRanges, int type) {
+            super(source, rowRanges[0][0], rowRanges[0][0] + getRowCount(rowRanges) - 1, TableModelEvent.ALL_COLUMNS, type);
+            this.rowRanges = rowRanges;
+        }
+
+        private static int getRowCount(int[][] rowRanges) {
+            int rowCount = 0;
+            for (int[] range : rowRanges) {
+                rowCount += range[1];
+            }
+            return rowCount;
+        }
+
+        /**
+         * Gets the inserted or deleted rows as <code>{first row, row count}</code> in the row indexes before the change.
+         */
+        public int[][] getRowRanges() {
+            return rowRanges;
+        }
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.sheet;
+
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+import org.openide.awt.UndoRedo;
+import org.openide.util.NbPreferences;
+
+/**
+ * Undo manager of the spreadsheets limiting the memory used by the edits.
+ *
+ * When the edits use more memory than the maximum, the oldest edits are discarded.
+ * The maximum can be changed with the "undo.memory.size" preference of the module (in bytes).
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class SheetUndoManager extends UndoRedo.Manager {
+
+    public final static long DEFAULT_MAX_MEMORY_SIZE = 32 * 1024 * 1024;
+
+    private long maxMemorySize = NbPreferences.forModule(SheetUndoManager.class).getLong("undo.memory.size", DEFAULT_MAX_MEMORY_SIZE);
+
+    public long getMaxMemorySize() {
+        return maxMemorySize;
+    }
+
+    /**
+     * Sets the maximum memory used by the edits, the oldest edits are discarded if they use more memory.
+     */
+    public synchronized void setMaxMemorySize(long maxMemorySize) {
+        this.maxMemorySize = maxMemorySize;
+        trimToMemorySize();
+    }
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit anEdit) {
+        boolean added = super.addEdit(anEdit);
+        if (added) {
+            trimToMemorySize();
+        }
+        return added;
+    }
+
+    /**
+     * Undoes the last edit, the memory used by the edit may grow to keep what is needed to redo it.
+     */
+    @Override
+    public synchronized void undo() throws CannotUndoException {
+        super.undo();
+        trimToMemorySize();
+    }
+
+    /**
+     * Gets the memory used by the edits that can be undone or redone.
+     */
+    public synchronized long getMemorySize() {
+        long memorySize = 0;
+        for (UndoableEdit edit : edits) {
+            memorySize += getMemorySize(edit);
+        }
+        return memorySize;
+    }
+
+    /**
+     * Moves the edits of the model to the model of the reloaded sheet, so the undo history is kept
+     * when the workbook is reloaded after a save.
+     */
+    public synchronized void replaceModel(SheetTableModel oldModel, SheetTableModel newModel) {
+        for (UndoableEdit edit : edits) {
+            if (edit instanceof SheetEdit && ((SheetEdit) edit).getModel() == oldModel) {
+                ((SheetEdit) edit).setModel(newModel);
+            }
+        }
+    }
+
+    private static long getMemorySize(UndoableEdit edit) {
+        return edit instanceof SheetEdit ? ((SheetEdit) edit).getMemorySize() : 0;
+    }
+
+    /**
+     * Discards the oldest edits until the memory used is below the maximum.
+     * An edit using more than the maximum memory is also discarded so it can't be undone.
+     */
+    private void trimToMemorySize() {
+        long memorySize = getMemorySize();
+        while (memorySize > maxMemorySize && !edits.isEmpty()) {
+            memorySize -= getMemorySize(edits.get(0));
+            trimEdits(0, 0);
+        }
+    }
+}
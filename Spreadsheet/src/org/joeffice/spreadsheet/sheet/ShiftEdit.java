@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.sheet;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * The insertion or the deletion of ranges of rows or columns.
+ *
+ * The shift is undone with the opposite shift. For the deletions, the cells, the heights or widths
+ * of the deleted rows or columns are kept to be set back. The formulas changed by the shift and the merged regions
+ * are set back as they were, as the references to the deleted cells can't be shifted back.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+class ShiftEdit extends SheetEdit {
+
+    private final static int MERGED_REGION_MEMORY_SIZE = 32;
+
+    private boolean shiftingRows;
+    private int[][] ranges;
+    private boolean inserting;
+
+    // What is needed to undo the shift, released once it's undone
+    private SheetShifter shifter;
+    private List<CellRangeAddress> mergedRegions;
+    private CellsSnapshot removedCells;
+    private int[] removedSizes;
+    private boolean[] removedHidden;
+
+    /**
+     * Creates the edit.
+     *
+     * @param ranges the sorted ranges of rows or columns as <code>{first index, count}</code> before the shift
+     */
+    ShiftEdit(SheetTableModel model, String presentationName, boolean shiftingRows, int[][] ranges, boolean inserting) {
+        super(model, presentationName);
+        this.shiftingRows = shiftingRows;
+        this.ranges = ranges;
+        this.inserting = inserting;
+    }
+
+    /**
+     * Inserts or deletes the rows or columns.
+     */
+    void shift() {
+        Sheet sheet = getModel().getSheet();
+        mergedRegions = new ArrayList<>(sheet.getNumMergedRegions());
+        for (int i = 0; i < sheet.getNumMergedRegions(); i++) {
+            mergedRegions.add(sheet.getMergedRegion(i));
+        }
+        if (!inserting) {
+            recordRemoved(sheet);
+        }
+        shifter = new SheetShifter(sheet);
+        if (shiftingRows && inserting) {
+            shifter.insertRows(ranges);
+        } else if (shiftingRows) {
+            shifter.removeRows(ranges);
+        } else if (inserting) {
+            shifter.insertColumns(ranges);
+        } else {
+            shifter.removeColumns(ranges);
+        }
+        getModel().fireTableShifted(shiftingRows, ranges, inserting, shifter.getChangedFormulaCells());
+    }
+
+    private void recordRemoved(Sheet sheet) {
+        SpreadsheetVersion version = sheet.getWorkbook() instanceof HSSFWorkbook ? SpreadsheetVersion.EXCEL97 : SpreadsheetVersion.EXCEL2007;
+        List<CellRangeAddress> removedRanges = new ArrayList<>(ranges.length);
+        int removedCount = 0;
+        for (int[] range : ranges) {
+            int lastIndex = range[0] + range[1] - 1;
+            removedRanges.add(shiftingRows
+                    ? new CellRangeAddress(range[0], lastIndex, 0, version.getLastColumnIndex())
+                    : new CellRangeAddress(0, version.getLastRowIndex(), range[0], lastIndex));
+            removedCount += range[1];
+        }
+        removedCells = new CellsSnapshot(sheet, removedRanges);
+        removedSizes = new int[removedCount];
+        removedHidden = new boolean[removedCount];
+        int removedIndex = 0;
+        for (int[] range : ranges) {
+            for (int index = range[0]; index < range[0] + range[1]; index++) {
+                if (shiftingRows) {
+                    Row row = sheet.getRow(index);
+                    removedSizes[removedIndex] = row == null ? -1 : row.getHeight();
+                    removedHidden[removedIndex] = row != null && row.getZeroHeight();
+                } else {
+                    removedSizes[removedIndex] = sheet.getColumnWidth(index);
+                    removedHidden[removedIndex] = sheet.isColumnHidden(index);
+                }
+                removedIndex++;
+            }
+        }
+    }
+
+    /**
+     * Gets the ranges of the opposite shift, in the indexes after this shift.
+     */
+    private int[][] getOppositeRanges() {
+        int[][] oppositeRanges = new int[ranges.length][];
+        int shiftedCount = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            oppositeRanges[i] = new int[]{ranges[i][0] + (inserting ? shiftedCount : -shiftedCount), ranges[i][1]};
+            shiftedCount += ranges[i][1];
+        }
+        return oppositeRanges;
+    }
+
+    @Override
+    public void undo() throws CannotUndoException {
+        super.undo();
+        Sheet sheet = getModel().getSheet();
+        int[][] oppositeRanges = getOppositeRanges();
+        SheetShifter oppositeShifter = new SheetShifter(sheet);
+        if (shiftingRows && inserting) {
+            oppositeShifter.removeRows(oppositeRanges);
+        } else if (shiftingRows) {
+            oppositeShifter.insertRows(oppositeRanges);
+        } else if (inserting) {
+            oppositeShifter.removeColumns(oppositeRanges);
+        } else {
+            oppositeShifter.insertColumns(oppositeRanges);
+        }
+        List<Cell> changedCells = new ArrayList<>(oppositeShifter.getChangedFormulaCells());
+        if (!inserting) {
+            restoreRemoved(sheet);
+            changedCells.addAll(removedCells.getCells(sheet));
+        }
+        // The sheet may have been reloaded since the shift
+        shifter.setSheet(sheet);
+        changedCells.addAll(shifter.restoreOriginalFormulas());
+        for (int i = sheet.getNumMergedRegions() - 1; i >= 0; i--) {
+            sheet.removeMergedRegion(i);
+        }
+        for (CellRangeAddress mergedRegion : mergedRegions) {
+            sheet.addMergedRegion(mergedRegion);
+        }
+        shifter = null;
+        mergedRegions = null;
+        removedCells = null;
+        removedSizes = null;
+        removedHidden = null;
+        getModel().fireTableShifted(shiftingRows, oppositeRanges, !inserting, changedCells);
+    }
+
+    private void restoreRemoved(Sheet sheet) {
+        removedCells.restore(sheet);
+        int removedIndex = 0;
+        for (int[] range : ranges) {
+            for (int index = range[0]; index < range[0] + range[1]; index++) {
+                if (shiftingRows && removedSizes[removedIndex] >= 0) {
+                    Row row = sheet.getRow(index);
+                    if (row == null) {
+                        row = sheet.createRow(index);
+                    }
+                    row.setHeight((short) removedSizes[removedIndex]);
+                    row.setZeroHeight(removedHidden[removedIndex]);
+                } else if (!shiftingRows) {
+                    sheet.setColumnWidth(index, removedSizes[removedIndex]);
+                    sheet.setColumnHidden(index, removedHidden[removedIndex]);
+                }
+                removedIndex++;
+            }
+        }
+    }
+
+    @Override
+    public void redo() throws CannotRedoException {
+        super.redo();
+        shift();
+    }
+
+    @Override
+    public long getMemorySize() {
+        long memorySize = 0;
+        if (shifter != null) {
+            memorySize += shifter.getOriginalFormulasMemorySize();
+            memorySize += mergedRegions.size() * MERGED_REGION_MEMORY_SIZE;
+        }
+        if (removedCells != null) {
+            memorySize += removedCells.getMemorySize() + removedSizes.length * 5;
+        }
+        return memorySize;
+    }
+}
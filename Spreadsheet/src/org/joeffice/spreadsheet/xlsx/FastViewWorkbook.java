@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.xlsx;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import org.joeffice.spreadsheet.sheet.CellStore;
+
+/**
+ * Read-only workbook used for the fast view of large xlsx files.
+ *
+ * The sheets of this workbook don't contain cells, the values are kept in one {@link CellStore} per sheet
+ * that is filled in the background by the {@link StreamingXlsxReader}.
+ * The styles are the styles of the file, so the style indexes of the cell stores can be used with this workbook.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class FastViewWorkbook extends XSSFWorkbook {
+
+    public final static String PROP_ROWS_LOADED = "rowsLoaded";
+    public final static String PROP_LOADED = "loaded";
+
+    private File file;
+    private StylesTable styles;
+    private List<CellStore> cellStores = new ArrayList<>();
+    private PropertyChangeSupport changeSupport = new PropertyChangeSupport(this);
+    private volatile boolean loaded;
+    private volatile boolean cancelled;
+
+    public FastViewWorkbook(File file, StylesTable styles) {
+        this.file = file;
+        this.styles = styles;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Sheet createSheet(String sheetName, CellStore cellStore) {
+        Sheet sheet = createSheet(sheetName);
+        cellStores.add(cellStore);
+        return sheet;
+    }
+
+    public CellStore getCellStore(Sheet sheet) {
+        return cellStores.get(getSheetIndex(sheet));
+    }
+
+    public CellStore getCellStore(int sheetIndex) {
+        return cellStores.get(sheetIndex);
+    }
+
+    @Override
+    public XSSFCellStyle getCellStyleAt(short index) {
+        return styles.getStyleAt(index);
+    }
+
+    @Override
+    public short getNumCellStyles() {
+        return (short) styles.getNumCellStyles();
+    }
+
+    @Override
+    public XSSFFont getFontAt(short index) {
+        return styles.getFontAt(index);
+    }
+
+    /**
+     * Called on the event dispatch thread when new rows of the sheet have been added to its cell store.
+     */
+    void rowsLoaded(int sheetIndex) {
+        changeSupport.firePropertyChange(PROP_ROWS_LOADED, null, sheetIndex);
+    }
+
+    /**
+     * Called on the event dispatch thread when all the sheets have been read.
+     */
+    void loaded() {
+        loaded = true;
+        changeSupport.firePropertyChange(PROP_LOADED, false, true);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Stops reading the file, for example because the full workbook is going to be loaded.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        changeSupport.addPropertyChangeListener(listener);
+    }
+
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        changeSupport.removePropertyChangeListener(listener);
+    }
+}
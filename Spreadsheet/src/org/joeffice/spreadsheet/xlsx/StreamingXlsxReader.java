@@ -0,0 +1,398 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.xlsx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import javax.swing.SwingUtilities;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+
+import org.joeffice.spreadsheet.sheet.CellStore;
+
+import org.openide.util.Exceptions;
+import org.openide.util.RequestProcessor;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reader of xlsx files using the SAX event model of POI instead of the DOM of XSSFWorkbook.
+ *
+ * The cells are read directly in the {@link CellStore} of each sheet.
+ * The method {@link #read(File)} returns as soon as the first rows are read, the rest of the file is read in
+ * the background and added to the cell stores in the event dispatch thread.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class StreamingXlsxReader {
+
+    /**
+     * The xlsx files bigger than this size are opened in fast view.
+     */
+    public final static long FAST_VIEW_MIN_FILE_SIZE = 20 * 1024 * 1024;
+
+    private final static int BATCH_ROW_COUNT = 1000;
+
+    // Whole columns can be defined (up to column 16384), the widths after this column are ignored
+    private final static int MAX_COLUMN_WIDTH_INDEX = 1024;
+
+    private final static RequestProcessor READER_THREAD = new RequestProcessor(StreamingXlsxReader.class);
+
+    public static boolean isFastViewPreferred(File file) {
+        return file.getName().toLowerCase().endsWith(".xlsx") && file.length() >= FAST_VIEW_MIN_FILE_SIZE;
+    }
+
+    public FastViewWorkbook read(File xlsxFile) throws IOException, InvalidFormatException {
+        OPCPackage xlsxPackage = OPCPackage.open(xlsxFile, PackageAccess.READ);
+        try {
+            XSSFReader reader = new XSSFReader(xlsxPackage);
+            FastViewWorkbook workbook = new FastViewWorkbook(xlsxFile, reader.getStylesTable());
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            while (sheets.hasNext()) {
+                // Only the sheet names are needed here, the sheet data is read by the SheetsReader
+                sheets.next().close();
+                workbook.createSheet(sheets.getSheetName(), new CellStore());
+            }
+            ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(xlsxPackage);
+
+            CountDownLatch firstRowsRead = new CountDownLatch(1);
+            READER_THREAD.post(new SheetsReader(xlsxPackage, reader, sharedStrings, workbook, firstRowsRead));
+            firstRowsRead.await();
+            return workbook;
+        } catch (OpenXML4JException | SAXException | InterruptedException ex) {
+            xlsxPackage.revert();
+            throw new IOException(ex);
+        } catch (IOException | RuntimeException ex) {
+            xlsxPackage.revert();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads all the sheets of the file in the background.
+     */
+    private static class SheetsReader implements Runnable {
+
+        private OPCPackage xlsxPackage;
+        private XSSFReader reader;
+        private ReadOnlySharedStringsTable sharedStrings;
+        private FastViewWorkbook workbook;
+        private CountDownLatch firstRowsRead;
+
+        private SheetsReader(OPCPackage xlsxPackage, XSSFReader reader, ReadOnlySharedStringsTable sharedStrings,
+                FastViewWorkbook workbook, CountDownLatch firstRowsRead) {
+            this.xlsxPackage = xlsxPackage;
+            this.reader = reader;
+            this.sharedStrings = sharedStrings;
+            this.workbook = workbook;
+            this.firstRowsRead = firstRowsRead;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+                parserFactory.setNamespaceAware(true);
+                Iterator<InputStream> sheets = reader.getSheetsData();
+                for (int sheetIndex = 0; sheets.hasNext() && !workbook.isCancelled(); sheetIndex++) {
+                    try (InputStream sheetData = sheets.next()) {
+                        SheetHandler sheetHandler = new SheetHandler(workbook, sheetIndex, sharedStrings, firstRowsRead);
+                        parserFactory.newSAXParser().parse(new InputSource(sheetData), sheetHandler);
+                    }
+                }
+            } catch (CancelledException ex) {
+                // The full workbook is loaded instead
+            } catch (IOException | InvalidFormatException | SAXException | ParserConfigurationException ex) {
+                Exceptions.printStackTrace(ex);
+            } finally {
+                xlsxPackage.revert();
+                firstRowsRead.countDown();
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        workbook.loaded();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * SAX handler of the sheet XML, sends the read cells by batch of rows to the event dispatch thread.
+     */
+    private static class SheetHandler extends DefaultHandler {
+
+        private FastViewWorkbook workbook;
+        private int sheetIndex;
+        private ReadOnlySharedStringsTable sharedStrings;
+        private CountDownLatch firstRowsRead;
+
+        private RowsBatch batch = new RowsBatch();
+        private int rowIndex = -1;
+        private int columnIndex = -1;
+        private String cellType;
+        private short styleIndex;
+        private StringBuilder value = new StringBuilder();
+        private boolean inValue;
+
+        private SheetHandler(FastViewWorkbook workbook, int sheetIndex, ReadOnlySharedStringsTable sharedStrings, CountDownLatch firstRowsRead) {
+            this.workbook = workbook;
+            this.sheetIndex = sheetIndex;
+            this.sharedStrings = sharedStrings;
+            this.firstRowsRead = firstRowsRead;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            switch (localName) {
+                case "col":
+                    String width = attributes.getValue("width");
+                    if (width != null && "1".equals(attributes.getValue("customWidth"))) {
+                        int min = Integer.parseInt(attributes.getValue("min")) - 1;
+                        int max = Math.min(Integer.parseInt(attributes.getValue("max")) - 1, MAX_COLUMN_WIDTH_INDEX);
+                        for (int i = min; i <= max; i++) {
+                            batch.addColumnWidth(i, (int) (Double.parseDouble(width) * 256));
+                        }
+                    }
+                    break;
+                case "row":
+                    String rowNumber = attributes.getValue("r");
+                    rowIndex = rowNumber == null ? rowIndex + 1 : Integer.parseInt(rowNumber) - 1;
+                    columnIndex = -1;
+                    String height = attributes.getValue("ht");
+                    if (height != null && "1".equals(attributes.getValue("customHeight"))) {
+                        batch.addRowHeight(rowIndex, Float.parseFloat(height));
+                    }
+                    break;
+                case "c":
+                    String reference = attributes.getValue("r");
+                    columnIndex = reference == null ? columnIndex + 1 : getColumnIndex(reference);
+                    cellType = attributes.getValue("t");
+                    String style = attributes.getValue("s");
+                    styleIndex = style == null ? 0 : Short.parseShort(style);
+                    value.setLength(0);
+                    break;
+                case "v":
+                case "t":
+                    inValue = true;
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (inValue) {
+                value.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            switch (localName) {
+                case "v":
+                case "t":
+                    inValue = false;
+                    break;
+                case "c":
+                    addCell();
+                    break;
+                case "row":
+                    batch.rowCount++;
+                    if (batch.rowCount >= BATCH_ROW_COUNT) {
+                        publishBatch();
+                    }
+                    break;
+                case "worksheet":
+                    publishBatch();
+                    break;
+            }
+        }
+
+        private void addCell() {
+            String text = value.toString();
+            if (cellType == null || cellType.equals("n")) {
+                if (text.isEmpty()) {
+                    batch.addCell(rowIndex, columnIndex, Cell.CELL_TYPE_BLANK, 0, null, styleIndex);
+                } else {
+                    batch.addCell(rowIndex, columnIndex, Cell.CELL_TYPE_NUMERIC, Double.parseDouble(text), null, styleIndex);
+                }
+            } else if (cellType.equals("s")) {
+                String sharedString = sharedStrings.getEntryAt(Integer.parseInt(text));
+                batch.addCell(rowIndex, columnIndex, Cell.CELL_TYPE_STRING, 0, sharedString, styleIndex);
+            } else if (cellType.equals("b")) {
+                batch.addCell(rowIndex, columnIndex, Cell.CELL_TYPE_BOOLEAN, text.equals("1") ? 1 : 0, null, styleIndex);
+            } else if (cellType.equals("e")) {
+                try {
+                    byte errorCode = FormulaError.forString(text).getCode();
+                    batch.addCell(rowIndex, columnIndex, Cell.CELL_TYPE_ERROR, errorCode, null, styleIndex);
+                } catch (IllegalArgumentException ex) {
+                    batch.addCell(rowIndex, columnIndex, Cell.CELL_TYPE_STRING, 0, text, styleIndex);
+                }
+            } else { // inlineStr and str (formula result)
+                batch.addCell(rowIndex, columnIndex, Cell.CELL_TYPE_STRING, 0, text, styleIndex);
+            }
+        }
+
+        private void publishBatch() throws CancelledException {
+            if (workbook.isCancelled()) {
+                throw new CancelledException();
+            }
+            final RowsBatch publishedBatch = batch;
+            batch = new RowsBatch();
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (!workbook.isCancelled()) {
+                        Sheet sheet = workbook.getSheetAt(sheetIndex);
+                        publishedBatch.addTo(sheet, workbook.getCellStore(sheetIndex));
+                        workbook.rowsLoaded(sheetIndex);
+                    }
+                }
+            });
+            firstRowsRead.countDown();
+        }
+
+        private static int getColumnIndex(String cellReference) {
+            int column = 0;
+            for (int i = 0; i < cellReference.length(); i++) {
+                char c = cellReference.charAt(i);
+                if (c < 'A' || c > 'Z') {
+                    break;
+                }
+                column = column * 26 + (c - 'A' + 1);
+            }
+            return column - 1;
+        }
+    }
+
+    /**
+     * The cells of a group of rows, kept in arrays until they're added to the cell store.
+     */
+    private static class RowsBatch {
+
+        private int rowCount;
+        private int cellCount;
+        private int[] rows = new int[256];
+        private int[] columns = new int[256];
+        private byte[] types = new byte[256];
+        private double[] numbers = new double[256];
+        private String[] strings = new String[256];
+        private short[] styles = new short[256];
+
+        private int rowHeightCount;
+        private int[] rowHeightIndexes = new int[16];
+        private float[] rowHeights = new float[16];
+        private int columnWidthCount;
+        private int[] columnWidthIndexes = new int[16];
+        private int[] columnWidths = new int[16];
+
+        private void addCell(int row, int column, int type, double number, String text, short style) {
+            if (cellCount == rows.length) {
+                int newLength = cellCount * 2;
+                rows = Arrays.copyOf(rows, newLength);
+                columns = Arrays.copyOf(columns, newLength);
+                types = Arrays.copyOf(types, newLength);
+                numbers = Arrays.copyOf(numbers, newLength);
+                strings = Arrays.copyOf(strings, newLength);
+                styles = Arrays.copyOf(styles, newLength);
+            }
+            rows[cellCount] = row;
+            columns[cellCount] = column;
+            types[cellCount] = (byte) type;
+            numbers[cellCount] = number;
+            strings[cellCount] = text;
+            styles[cellCount] = style;
+            cellCount++;
+        }
+
+        private void addRowHeight(int row, float height) {
+            if (rowHeightCount == rowHeights.length) {
+                rowHeightIndexes = Arrays.copyOf(rowHeightIndexes, rowHeightCount * 2);
+                rowHeights = Arrays.copyOf(rowHeights, rowHeightCount * 2);
+            }
+            rowHeightIndexes[rowHeightCount] = row;
+            rowHeights[rowHeightCount] = height;
+            rowHeightCount++;
+        }
+
+        private void addColumnWidth(int column, int width) {
+            if (columnWidthCount == columnWidths.length) {
+                columnWidthIndexes = Arrays.copyOf(columnWidthIndexes, columnWidthCount * 2);
+                columnWidths = Arrays.copyOf(columnWidths, columnWidthCount * 2);
+            }
+            columnWidthIndexes[columnWidthCount] = column;
+            columnWidths[columnWidthCount] = width;
+            columnWidthCount++;
+        }
+
+        private void addTo(Sheet sheet, CellStore cellStore) {
+            for (int i = 0; i < columnWidthCount; i++) {
+                sheet.setColumnWidth(columnWidthIndexes[i], columnWidths[i]);
+            }
+            for (int i = 0; i < rowHeightCount; i++) {
+                Row row = sheet.getRow(rowHeightIndexes[i]);
+                if (row == null) {
+                    row = sheet.createRow(rowHeightIndexes[i]);
+                }
+                row.setHeightInPoints(rowHeights[i]);
+            }
+            for (int i = 0; i < cellCount; i++) {
+                int row = rows[i];
+                int column = columns[i];
+                switch (types[i]) {
+                    case Cell.CELL_TYPE_NUMERIC:
+                        cellStore.setNumericValue(row, column, numbers[i]);
+                        break;
+                    case Cell.CELL_TYPE_STRING:
+                        cellStore.setStringValue(row, column, strings[i]);
+                        break;
+                    case Cell.CELL_TYPE_BOOLEAN:
+                        cellStore.setBooleanValue(row, column, numbers[i] != 0);
+                        break;
+                    case Cell.CELL_TYPE_ERROR:
+                        cellStore.setErrorValue(row, column, (byte) numbers[i]);
+                        break;
+                    default:
+                        cellStore.setBlank(row, column);
+                }
+                cellStore.setStyleIndex(row, column, styles[i]);
+            }
+        }
+    }
+
+    /**
+     * Thrown to stop the parsing when the fast view is cancelled.
+     */
+    private static class CancelledException extends SAXException {
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.spreadsheet.xlsx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
+import org.apache.poi.xssf.usermodel.extensions.XSSFCellFill;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTBorder;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCol;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCols;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTFill;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorksheet;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTXf;
+
+import org.joeffice.spreadsheet.csv.CSVWorkbook;
+
+/**
+ * Writer of xlsx files that streams the rows to the file.
+ *
+ * XSSFWorkbook.write() serializes the XML of each sheet in memory before zipping it.
+ * This writer copies the workbook in a SXSSFWorkbook that only keeps a window of rows in memory,
+ * the other rows are written to a temporary file.
+ * As the workbook given is only read, it stays valid after the save.
+ *
+ * The cells, their styles and numeric formula results, the names and the sheet settings without relationships
+ * (columns, views, protection, autofilter, print setup and margins) are copied.
+ * The workbooks with pictures, charts or other drawings, comments, hyperlinks, tables, conditional formatting,
+ * data validations or grouped rows are saved with XSSFWorkbook.write(), as well as the workbooks with
+ * rich text cells or formulas with a text, boolean or error result.
+ * {@link #isStreamingPreferred(Workbook)} checks all of them before the copy starts.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class StreamingXlsxWriter {
+
+    /**
+     * The workbooks with more rows than this number are saved with this writer.
+     */
+    public final static int STREAMING_SAVE_MIN_ROW_COUNT = 100000;
+
+    private final static int ROW_WINDOW_SIZE = SXSSFWorkbook.DEFAULT_WINDOW_SIZE;
+
+    public static boolean isStreamingPreferred(Workbook workbook) {
+        if (!(workbook instanceof XSSFWorkbook) || workbook instanceof CSVWorkbook || workbook instanceof FastViewWorkbook) {
+            return false;
+        }
+        XSSFWorkbook xlsxWorkbook = (XSSFWorkbook) workbook;
+        // The streamed cells refer to their style with a signed short
+        if (!xlsxWorkbook.getAllPictures().isEmpty() || xlsxWorkbook.getStylesSource().getNumCellStyles() > Short.MAX_VALUE) {
+            return false;
+        }
+        int rowCount = 0;
+        for (int i = 0; i < xlsxWorkbook.getNumberOfSheets(); i++) {
+            XSSFSheet sheet = xlsxWorkbook.getSheetAt(i);
+            if (!isStreamable(sheet)) {
+                return false;
+            }
+            rowCount += sheet.getPhysicalNumberOfRows();
+        }
+        if (rowCount < STREAMING_SAVE_MIN_ROW_COUNT) {
+            return false;
+        }
+        for (int i = 0; i < xlsxWorkbook.getNumberOfSheets(); i++) {
+            if (!areRowsStreamable(xlsxWorkbook.getSheetAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the sheet has nothing that would be lost by the copy.
+     */
+    private static boolean isStreamable(XSSFSheet sheet) {
+        CTWorksheet worksheet = sheet.getCTWorksheet();
+        if (worksheet.isSetDrawing() || worksheet.isSetLegacyDrawing() || worksheet.isSetLegacyDrawingHF()
+                || worksheet.isSetPicture() || worksheet.isSetOleObjects() || worksheet.isSetControls()
+                || worksheet.isSetHyperlinks() || worksheet.isSetTableParts() || worksheet.isSetCustomSheetViews()) {
+            return false;
+        }
+        if (worksheet.isSetPageSetup() && worksheet.getPageSetup().isSetId()) {
+            // The printer settings are a relationship of the sheet
+            return false;
+        }
+        return sheet.getDataValidations().isEmpty()
+                && sheet.getSheetConditionalFormatting().getNumConditionalFormattings() == 0;
+    }
+
+    /**
+     * Checks that the rows aren't grouped and that the cells can be streamed without losing the text runs
+     * or the result of the formulas.
+     */
+    private static boolean areRowsStreamable(XSSFSheet sheet) {
+        for (Row row : sheet) {
+            if (((XSSFRow) row).getCTRow().getOutlineLevel() > 0) {
+                return false;
+            }
+            for (Cell cell : row) {
+                XSSFCell xlsxCell = (XSSFCell) cell;
+                switch (cell.getCellType()) {
+                    case Cell.CELL_TYPE_STRING:
+                        if (xlsxCell.getRichStringCellValue().numFormattingRuns() > 0) {
+                            return false;
+                        }
+                        break;
+                    case Cell.CELL_TYPE_FORMULA:
+                        // SXSSF only writes the numeric results
+                        if (xlsxCell.getCTCell().isSetV() && cell.getCachedFormulaResultType() != Cell.CELL_TYPE_NUMERIC) {
+                            return false;
+                        }
+                        break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the workbook to the output.
+     * The workbook should be checked first with {@link #isStreamingPreferred(Workbook)}, the content that this
+     * writer can't copy is lost otherwise.
+     */
+    public void write(XSSFWorkbook workbook, OutputStream output) throws IOException {
+        SXSSFWorkbook streamingWorkbook = new SXSSFWorkbook(ROW_WINDOW_SIZE);
+        streamingWorkbook.setCompressTempFiles(true);
+        try {
+            CellStyle[] styles = new CellStyle[workbook.getNumCellStyles()];
+            styles[0] = streamingWorkbook.getCellStyleAt((short) 0);
+            copyStyle(workbook.getCellStyleAt((short) 0), styles[0], workbook, streamingWorkbook);
+            for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+                XSSFSheet sheet = workbook.getSheetAt(i);
+                Sheet streamingSheet = streamingWorkbook.createSheet(workbook.getSheetName(i));
+                copySheet(sheet, streamingSheet, workbook, streamingWorkbook, styles);
+                copySheetSettings(sheet, streamingWorkbook.getXSSFWorkbook().getSheetAt(i), workbook, streamingWorkbook, styles);
+                streamingWorkbook.setSheetHidden(i, workbook.isSheetHidden(i));
+            }
+            for (int i = 0; i < workbook.getNumberOfNames(); i++) {
+                Name name = workbook.getNameAt(i);
+                Name streamingName = streamingWorkbook.createName();
+                streamingName.setNameName(name.getNameName());
+                streamingName.setSheetIndex(name.getSheetIndex());
+                streamingName.setRefersToFormula(name.getRefersToFormula());
+            }
+            if (workbook.getCTWorkbook().isSetWorkbookProtection()) {
+                streamingWorkbook.getXSSFWorkbook().getCTWorkbook().setWorkbookProtection(workbook.getCTWorkbook().getWorkbookProtection());
+            }
+            streamingWorkbook.setActiveSheet(workbook.getActiveSheetIndex());
+            streamingWorkbook.setFirstVisibleTab(workbook.getFirstVisibleTab());
+            streamingWorkbook.setForceFormulaRecalculation(workbook.getForceFormulaRecalculation());
+            streamingWorkbook.write(output);
+        } finally {
+            streamingWorkbook.dispose();
+        }
+    }
+
+    private void copySheet(XSSFSheet sheet, Sheet streamingSheet, XSSFWorkbook workbook, SXSSFWorkbook streamingWorkbook, CellStyle[] styles) {
+        for (int i = 0; i < sheet.getNumMergedRegions(); i++) {
+            CellRangeAddress mergedRegion = sheet.getMergedRegion(i);
+            streamingSheet.addMergedRegion(mergedRegion);
+        }
+
+        for (Row row : sheet) {
+            Row streamingRow = streamingSheet.createRow(row.getRowNum());
+            if (row.isFormatted()) {
+                streamingRow.setRowStyle(getStyle(row.getRowStyle(), workbook, streamingWorkbook, styles));
+            }
+            streamingRow.setHeight(row.getHeight());
+            streamingRow.setZeroHeight(row.getZeroHeight());
+            for (Cell cell : row) {
+                Cell streamingCell = streamingRow.createCell(cell.getColumnIndex());
+                copyCellValue((XSSFCell) cell, streamingCell);
+                streamingCell.setCellStyle(getStyle(cell.getCellStyle(), workbook, streamingWorkbook, styles));
+            }
+        }
+    }
+
+    /**
+     * Copies the elements of the sheet XML that don't refer to other parts of the file.
+     * The streamed rows replace the sheet data of the XSSF sheet backing the streaming sheet when it's written.
+     */
+    private void copySheetSettings(XSSFSheet sheet, XSSFSheet streamingSheet, XSSFWorkbook workbook, SXSSFWorkbook streamingWorkbook, CellStyle[] styles) {
+        CTWorksheet worksheet = sheet.getCTWorksheet();
+        CTWorksheet streamingWorksheet = streamingSheet.getCTWorksheet();
+        if (worksheet.isSetSheetPr()) {
+            streamingWorksheet.setSheetPr(worksheet.getSheetPr());
+        }
+        if (worksheet.isSetSheetViews()) {
+            streamingWorksheet.setSheetViews(worksheet.getSheetViews());
+        }
+        if (worksheet.isSetSheetFormatPr()) {
+            streamingWorksheet.setSheetFormatPr(worksheet.getSheetFormatPr());
+        }
+        streamingWorksheet.setColsArray(worksheet.getColsArray());
+        for (CTCols columns : streamingWorksheet.getColsArray()) {
+            for (CTCol column : columns.getColArray()) {
+                if (column.isSetStyle()) {
+                    CellStyle style = workbook.getCellStyleAt((short) column.getStyle());
+                    column.setStyle(getStyle(style, workbook, streamingWorkbook, styles).getIndex());
+                }
+            }
+        }
+        if (worksheet.isSetSheetProtection()) {
+            streamingWorksheet.setSheetProtection(worksheet.getSheetProtection());
+        }
+        if (worksheet.isSetAutoFilter()) {
+            streamingWorksheet.setAutoFilter(worksheet.getAutoFilter());
+        }
+        if (worksheet.isSetPrintOptions()) {
+            streamingWorksheet.setPrintOptions(worksheet.getPrintOptions());
+        }
+        if (worksheet.isSetPageMargins()) {
+            streamingWorksheet.setPageMargins(worksheet.getPageMargins());
+        }
+        if (worksheet.isSetPageSetup()) {
+            streamingWorksheet.setPageSetup(worksheet.getPageSetup());
+        }
+        if (worksheet.isSetHeaderFooter()) {
+            streamingWorksheet.setHeaderFooter(worksheet.getHeaderFooter());
+        }
+        if (worksheet.isSetRowBreaks()) {
+            streamingWorksheet.setRowBreaks(worksheet.getRowBreaks());
+        }
+        if (worksheet.isSetColBreaks()) {
+            streamingWorksheet.setColBreaks(worksheet.getColBreaks());
+        }
+    }
+
+    /**
+     * Copies the value of the cell, the rich text runs and the non numeric formula results are not copied.
+     */
+    private void copyCellValue(XSSFCell cell, Cell streamingCell) {
+        switch (cell.getCellType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                streamingCell.setCellValue(cell.getNumericCellValue());
+                break;
+            case Cell.CELL_TYPE_STRING:
+                streamingCell.setCellValue(cell.getRichStringCellValue().getString());
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                streamingCell.setCellValue(cell.getBooleanCellValue());
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                streamingCell.setCellErrorValue(cell.getErrorCellValue());
+                break;
+            case Cell.CELL_TYPE_FORMULA:
+                streamingCell.setCellFormula(cell.getCellFormula());
+                // SXSSF only writes the numeric results, NaN for no result
+                if (!cell.getCTCell().isSetV()) {
+                    streamingCell.setCellValue(Double.NaN);
+                } else if (cell.getCachedFormulaResultType() == Cell.CELL_TYPE_NUMERIC) {
+                    streamingCell.setCellValue(cell.getNumericCellValue());
+                }
+                break;
+        }
+    }
+
+    /**
+     * Gets the style of the streaming workbook, the style is created the first time it's used.
+     */
+    private CellStyle getStyle(CellStyle style, XSSFWorkbook workbook, SXSSFWorkbook streamingWorkbook, CellStyle[] styles) {
+        short styleIndex = style.getIndex();
+        if (styles[styleIndex] == null) {
+            CellStyle streamingStyle = streamingWorkbook.createCellStyle();
+            copyStyle(style, streamingStyle, workbook, streamingWorkbook);
+            styles[styleIndex] = streamingStyle;
+        }
+        return styles[styleIndex];
+    }
+
+    /**
+     * Copies the style to the style of the streaming workbook.
+     * Between workbooks, XSSFCellStyle.cloneStyleFrom() only adds the font and the data format to the streaming
+     * workbook, the fill and the border ids of the copied XML still refer to the styles of the saved workbook.
+     */
+    private void copyStyle(CellStyle style, CellStyle streamingStyle, XSSFWorkbook workbook, SXSSFWorkbook streamingWorkbook) {
+        streamingStyle.cloneStyleFrom(style);
+        StylesTable stylesSource = workbook.getStylesSource();
+        StylesTable streamingStylesSource = streamingWorkbook.getXSSFWorkbook().getStylesSource();
+        CTXf xf = ((XSSFCellStyle) style).getCoreXf();
+        CTXf streamingXf = ((XSSFCellStyle) streamingStyle).getCoreXf();
+        CTFill fill = (CTFill) stylesSource.getFillAt((int) xf.getFillId()).getCTFill().copy();
+        streamingXf.setFillId(streamingStylesSource.putFill(new XSSFCellFill(fill)));
+        CTBorder border = (CTBorder) stylesSource.getBorderAt((int) xf.getBorderId()).getCTBorder().copy();
+        streamingXf.setBorderId(streamingStylesSource.putBorder(new XSSFCellBorder(border)));
+        // The named cell styles aren't copied, the cell formats have their own attributes
+        streamingXf.setXfId(0);
+    }
+}
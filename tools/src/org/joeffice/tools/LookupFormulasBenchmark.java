@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Japplis.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.joeffice.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.joeffice.spreadsheet.formula.FormulaEngine;
+
+/**
+ * Benchmark of the lookup formulas (VLOOKUP, MATCH, COUNTIF, SUMIF) evaluated by POI and by the formula engine
+ * of the spreadsheet that searches the ranges with indexes.
+ * The results of the engine are compared with the results of POI, also after a cell is changed.
+ *
+ * The number of rows of the data sheets can be given as argument, the default is 2000.
+ *
+ * @author Anthony Goubard - Japplis
+ */
+public class LookupFormulasBenchmark {
+
+    public static void main(String[] args) {
+        int rowCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Workbook workbook = createWorkbook(rowCount);
+        List<Cell> formulaCells = new ArrayList<>();
+        for (Row row : workbook.getSheet("Lookups")) {
+            for (Cell cell : row) {
+                formulaCells.add(cell);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<String> poiResults = evaluateWithPoi(workbook, formulaCells);
+        System.out.println("POI evaluation of " + formulaCells.size() + " formulas: " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        FormulaEngine engine = FormulaEngine.getInstance(workbook);
+        start = System.nanoTime();
+        engine.recalculateAll();
+        System.out.println("Engine recalculation: " + (System.nanoTime() - start) / 1000000 + " ms");
+        compare(formulaCells, poiResults);
+
+        Sheet dataSheet = workbook.getSheet("Data");
+        dataSheet.getRow(rowCount / 2).getCell(1).setCellValue(-1);
+        dataSheet.getRow(rowCount / 3).getCell(0).setCellValue("key" + (rowCount / 2));
+        start = System.nanoTime();
+        engine.cellsChanged(dataSheet, rowCount / 3, rowCount / 2, 0, 1);
+        List<Cell> recalculatedCells = engine.recalculate();
+        System.out.println("Engine recalculation of " + recalculatedCells.size() + " formulas after a change: " + (System.nanoTime() - start) / 1000000 + " ms");
+        compare(formulaCells, evaluateWithPoi(workbook, formulaCells));
+    }
+
+    /**
+     * Creates a workbook with 2 data sheets having the same ranges with different values
+     * and a sheet with 5 lookup formulas per row.
+     */
+    private static Workbook createWorkbook(int rowCount) {
+        Workbook workbook = new HSSFWorkbook();
+        Sheet dataSheet = workbook.createSheet("Data");
+        Sheet otherSheet = workbook.createSheet("Other");
+        Sheet lookupsSheet = workbook.createSheet("Lookups");
+        for (int i = 0; i < rowCount; i++) {
+            Row dataRow = dataSheet.createRow(i);
+            dataRow.createCell(0).setCellValue("key" + i);
+            dataRow.createCell(1).setCellValue(i * 3 % 97);
+            dataRow.createCell(2).setCellValue(i);
+            Row otherRow = otherSheet.createRow(i);
+            otherRow.createCell(0).setCellValue("key" + (rowCount - i));
+            otherRow.createCell(1).setCellValue(i % 13);
+            otherRow.createCell(2).setCellValue(i * 2);
+
+            String lastRow = String.valueOf(rowCount);
+            String key = "\"key" + (i * 7 % rowCount) + "\"";
+            Row lookupsRow = lookupsSheet.createRow(i);
+            lookupsRow.createCell(0).setCellFormula("VLOOKUP(" + key + ",Data!$A$1:$C$" + lastRow + ",2,FALSE)");
+            lookupsRow.createCell(1).setCellFormula("VLOOKUP(" + key + ",Other!$A$1:$C$" + lastRow + ",3,0)");
+            lookupsRow.createCell(2).setCellFormula("COUNTIF(Data!$B$1:$B$" + lastRow + "," + (i % 97) + ")");
+            lookupsRow.createCell(3).setCellFormula("SUMIF(Other!$B$1:$B$" + lastRow + "," + (i % 13) + ",Other!$C$1:$C$" + lastRow + ")");
+            lookupsRow.createCell(4).setCellFormula("MATCH(" + (i * 11 % rowCount) + ",Data!$C$1:$C$" + lastRow + ",0)");
+        }
+        return workbook;
+    }
+
+    private static List<String> evaluateWithPoi(Workbook workbook, List<Cell> formulaCells) {
+        FormulaEvaluator poiEvaluator = workbook.getCreationHelper().createFormulaEvaluator();
+        List<String> results = new ArrayList<>(formulaCells.size());
+        for (Cell cell : formulaCells) {
+            results.add(poiEvaluator.evaluate(cell).formatAsString());
+        }
+        return results;
+    }
+
+    private static void compare(List<Cell> formulaCells, List<String> poiResults) {
+        int differenceCount = 0;
+        for (int i = 0; i < formulaCells.size(); i++) {
+            Cell cell = formulaCells.get(i);
+            CellValue engineResult = FormulaEngine.getCachedValue(cell);
+            String engineText = engineResult == null ? null : engineResult.formatAsString();
+            if (!poiResults.get(i).equals(engineText)) {
+                if (differenceCount < 10) {
+                    System.out.println("Difference for " + cell.getCellFormula() + ": POI " + poiResults.get(i) + ", engine " + engineText);
+                }
+                differenceCount++;
+            }
+        }
+        System.out.println(differenceCount == 0 ? "Same results as POI" : differenceCount + " results different from POI");
+    }
+}